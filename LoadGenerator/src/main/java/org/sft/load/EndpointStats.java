@@ -0,0 +1,94 @@
+package org.sft.load;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// latencies and counters of one endpoint, or of all of them together
+// latencies are kept in microseconds in an hdr histogram, so p99.9 of a long run costs no more memory than p50
+public class EndpointStats {
+
+    private final String name;
+    private final Recorder recorder = new Recorder(3);
+    private final Histogram total = new Histogram(3);
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private Histogram interval;
+
+    public EndpointStats(String name) {
+        this.name = name;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    // function to count one finished request
+    // param:
+    // latencyNanos -> from when the request should have been sent until its body was read
+    // ok -> false for errors, timeouts and any answer that is not 2xx
+    // bytes -> body bytes moved by the request
+    public void record(long latencyNanos, boolean ok, long bytes) {
+        recorder.recordValue(Math.max(1, TimeUnit.NANOSECONDS.toMicros(latencyNanos)));
+        requests.increment();
+        if (!ok) {
+            errors.increment();
+        }
+        this.bytes.add(bytes);
+    }
+
+    // function to take what was recorded since the last call, it is added to the totals of the run
+    // returns the latencies of just that interval
+    public synchronized Histogram sample() {
+        interval = recorder.getIntervalHistogram(interval);
+        total.add(interval);
+        return interval;
+    }
+
+    // function to forget everything recorded so far, used when the warmup is over
+    public synchronized void reset() {
+        recorder.reset();
+        total.reset();
+        requests.reset();
+        errors.reset();
+        bytes.reset();
+    }
+
+    public Histogram total() {
+        return total;
+    }
+
+    public long requests() {
+        return requests.sum();
+    }
+
+    public long errors() {
+        return errors.sum();
+    }
+
+    public long bytes() {
+        return bytes.sum();
+    }
+
+    // percent of the requests that failed
+    public double errorRate() {
+        long count = requests();
+        return count == 0 ? 0 : errors() * 100.0 / count;
+    }
+
+    // function to write the whole latency distribution in milliseconds, in the .hgrm format the hdr histogram
+    // plotter reads
+    public void writeDistribution(Path directory) throws IOException {
+        try (PrintStream out = new PrintStream(new FileOutputStream(directory.resolve(name + ".hgrm").toFile()))) {
+            total.outputPercentileDistribution(out, 1000.0);
+        }
+    }
+
+}
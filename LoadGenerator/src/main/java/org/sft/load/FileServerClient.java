@@ -0,0 +1,116 @@
+package org.sft.load;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+
+// the http calls of the file server's /files endpoints, made the way the file viewer makes them
+// bodies are read to the end and thrown away, so a call takes as long as the whole transfer
+public class FileServerClient {
+
+    // what came back
+    // param:
+    // status -> http status, 0 if the request never got an answer
+    // bytes -> body bytes sent for uploads, received for everything else
+    // body -> the body as text for the small answers we need something from (upload), null otherwise
+    public record Result(int status, long bytes, String body) {
+
+        public boolean ok() {
+            return status >= 200 && status < 300;
+        }
+    }
+
+    private static final String BOUNDARY = "----LoadGeneratorBoundary7MA4YWxkTrZu0gW";
+
+    private final URI server;
+    private final Duration timeout;
+    private final HttpClient client;
+
+    // param:
+    // server -> eg. http://localhost:9090
+    // timeout -> most time a single request may take, including its body
+    public FileServerClient(URI server, Duration timeout) {
+        this.server = server;
+        this.timeout = timeout;
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1) // what tomcat speaks without tls
+                .connectTimeout(timeout)
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .build();
+    }
+
+    // function to upload a file as a multipart form, without copying its content
+    // param:
+    // content -> the file is content[offset, offset+length) with the first 8 bytes replaced by prefix, so every
+    //            upload can have unique content while sharing one buffer
+    public Result upload(String folderId, String filename, byte[] prefix, byte[] content, int offset, int length)
+            throws IOException, InterruptedException {
+        byte[] head = ("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"" + filename + "\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+        byte[] tail = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8);
+        int prefixLength = Math.min(prefix.length, length);
+
+        HttpRequest request = request("/files/upload?id=" + encode(folderId))
+                .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+                .POST(HttpRequest.BodyPublishers.concat(
+                        HttpRequest.BodyPublishers.ofByteArray(head),
+                        HttpRequest.BodyPublishers.ofByteArray(prefix, 0, prefixLength),
+                        HttpRequest.BodyPublishers.ofByteArray(content, offset + prefixLength, length - prefixLength),
+                        HttpRequest.BodyPublishers.ofByteArray(tail)))
+                .build();
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        return new Result(response.statusCode(), length, response.body());
+    }
+
+    public Result list(String folderId) throws IOException, InterruptedException {
+        return get("/files/list?id=" + encode(folderId));
+    }
+
+    public Result download(String folderId, String filename) throws IOException, InterruptedException {
+        return get("/files/download?id=" + encode(folderId) + "&filename=" + encode(filename));
+    }
+
+    public Result downloadAll(String folderId) throws IOException, InterruptedException {
+        return get("/files/downloadAll?id=" + encode(folderId));
+    }
+
+    public Result delete(String folderId, String filename) throws IOException, InterruptedException {
+        HttpRequest request = request("/files/delete?id=" + encode(folderId) + "&filename=" + encode(filename)).DELETE().build();
+        return drain(request);
+    }
+
+    // the name the server saved an upload under, it answers "File uploaded successfully: <path of the file>"
+    public static String savedName(Result upload) {
+        String path = upload.body().substring(upload.body().indexOf(':') + 1).trim();
+        return path.substring(Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\')) + 1);
+    }
+
+    private Result get(String path) throws IOException, InterruptedException {
+        return drain(request(path).GET().build());
+    }
+
+    private Result drain(HttpRequest request) throws IOException, InterruptedException {
+        HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        try (InputStream body = response.body()) {
+            return new Result(response.statusCode(), body.transferTo(OutputStream.nullOutputStream()), null);
+        }
+    }
+
+    private HttpRequest.Builder request(String path) {
+        return HttpRequest.newBuilder(server.resolve(path)).timeout(timeout);
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+}
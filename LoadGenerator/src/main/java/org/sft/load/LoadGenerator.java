@@ -0,0 +1,434 @@
+package org.sft.load;
+
+import org.HdrHistogram.Histogram;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// puts load on a file server running on this machine and reports throughput and latency percentiles per endpoint
+// the run fails (exit code 1) when a --threshold is not met, so it can guard against regressions in a script
+//
+// build with: mvn -B package (in LoadGenerator)
+// run with: java -jar target/LoadGenerator-1.0-jar-with-dependencies.jar <arguments>
+// arguments:
+//   --url http://localhost:9090                   the server, only loopback addresses are allowed
+//   --mix upload=20,list=40,download=35,delete=5   share of every endpoint, downloadAll can be added too
+//   --sizes 1KB:50,64KB:30,1MB:15,10MB:5          upload sizes and how often each comes up
+//   --folders 8 --files-per-folder 20             folders the load is spread over and files put in each beforehand
+//   --model closed --concurrency 16 --think-time 0ms
+//                                                 closed loop: that many users, each sends its next request when the
+//                                                 last one is answered
+//   --model open --rate 200 --arrivals poisson --max-in-flight 256
+//                                                 open loop: requests start at the rate whether or not the server
+//                                                 keeps up, latency counts from when a request should have started
+//   --duration 60s --warmup 10s --timeout 30s --report-interval 5s
+//   --threshold download.p99=250ms                may be given many times, metrics are p50 p90 p99 p999 max (ms),
+//                                                 errors (%) and throughput (least req/s), endpoint "all" is every request
+//   --histograms <directory>                      write the latency distribution of every endpoint as <endpoint>.hgrm
+//   --cleanup                                     delete the files the load put on the server when the run is over
+public class LoadGenerator {
+
+    private final FileServerClient client;
+    private final Workload workload;
+    private final Map<Operation, EndpointStats> stats = new EnumMap<>(Operation.class);
+    private final EndpointStats all = new EndpointStats(Threshold.ALL);
+    private final byte[] content;
+    private final AtomicLong uploads = new AtomicLong();
+
+    public LoadGenerator(FileServerClient client, Workload workload) {
+        this.client = client;
+        this.workload = workload;
+        for (Operation operation : Operation.values()) {
+            stats.put(operation, new EndpointStats(operation.label()));
+        }
+        // one random buffer every upload is a slice of, with its first bytes made unique so the server's
+        // de-duplication does not turn uploads into links
+        content = new byte[Math.max(workload.largestSize(), 8) + 64 * 1024];
+        new Random(1).nextBytes(content);
+    }
+
+    public static void main(String[] args) throws Exception {
+        String url = "http://localhost:9090";
+        String mix = "upload=20,list=40,download=35,delete=5";
+        String sizes = "1KB:50,64KB:30,1MB:15,10MB:5";
+        int folders = 8;
+        int filesPerFolder = 20;
+        String model = "closed";
+        int concurrency = 16;
+        Duration thinkTime = Duration.ZERO;
+        double rate = 100;
+        String arrivals = "poisson";
+        int maxInFlight = 256;
+        Duration duration = Duration.ofSeconds(60);
+        Duration warmup = Duration.ofSeconds(10);
+        Duration timeout = Duration.ofSeconds(30);
+        Duration reportInterval = Duration.ofSeconds(5);
+        List<Threshold> thresholds = new ArrayList<>();
+        Path histograms = null;
+        boolean cleanup = false;
+        Workload workload;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--url" -> url = args[++i];
+                    case "--mix" -> mix = args[++i];
+                    case "--sizes" -> sizes = args[++i];
+                    case "--folders" -> folders = Integer.parseInt(args[++i]);
+                    case "--files-per-folder" -> filesPerFolder = Integer.parseInt(args[++i]);
+                    case "--model" -> model = args[++i];
+                    case "--concurrency" -> concurrency = Integer.parseInt(args[++i]);
+                    case "--think-time" -> thinkTime = duration(args[++i]);
+                    case "--rate" -> rate = Double.parseDouble(args[++i]);
+                    case "--arrivals" -> arrivals = args[++i];
+                    case "--max-in-flight" -> maxInFlight = Integer.parseInt(args[++i]);
+                    case "--duration" -> duration = duration(args[++i]);
+                    case "--warmup" -> warmup = duration(args[++i]);
+                    case "--timeout" -> timeout = duration(args[++i]);
+                    case "--report-interval" -> reportInterval = duration(args[++i]);
+                    case "--threshold" -> thresholds.add(Threshold.parse(args[++i]));
+                    case "--histograms" -> histograms = Path.of(args[++i]);
+                    case "--cleanup" -> cleanup = true;
+                    default -> throw new IllegalArgumentException("Unknown argument: " + args[i]);
+                }
+            }
+            if (!model.equals("closed") && !model.equals("open")) {
+                throw new IllegalArgumentException("--model is closed or open, not " + model);
+            }
+            if (!arrivals.equals("uniform") && !arrivals.equals("poisson")) {
+                throw new IllegalArgumentException("--arrivals is uniform or poisson, not " + arrivals);
+            }
+            if (concurrency < 1 || maxInFlight < 1 || rate <= 0 || duration.isZero() || reportInterval.isZero()) {
+                throw new IllegalArgumentException("--concurrency, --max-in-flight, --rate, --duration and --report-interval must be above 0");
+            }
+            workload = new Workload(Workload.parseMix(mix), Workload.parseSizes(sizes), folders, filesPerFolder);
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.err.println(e instanceof ArrayIndexOutOfBoundsException ? "Missing value after " + args[args.length - 1] : e.getMessage());
+            System.exit(2);
+            return;
+        }
+
+        URI server = URI.create(url);
+        if (!isLoopback(server)) {
+            // the load is meant for a server on this machine, not for one behind the tunnel or somebody else's
+            System.err.println("Refusing to put load on " + server.getHost() + ", only localhost is allowed");
+            System.exit(2);
+        }
+
+        LoadGenerator generator = new LoadGenerator(new FileServerClient(server, timeout), workload);
+
+        System.out.printf("Loading %s: %s%n", server, workload.describeMix());
+        System.out.println(model.equals("closed")
+                ? String.format(Locale.ROOT, "Closed loop, %d users, %d ms think time", concurrency, thinkTime.toMillis())
+                : String.format(Locale.ROOT, "Open loop, %.1f req/s %s arrivals, at most %d in flight", rate, arrivals, maxInFlight));
+
+        int prepared = generator.prepare(concurrency);
+        System.out.printf("Put %d files into %d folders%n", prepared, folders);
+
+        long nanos = generator.run(model.equals("closed"), concurrency, thinkTime, rate, arrivals.equals("poisson"),
+                maxInFlight, warmup, duration, reportInterval);
+        boolean passed = generator.report(nanos / 1e9, thresholds);
+
+        if (histograms != null) {
+            Files.createDirectories(histograms);
+            for (EndpointStats endpoint : generator.measured()) {
+                endpoint.writeDistribution(histograms);
+            }
+            System.out.println("Wrote latency distributions to " + histograms.toAbsolutePath());
+        }
+        if (cleanup) {
+            System.out.printf("Deleted %d files%n", generator.cleanup(concurrency));
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    // function to put --files-per-folder files into every folder before the run, so downloads have something
+    // to ask for from the start, nothing of it is measured
+    // returns how many files were uploaded
+    public int prepare(int concurrency) throws InterruptedException {
+        AtomicLong done = new AtomicLong();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            Semaphore permits = new Semaphore(concurrency);
+            for (int folder = 0; folder < workload.folderCount(); folder++) {
+                for (int file = 0; file < workload.filesPerFolder(); file++) {
+                    String folderId = Workload.folderId(folder);
+                    permits.acquire();
+                    executor.execute(() -> {
+                        try {
+                            if (upload(folderId, workload.nextSize()).ok()) {
+                                done.incrementAndGet();
+                            }
+                        } catch (Exception e) {
+                            // the run will show whether the server has a problem
+                        } finally {
+                            permits.release();
+                        }
+                    });
+                }
+            }
+        }
+        return (int) done.get();
+    }
+
+    // function to put load on the server for warmup + duration and collect what was measured after the warmup
+    // returns the nanoseconds that were measured
+    public long run(boolean closed, int concurrency, Duration thinkTime, double rate, boolean poisson, int maxInFlight,
+                    Duration warmup, Duration duration, Duration reportInterval) throws InterruptedException {
+        long started = System.nanoTime();
+        long measuredFrom = started + warmup.toNanos();
+        long end = measuredFrom + duration.toNanos();
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            if (closed) {
+                for (int i = 0; i < concurrency; i++) {
+                    executor.execute(() -> {
+                        while (System.nanoTime() < end) {
+                            send(workload.next(), System.nanoTime());
+                            if (!thinkTime.isZero()) {
+                                LockSupport.parkNanos(thinkTime.toNanos());
+                            }
+                        }
+                    });
+                }
+            } else {
+                executor.execute(() -> arrive(executor, rate, poisson, maxInFlight, end));
+            }
+
+            // progress lines until the end, the warmup is thrown away once it is over
+            boolean warm = warmup.isZero();
+            long lastReport = started;
+            long nextReport = started + reportInterval.toNanos();
+            while (System.nanoTime() < end) {
+                long now = System.nanoTime();
+                long wake = Math.min(end, warm ? nextReport : Math.min(nextReport, measuredFrom));
+                if (wake > now) {
+                    TimeUnit.NANOSECONDS.sleep(wake - now);
+                }
+                now = System.nanoTime();
+                if (!warm && now >= measuredFrom) {
+                    warm = true;
+                    progress(now - started, now - lastReport, "warmup over");
+                    for (EndpointStats endpoint : stats.values()) {
+                        endpoint.reset();
+                    }
+                    all.reset();
+                    lastReport = now;
+                    nextReport = now + reportInterval.toNanos();
+                } else if (now >= nextReport && now < end) {
+                    progress(now - started, now - lastReport, null);
+                    lastReport = now;
+                    nextReport += reportInterval.toNanos();
+                }
+            }
+            // requests that are still running are waited for when the executor closes, they are measured too
+        }
+        long measured = System.nanoTime() - measuredFrom;
+        for (EndpointStats endpoint : stats.values()) {
+            endpoint.sample();
+        }
+        all.sample();
+        return measured;
+    }
+
+    // open loop: start requests at their intended times, which do not depend on how fast answers come back
+    // when more than maxInFlight requests are running the next ones wait, and the wait counts in their latency
+    private void arrive(ExecutorService executor, double rate, boolean poisson, int maxInFlight, long end) {
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        double meanGap = 1e9 / rate;
+        double intended = System.nanoTime();
+        while (true) {
+            intended += poisson ? -Math.log(1 - ThreadLocalRandom.current().nextDouble()) * meanGap : meanGap;
+            long start = (long) intended;
+            if (start >= end) {
+                return;
+            }
+            long wait = start - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
+            executor.execute(() -> {
+                try {
+                    send(workload.next(), start);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        }
+    }
+
+    // function to make one request and record it
+    // param:
+    // intended -> System.nanoTime() when the request should have started, latency counts from there
+    private void send(Workload.Request request, long intended) {
+        boolean ok = false;
+        long bytes = 0;
+        try {
+            FileServerClient.Result result = switch (request.operation()) {
+                case UPLOAD -> upload(request.folderId(), request.size());
+                case LIST -> client.list(request.folderId());
+                case DOWNLOAD -> client.download(request.folderId(), request.file());
+                case DOWNLOAD_ALL -> client.downloadAll(request.folderId());
+                case DELETE -> client.delete(request.folderId(), request.file());
+            };
+            ok = result.ok();
+            bytes = result.bytes();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            // a timeout, a refused connection or a reset counts as an error of the endpoint
+        }
+        long latency = System.nanoTime() - intended;
+        stats.get(request.operation()).record(latency, ok, bytes);
+        all.record(latency, ok, bytes);
+    }
+
+    // function to upload a file with unique content and remember its saved name for downloads and deletes
+    private FileServerClient.Result upload(String folderId, int size) throws Exception {
+        long number = uploads.incrementAndGet();
+        byte[] prefix = ByteBuffer.allocate(8).putLong(number ^ System.nanoTime() << 20).array();
+        int offset = ThreadLocalRandom.current().nextInt(content.length - size + 1);
+        FileServerClient.Result result = client.upload(folderId, "load-" + number + ".bin", prefix, content, offset, size);
+        if (result.ok()) {
+            workload.added(folderId, FileServerClient.savedName(result));
+        }
+        return result;
+    }
+
+    // eg. [  15s] 412 req/s, p50 3.1 ms, p99 48.0 ms, 0 errors
+    private void progress(long elapsedNanos, long intervalNanos, String note) {
+        for (EndpointStats endpoint : stats.values()) {
+            endpoint.sample();
+        }
+        long errorsBefore = all.errors();
+        Histogram latencies = all.sample();
+        System.out.printf(Locale.ROOT, "[%4ds] %.0f req/s, p50 %.1f ms, p99 %.1f ms, %d errors so far%s%n",
+                TimeUnit.NANOSECONDS.toSeconds(elapsedNanos), latencies.getTotalCount() * 1e9 / Math.max(1, intervalNanos),
+                latencies.getValueAtPercentile(50) / 1000.0, latencies.getValueAtPercentile(99) / 1000.0,
+                errorsBefore, note == null ? "" : " (" + note + ")");
+    }
+
+    // the endpoints that got requests, and all of them together
+    public List<EndpointStats> measured() {
+        List<EndpointStats> measured = new ArrayList<>();
+        for (EndpointStats endpoint : stats.values()) {
+            if (endpoint.requests() > 0) {
+                measured.add(endpoint);
+            }
+        }
+        measured.add(all);
+        return measured;
+    }
+
+    // function to print the table of results and check the thresholds
+    // returns false if any threshold was not met
+    public boolean report(double seconds, List<Threshold> thresholds) {
+        System.out.println();
+        System.out.printf("%-12s %9s %7s %9s %9s %9s %9s %9s %9s %9s%n",
+                "endpoint", "requests", "errors", "req/s", "MB/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (EndpointStats endpoint : measured()) {
+            Histogram latencies = endpoint.total();
+            System.out.printf(Locale.ROOT, "%-12s %9d %7d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+                    endpoint.name(), endpoint.requests(), endpoint.errors(), endpoint.requests() / seconds,
+                    endpoint.bytes() / seconds / (1024 * 1024),
+                    latencies.getValueAtPercentile(50) / 1000.0, latencies.getValueAtPercentile(90) / 1000.0,
+                    latencies.getValueAtPercentile(99) / 1000.0, latencies.getValueAtPercentile(99.9) / 1000.0,
+                    latencies.getMaxValue() / 1000.0);
+        }
+
+        boolean passed = true;
+        if (!thresholds.isEmpty()) {
+            System.out.println();
+        }
+        for (Threshold threshold : thresholds) {
+            EndpointStats endpoint = threshold.endpoint().equals(Threshold.ALL)
+                    ? all : stats.get(Operation.fromLabel(threshold.endpoint()));
+            double measured = threshold.measure(endpoint, seconds);
+            boolean ok = endpoint.requests() > 0 && threshold.passes(measured);
+            passed &= ok;
+            System.out.printf(Locale.ROOT, "%s %s.%s: %.2f%s, limit %.2f%s%s%n", ok ? "PASS" : "FAIL",
+                    threshold.endpoint(), threshold.metric(), measured, threshold.unit(), threshold.limit(), threshold.unit(),
+                    endpoint.requests() == 0 ? " (no requests were made)" : "");
+        }
+        return passed;
+    }
+
+    // function to delete every file the load put on the server and did not delete itself
+    // returns how many files were deleted
+    public int cleanup(int concurrency) throws InterruptedException {
+        AtomicLong deleted = new AtomicLong();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            Semaphore permits = new Semaphore(concurrency);
+            for (Map.Entry<String, List<String>> folder : workload.files().entrySet()) {
+                for (String file : folder.getValue()) {
+                    permits.acquire();
+                    executor.execute(() -> {
+                        try {
+                            if (client.delete(folder.getKey(), file).ok()) {
+                                deleted.incrementAndGet();
+                            }
+                        } catch (Exception e) {
+                            // left on the server, the folders can be removed by hand
+                        } finally {
+                            permits.release();
+                        }
+                    });
+                }
+            }
+        }
+        return (int) deleted.get();
+    }
+
+    private static boolean isLoopback(URI server) {
+        if (server.getHost() == null) {
+            return false;
+        }
+        try {
+            for (InetAddress address : InetAddress.getAllByName(server.getHost())) {
+                if (!address.isLoopbackAddress()) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+
+    // 500ms, 30s, 2m, or a plain number of milliseconds
+    private static Duration duration(String value) {
+        if (value.endsWith("ms")) {
+            return Duration.ofMillis(Long.parseLong(value.substring(0, value.length() - 2)));
+        }
+        if (value.endsWith("s")) {
+            return Duration.ofMillis(Math.round(Double.parseDouble(value.substring(0, value.length() - 1)) * 1000));
+        }
+        if (value.endsWith("m")) {
+            return Duration.ofMillis(Math.round(Double.parseDouble(value.substring(0, value.length() - 1)) * 60_000));
+        }
+        return Duration.ofMillis(Long.parseLong(value));
+    }
+
+}
@@ -0,0 +1,32 @@
+package org.sft.load;
+
+import java.util.Locale;
+
+// the endpoints of the file server the load is made of, named like in the --mix option
+public enum Operation {
+    UPLOAD, // POST /files/upload, a multipart form like the file viewer sends
+    LIST, // GET /files/list
+    DOWNLOAD, // GET /files/download
+    DOWNLOAD_ALL, // GET /files/downloadAll
+    DELETE; // DELETE /files/delete
+
+    // name in options and reports, eg. downloadAll
+    public String label() {
+        String[] words = name().toLowerCase(Locale.ROOT).split("_");
+        StringBuilder label = new StringBuilder(words[0]);
+        for (int i = 1; i < words.length; i++) {
+            label.append(Character.toUpperCase(words[i].charAt(0))).append(words[i].substring(1));
+        }
+        return label.toString();
+    }
+
+    public static Operation fromLabel(String label) {
+        for (Operation operation : values()) {
+            if (operation.label().equalsIgnoreCase(label)) {
+                return operation;
+            }
+        }
+        throw new IllegalArgumentException("Unknown operation: " + label);
+    }
+
+}
@@ -0,0 +1,80 @@
+package org.sft.load;
+
+import java.util.Locale;
+
+// a limit the run has to stay inside, eg. download.p99=250ms or all.errors=1 or list.throughput=500
+// param:
+// endpoint -> label of an operation, or "all" for every request together
+// metric -> p50, p90, p99, p999 or max in milliseconds, errors in percent, throughput in requests per second
+// limit -> the most a latency or the error rate may be, the least the throughput may be
+public record Threshold(String endpoint, String metric, double limit) {
+
+    public static final String ALL = "all";
+
+    // param:
+    // text -> endpoint.metric=value, latencies may end in ms or s, error rates in %
+    public static Threshold parse(String text) {
+        int dot = text.indexOf('.');
+        int equals = text.indexOf('=');
+        if (dot < 0 || equals < dot) {
+            throw new IllegalArgumentException("Expected endpoint.metric=value in --threshold, got: " + text);
+        }
+        String endpoint = text.substring(0, dot).trim();
+        String metric = text.substring(dot + 1, equals).trim().toLowerCase(Locale.ROOT);
+        String value = text.substring(equals + 1).trim().toLowerCase(Locale.ROOT);
+
+        if (!endpoint.equalsIgnoreCase(ALL)) {
+            endpoint = Operation.fromLabel(endpoint).label();
+        } else {
+            endpoint = ALL;
+        }
+        double limit;
+        switch (metric) {
+            case "p50", "p90", "p99", "p999", "max" -> {
+                if (value.endsWith("ms")) {
+                    limit = Double.parseDouble(value.substring(0, value.length() - 2));
+                } else if (value.endsWith("s")) {
+                    limit = Double.parseDouble(value.substring(0, value.length() - 1)) * 1000;
+                } else {
+                    limit = Double.parseDouble(value);
+                }
+            }
+            case "errors" -> limit = Double.parseDouble(value.replace("%", ""));
+            case "throughput" -> limit = Double.parseDouble(value.replace("/s", ""));
+            default -> throw new IllegalArgumentException("Unknown metric in --threshold: " + metric);
+        }
+        return new Threshold(endpoint, metric, limit);
+    }
+
+    // function to measure the metric of this threshold on the stats of its endpoint
+    // param:
+    // seconds -> how long the measured part of the run took
+    public double measure(EndpointStats stats, double seconds) {
+        return switch (metric) {
+            case "p50" -> millis(stats, 50);
+            case "p90" -> millis(stats, 90);
+            case "p99" -> millis(stats, 99);
+            case "p999" -> millis(stats, 99.9);
+            case "max" -> stats.total().getMaxValue() / 1000.0;
+            case "errors" -> stats.errorRate();
+            default -> stats.requests() / seconds;
+        };
+    }
+
+    public boolean passes(double measured) {
+        return metric.equals("throughput") ? measured >= limit : measured <= limit;
+    }
+
+    public String unit() {
+        return switch (metric) {
+            case "errors" -> "%";
+            case "throughput" -> " req/s";
+            default -> " ms";
+        };
+    }
+
+    private static double millis(EndpointStats stats, double percentile) {
+        return stats.total().getValueAtPercentile(percentile) / 1000.0;
+    }
+
+}
@@ -0,0 +1,212 @@
+package org.sft.load;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+// what the next request is: which endpoint, which folder, which file and how big an upload is
+// the folders are load-0 .. load-(n-1) and every folder remembers the files we put into it, so downloads
+// and deletes always ask for files that exist (unless another client removed them)
+public class Workload {
+
+    // a weighted choice, eg. upload=20,list=40 or 1KB:50,1MB:50
+    static final class Weighted<T> {
+        private final List<T> values = new ArrayList<>();
+        private final List<Double> cumulative = new ArrayList<>();
+        private double total;
+
+        void add(T value, double weight) {
+            if (weight < 0) {
+                throw new IllegalArgumentException("Weight must not be negative: " + value + "=" + weight);
+            }
+            if (weight > 0) {
+                total += weight;
+                values.add(value);
+                cumulative.add(total);
+            }
+        }
+
+        T pick(ThreadLocalRandom random) {
+            double point = random.nextDouble(total);
+            for (int i = 0; i < values.size(); i++) {
+                if (point < cumulative.get(i)) {
+                    return values.get(i);
+                }
+            }
+            return values.get(values.size() - 1);
+        }
+
+        boolean isEmpty() {
+            return values.isEmpty();
+        }
+
+        List<T> values() {
+            return values;
+        }
+
+        double share(T value) {
+            int index = values.indexOf(value);
+            return index < 0 ? 0 : (cumulative.get(index) - (index == 0 ? 0 : cumulative.get(index - 1))) / total;
+        }
+    }
+
+    // one request to make
+    // param:
+    // file -> file to download or delete, null for the others
+    // size -> bytes to upload, 0 for the others
+    public record Request(Operation operation, String folderId, String file, int size) {
+    }
+
+    private final Weighted<Operation> mix;
+    private final Weighted<Integer> sizes;
+    private final List<List<String>> folders = new ArrayList<>();
+    private final int filesPerFolder;
+
+    // param:
+    // mix -> share of every endpoint in the load
+    // sizes -> upload sizes in bytes and how often each comes up
+    // folders -> how many folders the load is spread over
+    // filesPerFolder -> how many files every folder gets before the run starts
+    public Workload(Map<Operation, Double> mix, Map<Integer, Double> sizes, int folders, int filesPerFolder) {
+        this.mix = new Weighted<>();
+        mix.forEach(this.mix::add);
+        this.sizes = new Weighted<>();
+        sizes.forEach(this.sizes::add);
+        if (this.mix.isEmpty() || this.sizes.isEmpty()) {
+            throw new IllegalArgumentException("The mix and the sizes need at least one entry with a weight above 0");
+        }
+        if (folders < 1) {
+            throw new IllegalArgumentException("There has to be at least one folder");
+        }
+        for (int i = 0; i < folders; i++) {
+            this.folders.add(new ArrayList<>());
+        }
+        this.filesPerFolder = filesPerFolder;
+    }
+
+    public int folderCount() {
+        return folders.size();
+    }
+
+    public int filesPerFolder() {
+        return filesPerFolder;
+    }
+
+    public static String folderId(int folder) {
+        return "load-" + folder;
+    }
+
+    public int largestSize() {
+        return sizes.values().stream().mapToInt(Integer::intValue).max().orElse(0);
+    }
+
+    public int nextSize() {
+        return sizes.pick(ThreadLocalRandom.current());
+    }
+
+    // function to pick the next request, a download or delete on a folder without files becomes an upload to it
+    public Request next() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Operation operation = mix.pick(random);
+        int folder = random.nextInt(folders.size());
+        String folderId = folderId(folder);
+
+        if (operation == Operation.DOWNLOAD || operation == Operation.DELETE) {
+            List<String> files = folders.get(folder);
+            synchronized (files) {
+                if (!files.isEmpty()) {
+                    int index = random.nextInt(files.size());
+                    String file = operation == Operation.DELETE ? removeAt(files, index) : files.get(index);
+                    return new Request(operation, folderId, file, 0);
+                }
+            }
+            operation = Operation.UPLOAD;
+        }
+        return new Request(operation, folderId, null, operation == Operation.UPLOAD ? sizes.pick(random) : 0);
+    }
+
+    // function to remember a file that was uploaded, so it can be downloaded and deleted later
+    public void added(String folderId, String file) {
+        List<String> files = folders.get(Integer.parseInt(folderId.substring("load-".length())));
+        synchronized (files) {
+            files.add(file);
+        }
+    }
+
+    // every file the load put into the folders and did not delete yet
+    public Map<String, List<String>> files() {
+        Map<String, List<String>> files = new LinkedHashMap<>();
+        for (int i = 0; i < folders.size(); i++) {
+            synchronized (folders.get(i)) {
+                files.put(folderId(i), new ArrayList<>(folders.get(i)));
+            }
+        }
+        return files;
+    }
+
+    // eg. upload 20%, list 40%, download 35%, delete 5%
+    public String describeMix() {
+        List<String> parts = new ArrayList<>();
+        for (Operation operation : mix.values()) {
+            parts.add(String.format(Locale.ROOT, "%s %.0f%%", operation.label(), mix.share(operation) * 100));
+        }
+        return String.join(", ", parts);
+    }
+
+    // param:
+    // mix -> eg. upload=20,list=40,download=35,delete=5,downloadAll=0
+    public static Map<Operation, Double> parseMix(String mix) {
+        Map<Operation, Double> weights = new EnumMap<>(Operation.class);
+        for (String part : mix.split(",")) {
+            String[] pair = part.split("=", 2);
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Expected endpoint=weight in --mix, got: " + part);
+            }
+            weights.put(Operation.fromLabel(pair[0].trim()), Double.parseDouble(pair[1].trim()));
+        }
+        return weights;
+    }
+
+    // param:
+    // sizes -> eg. 1KB:50,64KB:30,1MB:15,10MB:5
+    public static Map<Integer, Double> parseSizes(String sizes) {
+        Map<Integer, Double> weights = new LinkedHashMap<>();
+        for (String part : sizes.split(",")) {
+            String[] pair = part.split(":", 2);
+            weights.merge(parseSize(pair[0].trim()), pair.length == 2 ? Double.parseDouble(pair[1].trim()) : 1, Double::sum);
+        }
+        return weights;
+    }
+
+    // eg. 512, 1KB, 64KB, 10MB
+    static int parseSize(String size) {
+        String upper = size.toUpperCase(Locale.ROOT);
+        long unit = 1;
+        if (upper.endsWith("KB")) {
+            unit = 1024;
+        } else if (upper.endsWith("MB")) {
+            unit = 1024 * 1024;
+        } else if (upper.endsWith("GB")) {
+            unit = 1024 * 1024 * 1024;
+        }
+        String digits = unit == 1 ? upper.replaceFirst("B$", "") : upper.substring(0, upper.length() - 2);
+        long bytes = Long.parseLong(digits.trim()) * unit;
+        if (bytes < 1 || bytes > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("File size out of range: " + size);
+        }
+        return (int) bytes;
+    }
+
+    private static String removeAt(List<String> files, int index) {
+        // swap with the last one so removing does not shift the list
+        String file = files.get(index);
+        files.set(index, files.get(files.size() - 1));
+        files.remove(files.size() - 1);
+        return file;
+    }
+
+}
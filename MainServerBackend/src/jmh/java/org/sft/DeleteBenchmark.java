@@ -0,0 +1,64 @@
+package org.sft;
+
+import org.openjdk.jmh.annotations.*;
+import org.sft.io.FileSyncer;
+import org.sft.storage.StorageEngine;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// FileController.deleteFile on folders of different sizes that are in the index, like on a running server
+// before every call the file is put back (not measured) as another name for content the folder already has,
+// so what is measured is removing a name, the journal record and the index update
+// run with: mvn -Pjmh test-compile exec:exec -Djmh.args="DeleteBenchmark -prof gc"
+// add -p engine=SEGMENTS to run against the segment store instead of a directory per folder
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class DeleteBenchmark {
+
+    private static final String FOLDER = "delete";
+    private static final String VICTIM = "victim.bin";
+
+    @Param({"DIRECTORY"})
+    public StorageEngine.Kind engine;
+
+    @Param({"10", "1000", "100000"})
+    public int folderSize;
+
+    private TempUploadsTree tree;
+    private String hash;
+
+    @Setup
+    public void setUp() throws IOException {
+        tree = new TempUploadsTree(engine, FileSyncer.Policy.NEVER, DataSize.ofMegabytes(64));
+        String first = tree.fill(FOLDER, folderSize, 1024).get(0);
+        hash = tree.storage.hashOf(FOLDER, first);
+        tree.folderIndex.list(FOLDER); // a folder the viewer looked at, so the index has to be kept up to date
+    }
+
+    @Setup(Level.Invocation)
+    public void putBack() throws IOException {
+        tree.storage.linkExisting(hash, FOLDER, VICTIM);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        tree.close();
+    }
+
+    @Benchmark
+    public ResponseEntity<String> delete() {
+        ResponseEntity<String> response = tree.controller.deleteFile(FOLDER, VICTIM);
+        if (!response.getStatusCode().is2xxSuccessful()) {
+            throw new IllegalStateException(response.getBody());
+        }
+        return response;
+    }
+
+}
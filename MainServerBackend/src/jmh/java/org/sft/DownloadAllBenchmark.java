@@ -0,0 +1,66 @@
+package org.sft;
+
+import org.openjdk.jmh.annotations.*;
+import org.sft.io.FileSyncer;
+import org.sft.storage.StorageEngine;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// FileController.downloadAllFiles, including writing the whole body the way spring does after the call returns
+// the defaults keep a run to a few minutes, bigger files work too (-p fileSize=1MB) but not with 100000 of them
+// run with: mvn -Pjmh test-compile exec:exec -Djmh.args="DownloadAllBenchmark -prof gc"
+// add -p engine=SEGMENTS to run against the segment store instead of a directory per folder
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class DownloadAllBenchmark {
+
+    private static final String FOLDER = "downloadAll";
+
+    @Param({"DIRECTORY"})
+    public StorageEngine.Kind engine;
+
+    @Param({"10", "1000", "100000"})
+    public int folderSize;
+
+    @Param({"1KB"})
+    public String fileSize;
+
+    @Param({"bin", "zip"})
+    public String format;
+
+    private TempUploadsTree tree;
+
+    // only the non-blocking path uses them
+    private final MockHttpServletRequest servletRequest = new MockHttpServletRequest("GET", "/files/downloadAll");
+    private final MockHttpServletResponse servletResponse = new MockHttpServletResponse();
+
+    @Setup
+    public void setUp() throws IOException {
+        tree = new TempUploadsTree(engine, FileSyncer.Policy.NEVER, DataSize.ofMegabytes(64));
+        tree.fill(FOLDER, folderSize, (int) DataSize.parse(fileSize).toBytes());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        tree.close();
+    }
+
+    @Benchmark
+    public long downloadAll() throws IOException {
+        ResponseEntity<StreamingResponseBody> response = tree.controller.downloadAllFiles(FOLDER, format, false, null, servletRequest, servletResponse);
+        TempUploadsTree.CountingOutputStream out = new TempUploadsTree.CountingOutputStream();
+        response.getBody().writeTo(out);
+        return out.written;
+    }
+
+}
@@ -0,0 +1,66 @@
+package org.sft;
+
+import org.openjdk.jmh.annotations.*;
+import org.sft.io.FileSyncer;
+import org.sft.storage.StorageEngine;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// FileController.downloadFile into a response that throws the body away
+// without tomcat there is no sendfile, so every byte goes through the response stream like it does over https
+// with cacheCapacity=0 every download is read from disk (the page cache, really), otherwise files up to 1MB come from memory
+// run with: mvn -Pjmh test-compile exec:exec -Djmh.args="DownloadBenchmark -prof gc"
+// add -p engine=SEGMENTS to run against the segment store instead of a directory per folder
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class DownloadBenchmark {
+
+    private static final String FOLDER = "download";
+
+    @Param({"DIRECTORY"})
+    public StorageEngine.Kind engine;
+
+    @Param({"1KB", "64KB", "1MB", "50MB"})
+    public String fileSize;
+
+    @Param({"64MB", "0"})
+    public String cacheCapacity;
+
+    private TempUploadsTree tree;
+    private String filename;
+    private long expectedLength;
+    private MockHttpServletRequest request;
+    private TempUploadsTree.DiscardingResponse response;
+
+    @Setup
+    public void setUp() throws IOException {
+        tree = new TempUploadsTree(engine, FileSyncer.Policy.NEVER, DataSize.parse(cacheCapacity));
+        expectedLength = DataSize.parse(fileSize).toBytes();
+        filename = tree.fill(FOLDER, 1, (int) expectedLength).get(0);
+        request = new MockHttpServletRequest("GET", "/files/download");
+        response = new TempUploadsTree.DiscardingResponse();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        tree.close();
+    }
+
+    @Benchmark
+    public long download() throws IOException {
+        response.reset();
+        tree.controller.downloadFile(FOLDER, filename, request, response);
+        if (response.written() != expectedLength) {
+            throw new IllegalStateException("Sent " + response.written() + " of " + expectedLength + " bytes");
+        }
+        return response.written();
+    }
+
+}
@@ -0,0 +1,90 @@
+package org.sft;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.sft.io.FileSyncer;
+import org.sft.storage.StorageEngine;
+import org.sft.storage.FolderIndex;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// FileController.listFiles on folders of different sizes, once the folder is in the index like on a running server
+// all -> every file sorted by name, asJson -> the same plus writing it as json like spring does for the response,
+// firstPage -> the 100 newest files, notModified -> a client that already has the latest listing
+// run with: mvn -Pjmh test-compile exec:exec -Djmh.args="ListBenchmark -prof gc"
+// add -p engine=SEGMENTS to run against the segment store instead of a directory per folder
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class ListBenchmark {
+
+    private static final String FOLDER = "list";
+
+    @Param({"DIRECTORY"})
+    public StorageEngine.Kind engine;
+
+    @Param({"10", "1000", "100000"})
+    public int folderSize;
+
+    private TempUploadsTree tree;
+    private TempUploadsTree.DiscardingResponse response;
+    private MockHttpServletRequest conditionalRequest;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Setup
+    public void setUp() throws IOException {
+        tree = new TempUploadsTree(engine, FileSyncer.Policy.NEVER, DataSize.ofMegabytes(64));
+        tree.fill(FOLDER, folderSize, 1024);
+        response = new TempUploadsTree.DiscardingResponse();
+
+        conditionalRequest = new MockHttpServletRequest("GET", "/files/list");
+        conditionalRequest.addHeader(HttpHeaders.IF_NONE_MATCH, tree.folderIndex.etag(FOLDER));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        tree.close();
+    }
+
+    @Benchmark
+    public List<FolderIndex.FileEntry> all() throws IOException {
+        return list("name", "asc", 0, new MockHttpServletRequest("GET", "/files/list")).getBody();
+    }
+
+    @Benchmark
+    public long asJson() throws IOException {
+        TempUploadsTree.CountingOutputStream out = new TempUploadsTree.CountingOutputStream();
+        objectMapper.writeValue(out, all());
+        return out.written;
+    }
+
+    @Benchmark
+    public List<FolderIndex.FileEntry> firstPage() throws IOException {
+        return list("modified", "desc", 100, new MockHttpServletRequest("GET", "/files/list")).getBody();
+    }
+
+    @Benchmark
+    public ResponseEntity<List<FolderIndex.FileEntry>> notModified() throws IOException {
+        ResponseEntity<List<FolderIndex.FileEntry>> result = list("name", "asc", 0, conditionalRequest);
+        if (result != null) {
+            throw new IllegalStateException("Expected the listing to be not modified");
+        }
+        return null;
+    }
+
+    private ResponseEntity<List<FolderIndex.FileEntry>> list(String sort, String order, int limit, MockHttpServletRequest request) throws IOException {
+        response.reset();
+        return tree.controller.listFiles(FOLDER, sort, order, limit, null, new ServletWebRequest(request, response));
+    }
+
+}
@@ -0,0 +1,102 @@
+package org.sft;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// how long the server takes from starting its jvm to answering its first request, without the window
+// it starts the server of the cds build in target/cds, so build that first: mvn -Pcds package -DskipTests
+// archive=false starts it the same way without the class data sharing archive, to see what the archive saves
+// run with: mvn -Pjmh test-compile exec:exec -Djmh.args="StartupBenchmark"
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StartupBenchmark {
+
+    private static final Path CDS_DIR = Path.of("target", "cds").toAbsolutePath();
+
+    @Param({"true", "false"})
+    public boolean archive;
+
+    private final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(1)).build();
+    private Path workDir;
+    private Process server;
+    private int port;
+
+    @Setup(Level.Trial)
+    public void checkBuild() throws IOException {
+        if (!Files.exists(CDS_DIR.resolve("app.jsa"))) {
+            throw new IllegalStateException("No cds build in " + CDS_DIR + ", run mvn -Pcds package -DskipTests first");
+        }
+    }
+
+    // every start gets an empty directory for its uploads/ and blobs/, like a new node
+    @Setup(Level.Invocation)
+    public void setUp() throws IOException {
+        workDir = Files.createTempDirectory("startup");
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() throws IOException, InterruptedException {
+        if (server != null) {
+            server.destroy();
+            server.waitFor();
+            server = null;
+        }
+        try (Stream<Path> paths = Files.walk(workDir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public int startUntilServing() throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        if (archive) {
+            command.add("-XX:SharedArchiveFile=" + CDS_DIR.resolve("app.jsa"));
+        }
+        command.add("-jar");
+        command.add(CDS_DIR.resolve("ServerUI-1.0-cds.jar").toString());
+        command.add("--server.port=" + port);
+        server = new ProcessBuilder(command)
+                .directory(workDir.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/files/list?id=startup")).build();
+        while (true) {
+            try {
+                return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+            } catch (ConnectException e) {
+                if (!server.isAlive()) {
+                    throw new IllegalStateException("The server stopped with exit code " + server.exitValue());
+                }
+                Thread.sleep(5);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,183 @@
+package org.sft;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import org.sft.archive.FolderArchiver;
+import org.sft.cache.HotFileCache;
+import org.sft.compress.ResponseCompression;
+import org.sft.io.FileSyncer;
+import org.sft.storage.BlobStore;
+import org.sft.storage.BlobWriter;
+import org.sft.storage.FolderIndex;
+import org.sft.storage.SegmentStore;
+import org.sft.storage.StorageEngine;
+import org.sft.upload.StreamingIngest;
+import org.sft.web.CachePolicy;
+import org.sft.web.NonBlockingSender;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// a FileController over its own storage (uploads/ and blobs/, or segments/) in a temp directory, put together the way the spring context does,
+// so benchmarks can call the controller directly without http in between
+// everything is settings-free: engine, fsync policy and cache size come from the benchmark, the rest are the application.yml defaults
+final class TempUploadsTree implements AutoCloseable {
+
+    final Path root;
+    final StorageEngine storage;
+    final FolderIndex folderIndex;
+    final HotFileCache hotFileCache;
+    final FolderArchiver folderArchiver;
+    final ResponseCompression responseCompression;
+    final FileController controller;
+
+    private final Random random = new Random(42);
+
+    // param:
+    // engine -> how files are kept on disk
+    // sync -> when written files are forced to disk, NEVER measures the code instead of the disk
+    // cacheCapacity -> size of the download cache, 0 turns it off
+    TempUploadsTree(StorageEngine.Kind engine, FileSyncer.Policy sync, DataSize cacheCapacity) throws IOException {
+        root = Files.createTempDirectory("sft-benchmark");
+        FileSyncer fileSyncer = new FileSyncer(sync, Duration.ofSeconds(1));
+        int memoryThreshold = (int) DataSize.ofMegabytes(1).toBytes();
+        storage = switch (engine) {
+            case DIRECTORY -> new BlobStore(root.resolve("uploads"), root.resolve("blobs"), fileSyncer, memoryThreshold);
+            case SEGMENTS -> new SegmentStore(root.resolve("segments"), fileSyncer, memoryThreshold,
+                    DataSize.ofMegabytes(64).toBytes(), DataSize.ofMegabytes(1).toBytes(), 0.5, Duration.ofMinutes(1), 100_000);
+        };
+        folderIndex = FolderIndex.start(storage);
+        hotFileCache = new HotFileCache(storage, cacheCapacity, DataSize.ofMegabytes(1));
+        hotFileCache.listen();
+        folderArchiver = new FolderArchiver(2, DataSize.ofMegabytes(32), 6);
+        responseCompression = new ResponseCompression(storage, true, 1, DataSize.ofKilobytes(1), 9, 1);
+        responseCompression.listen();
+        controller = new FileController(storage, folderIndex, hotFileCache, folderArchiver,
+                new StreamingIngest(storage, DataSize.ofKilobytes(256), 16), responseCompression,
+                new CachePolicy(new StandardEnvironment()), new NonBlockingSender(false, DataSize.ofKilobytes(64), new ObjectMapper()));
+    }
+
+    // function to put count files of size bytes each into a folder through the store, like uploads do
+    // every file gets different content, so nothing is shared between them
+    // returns the names of the files
+    List<String> fill(String folderId, int count, int size) throws IOException {
+        byte[] data = content(size);
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String name = String.format("file-%06d.bin", i);
+            makeUnique(data, i);
+            try (BlobWriter writer = storage.newWriter()) {
+                writer.write(data, 0, data.length);
+                storage.commit(writer, folderId, name);
+            }
+            names.add(name);
+        }
+        return names;
+    }
+
+    // function to delete every file of a folder through the store
+    void empty(String folderId) throws IOException {
+        for (FolderIndex.FileEntry file : storage.list(folderId)) {
+            storage.delete(folderId, file.name());
+        }
+    }
+
+    byte[] content(int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    // function to make content differ from any other content with a different counter, by writing it over the first bytes
+    static void makeUnique(byte[] data, long counter) {
+        ByteBuffer.wrap(data, 0, Math.min(8, data.length)).putLong(0, counter);
+    }
+
+    @Override
+    public void close() throws IOException {
+        folderArchiver.shutdown();
+        responseCompression.shutdown();
+        if (storage instanceof SegmentStore segments) {
+            segments.shutdown();
+        }
+        FileSystemUtils.deleteRecursively(root);
+    }
+
+    // a response whose body goes nowhere, it only counts the bytes
+    // it is reused between calls so allocation numbers show what the controller allocates, not the mock
+    static final class DiscardingResponse extends HttpServletResponseWrapper {
+
+        private long written;
+
+        private final ServletOutputStream body = new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener listener) {
+            }
+
+            @Override
+            public void write(int b) {
+                written++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                written += len;
+            }
+        };
+
+        DiscardingResponse() {
+            super(new MockHttpServletResponse());
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            return body;
+        }
+
+        // bytes written since the last reset
+        long written() {
+            return written;
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            written = 0;
+        }
+    }
+
+    // an output stream that only counts, for bodies written outside of a response
+    static final class CountingOutputStream extends OutputStream {
+
+        long written;
+
+        @Override
+        public void write(int b) {
+            written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            written += len;
+        }
+    }
+
+}
@@ -0,0 +1,80 @@
+package org.sft;
+
+import org.openjdk.jmh.annotations.*;
+import org.sft.io.FileSyncer;
+import org.sft.storage.StorageEngine;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// FileController.handleFileUpload with the file already parsed out of the multipart request, straight into the store
+// newFile uploads different content every time, so it is hashed and written, duplicateFile uploads the same content
+// again and again, so it is only hashed and linked
+// run with: mvn -Pjmh test-compile exec:exec -Djmh.args="UploadBenchmark -prof gc"
+// add -p sync=PER_FILE to include forcing every file to disk
+// add -p engine=SEGMENTS to run against the segment store instead of a directory per folder
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class UploadBenchmark {
+
+    private static final String FOLDER = "upload";
+
+    @Param({"DIRECTORY"})
+    public StorageEngine.Kind engine;
+
+    @Param({"1KB", "64KB", "1MB", "50MB"})
+    public String fileSize;
+
+    @Param({"NEVER"})
+    public FileSyncer.Policy sync;
+
+    private TempUploadsTree tree;
+    private byte[] content;
+    private long counter;
+
+    @Setup
+    public void setUp() throws IOException {
+        tree = new TempUploadsTree(engine, sync, DataSize.ofMegabytes(64));
+        content = tree.content((int) DataSize.parse(fileSize).toBytes());
+    }
+
+    // the uploads of one iteration would fill the disk over a whole run
+    @TearDown(Level.Iteration)
+    public void emptyFolder() throws IOException {
+        tree.empty(FOLDER);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        tree.close();
+    }
+
+    @Benchmark
+    public ResponseEntity<String> newFile() {
+        TempUploadsTree.makeUnique(content, ++counter);
+        return upload();
+    }
+
+    @Benchmark
+    public ResponseEntity<String> duplicateFile() {
+        counter++;
+        return upload();
+    }
+
+    private ResponseEntity<String> upload() {
+        MockMultipartFile file = new MockMultipartFile("file", "upload-" + counter + ".bin", "application/octet-stream", content);
+        ResponseEntity<String> response = tree.controller.handleFileUpload(file, FOLDER);
+        if (!response.getStatusCode().is2xxSuccessful()) {
+            throw new IllegalStateException(response.getBody());
+        }
+        return response;
+    }
+
+}
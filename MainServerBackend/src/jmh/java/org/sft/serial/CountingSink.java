@@ -0,0 +1,68 @@
+package org.sft.serial;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// a sink that keeps nothing, for measuring the receivers without a disk in the way
+// it hands out the same file object every time (the receivers only ever have one file open), so whatever gets
+// allocated while receiving is the receivers' own doing
+final class CountingSink implements FileSink, FileSink.ReceivedFile {
+
+    private final boolean checksums;
+    private final CRC32 crc = new CRC32();
+    private final Map<String, Long> saved = new LinkedHashMap<>();
+
+    private long size;
+    private long files;
+    private long bytes;
+
+    // param:
+    // checksums -> keep the crc32 of every saved file, to check what arrived against what was sent
+    CountingSink(boolean checksums) {
+        this.checksums = checksums;
+    }
+
+    long files() {
+        return files;
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+    // crc32 of every saved file by name, only kept with checksums on
+    Map<String, Long> checksums() {
+        return saved;
+    }
+
+    @Override
+    public ReceivedFile newFile() {
+        size = 0;
+        crc.reset();
+        return this;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        size += len;
+        if (checksums) {
+            crc.update(b, off, len);
+        }
+    }
+
+    @Override
+    public Saved save(String name) {
+        files++;
+        bytes += size;
+        if (checksums) {
+            saved.put(name, crc.getValue());
+        }
+        return new Saved(size, false);
+    }
+
+    @Override
+    public void close() {
+    }
+
+}
@@ -0,0 +1,87 @@
+package org.sft.serial;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// how fast the serial receivers parse a transfer that is already in memory, with nothing written to disk
+// every operation is one received file, so the scores are files per second, "megabytes" is the MB/s parsed, and
+// with -prof gc, gc.alloc.rate.norm is the bytes allocated per file
+// run with: mvn -Pjmh test-compile exec:exec -Djmh.args="SerialParseBenchmark -prof gc"
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class SerialParseBenchmark {
+
+    @Param({"TEXT", "FRAMED"})
+    public SimulatedDevice.Protocol protocol;
+
+    @Param({"1024", "65536", "1048576"})
+    public int fileSize;
+
+    private byte[] oneFile;
+    private byte[] manyFiles;
+    private CountingSink sink;
+    private SerialReceiver receiver;
+
+    // counted per second by jmh
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Parsed {
+        public double megabytes;
+    }
+
+    @Setup
+    public void setUp() {
+        oneFile = SimulatedDevice.record(files(1), protocol);
+        manyFiles = SimulatedDevice.record(files(32), protocol);
+        sink = new CountingSink(false);
+        receiver = new SerialReceiver(sink, message -> {
+        });
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1)
+    public long transferOf1File(Parsed parsed) throws IOException {
+        return receive(oneFile, parsed);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(32)
+    public long transferOf32Files(Parsed parsed) throws IOException {
+        return receive(manyFiles, parsed);
+    }
+
+    private long receive(byte[] recording, Parsed parsed) throws IOException {
+        long before = sink.bytes();
+        PushbackInputStream input = new PushbackInputStream(new ByteArrayInputStream(recording), 1);
+        if (!receiver.receiveTransfer(input, OutputStream.nullOutputStream(), () -> true)) {
+            throw new IllegalStateException("Transfer did not finish");
+        }
+        long received = sink.bytes() - before;
+        parsed.megabytes += received / 1_000_000.0;
+        return received;
+    }
+
+    private List<SimulatedDevice.DeviceFile> files(int count) {
+        Random random = new Random(42);
+        List<SimulatedDevice.DeviceFile> files = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] data = new byte[fileSize];
+            random.nextBytes(data);
+            files.add(new SimulatedDevice.DeviceFile("file" + i + ".bin", data));
+        }
+        return files;
+    }
+
+}
@@ -0,0 +1,321 @@
+package org.sft.serial;
+
+import org.sft.concurrent.Workers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+// a serial device that isn't there, for measuring and trying out the receivers without any hardware
+// it either speaks one of the protocols itself and sends the given files, or replays bytes recorded from a real device,
+// read from a file or a pipe
+// on the way to the server the link can be made as bad as a long cable or a busy radio link: bursts of bytes arrive
+// after the latency give or take the jitter, the speed is capped like a baud rate would, and bytes get lost at random
+// the acknowledgements going back to the device always arrive
+// the server side is used like a jSerialComm port: read from getInputStream, write to getOutputStream
+public class SimulatedDevice implements AutoCloseable {
+
+    public enum Protocol {
+        TEXT, // TRANSFER_START, FILE_START:, FILE_SIZE: lines, see SerialReceiver
+        FRAMED // see FramedReceiver
+    }
+
+    // how bad the link to the server is
+    // param:
+    // latency -> how long bytes take to arrive
+    // jitter -> the latency varies by up to this much either way, bytes still arrive in order like on a real line
+    // byteLoss -> chance of each byte getting lost, 0.001 loses one in a thousand
+    // bytesPerSecond -> most bytes per second the link carries, 0 for no limit (a uart at 921600 baud carries 92160)
+    // seed -> the same seed loses the same bytes on every run
+    public record Conditions(Duration latency, Duration jitter, double byteLoss, long bytesPerSecond, long seed) {
+
+        public static final Conditions PERFECT = new Conditions(Duration.ZERO, Duration.ZERO, 0, 0, 1);
+    }
+
+    public record DeviceFile(String name, byte[] data) {
+    }
+
+    // frames the simulated device may have on the way before it waits for an ACK, and the most data per frame
+    static final int WINDOW = 16;
+    static final int MAX_PAYLOAD = 1024;
+
+    private static final int BURST = 64; // bytes a uart fifo hands over at once
+    private static final byte[] END = new byte[0]; // tells the link the device is done
+
+    private record Burst(byte[] data, long dueNanos) {
+    }
+
+    private final Conditions conditions;
+    private final Random random;
+
+    private final Pipe toServer = Pipe.open();
+    private final Pipe fromServer = Pipe.open();
+    private final InputStream serverInput = Channels.newInputStream(toServer.source());
+    private final OutputStream serverOutput = Channels.newOutputStream(fromServer.sink());
+    private final BlockingQueue<Burst> link = new ArrayBlockingQueue<>(1024); // bytes on their way to the server
+
+    private volatile boolean closed;
+    private volatile long bytesSent;
+    private volatile long bytesLost;
+    private long lastDueNanos;
+    private long nextSendNanos;
+
+    private SimulatedDevice(Conditions conditions) throws IOException {
+        this.conditions = conditions;
+        this.random = new Random(conditions.seed());
+    }
+
+    // function to play back bytes recorded from a device, whatever the server answers is ignored
+    // param:
+    // recording -> the bytes, from a file or a pipe, the device is done at its end
+    public static SimulatedDevice replay(InputStream recording, Conditions conditions) throws IOException {
+        SimulatedDevice device = new SimulatedDevice(conditions);
+        device.start("simulated-device-replay", () -> {
+            byte[] buffer = new byte[BURST * 16];
+            int read;
+            while ((read = recording.read(buffer)) != -1) {
+                device.send(buffer, 0, read);
+            }
+        }, new LinkedBlockingQueue<>());
+        return device;
+    }
+
+    // function to send files the way a device running the given protocol would
+    // with the framed protocol, lost and damaged frames are sent again when the server asks for them
+    public static SimulatedDevice sending(List<DeviceFile> files, Protocol protocol, Conditions conditions) throws IOException {
+        SimulatedDevice device = new SimulatedDevice(conditions);
+        BlockingQueue<int[]> control = new LinkedBlockingQueue<>();
+        device.start("simulated-device", () -> {
+            if (protocol == Protocol.TEXT) {
+                byte[] recording = record(files, protocol);
+                device.send(recording, 0, recording.length);
+            } else {
+                device.sendFramed(frames(files), control);
+            }
+        }, control);
+        return device;
+    }
+
+    // function to get the bytes a perfect link would carry for the files, to save as a recording or to parse directly
+    public static byte[] record(List<DeviceFile> files, Protocol protocol) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (protocol == Protocol.TEXT) {
+            out.writeBytes(line("TRANSFER_START"));
+            for (DeviceFile file : files) {
+                out.writeBytes(line("FILE_START:" + file.name()));
+                out.writeBytes(line("FILE_SIZE:" + file.data().length));
+                out.writeBytes(file.data());
+                out.writeBytes(line("FILE_END"));
+            }
+            out.writeBytes(line("TRANSFER_END"));
+        } else {
+            frames(files).forEach(out::writeBytes);
+        }
+        return out.toByteArray();
+    }
+
+    // what the server reads, ends once the device is done and everything sent has arrived
+    public InputStream getInputStream() {
+        return serverInput;
+    }
+
+    // where the server writes its acknowledgements
+    public OutputStream getOutputStream() {
+        return serverOutput;
+    }
+
+    public long bytesSent() {
+        return bytesSent;
+    }
+
+    // bytes dropped on the way, part of bytesSent
+    public long bytesLost() {
+        return bytesLost;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        link.clear();
+        toServer.sink().close();
+        toServer.source().close();
+        fromServer.sink().close();
+        fromServer.source().close();
+    }
+
+    private interface DeviceJob {
+        void run() throws IOException, InterruptedException;
+    }
+
+    // the device itself, the link delivering its bytes, and a reader for what the server sends back
+    // the pipe streams block while holding a lock, which pins a virtual thread to its carrier, so these get platform threads
+    private void start(String name, DeviceJob job, BlockingQueue<int[]> control) {
+        Workers.shared().startBlocking(name, () -> {
+            try {
+                job.run();
+            } catch (IOException | InterruptedException e) {
+                if (!closed) {
+                    System.err.println(name + ": " + e); e.printStackTrace();
+                }
+            }
+            try {
+                link.put(new Burst(END, 0));
+            } catch (InterruptedException e) {
+                // shutting down
+            }
+        });
+        Workers.shared().startBlocking(name + "-link", this::deliver);
+        Workers.shared().startBlocking(name + "-control", () -> readControl(control));
+    }
+
+    // selective repeat, like FramedReceiver expects: keep up to WINDOW frames on the way, send again what gets NAKed
+    private void sendFramed(List<byte[]> frames, BlockingQueue<int[]> control) throws IOException, InterruptedException {
+        int acknowledged = 0;
+        int next = 0;
+        while (acknowledged < frames.size() && !closed) {
+            while (next < frames.size() && next - acknowledged < WINDOW) {
+                byte[] frame = frames.get(next++);
+                send(frame, 0, frame.length);
+            }
+            // nothing may come back for a while if our last frames got lost, the server asks again once it times out
+            int[] message = control.poll(100, TimeUnit.MILLISECONDS);
+            if (message == null) {
+                continue;
+            }
+            int type = message[0];
+            int sequence = message[1];
+            if (type == FramedReceiver.ACK) {
+                acknowledged = Math.max(acknowledged, Math.min(sequence, frames.size()));
+            } else if (type == FramedReceiver.NAK && sequence >= acknowledged && sequence < next) {
+                byte[] frame = frames.get(sequence);
+                send(frame, 0, frame.length);
+            }
+        }
+    }
+
+    // function to put bytes on the link, loses some and holds the device back to the link speed
+    private void send(byte[] b, int off, int len) throws InterruptedException {
+        for (int position = off; position < off + len; position += BURST) {
+            int count = Math.min(BURST, off + len - position);
+            byte[] burst = Arrays.copyOfRange(b, position, position + count);
+            bytesSent += count;
+            if (conditions.byteLoss() > 0) {
+                burst = lose(burst);
+            }
+
+            long now = System.nanoTime();
+            if (conditions.bytesPerSecond() > 0) {
+                // a sleep always oversleeps a little, the next bursts make up for it unless the device was idle
+                nextSendNanos = Math.max(nextSendNanos, now - 10_000_000L) + count * 1_000_000_000L / conditions.bytesPerSecond();
+                if (nextSendNanos > now) {
+                    LockSupport.parkNanos(nextSendNanos - now);
+                    now = System.nanoTime();
+                }
+            }
+            long jitter = conditions.jitter().toNanos();
+            long delay = conditions.latency().toNanos() + (jitter > 0 ? random.nextLong(-jitter, jitter + 1) : 0);
+            lastDueNanos = Math.max(lastDueNanos, now + Math.max(0, delay)); // a serial line never reorders bytes
+            if (burst.length > 0) {
+                link.put(new Burst(burst, lastDueNanos));
+            }
+        }
+    }
+
+    private byte[] lose(byte[] burst) {
+        byte[] kept = new byte[burst.length];
+        int count = 0;
+        for (byte b : burst) {
+            if (random.nextDouble() < conditions.byteLoss()) {
+                bytesLost++;
+            } else {
+                kept[count++] = b;
+            }
+        }
+        return count == burst.length ? burst : Arrays.copyOf(kept, count);
+    }
+
+    // the link: hands every burst to the server once it is due, and ends the server's stream after the last one
+    private void deliver() {
+        OutputStream out = Channels.newOutputStream(toServer.sink());
+        try {
+            while (!closed) {
+                Burst burst = link.take();
+                if (burst.data() == END) {
+                    break;
+                }
+                long wait = burst.dueNanos() - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                out.write(burst.data());
+            }
+            out.close();
+        } catch (IOException | InterruptedException e) {
+            // closed
+        }
+    }
+
+    // reads the ACK and NAK frames the server sends back, all of them are 14 bytes long
+    private void readControl(BlockingQueue<int[]> control) {
+        DataInputStream in = new DataInputStream(Channels.newInputStream(fromServer.source()));
+        byte[] frame = new byte[FramedReceiver.HEADER_LENGTH + FramedReceiver.CRC_LENGTH];
+        CRC32 crc = new CRC32();
+        try {
+            while (!closed) {
+                in.readFully(frame);
+                ByteBuffer header = ByteBuffer.wrap(frame);
+                crc.update(frame, 2, FramedReceiver.HEADER_LENGTH - 2);
+                boolean intact = (frame[0] & 0xFF) == FramedReceiver.MAGIC_0 && (frame[1] & 0xFF) == FramedReceiver.MAGIC_1
+                        && header.getInt(FramedReceiver.HEADER_LENGTH) == (int) crc.getValue();
+                crc.reset();
+                if (intact) {
+                    control.add(new int[]{frame[3] & 0xFF, header.getInt(4)});
+                }
+            }
+        } catch (IOException e) {
+            // the server or we closed the port
+        }
+    }
+
+    private static List<byte[]> frames(List<DeviceFile> files) {
+        List<byte[]> frames = new ArrayList<>();
+        CRC32 crc = new CRC32();
+        byte[] hello = {(byte) WINDOW, (byte) (MAX_PAYLOAD >> 8), (byte) MAX_PAYLOAD};
+        frames.add(FramedReceiver.encode(FramedReceiver.HELLO, frames.size(), hello, 0, hello.length, crc));
+        for (DeviceFile file : files) {
+            byte[] name = file.name().getBytes(StandardCharsets.UTF_8);
+            byte[] start = ByteBuffer.allocate(8 + name.length).putLong(file.data().length).put(name).array();
+            frames.add(FramedReceiver.encode(FramedReceiver.FILE_START, frames.size(), start, 0, start.length, crc));
+            byte[] data = file.data();
+            for (int offset = 0; offset < data.length; offset += MAX_PAYLOAD) {
+                int length = Math.min(MAX_PAYLOAD, data.length - offset);
+                frames.add(FramedReceiver.encode(FramedReceiver.DATA, frames.size(), data, offset, length, crc));
+            }
+            frames.add(FramedReceiver.encode(FramedReceiver.FILE_END, frames.size(), new byte[0], 0, 0, crc));
+        }
+        frames.add(FramedReceiver.encode(FramedReceiver.TRANSFER_END, frames.size(), new byte[0], 0, 0, crc));
+        return frames;
+    }
+
+    private static byte[] line(String line) {
+        return (line + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,122 @@
+package org.sft.serial;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// runs a transfer from a SimulatedDevice through the same pipeline and receiver a real port uses, and reports how it went
+// nothing is saved, the received files are only counted and checked against what was sent
+//
+// run with: mvn -Pjmh test-compile exec:exec -Djmh.main=org.sft.serial.SimulatedTransfer -Djmh.args="<arguments>"
+// arguments:
+//   --text <files...> | --framed <files...>   send the files with that protocol
+//   --replay <file>                           play back bytes recorded from a device, - reads them from stdin (a pipe)
+//   --record <file>                           with --text or --framed, write the bytes of the transfer to the file
+//                                             instead of sending them, to be replayed later
+//   --latency 20ms --jitter 5ms --loss 0.001 --rate 92160 --seed 1 --timeout 1s
+public class SimulatedTransfer {
+
+    public static void main(String[] args) throws Exception {
+        SimulatedDevice.Protocol protocol = null;
+        List<Path> paths = new ArrayList<>();
+        String replay = null;
+        Path record = null;
+        Duration latency = Duration.ZERO;
+        Duration jitter = Duration.ZERO;
+        double loss = 0;
+        long rate = 0;
+        long seed = 1;
+        Duration timeout = Duration.ofSeconds(1);
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--text" -> protocol = SimulatedDevice.Protocol.TEXT;
+                case "--framed" -> protocol = SimulatedDevice.Protocol.FRAMED;
+                case "--replay" -> replay = args[++i];
+                case "--record" -> record = Path.of(args[++i]);
+                case "--latency" -> latency = duration(args[++i]);
+                case "--jitter" -> jitter = duration(args[++i]);
+                case "--loss" -> loss = Double.parseDouble(args[++i]);
+                case "--rate" -> rate = Long.parseLong(args[++i]);
+                case "--seed" -> seed = Long.parseLong(args[++i]);
+                case "--timeout" -> timeout = duration(args[++i]);
+                default -> paths.add(Path.of(args[i]));
+            }
+        }
+        if ((protocol == null) == (replay == null)) {
+            System.err.println("Give either --text or --framed with the files to send, or --replay with a recording");
+            System.exit(2);
+        }
+
+        List<SimulatedDevice.DeviceFile> files = new ArrayList<>();
+        for (Path path : paths) {
+            files.add(new SimulatedDevice.DeviceFile(path.getFileName().toString(), Files.readAllBytes(path)));
+        }
+        if (record != null) {
+            Files.write(record, SimulatedDevice.record(files, protocol));
+            System.out.println("Recorded " + files.size() + " files to " + record);
+            return;
+        }
+
+        SimulatedDevice.Conditions conditions = new SimulatedDevice.Conditions(latency, jitter, loss, rate, seed);
+        InputStream recording = replay == null ? null : replay.equals("-") ? System.in : Files.newInputStream(Path.of(replay));
+        CountingSink sink = new CountingSink(true);
+        SerialReceiver receiver = new SerialReceiver(sink, System.out::println);
+
+        long started = System.nanoTime();
+        try (SimulatedDevice device = replay == null
+                ? SimulatedDevice.sending(files, protocol, conditions)
+                : SimulatedDevice.replay(recording, conditions);
+             SerialPipeline pipeline = SerialPipeline.start(device.getInputStream(), "simulated", timeout.toMillis())) {
+            try (PushbackInputStream input = new PushbackInputStream(pipeline.input(), 1)) {
+                while (receiver.receiveTransfer(input, device.getOutputStream(), () -> false)) {
+                    // the device may send more than one transfer
+                }
+            } catch (IOException e) {
+                System.out.println("Receiving failed: " + e.getMessage());
+            }
+            long nanos = Math.max(1, System.nanoTime() - started);
+
+            SerialPipeline.Stats stats = pipeline.stats();
+            System.out.printf("Received %d files, %d bytes in %.2f s, %.2f MB/s%n", sink.files(), sink.bytes(),
+                    nanos / 1e9, sink.bytes() * 1e3 / nanos);
+            System.out.printf("Device sent %d bytes, %d lost on the way; pipeline read %d bytes, reader stalled %d times%n",
+                    device.bytesSent(), device.bytesLost(), stats.bytesRead(), stats.stalls());
+        }
+
+        int damaged = 0;
+        Map<String, Long> received = sink.checksums();
+        for (SimulatedDevice.DeviceFile file : files) {
+            CRC32 crc = new CRC32();
+            crc.update(file.data());
+            Long got = received.get(file.name());
+            if (got == null || got != crc.getValue()) {
+                damaged++;
+                System.out.println(file.name() + ": " + (got == null ? "missing" : "damaged"));
+            }
+        }
+        if (!files.isEmpty()) {
+            System.out.println((files.size() - damaged) + " of " + files.size() + " files arrived intact");
+        }
+        System.exit(damaged == 0 ? 0 : 1);
+    }
+
+    // 20ms, 1s, or a plain number of milliseconds
+    private static Duration duration(String value) {
+        if (value.endsWith("ms")) {
+            return Duration.ofMillis(Long.parseLong(value.substring(0, value.length() - 2)));
+        }
+        if (value.endsWith("s")) {
+            return Duration.ofMillis(Math.round(Double.parseDouble(value.substring(0, value.length() - 1)) * 1000));
+        }
+        return Duration.ofMillis(Long.parseLong(value));
+    }
+
+}
@@ -0,0 +1,113 @@
+package org.sft;
+
+import org.sft.storage.FolderIndex;
+import org.sft.storage.StorageEngine;
+import org.sft.upload.BatchUpload;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.*;
+
+// accept API calls from any origin
+@CrossOrigin(origins = "*")
+
+// controller for filling or clearing a folder with a few requests instead of one request per file:
+// POST   /files/uploadBatch?id=..                       -> multipart form with any number of "files" parts
+// DELETE /files/deleteBatch?id=..&glob=..               -> deletes every file whose name matches the glob
+// DELETE /files/deleteBatch?id=.. with ["a", "b", ...]  -> deletes the files named in the json body
+// both answer with a result for every file, one failing file doesn't fail the others
+@RestController
+@RequestMapping("/files")
+public class BatchController {
+
+    private final StorageEngine storage;
+    private final FolderIndex folderIndex;
+    private final BatchUpload batchUpload;
+
+    public BatchController(StorageEngine storage, FolderIndex folderIndex, BatchUpload batchUpload) {
+        this.storage = storage;
+        this.folderIndex = folderIndex;
+        this.batchUpload = batchUpload;
+    }
+
+    // function will be called if url has /files/uploadBatch
+    // eg: curl -F files=@a.txt -F files=@b.txt "http://localhost:9090/files/uploadBatch?id=1"
+    // param:
+    // files -> MultipartFile list: every part named "files" of the form, written into the folder at the same time
+    // id -> String: id of the folder in which the files will be saved
+    // returns one result per file in the order they were sent, see BatchUpload.upload
+    @PostMapping("/uploadBatch")
+    public ResponseEntity<List<Map<String, Object>>> uploadBatch(@RequestParam("files") List<MultipartFile> files,
+                                                                 @RequestParam("id") String id) {
+        try {
+            return ResponseEntity.ok(batchUpload.upload(id, files));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(List.of(Map.of("error", "Upload interrupted")));
+        }
+    }
+
+    // function will be called if url has /files/deleteBatch
+    // eg: curl -X DELETE "http://localhost:9090/files/deleteBatch?id=1&glob=*.tmp"
+    // param:
+    // id -> String: id of the folder from which the files must be deleted
+    // glob -> String: optional pattern like "*.tmp" or "1700*_log?.txt", every file of the folder whose name matches is deleted
+    // names -> optional json list of file names in the body, deleted along with the ones the glob matches
+    // returns one result per file: name, status (200 deleted, 404 not found, 500 failed) and a message
+    @DeleteMapping("/deleteBatch")
+    public ResponseEntity<List<Map<String, Object>>> deleteBatch(@RequestParam("id") String id,
+                                                                 @RequestParam(value = "glob", required = false) String glob,
+                                                                 @RequestBody(required = false) List<String> names) {
+        if (glob == null && names == null) {
+            return ResponseEntity.badRequest().body(List.of(Map.of("error", "Give a glob, a list of names or both")));
+        }
+
+        // every name only once, in the order given, then the matches of the glob in the order of the listing
+        Set<String> targets = new LinkedHashSet<>();
+        if (names != null) {
+            targets.addAll(names);
+        }
+        if (glob != null) {
+            PathMatcher matcher;
+            try {
+                matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.badRequest().body(List.of(Map.of("error", "Invalid glob: " + e.getMessage())));
+            }
+            // the names come from memory, the folder isn't read from disk to find them
+            for (FolderIndex.FileEntry entry : folderIndex.list(id)) {
+                if (matcher.matches(Path.of(entry.name()))) {
+                    targets.add(entry.name());
+                }
+            }
+        }
+
+        List<Map<String, Object>> results = new ArrayList<>(targets.size());
+        for (String name : targets) {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("name", name);
+            try {
+                // its content goes too if no other file shares it, same as a single delete
+                if (storage.delete(id, name)) {
+                    result.put("status", HttpStatus.OK.value());
+                    result.put("message", "File deleted successfully: " + name);
+                } else {
+                    result.put("status", HttpStatus.NOT_FOUND.value());
+                    result.put("message", "File not found: " + name);
+                }
+            } catch (IOException e) {
+                result.put("status", HttpStatus.INTERNAL_SERVER_ERROR.value());
+                result.put("message", "Failed to delete file: " + name);
+            }
+            results.add(result);
+        }
+        return ResponseEntity.ok(results);
+    }
+
+}
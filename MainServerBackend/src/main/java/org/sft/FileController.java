@@ -1,16 +1,35 @@
 package org.sft;
 
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.sft.archive.FolderArchiver;
+import org.sft.cache.HotFileCache;
+import org.sft.compress.ContentCoding;
+import org.sft.compress.ResponseCompression;
+import org.sft.storage.BlobWriter;
+import org.sft.storage.Extent;
+import org.sft.storage.FolderIndex;
+import org.sft.storage.StorageEngine;
+import org.sft.upload.StreamingIngest;
+import org.sft.upload.UploadNames;
+import org.sft.web.CachePolicy;
+import org.sft.web.FileSender;
+import org.sft.web.NonBlockingSender;
 import org.springframework.http.*;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
+import java.nio.file.FileAlreadyExistsException;
 import java.util.*;
 
-// accept API calls from any origin
-@CrossOrigin(origins = "*")
+// accept API calls from any origin, and let them read the listing headers
+@CrossOrigin(origins = "*", exposedHeaders = {HttpHeaders.ETAG, HttpHeaders.LAST_MODIFIED, FileController.NEXT_CURSOR_HEADER})
 
 // specifically stating the following class is a controller class for REST API so spring boot will detect it
 @RestController
@@ -20,8 +39,45 @@ import java.util.*;
 @RequestMapping("/files")
 public class FileController {
 
-    // base directory from which files from different folders will be served or files are saved to different folders from uploads
-    private static final String BASE_DIR = System.getProperty("user.dir") + "/uploads/";
+    // header telling the client where the next page of a /files/list starts
+    static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
+    // every file of every folder is read, written and deleted through the storage engine, which keeps identical content on disk only once
+    private final StorageEngine storage;
+
+    // keeps every listed folder in memory so /files/list doesn't have to go to the disk
+    private final FolderIndex folderIndex;
+
+    // keeps small files that are downloaded again and again in memory
+    private final HotFileCache hotFileCache;
+
+    // writes whole folders into one download stream for /files/downloadAll
+    private final FolderArchiver folderArchiver;
+
+    // writes raw request bodies straight into a folder for streamed uploads
+    private final StreamingIngest streamingIngest;
+
+    // keeps gzip and zstd copies of stored files for clients that take them
+    private final ResponseCompression responseCompression;
+
+    // says how long browsers and the cloudflare edge may keep a downloaded file
+    private final CachePolicy cachePolicy;
+
+    // writes downloads and listings without holding a thread, if files.serving.non-blocking is on
+    private final NonBlockingSender nonBlockingSender;
+
+    public FileController(StorageEngine storage, FolderIndex folderIndex, HotFileCache hotFileCache,
+                          FolderArchiver folderArchiver, StreamingIngest streamingIngest, ResponseCompression responseCompression,
+                          CachePolicy cachePolicy, NonBlockingSender nonBlockingSender) {
+        this.storage = storage;
+        this.folderIndex = folderIndex;
+        this.hotFileCache = hotFileCache;
+        this.folderArchiver = folderArchiver;
+        this.streamingIngest = streamingIngest;
+        this.responseCompression = responseCompression;
+        this.cachePolicy = cachePolicy;
+        this.nonBlockingSender = nonBlockingSender;
+    }
 
     // function will be called if url has /files/upload
     // eg: http://localhost:9090/files/upload
@@ -37,67 +93,157 @@ public class FileController {
                 return ResponseEntity.badRequest().body("Upload failed: File is empty.");
             }
 
-            // make the directory with the folder id in which the files will be saved if the directory does not exist
-            File userDir = new File(BASE_DIR + id);
-            if (!userDir.exists() && !userDir.mkdirs()) {
-                // if for some reason the directory could not be created, return an INTERNAL_SERVER_ERROR
-                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Upload failed: Could not create directory.");
-            }
+            // save the file in the folder with the folder id and append the name with current time to not overwrite
+            // any other files that might exist with same file name, the store makes the directory if it does not exist
+            String savedName = UploadNames.next(String.valueOf(file.getOriginalFilename()));
 
-            // save the file in the user directory (with folder id) and append the name with current time to not overwrite
-            // any other files that might exist with same file name
-            File savedFile = new File(userDir, System.currentTimeMillis() + "_" + file.getOriginalFilename());
-
-            // transfer the bytes from uploaded file to saved file
-            file.transferTo(savedFile);
+            // transfer the bytes from uploaded file to the store, if the same content was uploaded before it is not written again
+            StorageEngine.StoredFile savedFile;
+            try (BlobWriter writer = storage.newWriter(); InputStream in = file.getInputStream()) {
+                in.transferTo(writer);
+                savedFile = storage.commit(writer, id, savedName);
+            }
 
             // return an ok response with "File uploaded successfully: {file_name}"
-            return ResponseEntity.ok("File uploaded successfully: " + savedFile.getAbsolutePath());
+            return ResponseEntity.ok("File uploaded successfully: " + savedFile.location());
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body("Upload failed: " + e.getMessage());
         } catch (IOException e) {
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Upload failed: " + e.getMessage());
         }
     }
 
+    // function will be called if url has /files/upload and the body is the raw file instead of a multipart form
+    // eg: http://localhost:9090/files/upload?id=1&filename=photo.jpg with Content-Type: application/octet-stream
+    @PostMapping(value = "/upload", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    // defining a function for uploading without multipart, the body is written once straight into the store
+    // instead of first going to a servlet temp file, and there is no 50MB multipart limit
+    // param:
+    // id -> String: id of the folder in which the file will be saved
+    // filename -> String: name of the file being uploaded
+    // sha256 -> String: optional hash of the file, if the server already has that content the body is never read,
+    //           so a client sending "Expect: 100-continue" doesn't even have to send it
+    // request -> the request whose body is the file
+    // returns the saved name, the size and the sha-256 of what was received so the client can check it
+    public ResponseEntity<Map<String, Object>> handleStreamUpload(@RequestParam("id") String id, @RequestParam("filename") String filename,
+                                                                  @RequestParam(value = "sha256", required = false) String sha256,
+                                                                  HttpServletRequest request) {
+        try {
+            StorageEngine.StoredFile result = streamingIngest.ingest(id, filename, sha256, request.getInputStream());
+
+            Map<String, Object> info = new LinkedHashMap<>();
+            info.put("name", result.name());
+            info.put("path", result.location());
+            info.put("size", result.size());
+            info.put("sha256", result.hash());
+            info.put("duplicate", result.duplicate());
+            return ResponseEntity.ok(info);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", "Upload failed: " + e.getMessage()));
+        } catch (FileAlreadyExistsException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(Map.of("error", "Upload failed: A file named " + e.getFile() + " already exists."));
+        } catch (IOException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(Map.of("error", "Upload failed: " + e.getMessage()));
+        }
+    }
+
     // function will be called if url has /files/list
     // eg: http://localhost:9090/files/list
     @GetMapping("/list")
-    // define a function to return all file names and sizes in a folder with given id
+    // define a function to return all file names, sizes and modification times in a folder with given id
     // param:
     // id -> String: id of the folder from which names and sizes of files will be returned
-    public ResponseEntity<List<Map<String, Object>>> listFiles(@RequestParam("id") String id) {
-
-        // open the directory
-        File userDir = new File(BASE_DIR + id);
+    // sort -> String: optional "name" (default), "size" or "modified"
+    // order -> String: optional "asc" (default) or "desc"
+    // limit -> int: optional most files to return at once, all of them if not given
+    // cursor -> String: optional X-Next-Cursor header of the previous response, to get the page after it
+    // webRequest -> if its If-None-Match matches the folder's ETag nothing changed, so only NOT_MODIFIED is sent back
+    public ResponseEntity<List<FolderIndex.FileEntry>> listFiles(@RequestParam("id") String id,
+                                                                 @RequestParam(value = "sort", defaultValue = "name") String sort,
+                                                                 @RequestParam(value = "order", defaultValue = "asc") String order,
+                                                                 @RequestParam(value = "limit", defaultValue = "0") int limit,
+                                                                 @RequestParam(value = "cursor", required = false) String cursor,
+                                                                 WebRequest webRequest) throws IOException {
+        FolderIndex.SortKey sortKey;
+        try {
+            sortKey = FolderIndex.SortKey.valueOf(sort.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(null);
+        }
+        boolean descending = order.equalsIgnoreCase("desc");
 
-        // take references (kind of like paths) of the files in the folder
-        File[] files = userDir.listFiles();
+        // the etag changes whenever a file of the folder does, so a client that already has the latest listing
+        // gets an empty NOT_MODIFIED response (this also sets the ETag header)
+        String etag = folderIndex.etag(id);
+        if (webRequest.checkNotModified(etag)) {
+            return null;
+        }
 
         /*
-           we represent each file as a map as:
+           we represent each file as:
            {
             name: file_name
             size: file_size
+            modified: last_modified_time_in_millis
            }
 
-           to send all file names and sizes, we put each map that represents a single file in a list, so we will have
-           a list of maps (representing files) to send as response
+           to send all file names and sizes, we put each file in a list, so we will have a list of files to send as
+           response, the names and sizes come from memory instead of asking the disk about every file
         */
+        FolderIndex.Page page;
+        try {
+            page = folderIndex.list(id, sortKey, descending, cursor, limit);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(null); // cursor that we didn't make
+        }
 
-        // list of maps
-        List<Map<String, Object>> fileList = new ArrayList<>();
-
-        // iterate through each file
-        if (files != null) {
-            for (File file : files) {
-                if (file.isFile()) {
-                    Map<String, Object> fileInfo = new HashMap<>(); // make a new hashmap for representing the ith file
-                    fileInfo.put("name", file.getName()); // set name to be the name of file
-                    fileInfo.put("size", file.length()); // set size to size of file
-                    fileList.add(fileInfo); // add the map to the list
-                }
+        // with files.serving.non-blocking a big listing is written as the client takes it, without holding a thread
+        if (nonBlockingSender.isEnabled() && webRequest instanceof ServletWebRequest servlet && servlet.getResponse() != null) {
+            if (page.nextCursor() != null) {
+                servlet.getResponse().setHeader(NEXT_CURSOR_HEADER, page.nextCursor());
             }
+            nonBlockingSender.sendJson(servlet.getRequest(), servlet.getResponse(), page.files());
+            return null;
+        }
+
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+        if (page.nextCursor() != null) {
+            response.header(NEXT_CURSOR_HEADER, page.nextCursor());
+        }
+        return response.body(page.files()); // return the list of files
+    }
+
+    // function will be called if url has /files/manifest
+    // eg: http://localhost:9090/files/manifest
+    @GetMapping("/manifest")
+    // define a function to return every file of a folder with its size, modification time and sha-256, sorted by name
+    // another server compares this with its own copy of the folder to download only what is new or changed
+    // param:
+    // id -> String: id of the folder to describe
+    // webRequest -> if its If-None-Match matches the folder's ETag nothing changed, so only NOT_MODIFIED is sent back
+    public ResponseEntity<List<FolderIndex.ManifestEntry>> manifest(@RequestParam("id") String id, WebRequest webRequest) {
+        // same etag as /files/list, both change whenever a file of the folder does
+        String etag = folderIndex.etag(id);
+        if (webRequest.checkNotModified(etag)) {
+            return null;
+        }
+
+        /*
+           we represent each file as:
+           {
+            name: file_name
+            size: file_size
+            modified: last_modified_time_in_millis
+            sha256: hash_of_the_content
+           }
+
+           hashes are remembered by the index, so a file is only read again once it has changed
+        */
+        try {
+            return ResponseEntity.ok(folderIndex.manifest(id));
+        } catch (IOException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(null);
         }
-        return ResponseEntity.ok(fileList); // return the list of maps
     }
 
 
@@ -108,67 +254,158 @@ public class FileController {
     // param:
     // id -> String: id of the folder from which the file must be downloaded
     // filename -> String: name of the file to be downloaded
-    public ResponseEntity<byte[]> downloadFile(@RequestParam("id") String id, @RequestParam("filename") String filename) {
+    // request -> the incoming request, a "Range: bytes=start-end" header in it makes only that part of the file be sent,
+    //            an If-None-Match or If-Modified-Since header that still matches the file gets NOT_MODIFIED without a body
+    // response -> the file is streamed straight into the response instead of being loaded into memory first
+    public void downloadFile(@RequestParam("id") String id, @RequestParam("filename") String filename,
+                             HttpServletRequest request, HttpServletResponse response) throws IOException {
+        // find the file in the folder with the folder id
+        Extent content = storage.open(id, filename);
+        if (content == null) {
+            // if the file does not exist, return a NOT_FOUND status
+            writeError(response, HttpStatus.NOT_FOUND, "File not found: " + filename);
+            return;
+        }
+
         try {
-            // open the file with base directory + folder id
-            File file = new File(BASE_DIR + id + "/" + filename);
-            if (!file.exists()) {
-                // if the file does not exist, return a NOT_FOUND status
-                return ResponseEntity.status(HttpStatus.NOT_FOUND).body(("File not found: " + filename).getBytes());
+            // the etag is the sha-256 of the content, which the store already knows for every file it wrote,
+            // and caches are told how long they may keep the file without asking again
+            String hash = storage.hashOf(id, filename);
+            if (hash == null) {
+                hash = folderIndex.hash(id, filename);
+            }
+            String cacheControl = cachePolicy.forFolder(id);
+            if (!cacheControl.isEmpty()) {
+                response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl);
             }
 
-            // take contents of file
-            byte[] fileContent = Files.readAllBytes(file.toPath());
-
-            // we have to make a new header, to tell the browser that we are streaming binary data (as octet) and also
-            // the file must be sent as a download prompt
-            HttpHeaders headers = new HttpHeaders();
-
-            // tells the browser that we are streaming binary data
-            headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
-            // tells the browser to make a download prompt for the file
-            headers.setContentDispositionFormData("attachment", filename);
-
-            // return the file content, along with the headers and an OK response
-            return new ResponseEntity<>(fileContent, headers, HttpStatus.OK);
+            // stream the contents of the file (or the requested range of it) to the client
+            // the file sender also sets the headers telling the browser that we are streaming binary data
+            // as a download prompt and that it may ask for byte ranges to resume the download
+            // clients that take gzip or zstd (Accept-Encoding) get the compressed copy if the file has one,
+            // a Range then counts bytes of the compressed copy
+            // small files come from the cache in memory, everything else straight from disk, files in cold storage are
+            // decompressed while they are sent (and a zstd client simply gets the cold copy as it is)
+            // with files.serving.non-blocking the body is written as the client takes it, without holding a thread
+            // every encoding is a different body, so it gets its own etag, and a client that already has the body it
+            // would get now is only told NOT_MODIFIED (an If-Range that doesn't match makes a Range be ignored)
+            response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+            ResponseCompression.Variant variant = responseCompression.find(id, filename, content,
+                    ContentCoding.accepted(request.getHeader(HttpHeaders.ACCEPT_ENCODING)));
+            if (variant != null) {
+                if (notModified(request, response, hash == null ? null : hash + "-" + variant.coding().token(), content)) {
+                    return;
+                }
+                response.setHeader(HttpHeaders.CONTENT_ENCODING, variant.coding().token());
+                send(request, response, variant.content(), filename);
+                return;
+            }
+            if (notModified(request, response, hash, content)) {
+                return;
+            }
+            ByteBuffer cached = hotFileCache.get(id, filename, content);
+            if (cached != null) {
+                if (nonBlockingSender.isEnabled()) {
+                    nonBlockingSender.send(request, response, cached, filename);
+                } else {
+                    FileSender.send(request, response, cached, filename);
+                }
+            } else {
+                send(request, response, content, filename);
+            }
         } catch (IOException e) {
-            // if some error comes along the way send INTERNAL_SERVER_ERROR
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(("Download failed: " + e.getMessage()).getBytes());
+            // if some error comes along the way send INTERNAL_SERVER_ERROR, unless part of the file was already sent
+            if (!response.isCommitted()) {
+                response.reset();
+                writeError(response, HttpStatus.INTERNAL_SERVER_ERROR, "Download failed: " + e.getMessage());
+            }
         }
     }
 
-    // not used anywhere for now, documentation will be done when it is used
+    // function will be called if url has /files/downloadAll
+    // eg: http://localhost:9090/files/downloadAll
     @GetMapping("/downloadAll")
-    public ResponseEntity<byte[]> downloadAllFiles(@RequestParam("id") String id) {
-        File userDir = new File(BASE_DIR + id);
-        if (!userDir.exists() || !userDir.isDirectory()) {
+    // define a function to download every file of a folder in one response
+    // the files are streamed to the client one after another as they are read, so the folder is never held in memory
+    // param:
+    // id -> String: id of the folder whose files must be downloaded
+    // format -> String: "bin" (default) for name\nlength\nbytes framing of every file, or "zip" for a zip archive
+    // compress -> boolean: only for zip, deflate the entries instead of just storing them
+    // acceptEncoding -> if the client takes gzip or zstd the whole response is compressed while it is sent, unless the
+    //                   files are mostly compressed already or the zip entries are deflated
+    // request, response -> only used by the non-blocking path, which writes the response itself
+    public ResponseEntity<StreamingResponseBody> downloadAllFiles(@RequestParam("id") String id,
+                                                                  @RequestParam(value = "format", defaultValue = "bin") String format,
+                                                                  @RequestParam(value = "compress", defaultValue = "false") boolean compress,
+                                                                  @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding,
+                                                                  HttpServletRequest request, HttpServletResponse response) throws IOException {
+        List<FolderIndex.FileEntry> fileList = storage.list(id);
+        if (fileList.isEmpty()) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND).body(null);
         }
 
-        File[] files = userDir.listFiles();
-        if (files == null || files.length == 0) {
-            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(null);
+        FolderArchiver.Format archiveFormat;
+        try {
+            archiveFormat = FolderArchiver.Format.valueOf(format.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(null);
         }
 
-        try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
-            for (File file : files) {
-                if (file.isFile()) {
-                    byte[] fileContent = Files.readAllBytes(file.toPath());
-                    outputStream.write((file.getName() + "\n").getBytes(StandardCharsets.UTF_8));
-                    outputStream.write((fileContent.length + "\n").getBytes(StandardCharsets.UTF_8));
-                    outputStream.write(fileContent);
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+        String archiveName = archiveFormat == FolderArchiver.Format.ZIP ? id + ".zip" : "all_files.bin";
+        headers.setContentDisposition(ContentDisposition.attachment().filename(archiveName).build());
+        headers.add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        ContentCoding coding = archiveFormat == FolderArchiver.Format.ZIP && compress
+                ? null : responseCompression.streamCoding(fileList, ContentCoding.accepted(acceptEncoding));
+        if (coding != null) {
+            headers.set(HttpHeaders.CONTENT_ENCODING, coding.token());
+        }
+
+        // with files.serving.non-blocking the bin framing is sent piece by piece as the client takes it, zip archives
+        // and compressed responses are made by output streams, so they always take the path below
+        if (nonBlockingSender.isEnabled() && archiveFormat == FolderArchiver.Format.BIN && coding == null) {
+            headers.forEach((name, values) -> values.forEach(value -> response.addHeader(name, value)));
+            List<NonBlockingSender.Piece> pieces = new ArrayList<>(fileList.size() * 2);
+            for (FolderIndex.FileEntry entry : fileList) {
+                Extent content = storage.open(id, entry.name());
+                if (content != null) {
+                    byte[] header = (entry.name() + "\n" + content.length() + "\n").getBytes(StandardCharsets.UTF_8);
+                    pieces.add(new NonBlockingSender.Bytes(ByteBuffer.wrap(header)));
+                    pieces.add(new NonBlockingSender.FileRange(content, 0, content.length()));
                 }
             }
-            byte[] responseBytes = outputStream.toByteArray();
+            nonBlockingSender.start(request, response, pieces);
+            return null;
+        }
 
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
-            headers.setContentDisposition(ContentDisposition.attachment().filename("all_files.bin").build());
+        // the body is written on a separate thread after this function returns, file by file, straight into the response
+        // files deleted since they were listed are left out
+        StreamingResponseBody body = outputStream -> {
+            List<FolderArchiver.Entry> entries = new ArrayList<>(fileList.size());
+            for (FolderIndex.FileEntry entry : fileList) {
+                Extent content = storage.open(id, entry.name());
+                if (content != null) {
+                    entries.add(new FolderArchiver.Entry(entry.name(), content));
+                }
+            }
+            if (coding == null) {
+                folderArchiver.write(entries, archiveFormat, compress, outputStream);
+                return;
+            }
+            try (OutputStream encoded = responseCompression.encode(coding, outputStream)) {
+                folderArchiver.write(entries, archiveFormat, compress, encoded);
+            }
+        };
+        return ResponseEntity.ok().headers(headers).body(body);
+    }
 
-            return ResponseEntity.ok().headers(headers).body(responseBytes);
-        } catch (IOException e) {
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(null);
-        }
+    // function will be called if url has /files/cacheStats
+    // eg: http://localhost:9090/files/cacheStats
+    @GetMapping("/cacheStats")
+    // define a function to return the hit, miss and eviction counts of the download cache and how full it is
+    public ResponseEntity<HotFileCache.Stats> cacheStats() {
+        return ResponseEntity.ok(hotFileCache.stats());
     }
 
     // function will be called if url has /files/delete
@@ -179,21 +416,42 @@ public class FileController {
     // id -> String: id of the folder from which the file must be deleted
     // filename -> String: name of the file to be deleted
     public ResponseEntity<String> deleteFile(@RequestParam("id") String id, @RequestParam("filename") String filename) {
-        // open the file with base directory + folder id
-        File file = new File(BASE_DIR + id + "/" + filename);
-        if (!file.exists()) {
+        try {
+            // delete the file from the folder with the folder id, its content goes too if no other file shares it
+            if (storage.delete(id, filename)) {
+                // if it is deleted successfully, send an OK response
+                return ResponseEntity.ok("File deleted successfully: " + filename);
+            }
             // if the file does not exist, return a NOT_FOUND status
             return ResponseEntity.status(HttpStatus.NOT_FOUND).body("File not found: " + filename);
+        } catch (IOException e) {
+            // else send INTERNAL_SERVER_ERROR
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Failed to delete file: " + filename);
         }
+    }
 
-        // delete the file
-        if (file.delete()) {
-            // if it is deleted successfully, send an OK response
-            return ResponseEntity.ok("File deleted successfully: " + filename);
+    // function to send a file from disk the blocking or the non-blocking way, whichever files.serving.non-blocking picks
+    private void send(HttpServletRequest request, HttpServletResponse response, Extent content, String filename) throws IOException {
+        if (nonBlockingSender.isEnabled()) {
+            nonBlockingSender.send(request, response, content, filename);
         } else {
-            // else send INTERNAL_SERVER_ERROR
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Failed to delete file: " + filename);
+            FileSender.send(request, response, content, filename);
         }
     }
 
+    // function to set the ETag and Last-Modified of a download and check the request's conditions against them
+    // returns true if the response was answered with NOT_MODIFIED (or PRECONDITION_FAILED) and nothing more must be sent
+    private static boolean notModified(HttpServletRequest request, HttpServletResponse response, String etag, Extent content) {
+        ServletWebRequest webRequest = new ServletWebRequest(request, response);
+        return etag != null ? webRequest.checkNotModified(etag, content.modified()) : webRequest.checkNotModified(content.modified());
+    }
+
+    // function to write a plain text error message into a response that is written by hand instead of through a ResponseEntity
+    private static void writeError(HttpServletResponse response, HttpStatus status, String message) throws IOException {
+        response.setStatus(status.value());
+        response.setContentType(MediaType.TEXT_PLAIN_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.getWriter().write(message);
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,52 @@
+package org.sft;
+
+import jakarta.servlet.http.HttpServletRequest;
+import org.sft.cache.HotFileCache;
+import org.sft.metrics.Metrics;
+import org.sft.web.Clients;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+// controller for /metrics, everything the server counts in the prometheus text format:
+// requests, errors, bytes and latency per endpoint, the serial ports, the download cache and the jvm's memory
+// it only answers requests made on this machine, and not those coming in through the tunnel, unless
+// files.metrics.remote-access is turned on
+@RestController
+public class MetricsController {
+
+    // the prometheus text format, scrapers send this in their Accept header too
+    private static final MediaType TEXT_FORMAT = MediaType.parseMediaType("text/plain; version=0.0.4; charset=utf-8");
+
+    private final Metrics metrics;
+    private final boolean remoteAccess;
+
+    public MetricsController(HotFileCache hotFileCache, @Value("${files.metrics.remote-access:false}") boolean remoteAccess) {
+        this.metrics = Metrics.shared();
+        this.remoteAccess = remoteAccess;
+
+        // the cache keeps these counters anyway, they are only read when /metrics is asked for
+        metrics.collector(out -> {
+            HotFileCache.Stats stats = hotFileCache.stats();
+            out.counter("sft_cache_hits_total", "Downloads answered from the cache", stats.hits());
+            out.counter("sft_cache_misses_total", "Downloads of cacheable files that had to go to the disk", stats.misses());
+            out.counter("sft_cache_evictions_total", "Files dropped from the cache to make room", stats.evictions());
+            out.gauge("sft_cache_used_bytes", "Direct memory held by cached files", stats.bytes());
+            out.gauge("sft_cache_capacity_bytes", "Most direct memory the cache may hold", stats.capacity());
+        });
+    }
+
+    // function will be called if url has /metrics
+    // eg: http://localhost:9090/metrics
+    @GetMapping("/metrics")
+    public ResponseEntity<String> metrics(HttpServletRequest request) {
+        if (!remoteAccess && !Clients.isLocal(request)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).contentType(MediaType.TEXT_PLAIN).body("Metrics are only available on this machine");
+        }
+        return ResponseEntity.ok().contentType(TEXT_FORMAT).body(metrics.scrape());
+    }
+
+}
@@ -0,0 +1,63 @@
+package org.sft;
+
+import org.sft.serial.SerialIngestManager;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+// accept API calls from any origin
+@CrossOrigin(origins = "*")
+
+// controller to see and change which serial ports files are received from, the same thing the serial tab does
+@RestController
+@RequestMapping("/serial")
+public class SerialController {
+
+    private final SerialIngestManager serialIngestManager;
+
+    public SerialController(SerialIngestManager serialIngestManager) {
+        this.serialIngestManager = serialIngestManager;
+    }
+
+    // function will be called on a GET to /serial/ports
+    // eg: http://localhost:9090/serial/ports
+    // returns every assigned port with its folder, what it is doing and how much it received so far
+    @GetMapping("/ports")
+    public ResponseEntity<List<SerialIngestManager.PortStatus>> ports() {
+        return ResponseEntity.ok(serialIngestManager.status());
+    }
+
+    // function will be called on a GET to /serial/available
+    // returns the names of the ports that are plugged in right now
+    @GetMapping("/available")
+    public ResponseEntity<List<String>> available() {
+        return ResponseEntity.ok(serialIngestManager.availablePorts());
+    }
+
+    // function will be called on a PUT to /serial/ports/{port}
+    // eg: http://localhost:9090/serial/ports/COM3?id=house-1
+    // param:
+    // port -> String: name of the port as listed by /serial/available
+    // id -> String: id of the folder the files received on that port are saved in
+    @PutMapping("/ports/{port}")
+    public ResponseEntity<String> assign(@PathVariable("port") String port, @RequestParam("id") String id) {
+        try {
+            serialIngestManager.assign(port, id);
+            return ResponseEntity.ok("Receiving from " + port + " into folder " + id);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    // function will be called on a DELETE to /serial/ports/{port}
+    @DeleteMapping("/ports/{port}")
+    public ResponseEntity<String> unassign(@PathVariable("port") String port) {
+        if (serialIngestManager.unassign(port)) {
+            return ResponseEntity.ok("Stopped receiving from " + port);
+        }
+        return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Port not assigned: " + port);
+    }
+
+}
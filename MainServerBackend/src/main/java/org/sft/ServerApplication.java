@@ -0,0 +1,84 @@
+package org.sft;
+
+import org.sft.concurrent.Workers;
+import org.sft.serial.SerialIngestManager;
+import org.sft.tunnel.CloudflareTunnel;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.Environment;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.RejectedExecutionException;
+
+// the spring boot application: the http server with all the controllers and the services they share
+// ServerUI starts it when "Start Server" is clicked, main below starts it without any window, which is how a house
+// runs the server as a service:
+// - the serial ports of files.serial.ports are received from as soon as they show up
+// - the http server starts right away
+// - the tunnel starts too if files.tunnel.enabled is on, its url is printed to the console
+// for the quickest start run it from the cds build (mvn -Pcds package), see the cds profile in pom.xml
+@SpringBootApplication
+public class ServerApplication {
+
+    // function will be called when the server is started without the window
+    // eg: java -jar target/cds/ServerUI-1.0-cds.jar, or java -jar ServerUI-1.0.jar --headless
+    // args -> spring boot arguments, eg. --server.port=9191
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+
+        // the serial side doesn't need the http server, so files can come in while it is still starting
+        SerialIngestManager.shared().setLog(System.out::println);
+
+        ConfigurableApplicationContext context = start(args);
+
+        Environment environment = context.getEnvironment();
+        String localUrl = "http://localhost:" + environment.getProperty("local.server.port");
+        if (environment.getProperty("files.startup.training", Boolean.class, false)) {
+            train(localUrl);
+            System.exit(SpringApplication.exit(context));
+        }
+
+        if (environment.getProperty("files.tunnel.enabled", Boolean.class, false)) {
+            try {
+                Workers.shared().start("tunnel-reader", () -> CloudflareTunnel.run(localUrl, url -> System.out.println("Tunnel URL: " + url)));
+            } catch (RejectedExecutionException e) {
+                System.out.println("Could not start tunnel-reader: " + e.getMessage());
+            }
+        }
+    }
+
+    // function for the run the cds build makes its archive with (files.startup.training, see the cds profile in pom.xml)
+    // asks the server for a few things, so what the first requests load and make is in the archive too, not only what
+    // the start does, with lazy beans that's most of the controllers and json
+    private static void train(String localUrl) {
+        HttpClient client = HttpClient.newHttpClient();
+        for (String path : new String[]{"/files/list?id=training", "/files/manifest?id=training", "/metrics"}) {
+            try {
+                HttpRequest request = HttpRequest.newBuilder(URI.create(localUrl + path)).header("Accept-Encoding", "gzip").build();
+                try (InputStream body = client.send(request, HttpResponse.BodyHandlers.ofInputStream()).body()) {
+                    body.transferTo(OutputStream.nullOutputStream());
+                }
+            } catch (IOException e) {
+                System.out.println("Training request " + path + " failed: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // function to start the http server, returns once it is serving
+    // with spring.threads.virtual.enabled tomcat handles every request on its own virtual thread, so many slow
+    // clients coming through the tunnel don't use up a fixed pool of threads
+    public static ConfigurableApplicationContext start(String... args) {
+        return SpringApplication.run(ServerApplication.class, args);
+    }
+
+}
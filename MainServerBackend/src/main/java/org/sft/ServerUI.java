@@ -1,27 +1,22 @@
 package org.sft;
 
-import com.fazecast.jSerialComm.SerialPort;
-import org.json.JSONArray;
-import org.json.JSONObject;
-import org.springframework.boot.SpringApplication;
-import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.sft.concurrent.Workers;
+import org.sft.config.Settings;
+import org.sft.serial.SerialIngestManager;
+import org.sft.sync.FolderSync;
+import org.sft.tunnel.CloudflareTunnel;
 
 import javax.swing.*;
 import javax.swing.border.LineBorder;
 import javax.swing.border.TitledBorder;
 import java.awt.*;
 import java.awt.datatransfer.*;
-import java.io.*;
 import java.net.URL;
-import java.net.URLEncoder;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
-import java.util.regex.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 
-import java.net.HttpURLConnection;
-
-@SpringBootApplication
 public class ServerUI {
 
     private static JLabel statusLabel; // status label to show url of backend server
@@ -36,16 +31,48 @@ public class ServerUI {
     private static JTextField sourceFolderID; // folder ID from which files can be viewed and downloaded
     private static JTextField url; // the url from which files will be viewed and downloaded
     private static JButton listFiles; // a button that lists all files in the given url
+    private static JButton syncFolder; // a button that downloads every file of the source folder we don't have yet
+    private static JCheckBox mirrorDeletes; // if checked, syncing also deletes our files the source folder doesn't have
+    private static JButton cancelAll; // a button that stops every download of the listed files
+    private static JLabel syncStatus; // how many of the listed files we have
+
+    // what the listed files were listed from, their downloads go from and to these
+    private static String listedUrl;
+    private static String listedSourceFolderID;
+    private static String listedDestinationFolderID;
+    private static int deletedBySync; // files the last sync deleted from the destination folder
+
+    // one row per listed file, only used in the GUI thread
+    private static final List<FileRow> fileRows = new ArrayList<>();
+
+    // refreshes the rows a few times a second while files are downloading, the downloads themselves never touch the GUI
+    private static Timer progressTimer;
+
+    // a listed file, its row in the list and its latest download
+    private static final class FileRow {
+        final FolderSync.RemoteFile file;
+        final JProgressBar progress;
+        final JButton button;
+        FolderSync.Transfer transfer; // null until it is downloaded
+
+        FileRow(FolderSync.RemoteFile file, JProgressBar progress, JButton button) {
+            this.file = file;
+            this.progress = progress;
+            this.button = button;
+        }
+    }
 
 
     private static JTextArea logArea; // log outputs as files are sent in serial communication
-    private static final int BAUD_RATE = 921600; // baud rate of the serial communication
-
-    // base directory where all files and folders
-    private static final String ROOT_DIR = System.getProperty("user.dir") + "/uploads/";
 
     public static void main(String[] args) {
 
+        // on a machine without a screen, or when asked to, run just the server like a service
+        if (GraphicsEnvironment.isHeadless() || Arrays.asList(args).contains("--headless")) {
+            ServerApplication.main(args);
+            return;
+        }
+
         // tells java to run the creation of ui in the event dispatch thread (the thread where all gui operations are done)
         SwingUtilities.invokeLater(ServerUI::createUI);
 
@@ -130,25 +157,26 @@ public class ServerUI {
 
         JButton startSerialButton = new JButton("Start Receiving"); // button saying "start receiving"
 
-        // the receiving must be done on a new thread, so we set the action listener to generate an event e
-        // that runs the receive files function on a new thread
-        startSerialButton.addActionListener(e -> new Thread(ServerUI::receiveFiles).start());
+        // the receiving is done by background jobs of the serial manager, so we set the action listener to generate an event e
+        // that hands the selected port and folder to it
+        startSerialButton.addActionListener(e -> receiveFiles());
 
         // we now make a selector UI element that makes you select the required COM port
         // and also make a text field where the desired user id can be entered
 
+        // messages of every port go to the text area, each starting with the name of its port
+        SerialIngestManager serialManager = SerialIngestManager.shared();
+        serialManager.setLog(ServerUI::log);
+
         // get all ports that are available
-        SerialPort[] availablePorts = SerialPort.getCommPorts();
-        if (availablePorts.length == 0) {
+        java.util.List<String> availablePorts = serialManager.availablePorts();
+        if (availablePorts.isEmpty()) {
             // if no ports are available, then log (to the text area) saying no ports are available
             System.out.println("No COM ports detected. Is your device connected?");
         }
 
         // we extract all port names
-        String[] portNames = new String[availablePorts.length];
-        for (int i = 0; i < availablePorts.length; i++) {
-            portNames[i] = availablePorts[i].getSystemPortName();
-        }
+        String[] portNames = availablePorts.toArray(new String[0]);
 
         // we make a separate panel to hold com selector and folder id input text field
         JPanel comAndFolderIDPanel = new JPanel(new BorderLayout());
@@ -161,6 +189,13 @@ public class ServerUI {
         // make the com selector with the available options being the array of strings port names
         comSelector = new JComboBox<>(portNames);
 
+        // ports plugged in or out later show up in the selector too (changed in the GUI thread)
+        serialManager.onPortsChanged(ports -> SwingUtilities.invokeLater(() -> {
+            Object selected = comSelector.getSelectedItem();
+            comSelector.setModel(new DefaultComboBoxModel<>(ports.toArray(new String[0])));
+            comSelector.setSelectedItem(selected);
+        }));
+
         // create the text field to input the folder id
         folderIDInput = new JTextField();
 
@@ -239,9 +274,31 @@ public class ServerUI {
         // after the button is clicked, it will list all files so add an action listener and call listFiles() function when clicked
         listFiles.addActionListener(e -> listFiles(fileListPanel));
 
-        // add main panel for inputs and the scrollable pane
+        // under the list, buttons to download the whole folder at once (many files at a time) and to stop that
+        JPanel syncPanel = new JPanel(new BorderLayout(10, 0));
+        syncPanel.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
+        syncFolder = new JButton("Sync Folder");
+        syncFolder.setEnabled(false); // nothing to sync until files are listed
+        syncFolder.addActionListener(e -> syncFolder(fileListPanel));
+        mirrorDeletes = new JCheckBox("Mirror deletes");
+        mirrorDeletes.setToolTipText("Also delete files of the destination folder that the source folder doesn't have");
+        cancelAll = new JButton("Cancel All");
+        cancelAll.setEnabled(false);
+        cancelAll.addActionListener(e -> cancelAllDownloads());
+        syncStatus = new JLabel("", SwingConstants.CENTER);
+        JPanel syncControls = new JPanel(new BorderLayout(5, 0));
+        syncControls.add(syncFolder, BorderLayout.WEST);
+        syncControls.add(mirrorDeletes, BorderLayout.EAST);
+        syncPanel.add(syncControls, BorderLayout.WEST);
+        syncPanel.add(syncStatus, BorderLayout.CENTER);
+        syncPanel.add(cancelAll, BorderLayout.EAST);
+
+        progressTimer = new Timer(200, e -> refreshFileRows());
+
+        // add main panel for inputs, the scrollable pane and the sync buttons
         fileViewerPanel.add(fileViewerSubPanel1, BorderLayout.NORTH);
         fileViewerPanel.add(scrollPane, BorderLayout.CENTER);
+        fileViewerPanel.add(syncPanel, BorderLayout.SOUTH);
 
         // add all three panels: server panel, serial panel, file viewer panel, to the tabbed pane
         tabbedPane.addTab("Server", serverPanel);
@@ -258,12 +315,8 @@ public class ServerUI {
         // disable the start button once started (disable in GUI thread)
         SwingUtilities.invokeLater(() -> startButton.setEnabled(false));
 
-        // make a new thread to run the spring boot application
-        // SpringApplication.run(ServerUI.class) tells spring boot which is the main class
-        Thread serverThread = new Thread(() -> SpringApplication.run(ServerUI.class));
-
-        serverThread.setDaemon(true); // this tells the spring boot server thread to terminate if the parent thread terminates
-        serverThread.start(); // starts the thread
+        // run the spring boot application as a background job, it returns once the server is up
+        startWorker("server-starter", () -> ServerApplication.start());
 
         startCloudflared(); // starts cloudflare to make cloudflare url and portforward the server
 
@@ -271,87 +324,32 @@ public class ServerUI {
 
     // function to generate a cloudflare url for http://localhost:9090 (local ip of spring boot server)
     private static void startCloudflared() {
+        String localUrl = "http://localhost:" + Settings.get("server.port", Integer.class, 9090);
 
-        // kills any cloudflared instances that might exist to start freshly
-        killCloudflared();
-
-        // start cloudflare on a new thread
-        Thread tunnelThread = new Thread(() -> {
-            try {
-
-                // cloudflare is usually installed in the user directory
-                // mine is installed in C:/users/agile/
-                String userHome = System.getProperty("user.home");
-
-                // making the path to the exe file of cloudflared
-                String cloudflaredPath = userHome + "/cloudflared.exe";
-
-                // process builder is used to execute terminal commands from java
-                // so we use the command ".\cloudflare tunnel --url http://localhost:9090"
-                ProcessBuilder pb = new ProcessBuilder(cloudflaredPath, "tunnel", "--url", "http://localhost:9090");
-
-                // redirects all errors to the output stream of the process
-                pb.redirectErrorStream(true);
-
-                // build and start the process
-                Process process = pb.start();
-
-                // we now attempt to read the output (input when you look from java's perspective) from the process and filter out the url
-                try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-                    String line; // representing each line of input read
-
-                    // we will use regex to filter out the url, the general structure of the url is given as input
-                    Pattern pattern = Pattern.compile("(https://[a-zA-Z0-9.-]+\\.trycloudflare\\.com)");
-
-                    // keep reading the lines as long as they are available
-                    while ((line = reader.readLine()) != null) {
-                        System.out.println(line); // print out the line just for seeing in the console log
-                        Matcher matcher = pattern.matcher(line); // match the line with the matter
-                        if (matcher.find()) { // if matcher did find something
-                            tunnelUrl = matcher.group(1); // this make sures we only get the url from the line
-                                                          // eg: if the line is like CloudFlare URL: {url}
-                                                          // matcher.group(1) will return only the {url}
-
-                            // since we run the cloudflare starting process in a different thread (not the same as GUI thread)
-                            // we tell the OS to "change the text of the gui to the matched URL in the GUI thread"
-                            // and "enable the copy button of the GUI in the GUI thread"
-                            SwingUtilities.invokeLater(() -> {
-                                statusLabel.setText("Cloudflared URL: " + tunnelUrl);
-                                copyButton.setEnabled(true);
-                            });
-                        }
-                    }
-                }
-            } catch (IOException e) { // just print the error if something goes wrong
-                e.printStackTrace();
-            }
-        });
-
-        // set the process builder thread to terminate if it's parent thread terminates
-        tunnelThread.setDaemon(true);
+        // start cloudflare as a background job
+        startWorker("tunnel-reader", () -> CloudflareTunnel.run(localUrl, url -> {
+            tunnelUrl = url;
 
-        // start the thread
-        tunnelThread.start();
+            // since we run the cloudflare starting process in a different thread (not the same as GUI thread)
+            // we tell the OS to "change the text of the gui to the matched URL in the GUI thread"
+            // and "enable the copy button of the GUI in the GUI thread"
+            SwingUtilities.invokeLater(() -> {
+                statusLabel.setText("Cloudflared URL: " + tunnelUrl);
+                copyButton.setEnabled(true);
+            });
+        }));
 
     }
 
-    // function to kill any cloudflared instances that may be running
-    private static void killCloudflared() {
+    // function to run something in the background, if too many things are already running it is logged instead
+    private static void startWorker(String name, Runnable job) {
         try {
-            // use the process builder to execute kill command in cmd
-            ProcessBuilder pb = new ProcessBuilder("taskkill", "/F", "/IM", "cloudflared.exe");
-            pb.redirectErrorStream(true);
-            Process process = pb.start(); // start the process
-            // read the lines and print out just for convenience
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    System.out.println(line);
-                }
+            Workers.shared().start(name, job);
+        } catch (RejectedExecutionException e) {
+            System.out.println("Could not start " + name + ": " + e.getMessage());
+            if (logArea != null) {
+                log("Could not start " + name + ": " + e.getMessage());
             }
-            // if error comes say failed to terminate cloud flared
-        } catch (IOException e) {
-            System.out.println("Failed to terminate Cloudflared. It may not be running.");
         }
     }
 
@@ -370,7 +368,8 @@ public class ServerUI {
         SwingUtilities.invokeLater(() -> logArea.append(message + "\n"));
     }
 
-    // function that receives files via selected COM port serial
+    // function that starts receiving files from the selected COM port into the entered folder
+    // every port runs on its own, so several devices can send at the same time, each into its own folder
     private static void receiveFiles() {
 
         // get the selected port name
@@ -382,126 +381,19 @@ public class ServerUI {
             return;
         }
 
-        // we get the serial port based on its name
-        SerialPort port = SerialPort.getCommPort(selectedPortName);
-        port.setBaudRate(BAUD_RATE); // set its baud rate
-        port.setNumDataBits(8); // set the size of each character transmitted to be 8 bits (compatible with esp8266)
-        port.setNumStopBits(SerialPort.ONE_STOP_BIT); // set the number of stop bits (bits that represent that a character has been sent)
-                                                      // to 1
-        port.setParity(SerialPort.NO_PARITY); // no even parity or odd parity error checking, for improving performance
-
-        // make the port time out after 5 seconds of no received message via the COM port
-        port.setComPortTimeouts(SerialPort.TIMEOUT_READ_BLOCKING, 5000, 0);
-
-        // if cant open the port, log it
-        if (!port.openPort()) {
-            log("Error: Unable to open port " + selectedPortName);
-            return;
-        }
-
         // get the folder id from the input text field
         String folderId = folderIDInput.getText();
 
         // if folder id is empty or contains only empty spaces
         if (folderId == null || folderId.trim().isEmpty()) {
-            // log it and close port and exit the function
+            // log it and exit the function
             log("Transfer aborted: No Folder ID provided.");
-            port.closePort();
             return;
         }
 
-        // get the folder directory with the folder id
-        // and make the directory (only makes if the directory doesn't exist)
-        String saveDir = ROOT_DIR + "/" + folderId.trim();
-        new File(saveDir).mkdirs();
-
-        // log some relevant info to the frontend
-        log("Listening on " + selectedPortName);
-        log("Files will be saved to folder: " + folderId);
-
-        // we read the info line by line from the port
-        // we don't use a buffered reader here, as it expects characters.
-        // since we transfer files via serial, we send binary data, not characters
-        try (InputStream input = port.getInputStream()) {
-            BufferedOutputStream currentFile = null; // the file being written to
-            String filename = null; // name of the file
-            int bytesRemaining = 0; // how many bytes remain to complete reading to finish writing the file
-            StringBuilder lineBuffer = new StringBuilder(); // stores characters until a line is received
-
-            while (true) {
-                // if we are in the middle of file transfer
-                if (bytesRemaining > 0 && currentFile != null) {
-                    // they buffer will either be size of 4096, or however many bytes remain if bytes remaining is less than 4096
-                    byte[] buffer = new byte[Math.min(4096, bytesRemaining)];
-                    // we read the input and store it into the buffer
-                    // the number of bytes read will go into read variable
-                    int read = input.read(buffer);
-
-                    // if while reading we get
-                    // if all bytes are read, while bytes remaining being more than 0, then something went wrong
-                    // so break of out of the loop after closing the file
-                    if (read == -1) {
-                        log("Unexpected end of stream while file was being transferred!");
-                        currentFile.close(); // clean the file up
-                        break;
-                    }
-
-                    // write the buffer into the file, the number of bytes is given by read
-                    currentFile.write(buffer, 0, read);
-
-                    // subtract number of files read from bytes remaining
-                    bytesRemaining -= read;
-
-                    // if bytes are read, we safely close the file, log file received, and wait for the next file
-                    if (bytesRemaining == 0) {
-                        currentFile.close();
-                        currentFile = null; // important
-                        log("File received successfully.");
-                    }
-                } else { // if we are not in the middle of file transfer, then file metadata like "TRANSFER_START", "FILE_SIZE" are being sent
-                    int ch = input.read(); // read character
-                    if (ch == -1) { // if character marks end of transfer something went wrong so break the loop
-                        log("Unexpected end of stream while file was being transferred!");
-                        break;
-                    }
-
-                    // if character is a new line, we extract the line
-                    if (ch == '\n') {
-                        String line = lineBuffer.toString().trim();
-
-                        // a line is received, so set the buffer length to 0
-                        lineBuffer.setLength(0);
-
-                        // self-explanatory
-                        if (line.equals("TRANSFER_START")) {
-                            log("Starting file transfer...");
-                        } else if (line.startsWith("FILE_START:")) { // finally we get the file name
-                            // get the substring from the read line which contains the file name
-                            filename = line.substring("FILE_START:".length()).trim();
-                            // log the file name
-                            log("Receiving " + filename + "...");
-                        } else if (line.startsWith("FILE_SIZE:")) { // we now get the number of bytes of file
-                            // store it in bytes remaining after using to substring function to get only the number of bytes
-                            bytesRemaining = Integer.parseInt(line.substring("FILE_SIZE:".length()).trim());
-                            // make a new output stream to write data to the directory as a file
-                            currentFile = new BufferedOutputStream(new FileOutputStream(saveDir + "/" + filename));
-                        } else if (line.equals("TRANSFER_END")) { // self-explanatory
-                            log("Transfer complete.");
-                            break;
-                        }
-                        // FILE_END is ignored as it’s implicitly handled by size
-                    } else {
-                        // keep appending to the buffer
-                        lineBuffer.append((char) ch);
-                    }
-                }
-            }
-        } catch (IOException e) { // if any error comes log that error
-            log("Error: " + e.getMessage());
-        } finally {
-            port.closePort(); // close the port after everything is done
-        }
-
+        // the manager opens the port, keeps receiving transfers from it into the folder, and opens it again if the
+        // device is unplugged and plugged back in
+        SerialIngestManager.shared().assign(selectedPortName, folderId.trim());
     }
 
     // function to check if a given string is an actual URL
@@ -537,113 +429,199 @@ public class ServerUI {
             return;
         }
 
-
         // we continue with listing if entered inputs are valid
-        try {
-            // construct full request URL
-            String fullURL = urlString + "/files/list?id=" + sourceFolderIDString;
-
-            URL requestURL = new URL(fullURL);
-            HttpURLConnection conn = (HttpURLConnection) requestURL.openConnection();
-            conn.setRequestMethod("GET"); // we send a get request
-
-            // check response code
-            if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
-                JOptionPane.showMessageDialog(null, "Server returned: " + conn.getResponseCode(), "Error", JOptionPane.ERROR_MESSAGE);
+        // the request is sent in the background, so the window keeps working while the other server answers
+        listFiles.setEnabled(false);
+        listFiles.setText("Listing...");
+        FolderSync.shared().list(urlString, sourceFolderIDString).whenComplete((files, failure) -> SwingUtilities.invokeLater(() -> {
+            listFiles.setEnabled(true);
+            listFiles.setText("List Files");
+            if (failure != null) { // if error show error
+                Throwable cause = failure.getCause() != null ? failure.getCause() : failure;
+                JOptionPane.showMessageDialog(null, "Error fetching file list: " + cause.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
                 return;
             }
+            // downloads of these rows use what was typed when they were listed, not what is typed later
+            listedUrl = urlString;
+            listedSourceFolderID = sourceFolderIDString;
+            listedDestinationFolderID = destinationFolderIDString;
+            deletedBySync = 0;
+            showFiles(fileListPanel, files);
+        }));
+    }
+
+    // function to put a row for every listed file into the list panel, runs in the GUI thread
+    private static void showFiles(JPanel fileListPanel, List<FolderSync.RemoteFile> files) {
+        fileListPanel.removeAll();
+        fileRows.clear();
+
+        for (FolderSync.RemoteFile file : files) {
+            // create a black panel for each file
+            JPanel filePanel = new JPanel();
+            filePanel.setBackground(Color.darkGray);
+            filePanel.setLayout(new BorderLayout(10, 0));
+            filePanel.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
+
+            // file label with white text
+            JLabel fileLabel = new JLabel("• " + file.name() + " (" + file.size() + " bytes)");
+            fileLabel.setToolTipText(file.sha256() != null ? "sha-256: " + file.sha256() : null);
+            fileLabel.setForeground(Color.WHITE);
+
+            // progress of the download of this file, only shown once it is downloaded
+            JProgressBar progress = new JProgressBar(0, 1000);
+            progress.setStringPainted(true);
+            progress.setVisible(false);
+
+            // download button, which turns into a cancel button while the file is downloading
+            JButton downloadButton = new JButton("Download");
+            downloadButton.setBackground(Color.GREEN);
+
+            FileRow row = new FileRow(file, progress, downloadButton);
+            downloadButton.addActionListener(e -> {
+                if (row.transfer != null && !row.transfer.isFinished()) {
+                    row.transfer.cancel();
+                } else {
+                    download(List.of(row), false);
+                }
+            });
+
+            // add label, progress and button to panel
+            filePanel.add(fileLabel, BorderLayout.CENTER);
+            JPanel controls = new JPanel(new BorderLayout(5, 0));
+            controls.setOpaque(false);
+            controls.add(progress, BorderLayout.CENTER);
+            controls.add(downloadButton, BorderLayout.EAST);
+            filePanel.add(controls, BorderLayout.EAST);
+
+            // add the custom file panel to the main list panel
+            fileListPanel.add(filePanel);
+            fileRows.add(row);
+        }
 
-            // read response
-            BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-            StringBuilder responseBuilder = new StringBuilder();
-            String line;
+        syncFolder.setEnabled(!fileRows.isEmpty());
+        refreshFileRows();
 
-            while ((line = reader.readLine()) != null) {
-                responseBuilder.append(line);
-            }
+        fileListPanel.revalidate(); // update UI
+        fileListPanel.repaint();
+    }
 
-            reader.close();
-            conn.disconnect();
-
-            // parse JSON response
-            JSONArray fileList = new JSONArray(responseBuilder.toString());
-
-            fileListPanel.removeAll();
-
-            for (int i = 0; i < fileList.length(); i++) {
-                JSONObject fileInfo = fileList.getJSONObject(i);
-                String name = fileInfo.getString("name");
-                long size = fileInfo.getLong("size");
-
-                // create a black panel for each file
-                JPanel filePanel = new JPanel();
-                filePanel.setBackground(Color.darkGray);
-                filePanel.setLayout(new BorderLayout(10, 0));
-                filePanel.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
-
-                // file label with white text
-                JLabel fileLabel = new JLabel("• " + name + " (" + size + " bytes)");
-                fileLabel.setForeground(Color.WHITE);
-
-                // download button
-                JButton downloadButton = new JButton("Download");
-                downloadButton.setBackground(Color.GREEN);
-
-                // add an action listener that sends a download file request when clicked
-                downloadButton.addActionListener(e -> {
-                    try {
-                        // make the download url
-                        String downloadUrl = url.getText().trim() + "/files/download?id=" +
-                                URLEncoder.encode(sourceFolderIDString, StandardCharsets.UTF_8) +
-                                "&filename=" + URLEncoder.encode(name, StandardCharsets.UTF_8);
-
-                        // send GET request and download file
-                        HttpURLConnection connection = (HttpURLConnection) new URL(downloadUrl).openConnection();
-                        connection.setRequestMethod("GET");
-
-                        // check response code
-                        int responseCode = connection.getResponseCode();
-
-                        if (responseCode == HttpURLConnection.HTTP_OK) {
-                            InputStream inputStream = connection.getInputStream();
-                            // make the directory to which file will be written based
-                            File saveDir = new File(ROOT_DIR + "/" + destinationFolderIDString);
-                            if (!saveDir.exists()) {
-                                saveDir.mkdirs();
-                            }
-
-                            // get the file
-                            File outFile = new File(saveDir, name);
-                            // write to file from input stream
-                            Files.copy(inputStream, outFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-                            inputStream.close();
-
-                            JOptionPane.showMessageDialog(null, "Downloaded: " + name);
-                        } else {
-                            JOptionPane.showMessageDialog(null, "Failed to download: " + name, "Error", JOptionPane.ERROR_MESSAGE);
-                        }
-
-                        connection.disconnect(); // disconnect after download done
-                    } catch (IOException ex) {
-                        ex.printStackTrace();
-                        JOptionPane.showMessageDialog(null, "Error downloading file: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+    // function to make the destination folder the same as the source folder, many files at a time
+    // the source folder is listed again first, then only files whose content we don't have are downloaded, so syncing
+    // again later costs only what changed on the other server since the last sync
+    private static void syncFolder(JPanel fileListPanel) {
+        String urlString = listedUrl;
+        String sourceFolderIDString = listedSourceFolderID;
+        String destinationFolderIDString = listedDestinationFolderID;
+        boolean deleteMissing = mirrorDeletes.isSelected();
+
+        syncFolder.setEnabled(false);
+        syncFolder.setText("Listing...");
+        FolderSync.shared().list(urlString, sourceFolderIDString).whenComplete((files, failure) -> SwingUtilities.invokeLater(() -> {
+            syncFolder.setText("Sync Folder");
+            if (failure != null) {
+                syncFolder.setEnabled(true);
+                Throwable cause = failure.getCause() != null ? failure.getCause() : failure;
+                JOptionPane.showMessageDialog(null, "Error fetching file list: " + cause.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            deletedBySync = 0;
+            showFiles(fileListPanel, files);
+            download(fileRows, true);
+
+            if (deleteMissing) {
+                FolderSync.shared().deleteMissing(files, destinationFolderIDString).whenComplete((deleted, deleteFailure) -> SwingUtilities.invokeLater(() -> {
+                    if (deleteFailure != null) {
+                        Throwable cause = deleteFailure.getCause() != null ? deleteFailure.getCause() : deleteFailure;
+                        JOptionPane.showMessageDialog(null, "Error deleting files: " + cause.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                        return;
                     }
-                });
-
-                // add label and button to panel
-                filePanel.add(fileLabel, BorderLayout.CENTER);
-                filePanel.add(downloadButton, BorderLayout.EAST);
+                    deletedBySync = deleted.size();
+                    refreshFileRows();
+                }));
+            }
+        }));
+    }
 
-                // add the custom file panel to the main list panel
-                fileListPanel.add(filePanel);
+    // function to stop every download of the listed files that is queued or running
+    private static void cancelAllDownloads() {
+        for (FileRow row : fileRows) {
+            if (row.transfer != null) {
+                row.transfer.cancel();
             }
+        }
+    }
 
-            fileListPanel.revalidate(); // update UI
-            fileListPanel.repaint();
+    // function to start downloading the files of the given rows into the destination folder, returns right away
+    // the downloads run in the background, the rows are refreshed by the progress timer
+    private static void download(List<FileRow> rows, boolean skipUpToDate) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        List<FolderSync.RemoteFile> files = new ArrayList<>(rows.size());
+        for (FileRow row : rows) {
+            files.add(row.file);
+        }
+        List<FolderSync.Transfer> transfers = FolderSync.shared().download(listedUrl, listedSourceFolderID, files,
+                listedDestinationFolderID, skipUpToDate);
+        for (int i = 0; i < rows.size(); i++) {
+            rows.get(i).transfer = transfers.get(i);
+        }
+        refreshFileRows();
+        progressTimer.start();
+    }
+
+    // function to show the latest state of every download in its row, called by the progress timer in the GUI thread
+    // it stops the timer once nothing is downloading any more
+    private static void refreshFileRows() {
+        int active = 0;
+        int done = 0;
+        int failed = 0;
+        for (FileRow row : fileRows) {
+            FolderSync.Transfer transfer = row.transfer;
+            if (transfer == null) {
+                continue;
+            }
+            FolderSync.State state = transfer.state();
+            long size = Math.max(1, row.file.size());
+            row.progress.setVisible(true);
+            row.progress.setValue((int) Math.min(1000, transfer.received() * 1000 / size));
+            switch (state) {
+                case QUEUED -> row.progress.setString("Queued");
+                case DOWNLOADING -> row.progress.setString(transfer.received() * 100 / size + "%");
+                case DONE -> row.progress.setString("Downloaded");
+                case UP_TO_DATE -> {
+                    row.progress.setValue(1000);
+                    row.progress.setString("Up to date");
+                }
+                case LINKED -> {
+                    row.progress.setValue(1000);
+                    row.progress.setString("Copied locally");
+                }
+                case FAILED -> row.progress.setString("Failed: " + transfer.error());
+                case CANCELLED -> row.progress.setString("Cancelled");
+            }
+            row.progress.setToolTipText(transfer.error());
+            boolean running = !transfer.isFinished();
+            row.button.setText(running ? "Cancel" : "Download");
+            row.button.setBackground(running ? Color.ORANGE : Color.GREEN);
+
+            if (running) {
+                active++;
+            } else if (state == FolderSync.State.DONE || state == FolderSync.State.UP_TO_DATE || state == FolderSync.State.LINKED) {
+                done++;
+            } else if (state == FolderSync.State.FAILED) {
+                failed++;
+            }
+        }
 
-        } catch (Exception e) { // if error show error
-            e.printStackTrace();
-            JOptionPane.showMessageDialog(null, "Error fetching file list: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        syncStatus.setText(fileRows.isEmpty() ? "" : done + " of " + fileRows.size() + " files in folder "
+                + listedDestinationFolderID + (active > 0 ? ", " + active + " downloading" : "") + (failed > 0 ? ", " + failed + " failed" : "")
+                + (deletedBySync > 0 ? ", " + deletedBySync + " deleted" : ""));
+        cancelAll.setEnabled(active > 0);
+        // listing again while files are downloading would lose track of them
+        syncFolder.setEnabled(!fileRows.isEmpty() && active == 0 && syncFolder.getText().equals("Sync Folder"));
+        if (active == 0) {
+            progressTimer.stop();
         }
     }
 
@@ -0,0 +1,137 @@
+package org.sft;
+
+import jakarta.servlet.http.HttpServletRequest;
+import org.sft.storage.StorageEngine;
+import org.sft.upload.UploadSession;
+import org.sft.upload.UploadSessionManager;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// accept API calls from any origin
+@CrossOrigin(origins = "*")
+
+// controller for resumable uploads, used next to /files/upload for files that are too big or connections that are too flaky
+// for a single request:
+// 1. POST   /files/sessions?id=..&filename=..&size=..         -> creates a session and tells how the file must be chunked
+// 2. PUT    /files/sessions/{sessionId}/chunks/{index}         -> sends one chunk as the raw request body, any order, in parallel
+// 3. GET    /files/sessions/{sessionId}                        -> tells which chunks are still missing, to resume after a drop
+// 4. POST   /files/sessions/{sessionId}/commit                 -> saves the file into the folder once every chunk is in
+//    DELETE /files/sessions/{sessionId}                        -> gives up on the upload
+@RestController
+@RequestMapping("/files/sessions")
+public class UploadSessionController {
+
+    private final UploadSessionManager sessionManager;
+
+    public UploadSessionController(UploadSessionManager sessionManager) {
+        this.sessionManager = sessionManager;
+    }
+
+    // function will be called on a POST to /files/sessions
+    // eg: http://localhost:9090/files/sessions?id=1&filename=video.mp4&size=734003200
+    // param:
+    // id -> String: id of the folder the file will be saved in
+    // filename -> String: name of the file being uploaded
+    // size -> long: total size of the file in bytes
+    // chunkSize -> int: optional size of each chunk in bytes, the server default is used if not given
+    @PostMapping
+    public ResponseEntity<Map<String, Object>> createSession(@RequestParam("id") String id,
+                                                             @RequestParam("filename") String filename,
+                                                             @RequestParam("size") long size,
+                                                             @RequestParam(value = "chunkSize", defaultValue = "0") int chunkSize) {
+        try {
+            UploadSession session = sessionManager.create(id, filename, size, chunkSize);
+            return ResponseEntity.status(HttpStatus.CREATED).body(describe(session));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        } catch (IOException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(Map.of("error", "Could not create upload session: " + e.getMessage()));
+        }
+    }
+
+    // function will be called on a GET to /files/sessions/{sessionId}
+    // returns the session info along with the indexes of the chunks that still have to be sent
+    // chunk i covers bytes [i * chunkSize, min((i + 1) * chunkSize, size)) of the file
+    @GetMapping("/{sessionId}")
+    public ResponseEntity<Map<String, Object>> getSession(@PathVariable("sessionId") String sessionId) throws IOException {
+        UploadSession session = sessionManager.get(sessionId);
+        if (session == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(Map.of("error", "No upload session: " + sessionId));
+        }
+        Map<String, Object> info = describe(session);
+        info.put("missing", session.missingChunks());
+        return ResponseEntity.ok(info);
+    }
+
+    // function will be called on a PUT to /files/sessions/{sessionId}/chunks/{index}
+    // the request body is the raw bytes of the chunk, they are written straight to the chunk's place in the file
+    @PutMapping("/{sessionId}/chunks/{index}")
+    public ResponseEntity<String> putChunk(@PathVariable("sessionId") String sessionId, @PathVariable("index") int index,
+                                           HttpServletRequest request) {
+        try {
+            UploadSession session = sessionManager.get(sessionId);
+            if (session == null) {
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).body("No upload session: " + sessionId);
+            }
+            sessionManager.receiveChunk(session, index, request.getInputStream());
+            return ResponseEntity.ok("Chunk received: " + index);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body("Chunk rejected: " + e.getMessage());
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body("Chunk rejected: " + e.getMessage());
+        } catch (IOException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Chunk failed: " + e.getMessage());
+        }
+    }
+
+    // function will be called on a POST to /files/sessions/{sessionId}/commit
+    // fails with CONFLICT (and keeps the session) if some chunks are still missing
+    @PostMapping("/{sessionId}/commit")
+    public ResponseEntity<String> commit(@PathVariable("sessionId") String sessionId) {
+        try {
+            UploadSession session = sessionManager.get(sessionId);
+            if (session == null) {
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).body("No upload session: " + sessionId);
+            }
+            StorageEngine.StoredFile savedFile = sessionManager.commit(session);
+            return ResponseEntity.ok("File uploaded successfully: " + savedFile.location());
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body("Upload failed: " + e.getMessage());
+        } catch (IOException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Upload failed: " + e.getMessage());
+        }
+    }
+
+    // function will be called on a DELETE to /files/sessions/{sessionId}
+    @DeleteMapping("/{sessionId}")
+    public ResponseEntity<String> abort(@PathVariable("sessionId") String sessionId) {
+        try {
+            UploadSession session = sessionManager.get(sessionId);
+            if (session == null) {
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).body("No upload session: " + sessionId);
+            }
+            sessionManager.abort(session);
+            return ResponseEntity.ok("Upload session cancelled: " + sessionId);
+        } catch (IOException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Failed to cancel upload session: " + e.getMessage());
+        }
+    }
+
+    private static Map<String, Object> describe(UploadSession session) {
+        Map<String, Object> info = new LinkedHashMap<>();
+        info.put("sessionId", session.getSessionId());
+        info.put("id", session.getFolderId());
+        info.put("filename", session.getFilename());
+        info.put("size", session.getSize());
+        info.put("chunkSize", session.getChunkSize());
+        info.put("chunkCount", session.getChunkCount());
+        info.put("receivedChunks", session.receivedCount());
+        return info;
+    }
+
+}
@@ -0,0 +1,232 @@
+package org.sft.archive;
+
+import jakarta.annotation.PreDestroy;
+import org.sft.storage.Extent;
+import org.sft.web.FileSender;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+// writes the contents of a whole folder into a single stream for /files/downloadAll
+// files are read and written one after another straight to the client, so memory use doesn't depend on the folder size
+// two formats are supported:
+// BIN -> the original framing, for every file "name\n", "length\n" and then the raw bytes
+// ZIP -> a standard zip archive, optionally with every entry deflated
+@Component
+public class FolderArchiver {
+
+    public enum Format {
+        BIN, ZIP
+    }
+
+    // one file to write, under its name in the folder
+    public record Entry(String name, Extent content) {
+    }
+
+    // compressed zip entry produced by a worker, ready to be written as-is
+    private record CompressedEntry(String name, long lastModified, int method, long crc, long size, byte[] data, int length) {
+    }
+
+    // an entry waiting to be written, with the number of budget bytes it holds until it is written
+    private record PendingEntry(Future<CompressedEntry> result, int reserved) {
+    }
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final ExecutorService compressionPool;
+    private final Semaphore compressionBudget;
+    private final long maxBufferedEntrySize;
+    private final int compressionLevel;
+
+    // param:
+    // compressionThreads -> number of threads compressing zip entries, shared by all downloads
+    // bufferBudget -> bytes all downloads together may hold in memory for entries compressed ahead of time
+    // compressionLevel -> deflate level from 1 (fastest) to 9 (smallest)
+    public FolderArchiver(@Value("${files.archive.compression-threads:2}") int compressionThreads,
+                          @Value("${files.archive.buffer-budget:32MB}") DataSize bufferBudget,
+                          @Value("${files.archive.compression-level:6}") int compressionLevel) {
+        this.compressionPool = Executors.newFixedThreadPool(Math.max(1, compressionThreads), runnable -> {
+            Thread thread = new Thread(runnable, "archive-compressor");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        int budget = (int) Math.min(Integer.MAX_VALUE, bufferBudget.toBytes());
+        this.compressionBudget = new Semaphore(budget);
+
+        // a compressed entry needs its raw bytes and its compressed bytes in memory at the same time, and we want
+        // a few entries in flight at once, so anything bigger than this is compressed on the writing thread instead
+        this.maxBufferedEntrySize = budget / 8;
+        this.compressionLevel = compressionLevel;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        compressionPool.shutdownNow();
+    }
+
+    // function to write all given files to the output in the given format
+    // param:
+    // files -> the files to write, in the order they should appear
+    // format -> BIN or ZIP
+    // compress -> only for ZIP, deflate the entries instead of storing them
+    // output -> the response stream
+    public void write(List<Entry> files, Format format, boolean compress, OutputStream output) throws IOException {
+        if (format == Format.ZIP) {
+            writeZip(files, compress, output);
+        } else {
+            writeBin(files, output);
+        }
+    }
+
+    // original name/length/bytes framing, the bytes are copied with transferTo so they never go through a java buffer we own
+    private void writeBin(List<Entry> files, OutputStream output) throws IOException {
+        WritableByteChannel target = Channels.newChannel(output);
+        for (Entry file : files) {
+            Extent content = file.content();
+            long length = content.length();
+            if (content.isCompressed()) {
+                // in cold storage, decompressed while it is sent
+                output.write((file.name() + "\n").getBytes(StandardCharsets.UTF_8));
+                output.write((length + "\n").getBytes(StandardCharsets.UTF_8));
+                FileSender.copy(content, 0, length, output);
+                continue;
+            }
+            try (FileChannel channel = FileChannel.open(content.file(), StandardOpenOption.READ)) {
+                output.write((file.name() + "\n").getBytes(StandardCharsets.UTF_8));
+                output.write((length + "\n").getBytes(StandardCharsets.UTF_8));
+                FileSender.transfer(channel, content.offset(), length, target);
+            }
+        }
+        output.flush();
+    }
+
+    private void writeZip(List<Entry> files, boolean compress, OutputStream output) throws IOException {
+        BufferedOutputStream buffered = new BufferedOutputStream(output, COPY_BUFFER_SIZE);
+        ZipStreamWriter zip = new ZipStreamWriter(buffered, COPY_BUFFER_SIZE);
+
+        if (!compress) {
+            for (Entry file : files) {
+                try (InputStream in = file.content().newInputStream()) {
+                    zip.writeStored(file.name(), file.content().modified(), in, file.content().length());
+                }
+            }
+            zip.finish();
+            return;
+        }
+
+        // small entries are compressed ahead on the worker pool while earlier ones are being sent, entries are
+        // still written strictly in order, the queue never holds more than the budget allows
+        ArrayDeque<PendingEntry> pending = new ArrayDeque<>();
+        Deflater deflater = new Deflater(compressionLevel, true);
+        try {
+            for (Entry file : files) {
+                long size = file.content().length();
+
+                if (size > maxBufferedEntrySize) {
+                    // too big to hold in memory, so send whatever is queued before it and deflate it while sending
+                    while (!pending.isEmpty()) {
+                        writePending(zip, pending.poll());
+                    }
+                    try (InputStream in = file.content().newInputStream()) {
+                        zip.writeDeflated(file.name(), file.content().modified(), in, size, deflater);
+                    }
+                    continue;
+                }
+
+                // raw plus compressed bytes, roughly
+                int reserve = (int) Math.max(1, size * 2);
+                while (!compressionBudget.tryAcquire(reserve)) {
+                    if (pending.isEmpty()) {
+                        // other downloads are holding the budget, wait for them instead of spinning
+                        acquire(reserve);
+                        break;
+                    }
+                    // free some budget by sending the oldest entry
+                    writePending(zip, pending.poll());
+                }
+                pending.add(new PendingEntry(compressionPool.submit(() -> compress(file)), reserve));
+            }
+
+            while (!pending.isEmpty()) {
+                writePending(zip, pending.poll());
+            }
+            zip.finish();
+        } finally {
+            deflater.end();
+            // if the client went away, drop whatever was still queued and give the budget back
+            for (PendingEntry entry : pending) {
+                entry.result().cancel(true);
+                compressionBudget.release(entry.reserved());
+            }
+        }
+    }
+
+    private void writePending(ZipStreamWriter zip, PendingEntry entry) throws IOException {
+        try {
+            CompressedEntry compressed = entry.result().get();
+            zip.writeEntry(compressed.name(), compressed.lastModified(), compressed.method(),
+                    compressed.crc(), compressed.size(), compressed.data(), compressed.length());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for compression");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        } finally {
+            compressionBudget.release(entry.reserved());
+        }
+    }
+
+    private void acquire(int permits) throws InterruptedIOException {
+        try {
+            compressionBudget.acquire(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for compression budget");
+        }
+    }
+
+    // runs on the worker pool: read a small file and deflate it into memory
+    // if compressing doesn't make it smaller, the raw bytes are kept and stored instead
+    private CompressedEntry compress(Entry file) throws IOException {
+        long lastModified = file.content().modified();
+        byte[] raw;
+        try (InputStream in = file.content().newInputStream()) {
+            raw = in.readAllBytes();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(raw);
+
+        Deflater deflater = new Deflater(compressionLevel, true);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            byte[] compressed = new byte[raw.length + 64];
+            int length = 0;
+            while (!deflater.finished() && length < raw.length) {
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            if (deflater.finished() && length < raw.length) {
+                return new CompressedEntry(file.name(), lastModified, ZipEntry.DEFLATED, crc.getValue(), raw.length, compressed, length);
+            }
+            return new CompressedEntry(file.name(), lastModified, ZipEntry.STORED, crc.getValue(), raw.length, raw, raw.length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+}
@@ -0,0 +1,363 @@
+package org.sft.archive;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+// writes a zip archive to a stream one entry at a time, without ever seeking back in the output
+// java's ZipOutputStream can't take entries that were already compressed somewhere else, which is what lets us
+// compress entries on other threads, so this writes the (small) zip format by hand
+// entries that don't know their crc or compressed size up front get a data descriptor after their data,
+// and zip64 records are added automatically once sizes, offsets or the entry count get too big for the classic format
+public class ZipStreamWriter implements Closeable {
+
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIG = 0x08074b50;
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int END_SIG = 0x06054b50;
+
+    private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+    private static final int FLAG_UTF8_NAME = 1 << 11;
+
+    private static final int VERSION_DEFAULT = 20;
+    private static final int VERSION_ZIP64 = 45;
+
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+
+    // streamed entries write their header before their compressed size is known, so anything that could get
+    // close to 4GB (even after a little deflate overhead) is given zip64 sizes from the start
+    private static final long ZIP64_STREAM_THRESHOLD = 0xF0000000L;
+
+    // everything we need to remember about an entry to write its central directory record at the end
+    private static final class Entry {
+        byte[] name;
+        int method;
+        int flags;
+        int versionNeeded;
+        long dosTime;
+        long crc;
+        long compressedSize;
+        long size;
+        long offset;
+    }
+
+    private final CountingOutputStream out;
+    private final List<Entry> entries = new ArrayList<>();
+    private final byte[] copyBuffer;
+    private boolean finished;
+
+    // param:
+    // out -> stream the archive is written to, it is not buffered here so pass a buffered stream if needed
+    // copyBufferSize -> size of the one buffer used to copy entry data, this bounds the memory used by the writer
+    public ZipStreamWriter(OutputStream out, int copyBufferSize) {
+        this.out = new CountingOutputStream(out);
+        this.copyBuffer = new byte[copyBufferSize];
+    }
+
+    // function to write an entry whose data is already fully known, either stored or raw deflated
+    // param:
+    // name -> name of the entry inside the archive
+    // lastModified -> modification time in epoch millis
+    // method -> ZipEntry.STORED or ZipEntry.DEFLATED
+    // crc -> crc32 of the uncompressed data
+    // size -> length of the uncompressed data
+    // data, length -> the bytes to write as-is (raw deflate stream for DEFLATED)
+    public void writeEntry(String name, long lastModified, int method, long crc, long size, byte[] data, int length) throws IOException {
+        Entry entry = newEntry(name, lastModified, method, 0);
+        entry.crc = crc;
+        entry.size = size;
+        entry.compressedSize = length;
+        entry.versionNeeded = size >= ZIP64_MAGIC ? VERSION_ZIP64 : VERSION_DEFAULT;
+
+        writeLocalHeader(entry, entry.versionNeeded == VERSION_ZIP64);
+        out.write(data, 0, length);
+        entries.add(entry);
+    }
+
+    // function to copy an entry of known size from a stream without compressing it
+    // the crc is worked out while copying and written in a data descriptor after the data
+    public void writeStored(String name, long lastModified, InputStream in, long size) throws IOException {
+        Entry entry = newEntry(name, lastModified, ZipEntry.STORED, FLAG_DATA_DESCRIPTOR);
+        entry.size = size;
+        entry.compressedSize = size;
+        boolean zip64 = size >= ZIP64_STREAM_THRESHOLD;
+        entry.versionNeeded = zip64 ? VERSION_ZIP64 : VERSION_DEFAULT;
+
+        writeLocalHeader(entry, zip64);
+
+        CRC32 crc = new CRC32();
+        long remaining = size;
+        while (remaining > 0) {
+            int read = in.read(copyBuffer, 0, (int) Math.min(copyBuffer.length, remaining));
+            if (read == -1) {
+                throw new IOException("Unexpected end of data for entry " + name);
+            }
+            crc.update(copyBuffer, 0, read);
+            out.write(copyBuffer, 0, read);
+            remaining -= read;
+        }
+        entry.crc = crc.getValue();
+
+        writeDataDescriptor(entry, zip64);
+        entries.add(entry);
+    }
+
+    // function to deflate an entry on the calling thread while it is being written
+    // used for entries too big to be compressed ahead of time in memory
+    // param:
+    // deflater -> a raw (nowrap) deflater, it is reset here so the caller can reuse it for several entries
+    public void writeDeflated(String name, long lastModified, InputStream in, long size, Deflater deflater) throws IOException {
+        Entry entry = newEntry(name, lastModified, ZipEntry.DEFLATED, FLAG_DATA_DESCRIPTOR);
+        entry.size = size;
+        boolean zip64 = size >= ZIP64_STREAM_THRESHOLD;
+        entry.versionNeeded = zip64 ? VERSION_ZIP64 : VERSION_DEFAULT;
+
+        writeLocalHeader(entry, zip64);
+
+        deflater.reset();
+        long dataStart = out.count;
+        CRC32 crc = new CRC32();
+
+        // the deflater stream must not close the response stream, so it writes through a wrapper whose close does nothing
+        DeflaterOutputStream deflating = new DeflaterOutputStream(new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+            }
+        }, deflater, copyBuffer.length);
+
+        long remaining = size;
+        while (remaining > 0) {
+            int read = in.read(copyBuffer, 0, (int) Math.min(copyBuffer.length, remaining));
+            if (read == -1) {
+                throw new IOException("Unexpected end of data for entry " + name);
+            }
+            crc.update(copyBuffer, 0, read);
+            deflating.write(copyBuffer, 0, read);
+            remaining -= read;
+        }
+        deflating.finish();
+
+        entry.crc = crc.getValue();
+        entry.compressedSize = out.count - dataStart;
+
+        writeDataDescriptor(entry, zip64);
+        entries.add(entry);
+    }
+
+    // function to write the central directory and end records, after this no more entries can be added
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+
+        long centralStart = out.count;
+        for (Entry entry : entries) {
+            writeCentralHeader(entry);
+        }
+        long centralSize = out.count - centralStart;
+
+        boolean zip64 = entries.size() >= 0xFFFF || centralStart >= ZIP64_MAGIC || centralSize >= ZIP64_MAGIC;
+        if (zip64) {
+            long zip64EndOffset = out.count;
+
+            writeInt(ZIP64_END_SIG);
+            writeLong(44); // size of the rest of this record
+            writeShort(VERSION_ZIP64); // version made by
+            writeShort(VERSION_ZIP64); // version needed
+            writeInt(0); // this disk
+            writeInt(0); // disk with the central directory
+            writeLong(entries.size());
+            writeLong(entries.size());
+            writeLong(centralSize);
+            writeLong(centralStart);
+
+            writeInt(ZIP64_LOCATOR_SIG);
+            writeInt(0); // disk with the zip64 end record
+            writeLong(zip64EndOffset);
+            writeInt(1); // total number of disks
+        }
+
+        writeInt(END_SIG);
+        writeShort(0); // this disk
+        writeShort(0); // disk with the central directory
+        writeShort(zip64 ? 0xFFFF : entries.size());
+        writeShort(zip64 ? 0xFFFF : entries.size());
+        writeInt(zip64 ? ZIP64_MAGIC : centralSize);
+        writeInt(zip64 ? ZIP64_MAGIC : centralStart);
+        writeShort(0); // comment length
+
+        out.flush();
+    }
+
+    // finishes the archive, the underlying stream is left open for whoever owns it
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+
+    private Entry newEntry(String name, long lastModified, int method, int flags) {
+        if (finished) {
+            throw new IllegalStateException("Archive already finished");
+        }
+        Entry entry = new Entry();
+        entry.name = name.getBytes(StandardCharsets.UTF_8);
+        entry.method = method;
+        entry.flags = flags | FLAG_UTF8_NAME;
+        entry.dosTime = toDosTime(lastModified);
+        entry.offset = out.count;
+        return entry;
+    }
+
+    private void writeLocalHeader(Entry entry, boolean zip64) throws IOException {
+        boolean descriptor = (entry.flags & FLAG_DATA_DESCRIPTOR) != 0;
+
+        writeInt(LOCAL_HEADER_SIG);
+        writeShort(entry.versionNeeded);
+        writeShort(entry.flags);
+        writeShort(entry.method);
+        writeInt(entry.dosTime);
+        writeInt(descriptor ? 0 : entry.crc);
+        if (zip64) {
+            writeInt(ZIP64_MAGIC);
+            writeInt(ZIP64_MAGIC);
+        } else {
+            writeInt(descriptor ? 0 : entry.compressedSize);
+            writeInt(descriptor ? 0 : entry.size);
+        }
+        writeShort(entry.name.length);
+        writeShort(zip64 ? 20 : 0);
+        out.write(entry.name);
+        if (zip64) {
+            // the local zip64 extra always has both sizes, zero when they follow in the data descriptor
+            writeShort(ZIP64_EXTRA_ID);
+            writeShort(16);
+            writeLong(descriptor ? 0 : entry.size);
+            writeLong(descriptor ? 0 : entry.compressedSize);
+        }
+    }
+
+    private void writeDataDescriptor(Entry entry, boolean zip64) throws IOException {
+        writeInt(DATA_DESCRIPTOR_SIG);
+        writeInt(entry.crc);
+        if (zip64) {
+            writeLong(entry.compressedSize);
+            writeLong(entry.size);
+        } else {
+            writeInt(entry.compressedSize);
+            writeInt(entry.size);
+        }
+    }
+
+    private void writeCentralHeader(Entry entry) throws IOException {
+        boolean bigSize = entry.size >= ZIP64_MAGIC;
+        boolean bigCompressed = entry.compressedSize >= ZIP64_MAGIC;
+        boolean bigOffset = entry.offset >= ZIP64_MAGIC;
+        int extraLength = (bigSize ? 8 : 0) + (bigCompressed ? 8 : 0) + (bigOffset ? 8 : 0);
+        boolean zip64 = extraLength > 0;
+
+        writeInt(CENTRAL_HEADER_SIG);
+        writeShort(VERSION_ZIP64); // version made by
+        writeShort(zip64 ? VERSION_ZIP64 : entry.versionNeeded);
+        writeShort(entry.flags);
+        writeShort(entry.method);
+        writeInt(entry.dosTime);
+        writeInt(entry.crc);
+        writeInt(bigCompressed ? ZIP64_MAGIC : entry.compressedSize);
+        writeInt(bigSize ? ZIP64_MAGIC : entry.size);
+        writeShort(entry.name.length);
+        writeShort(zip64 ? extraLength + 4 : 0);
+        writeShort(0); // comment length
+        writeShort(0); // disk number start
+        writeShort(0); // internal attributes
+        writeInt(0); // external attributes
+        writeInt(bigOffset ? ZIP64_MAGIC : entry.offset);
+        out.write(entry.name);
+        if (zip64) {
+            // only the fields that didn't fit go into the extra, always in this order
+            writeShort(ZIP64_EXTRA_ID);
+            writeShort(extraLength);
+            if (bigSize) {
+                writeLong(entry.size);
+            }
+            if (bigCompressed) {
+                writeLong(entry.compressedSize);
+            }
+            if (bigOffset) {
+                writeLong(entry.offset);
+            }
+        }
+    }
+
+    // zip stores times in the old ms-dos format, packed into date (high 16 bits) and time (low 16 bits)
+    private static long toDosTime(long epochMillis) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneId.systemDefault());
+        if (time.getYear() < 1980) {
+            return (1 << 21) | (1 << 16); // 1980-01-01, the earliest date dos time can hold
+        }
+        return ((long) (time.getYear() - 1980) << 25)
+                | ((long) time.getMonthValue() << 21)
+                | ((long) time.getDayOfMonth() << 16)
+                | ((long) time.getHour() << 11)
+                | ((long) time.getMinute() << 5)
+                | (time.getSecond() >> 1);
+    }
+
+    // zip is little endian everywhere
+    private void writeShort(int value) throws IOException {
+        out.write(value & 0xFF);
+        out.write((value >>> 8) & 0xFF);
+    }
+
+    private void writeInt(long value) throws IOException {
+        writeShort((int) (value & 0xFFFF));
+        writeShort((int) ((value >>> 16) & 0xFFFF));
+    }
+
+    private void writeLong(long value) throws IOException {
+        writeInt(value & 0xFFFFFFFFL);
+        writeInt(value >>> 32);
+    }
+
+    // keeps track of how many bytes went out so entry offsets and compressed sizes can be recorded
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+}
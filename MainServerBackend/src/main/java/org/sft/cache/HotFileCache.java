@@ -0,0 +1,270 @@
+package org.sft.cache;
+
+import jakarta.annotation.PostConstruct;
+import org.sft.storage.Extent;
+import org.sft.storage.StorageEngine;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+// keeps the contents of small, often downloaded files (configs, firmware images every house fetches) in memory
+// so /files/download doesn't read them from disk again for every request
+// the contents live in direct buffers outside the java heap, so a full cache costs the garbage collector nothing
+// which files stay is decided W-TinyLFU style:
+// - a file that isn't cached is only read into memory if there is room, or if it was asked for more often recently
+//   than the file it would push out, which a frequency sketch keeps count of, so one scan over many files can't flush
+//   the cache, a file that doesn't get in is sent from disk and no buffer is ever made for it
+// - files that get in go into a small lru window first, then on to the main part
+// - the main part is a segmented lru, files asked for again while on probation move to the protected segment
+// the storage engine tells the cache about every upload and delete, and on every hit the file on disk is checked to
+// still be the one that was read, so a cached copy is never served after the file changed
+@Component
+public class HotFileCache implements StorageEngine.ChangeListener {
+
+    // counters of the cache, as returned by /files/cacheStats
+    public record Stats(long hits, long misses, long evictions, long rejections, int entries, long bytes, long capacity) {
+    }
+
+    private record Key(String folderId, String name) {
+    }
+
+    // the contents of a file and what the file looked like on disk when it was read
+    private record Entry(ByteBuffer data, long modified, Object version) {
+
+        int size() {
+            return data.capacity();
+        }
+
+        boolean matches(Extent content) {
+            return content.length() == data.capacity() && content.modified() == modified
+                    && Objects.equals(content.version(), version);
+        }
+    }
+
+    private final StorageEngine storage;
+    private final long capacity;
+    private final long maxFileSize;
+    private final long windowMax;
+    private final long mainMax;
+    private final long protectedMax;
+
+    // all three in lru order, eldest first
+    private final LinkedHashMap<Key, Entry> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Key, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Key, Entry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private long windowBytes;
+    private long probationBytes;
+    private long protectedBytes;
+
+    private final FrequencySketch sketch;
+
+    // bumped by every invalidation, a file that was being read while one happened might be stale and isn't kept
+    private long invalidations;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long rejections;
+
+    public HotFileCache(StorageEngine storage,
+                        @Value("${files.cache.capacity:64MB}") DataSize capacity,
+                        @Value("${files.cache.max-file-size:1MB}") DataSize maxFileSize) {
+        this.storage = storage;
+        this.capacity = Math.max(capacity.toBytes(), 0);
+        this.maxFileSize = Math.min(maxFileSize.toBytes(), Integer.MAX_VALUE);
+
+        // the window is 1% of the cache like in the paper, but has to be able to hold at least one file
+        this.windowMax = Math.min(Math.max(this.capacity / 100, this.maxFileSize), this.capacity);
+        this.mainMax = this.capacity - windowMax;
+        this.protectedMax = mainMax * 8 / 10;
+
+        this.sketch = new FrequencySketch((int) Math.min(Math.max(this.capacity / (16 * 1024), 16), 1 << 20));
+    }
+
+    // called by spring once the cache is made, from then on the store tells it about every change
+    @PostConstruct
+    public void listen() {
+        if (capacity > 0) {
+            storage.addListener(this);
+        }
+    }
+
+    // function to get the contents of a file, from memory if it is cached, otherwise it is read and maybe kept
+    // param:
+    // folderId, name -> the file as the client asked for it
+    // content -> where it is on disk
+    // returns a read only buffer over the whole file, or null if the file isn't kept (too big, or not asked for often
+    // enough) and should be sent from disk
+    public ByteBuffer get(String folderId, String name, Extent content) throws IOException {
+        if (capacity == 0 || content.length() > maxFileSize) {
+            return null;
+        }
+
+        Key key = new Key(folderId, name);
+        long seenInvalidations;
+        synchronized (this) {
+            sketch.increment(key);
+            Entry entry = lookup(key);
+            if (entry != null) {
+                if (entry.matches(content)) {
+                    hits++;
+                    return entry.data().asReadOnlyBuffer();
+                }
+                remove(key); // changed on disk without going through the store
+            }
+            misses++;
+            if (!admits(key, content.length())) {
+                rejections++;
+                return null;
+            }
+            seenInvalidations = invalidations;
+        }
+
+        // read outside the lock, other files can be served from memory meanwhile
+        ByteBuffer data = read(content);
+        if (data == null) {
+            return null; // the file changed size while we read it, let the caller send it from disk
+        }
+
+        synchronized (this) {
+            if (invalidations == seenInvalidations && lookup(key) == null) {
+                insert(key, new Entry(data, content.modified(), content.version()));
+            }
+        }
+        return data.asReadOnlyBuffer();
+    }
+
+    // called by the storage engine whenever it adds, replaces or deletes a file
+    @Override
+    public synchronized void fileChanged(String folderId, String name) {
+        invalidations++;
+        remove(new Key(folderId, name));
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(hits, misses, evictions, rejections, window.size() + probation.size() + protectedSegment.size(),
+                windowBytes + probationBytes + protectedBytes, capacity);
+    }
+
+    // must be called with the lock held: find a cached file and mark it as used
+    private Entry lookup(Key key) {
+        Entry entry = window.get(key);
+        if (entry != null) {
+            return entry;
+        }
+
+        entry = probation.remove(key);
+        if (entry != null) {
+            // asked for again while on probation, it has earned its place
+            probationBytes -= entry.size();
+            protectedSegment.put(key, entry);
+            protectedBytes += entry.size();
+            while (protectedBytes > protectedMax) {
+                Map.Entry<Key, Entry> demoted = removeEldest(protectedSegment);
+                protectedBytes -= demoted.getValue().size();
+                probation.put(demoted.getKey(), demoted.getValue());
+                probationBytes += demoted.getValue().size();
+            }
+            return entry;
+        }
+
+        return protectedSegment.get(key);
+    }
+
+    // must be called with the lock held: add a freshly read file to the window, moving what falls out of it on to the main part
+    private void insert(Key key, Entry entry) {
+        window.put(key, entry);
+        windowBytes += entry.size();
+        while (windowBytes > windowMax) {
+            Map.Entry<Key, Entry> candidate = removeEldest(window);
+            windowBytes -= candidate.getValue().size();
+            admit(candidate.getKey(), candidate.getValue());
+        }
+    }
+
+    // must be called with the lock held: decide if a file that isn't cached gets in, before it is read
+    // it does if the cache has room for it, or if it is more popular than the file that would be pushed out for it
+    private boolean admits(Key key, long size) {
+        if (size > mainMax) {
+            return false;
+        }
+        if (windowBytes + probationBytes + protectedBytes + size <= capacity) {
+            return true;
+        }
+        LinkedHashMap<Key, Entry> segment = probation.isEmpty() ? protectedSegment : probation;
+        return segment.isEmpty() || sketch.frequency(key) > sketch.frequency(segment.keySet().iterator().next());
+    }
+
+    // must be called with the lock held: move a file falling out of the window on to the main part
+    // it was admitted when it was read, so the least recently used files of the main part make room for it
+    private void admit(Key key, Entry entry) {
+        while (probationBytes + protectedBytes + entry.size() > mainMax) {
+            LinkedHashMap<Key, Entry> segment = probation.isEmpty() ? protectedSegment : probation;
+            remove(segment.keySet().iterator().next());
+            evictions++;
+        }
+        probation.put(key, entry);
+        probationBytes += entry.size();
+    }
+
+    // must be called with the lock held
+    private void remove(Key key) {
+        Entry entry;
+        if ((entry = window.remove(key)) != null) {
+            windowBytes -= entry.size();
+        } else if ((entry = probation.remove(key)) != null) {
+            probationBytes -= entry.size();
+        } else if ((entry = protectedSegment.remove(key)) != null) {
+            protectedBytes -= entry.size();
+        }
+        // the direct buffer is freed once the last download still sending it is done with it
+    }
+
+    private static Map.Entry<Key, Entry> removeEldest(LinkedHashMap<Key, Entry> segment) {
+        Iterator<Map.Entry<Key, Entry>> iterator = segment.entrySet().iterator();
+        Map.Entry<Key, Entry> eldest = iterator.next();
+        iterator.remove();
+        return eldest;
+    }
+
+    // reads a whole file into a new direct buffer, null if it turns out not to be as long as it should
+    // a file in cold storage is decompressed once here, later downloads are sent from memory
+    private static ByteBuffer read(Extent content) throws IOException {
+        ByteBuffer data = ByteBuffer.allocateDirect((int) content.length());
+        if (content.isCompressed()) {
+            try (InputStream in = content.newInputStream()) {
+                byte[] chunk = new byte[(int) Math.min(64 * 1024, Math.max(1, content.length()))];
+                while (data.hasRemaining()) {
+                    int read = in.read(chunk, 0, Math.min(chunk.length, data.remaining()));
+                    if (read == -1) {
+                        return null;
+                    }
+                    data.put(chunk, 0, read);
+                }
+            }
+            return data.flip();
+        }
+        try (FileChannel channel = FileChannel.open(content.file(), StandardOpenOption.READ)) {
+            while (data.hasRemaining()) {
+                if (channel.read(data, content.offset() + data.position()) == -1) {
+                    return null;
+                }
+            }
+            if (channel.size() < content.offset() + content.length()) {
+                return null;
+            }
+        }
+        return data.flip();
+    }
+
+}
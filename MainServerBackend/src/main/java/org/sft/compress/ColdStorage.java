@@ -0,0 +1,165 @@
+package org.sft.compress;
+
+import jakarta.annotation.PreDestroy;
+import org.sft.limit.TokenBucket;
+import org.sft.metrics.Counter;
+import org.sft.metrics.Metrics;
+import org.sft.storage.Extent;
+import org.sft.storage.StorageEngine;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// moves content nobody has downloaded for a while to cold storage, where only a zstd copy of it is kept
+// every files.cold-storage.interval the storage engine is asked for content not opened within files.cold-storage.cold-after,
+// each one gets a zstd copy (unless compressed downloads made one already) and the engine then drops the content itself,
+// see StorageEngine.moveToCold, listings keep showing the old size and downloads decompress the copy while sending it
+// content that doesn't get smaller is left as it is
+// the copies are made one at a time on a low priority thread, reading at most files.cold-storage.bytes-per-second, so
+// the job never competes with uploads and downloads for the disk
+// made at startup even though beans are lazy, the job has to run without anyone asking for it
+@Component
+@Lazy(false)
+public class ColdStorage {
+
+    // a copy that isn't at least this much smaller isn't worth decompressing on every download
+    private static final double MAX_RATIO = 0.9;
+
+    private final StorageEngine storage;
+    private final long coldAfterMillis;
+    private final long minSize;
+    private final TokenBucket readBytes;
+    private final ScheduledExecutorService mover;
+
+    // hashes whose content doesn't get smaller, not tried again until the next start
+    private final Set<String> incompressible = ConcurrentHashMap.newKeySet();
+
+    private final Counter moved;
+    private final Counter savedBytes;
+
+    // param:
+    // enabled -> false keeps everything as it is
+    // coldAfter -> content not opened for this long is moved
+    // interval -> how often to look for such content
+    // minSize -> smaller content is never moved, it saves little and is cheap to keep
+    // bytesPerSecond -> how fast content is read while it is compressed
+    public ColdStorage(StorageEngine storage,
+                       @Value("${files.cold-storage.enabled:true}") boolean enabled,
+                       @Value("${files.cold-storage.cold-after:30d}") Duration coldAfter,
+                       @Value("${files.cold-storage.interval:1h}") Duration interval,
+                       @Value("${files.cold-storage.min-size:64KB}") DataSize minSize,
+                       @Value("${files.cold-storage.bytes-per-second:8MB}") DataSize bytesPerSecond) {
+        this.storage = storage;
+        this.coldAfterMillis = coldAfter.toMillis();
+        this.minSize = Math.max(1, minSize.toBytes());
+        this.readBytes = new TokenBucket(Math.max(1, bytesPerSecond.toBytes()), Math.max(64 * 1024, bytesPerSecond.toBytes()));
+        this.mover = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cold-storage");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY); // downloads and uploads come first
+            return thread;
+        });
+
+        Metrics metrics = Metrics.shared();
+        this.moved = metrics.counter("sft_cold_storage_moved_total", "Contents moved to cold storage");
+        this.savedBytes = metrics.counter("sft_cold_storage_saved_bytes_total", "Disk space freed by moving contents to cold storage");
+
+        if (enabled) {
+            long period = Math.max(1, interval.toMillis());
+            mover.scheduleWithFixedDelay(this::sweep, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        mover.shutdownNow();
+    }
+
+    // runs on the cold storage thread
+    private void sweep() {
+        try {
+            for (String hash : storage.coldCandidates(System.currentTimeMillis() - coldAfterMillis)) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return; // shutting down
+                }
+                if (!incompressible.contains(hash)) {
+                    moveToCold(hash);
+                }
+            }
+        } catch (InterruptedIOException e) {
+            // shutting down
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Cold storage failed: " + e.getMessage());
+        }
+    }
+
+    private void moveToCold(String hash) throws IOException {
+        Extent content = storage.blob(hash);
+        if (content == null || content.isCompressed() || content.length() < minSize) {
+            return;
+        }
+        try {
+            // the hash stands in for the name, so only the first bytes decide if it looks compressed already
+            if (storage.variant(hash, StorageEngine.COLD_SUFFIX) == null) {
+                if (!Compressibility.worthCompressing(hash, content)) {
+                    incompressible.add(hash);
+                    return;
+                }
+                boolean kept = storage.storeVariant(hash, ContentCoding.ZSTD.suffix(), target -> {
+                    copyThrottled(content, target);
+                    if (Files.size(target) > content.length() * MAX_RATIO) {
+                        incompressible.add(hash);
+                        return false;
+                    }
+                    return true;
+                });
+                if (!kept) {
+                    return; // not worth it, or deleted meanwhile
+                }
+            }
+            Extent copy = storage.variant(hash, StorageEngine.COLD_SUFFIX);
+            if (copy != null && storage.moveToCold(hash)) {
+                moved.increment();
+                savedBytes.add(content.length() - copy.length());
+            }
+        } catch (NoSuchFileException e) {
+            // deleted before we got to it
+        }
+    }
+
+    // compresses the content into target, reading no faster than files.cold-storage.bytes-per-second
+    private void copyThrottled(Extent content, Path target) throws IOException {
+        try (InputStream in = content.newInputStream(); OutputStream out = ContentCoding.ZSTD.encode(Files.newOutputStream(target), 0)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                long wait = readBytes.take(read);
+                if (wait > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Cold storage stopped");
+                    }
+                }
+            }
+        }
+    }
+
+}
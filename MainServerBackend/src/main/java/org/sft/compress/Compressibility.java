@@ -0,0 +1,112 @@
+package org.sft.compress;
+
+import org.sft.storage.Extent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+// decides if compressing a file is worth it
+// photos, videos, music and archives are compressed already, deflating them again costs cpu and saves nothing
+// (often it even makes them a little bigger), so they are recognised and sent as they are:
+// - by their extension
+// - by the first bytes of the file, for files whose name says nothing
+// - by deflating a sample from the start of the file, for everything else
+public final class Compressibility {
+
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+            "jpg", "jpeg", "png", "gif", "webp", "avif", "heic", "heif",
+            "mp3", "m4a", "aac", "ogg", "opus", "flac",
+            "mp4", "m4v", "mov", "mkv", "webm", "avi",
+            "zip", "gz", "tgz", "bz2", "xz", "zst", "7z", "rar", "lz4", "br",
+            "jar", "apk", "docx", "xlsx", "pptx", "odt", "ods", "odp", "epub");
+
+    // magic numbers of the same kinds of files
+    private static final byte[][] COMPRESSED_SIGNATURES = {
+            {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF}, // jpeg
+            {(byte) 0x89, 'P', 'N', 'G'},
+            {'G', 'I', 'F', '8'},
+            {'P', 'K', 3, 4}, // zip and everything built on it
+            {0x1F, (byte) 0x8B}, // gzip
+            {0x28, (byte) 0xB5, 0x2F, (byte) 0xFD}, // zstd
+            {'7', 'z', (byte) 0xBC, (byte) 0xAF},
+            {'R', 'a', 'r', '!'},
+            {'B', 'Z', 'h'},
+            {(byte) 0xFD, '7', 'z', 'X', 'Z'},
+            {'O', 'g', 'g', 'S'},
+            {'f', 'L', 'a', 'C'},
+            {'I', 'D', '3'}, // mp3
+            {0x1A, 0x45, (byte) 0xDF, (byte) 0xA3}, // matroska and webm
+    };
+
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    // a sample that doesn't get at least this much smaller isn't worth compressing
+    private static final double MAX_SAMPLE_RATIO = 0.9;
+
+    private Compressibility() {
+    }
+
+    // function to guess from the name alone, without reading the file
+    public static boolean likelyCompressible(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot < 0 || !COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    // function to decide if a file is worth compressing, reads at most the first 64KB of it
+    public static boolean worthCompressing(String name, Extent content) throws IOException {
+        if (!likelyCompressible(name)) {
+            return false;
+        }
+        byte[] sample = new byte[SAMPLE_SIZE];
+        int length;
+        try (InputStream in = content.newInputStream()) {
+            length = in.readNBytes(sample, 0, sample.length);
+        }
+        if (length == 0 || hasCompressedSignature(sample, length)) {
+            return false;
+        }
+
+        // mp4 and friends have their signature after a 4 byte length
+        if (length >= 8 && sample[4] == 'f' && sample[5] == 't' && sample[6] == 'y' && sample[7] == 'p') {
+            return false;
+        }
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] out = new byte[SAMPLE_SIZE];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(out);
+            }
+            return compressed <= length * MAX_SAMPLE_RATIO;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static boolean hasCompressedSignature(byte[] sample, int length) {
+        for (byte[] signature : COMPRESSED_SIGNATURES) {
+            if (length >= signature.length && startsWith(sample, signature)) {
+                return true;
+            }
+        }
+        // webp is a riff container with WEBP at offset 8, wav is one too but compresses fine
+        return length >= 12 && startsWith(sample, new byte[]{'R', 'I', 'F', 'F'})
+                && sample[8] == 'W' && sample[9] == 'E' && sample[10] == 'B' && sample[11] == 'P';
+    }
+
+    private static boolean startsWith(byte[] sample, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (sample[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
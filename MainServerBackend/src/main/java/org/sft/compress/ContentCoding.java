@@ -0,0 +1,108 @@
+package org.sft.compress;
+
+import io.airlift.compress.zstd.ZstdOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+// the Content-Encodings the server can send files in, in the order we prefer them when a client takes both
+// zstd comes from aircompressor, which is plain java, so it works on every machine without a native library
+public enum ContentCoding {
+
+    ZSTD("zstd", ".zst"),
+    GZIP("gzip", ".gz");
+
+    private final String token;
+    private final String suffix;
+
+    ContentCoding(String token, String suffix) {
+        this.token = token;
+        this.suffix = suffix;
+    }
+
+    // name of the coding in Accept-Encoding and Content-Encoding headers
+    public String token() {
+        return token;
+    }
+
+    // what stored copies in this coding are named with, after the content hash
+    public String suffix() {
+        return suffix;
+    }
+
+    // function to wrap a stream so everything written to it comes out in this coding, closing it finishes the coding
+    // param:
+    // gzipLevel -> deflate level from 1 (fastest) to 9 (smallest), zstd has one level only
+    public OutputStream encode(OutputStream out, int gzipLevel) throws IOException {
+        return switch (this) {
+            case ZSTD -> new ZstdOutputStream(out);
+            case GZIP -> new LeveledGzipOutputStream(out, gzipLevel);
+        };
+    }
+
+    // function to find the codings a client takes from its Accept-Encoding header, best first
+    // codings with a higher q come first, codings the client likes the same are in our order
+    // eg: "gzip, deflate, br, zstd" -> [ZSTD, GZIP], "gzip;q=1, zstd;q=0.5" -> [GZIP, ZSTD], null -> []
+    public static List<ContentCoding> accepted(String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isBlank()) {
+            return List.of();
+        }
+        double[] quality = new double[values().length];
+        double wildcard = -1; // "*" covers every coding not named
+        boolean[] named = new boolean[values().length];
+
+        for (String part : acceptEncoding.split(",")) {
+            String[] pieces = part.split(";");
+            String token = pieces[0].trim().toLowerCase(Locale.ROOT);
+            double q = 1;
+            for (int i = 1; i < pieces.length; i++) {
+                String parameter = pieces[i].trim();
+                if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                    try {
+                        q = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0; // a q we can't read doesn't count as a yes
+                    }
+                }
+            }
+            if (token.equals("*")) {
+                wildcard = q;
+                continue;
+            }
+            for (ContentCoding coding : values()) {
+                if (coding.token.equals(token)) {
+                    quality[coding.ordinal()] = q;
+                    named[coding.ordinal()] = true;
+                }
+            }
+        }
+
+        List<ContentCoding> accepted = new ArrayList<>(values().length);
+        for (ContentCoding coding : values()) {
+            if (!named[coding.ordinal()] && wildcard >= 0) {
+                quality[coding.ordinal()] = wildcard;
+            }
+            if (quality[coding.ordinal()] > 0) {
+                accepted.add(coding);
+            }
+        }
+        // stable, so equal q keeps our order
+        accepted.sort(Comparator.comparingDouble(coding -> -quality[coding.ordinal()]));
+        return accepted;
+    }
+
+    // GZIPOutputStream always deflates at the default level
+    private static final class LeveledGzipOutputStream extends GZIPOutputStream {
+
+        LeveledGzipOutputStream(OutputStream out, int level) throws IOException {
+            super(out, 64 * 1024);
+            def.setLevel(level);
+        }
+    }
+
+}
@@ -0,0 +1,231 @@
+package org.sft.compress;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.sft.storage.Extent;
+import org.sft.storage.FolderIndex;
+import org.sft.storage.StorageEngine;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+// compressed downloads for clients that send Accept-Encoding, so less goes through the tunnel
+// every file the storage engine stores is compressed in the background, once per coding, and the compressed copies are
+// kept with the file's content, so a download only has to pick the copy the client takes and send it like any other file
+// (with sendfile and ranges), and the same content in many folders is compressed once
+// files that are compressed already, or too small to gain anything, are remembered and always sent as they are
+// files that didn't go through the store have no hash to keep copies under and are sent as they are too
+// made at startup even though beans are lazy, so files stored before the first download are compressed right away
+@Component
+@Lazy(false)
+public class ResponseCompression implements StorageEngine.ChangeListener {
+
+    // a compressed copy of a file
+    public record Variant(ContentCoding coding, Extent content) {
+    }
+
+    // a copy that isn't at least this much smaller than the file isn't kept
+    private static final double MAX_RATIO = 0.9;
+
+    private final StorageEngine storage;
+    private final boolean enabled;
+    private final long minSize;
+    private final int gzipLevel;
+    private final int streamLevel;
+    private final ExecutorService compressionPool;
+
+    // hashes being compressed right now, and hashes whose content isn't worth compressing
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final Set<String> incompressible = ConcurrentHashMap.newKeySet();
+
+    // param:
+    // enabled -> false sends everything as it is
+    // threads -> threads making compressed copies in the background
+    // minSize -> smaller files are always sent as they are
+    // gzipLevel -> deflate level of the stored gzip copies, they are made once so this can be high
+    // streamLevel -> deflate level for responses compressed while they are sent, like /files/downloadAll
+    public ResponseCompression(StorageEngine storage,
+                               @Value("${files.compression.enabled:true}") boolean enabled,
+                               @Value("${files.compression.threads:1}") int threads,
+                               @Value("${files.compression.min-size:1KB}") DataSize minSize,
+                               @Value("${files.compression.gzip-level:9}") int gzipLevel,
+                               @Value("${files.compression.stream-level:1}") int streamLevel) {
+        this.storage = storage;
+        this.enabled = enabled;
+        this.minSize = minSize.toBytes();
+        this.gzipLevel = gzipLevel;
+        this.streamLevel = streamLevel;
+        this.compressionPool = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "precompressor");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY); // downloads and uploads come first
+            return thread;
+        });
+    }
+
+    // called by spring once the bean is made, from then on the store tells it about every change
+    @PostConstruct
+    public void listen() {
+        if (enabled) {
+            storage.addListener(this);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        compressionPool.shutdownNow();
+    }
+
+    // function to find a compressed copy of a file that the client takes
+    // if there is none yet, one is made in the background for the next download and null is returned
+    // param:
+    // folderId, name -> the file as the client asked for it
+    // content -> where it is on disk
+    // accepted -> codings the client takes, best first, see ContentCoding.accepted
+    // returns the copy to send, or null to send the file as it is
+    public Variant find(String folderId, String name, Extent content, List<ContentCoding> accepted) {
+        if (!enabled || accepted.isEmpty() || content.length() < minSize) {
+            return null;
+        }
+        String hash = storage.hashOf(folderId, name);
+        if (hash == null || incompressible.contains(hash)) {
+            return null;
+        }
+        for (ContentCoding coding : accepted) {
+            Extent variant = storage.variant(hash, coding.suffix());
+            if (variant != null) {
+                return new Variant(coding, variant);
+            }
+        }
+        schedule(hash, name); // stored before the copies were made, or they were deleted by hand
+        return null;
+    }
+
+    // function to pick the coding of a response that is compressed while it is sent, null to send it as it is
+    // param:
+    // files -> what goes into the response, it is only compressed if most of it looks compressible by name
+    public ContentCoding streamCoding(List<FolderIndex.FileEntry> files, List<ContentCoding> accepted) {
+        if (!enabled || accepted.isEmpty()) {
+            return null;
+        }
+        long total = 0;
+        long compressible = 0;
+        for (FolderIndex.FileEntry file : files) {
+            long length = file.size();
+            total += length;
+            if (Compressibility.likelyCompressible(file.name())) {
+                compressible += length;
+            }
+        }
+        return compressible * 2 >= total ? accepted.get(0) : null;
+    }
+
+    // function to wrap a response stream in the coding streamCoding picked
+    // closing the returned stream finishes the coding, the response stream itself stays open for spring to finish
+    public OutputStream encode(ContentCoding coding, OutputStream out) throws IOException {
+        return coding.encode(new KeepOpen(out), streamLevel);
+    }
+
+    // called by the storage engine whenever it adds, replaces or deletes a file, new content is compressed right away
+    // so the first download can have it already
+    @Override
+    public void fileChanged(String folderId, String name) {
+        String hash = storage.hashOf(folderId, name);
+        if (hash != null) { // null for deletes
+            schedule(hash, name);
+        }
+    }
+
+    private void schedule(String hash, String name) {
+        if (incompressible.contains(hash) || !pending.add(hash)) {
+            return;
+        }
+        try {
+            compressionPool.execute(() -> {
+                try {
+                    compress(hash, name);
+                } finally {
+                    pending.remove(hash);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.remove(hash); // shutting down
+        }
+    }
+
+    // runs on the compression pool: make every coding's copy of a file that doesn't have it yet
+    // the content is read by its hash rather than as the folder file, which could be replaced by other content meanwhile
+    // param:
+    // name -> only used to recognise files that are compressed already
+    private void compress(String hash, String name) {
+        Extent content = storage.blob(hash);
+        if (content == null) {
+            return; // deleted before we got to it
+        }
+        try {
+            long size = content.length();
+            if (size < minSize || !Compressibility.worthCompressing(name, content)) {
+                incompressible.add(hash);
+                return;
+            }
+            for (ContentCoding coding : ContentCoding.values()) {
+                if (storage.variant(hash, coding.suffix()) != null) {
+                    continue;
+                }
+                boolean[] worthIt = {true};
+                boolean kept = storage.storeVariant(hash, coding.suffix(), target -> {
+                    try (InputStream in = content.newInputStream(); OutputStream out = coding.encode(Files.newOutputStream(target), gzipLevel)) {
+                        in.transferTo(out);
+                    }
+                    worthIt[0] = Files.size(target) <= size * MAX_RATIO;
+                    return worthIt[0];
+                });
+                if (!worthIt[0]) {
+                    // the sample looked fine but the whole file doesn't get smaller, the other codings won't do much better
+                    incompressible.add(hash);
+                    return;
+                }
+                if (!kept) {
+                    return; // the content was deleted meanwhile
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // deleted before we got to it
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Failed to compress " + name + ": " + e.getMessage());
+        }
+    }
+
+    // passes everything through but only flushes on close
+    private static final class KeepOpen extends FilterOutputStream {
+
+        KeepOpen(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len); // FilterOutputStream would write byte by byte
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+}
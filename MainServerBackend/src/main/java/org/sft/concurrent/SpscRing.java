@@ -0,0 +1,64 @@
+package org.sft.concurrent;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// bounded ring buffer for exactly one producer thread and one consumer thread, without locks
+// each side only ever writes its own counter, and publishing with lazySet (a release store) is enough for the other
+// side to see the slot contents once it sees the counter move
+public final class SpscRing<E> {
+
+    private final Object[] slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // next slot to take, only moved by the consumer
+    private final AtomicLong tail = new AtomicLong(); // next slot to fill, only moved by the producer
+
+    // param:
+    // capacity -> most elements held at once, rounded up to a power of two
+    public SpscRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.slots = new Object[size];
+        this.mask = size - 1;
+    }
+
+    // producer only: returns false if the ring is full
+    public boolean offer(E element) {
+        long t = tail.get();
+        if (t - head.get() == slots.length) {
+            return false;
+        }
+        slots[(int) t & mask] = element;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    // consumer only: returns null if the ring is empty
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long h = head.get();
+        if (h == tail.get()) {
+            return null;
+        }
+        int index = (int) h & mask;
+        E element = (E) slots[index];
+        slots[index] = null;
+        head.lazySet(h + 1);
+        return element;
+    }
+
+    // consumer only: the next element without taking it, null if the ring is empty
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        long h = head.get();
+        return h == tail.get() ? null : (E) slots[(int) h & mask];
+    }
+
+    // can be called from any thread, exact only when called by one of the two sides
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+}
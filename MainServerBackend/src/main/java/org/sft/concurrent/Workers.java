@@ -0,0 +1,137 @@
+package org.sft.concurrent;
+
+import org.sft.config.Settings;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.*;
+
+// runs the long lived background jobs of the application: serial receivers, the tunnel reader, the server starter
+// with spring.threads.virtual.enabled (the same switch that puts tomcat on virtual threads) every job gets a virtual thread,
+// so jobs that mostly sit waiting on a port or a pipe don't hold on to an operating system thread each
+// otherwise they get daemon platform threads like before
+// either way no more than files.workers.max jobs run at once, and on shutdown every job is interrupted, whatever they
+// are blocked on is closed so they notice, and we wait up to files.workers.shutdown-timeout for them to finish
+public class Workers {
+
+    private static volatile Workers shared;
+
+    private final ExecutorService executor;
+    private final ExecutorService nativeExecutor;
+    private final Semaphore slots;
+    private final Duration shutdownTimeout;
+
+    // things jobs are blocked on (ports, processes), closed on shutdown so blocking reads return
+    private final Set<AutoCloseable> closeOnShutdown = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean shuttingDown;
+
+    // function to get the workers configured by spring.threads.virtual.enabled, files.workers.max and files.workers.shutdown-timeout
+    public static Workers shared() {
+        if (shared == null) {
+            synchronized (Workers.class) {
+                if (shared == null) {
+                    shared = new Workers(Settings.get("spring.threads.virtual.enabled", Boolean.class, false),
+                            Settings.get("files.workers.max", Integer.class, 64),
+                            Settings.get("files.workers.shutdown-timeout", Duration.class, Duration.ofSeconds(10)));
+                    Runtime.getRuntime().addShutdownHook(new Thread(shared::shutdown, "workers-shutdown"));
+                }
+            }
+        }
+        return shared;
+    }
+
+    public Workers(boolean virtualThreads, int maxWorkers, Duration shutdownTimeout) {
+        ThreadFactory factory = virtualThreads
+                ? Thread.ofVirtual().name("worker-", 0).factory()
+                : Thread.ofPlatform().daemon().name("worker-", 0).factory();
+        this.executor = Executors.newThreadPerTaskExecutor(factory);
+        this.nativeExecutor = virtualThreads
+                ? Executors.newThreadPerTaskExecutor(Thread.ofPlatform().daemon().name("native-worker-", 0).factory())
+                : executor;
+        this.slots = new Semaphore(Math.max(1, maxWorkers));
+        this.shutdownTimeout = shutdownTimeout;
+    }
+
+    // function to run a job in the background
+    // param:
+    // name -> name of the thread, shows up in thread dumps
+    // job -> what to run
+    // throws RejectedExecutionException if the limit of jobs is reached or the application is shutting down
+    public Future<?> start(String name, Runnable job) {
+        return submit(executor, name, job);
+    }
+
+    // function to run a job that spends its time blocked inside native code, like reading a serial port through jSerialComm
+    // a virtual thread can't let go of its carrier thread while in native code, so a few such jobs would leave no carrier
+    // for the request handling virtual threads, these jobs always get a platform thread
+    public Future<?> startBlocking(String name, Runnable job) {
+        return submit(nativeExecutor, name, job);
+    }
+
+    private Future<?> submit(ExecutorService executor, String name, Runnable job) {
+        if (shuttingDown) {
+            throw new RejectedExecutionException("Shutting down");
+        }
+        if (!slots.tryAcquire()) {
+            throw new RejectedExecutionException("Too many background jobs running");
+        }
+        try {
+            return executor.submit(() -> {
+                Thread.currentThread().setName(name);
+                try {
+                    job.run();
+                } catch (RuntimeException e) {
+                    System.out.println("Background job " + name + " failed: " + e);
+                } finally {
+                    slots.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            slots.release();
+            throw e;
+        }
+    }
+
+    // function to register something a job blocks on, so shutdown can close it to wake the job up
+    // returns the resource so it can be registered where it is made
+    public <T extends AutoCloseable> T closeOnShutdown(T resource) {
+        closeOnShutdown.add(resource);
+        return resource;
+    }
+
+    // function to unregister a resource once the job closed it itself
+    public void closed(AutoCloseable resource) {
+        closeOnShutdown.remove(resource);
+    }
+
+    // function to stop every job, waits for them up to the shutdown timeout
+    public void shutdown() {
+        if (shuttingDown) {
+            return;
+        }
+        shuttingDown = true;
+
+        executor.shutdownNow(); // interrupts every job
+        nativeExecutor.shutdownNow();
+        for (AutoCloseable resource : closeOnShutdown) {
+            try {
+                resource.close();
+            } catch (Exception ignored) {
+            }
+        }
+        closeOnShutdown.clear();
+
+        try {
+            long deadline = System.nanoTime() + shutdownTimeout.toNanos();
+            boolean stopped = executor.awaitTermination(shutdownTimeout.toNanos(), TimeUnit.NANOSECONDS)
+                    && nativeExecutor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (!stopped) {
+                System.out.println("Some background jobs did not stop within " + shutdownTimeout.toSeconds() + "s");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,66 @@
+package org.sft.config;
+
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.convert.ApplicationConversionService;
+import org.springframework.boot.env.YamlPropertySourceLoader;
+import org.springframework.core.env.MutablePropertySources;
+import org.springframework.core.env.PropertySource;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+// read-only view of the application settings for code that runs outside of the spring context,
+// like the serial receiver which works even when the server hasn't been started
+// it reads the same places spring boot does for us, with the same precedence:
+// system properties, then environment variables, then ./application.yml, then application.yml inside the jar
+// values are converted the same way too, so "8MB", "24h" or "per-file" work here just like in @Value
+public final class Settings {
+
+    private static final StandardEnvironment ENVIRONMENT = load();
+
+    private Settings() {
+    }
+
+    // function to read a setting, or the default if it is not set anywhere
+    public static <T> T get(String key, Class<T> type, T defaultValue) {
+        return ENVIRONMENT.getProperty(key, type, defaultValue);
+    }
+
+    public static String get(String key, String defaultValue) {
+        return ENVIRONMENT.getProperty(key, defaultValue);
+    }
+
+    // function to read a group of settings as a map, eg. files.serial.ports -> {COM3=house-1, COM4=house-2}
+    public static Map<String, String> getMap(String prefix) {
+        return Binder.get(ENVIRONMENT).bind(prefix, Bindable.mapOf(String.class, String.class)).orElse(Map.of());
+    }
+
+    private static StandardEnvironment load() {
+        StandardEnvironment environment = new StandardEnvironment(); // comes with system properties and environment variables
+        environment.setConversionService(new ApplicationConversionService());
+
+        MutablePropertySources sources = environment.getPropertySources();
+        addYaml(sources, new FileSystemResource(System.getProperty("user.dir") + "/application.yml"));
+        addYaml(sources, new ClassPathResource("application.yml"));
+        return environment;
+    }
+
+    private static void addYaml(MutablePropertySources sources, Resource resource) {
+        if (!resource.exists()) {
+            return;
+        }
+        try {
+            List<PropertySource<?>> loaded = new YamlPropertySourceLoader().load(resource.getDescription(), resource);
+            loaded.forEach(sources::addLast);
+        } catch (IOException e) {
+            System.out.println("Failed to read settings from " + resource.getDescription() + ": " + e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,35 @@
+package org.sft.config;
+
+import org.sft.io.FileSyncer;
+import org.sft.serial.SerialIngestManager;
+import org.sft.storage.FolderIndex;
+import org.sft.storage.StorageEngine;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+// makes the services that are shared with code running outside of spring (the serial receiver, the file viewer tab)
+// available for injection, the instances belong to the whole application so spring must not shut them down
+@Configuration
+public class SharedServices {
+
+    @Bean(destroyMethod = "")
+    public FileSyncer fileSyncer() {
+        return FileSyncer.shared();
+    }
+
+    @Bean(destroyMethod = "")
+    public StorageEngine storageEngine() {
+        return StorageEngine.shared();
+    }
+
+    @Bean(destroyMethod = "")
+    public FolderIndex folderIndex() {
+        return FolderIndex.shared();
+    }
+
+    @Bean(destroyMethod = "")
+    public SerialIngestManager serialIngestManager() {
+        return SerialIngestManager.shared();
+    }
+
+}
@@ -0,0 +1,23 @@
+package org.sft.config;
+
+import org.sft.metrics.Metrics;
+import org.sft.metrics.RequestMetricsValve;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.stereotype.Component;
+
+// connector settings spring boot has no property for, and the valve counting requests for /metrics
+@Component
+public class TomcatTuning implements WebServerFactoryCustomizer<TomcatServletWebServerFactory> {
+
+    @Override
+    public void customize(TomcatServletWebServerFactory factory) {
+        factory.addConnectorCustomizers(connector -> {
+            // only answer "Expect: 100-continue" once a handler actually reads the body, so an upload whose content
+            // the server already has can be answered before the client sends a single byte of it
+            connector.setProperty("continueResponseTiming", "onRead");
+        });
+        factory.addContextValves(new RequestMetricsValve(Metrics.shared()));
+    }
+
+}
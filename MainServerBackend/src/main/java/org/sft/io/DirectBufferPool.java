@@ -0,0 +1,59 @@
+package org.sft.io;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// a small pool of direct byte buffers that are handed out and given back instead of being allocated per request
+// direct buffers live outside the java heap, so the operating system can read into them and write from them
+// without the extra copy the jdk makes for heap buffers, and keeping them around means the GC never sees them
+// if the pool runs dry a fresh buffer is allocated and simply dropped again on release, so callers never wait
+public class DirectBufferPool {
+
+    private final int bufferSize;
+    private final BlockingQueue<ByteBuffer> free;
+
+    // how many times a buffer had to be allocated because the pool was empty
+    private final AtomicLong misses = new AtomicLong();
+
+    // param:
+    // bufferSize -> capacity of every buffer in bytes
+    // maxPooled -> most buffers the pool keeps around, this is the off-heap memory the pool can hold on to
+    public DirectBufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<>(Math.max(1, maxPooled));
+    }
+
+    // function to take a cleared buffer from the pool
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            misses.incrementAndGet();
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        return buffer;
+    }
+
+    // function to give a buffer back, it must not be used by the caller afterwards
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() != bufferSize) {
+            return;
+        }
+        buffer.clear();
+        free.offer(buffer); // if the pool is already full the buffer is just left for the GC
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getPooledCount() {
+        return free.size();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+}
@@ -0,0 +1,151 @@
+package org.sft.io;
+
+import org.sft.config.Settings;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// decides when freshly written files are flushed to the physical disk (fsync)
+// PER_FILE -> every file is synced before its upload is answered, nothing acknowledged is ever lost but every upload pays for a disk flush
+// BATCHED -> files are synced by a background thread every interval, an acknowledged upload can be lost if the power goes within that window
+// NEVER -> it is left to the operating system, fastest but a crash can lose anything not yet written back
+// one instance is shared by everything that writes files, the spring side and the serial receiver alike
+public class FileSyncer {
+
+    public enum Policy {
+        PER_FILE, BATCHED, NEVER
+    }
+
+    private final Policy policy;
+    private final Set<Path> dirty = ConcurrentHashMap.newKeySet();
+    private final Set<Path> dirtyDirectories = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService flusher;
+
+    private static volatile FileSyncer shared;
+
+    // function to get the syncer configured by files.ingest.fsync and files.ingest.fsync-interval
+    public static FileSyncer shared() {
+        if (shared == null) {
+            synchronized (FileSyncer.class) {
+                if (shared == null) {
+                    shared = new FileSyncer(Settings.get("files.ingest.fsync", Policy.class, Policy.PER_FILE),
+                            Settings.get("files.ingest.fsync-interval", Duration.class, Duration.ofSeconds(1)));
+                    Runtime.getRuntime().addShutdownHook(new Thread(shared::shutdown, "fsync-shutdown"));
+                }
+            }
+        }
+        return shared;
+    }
+
+    public FileSyncer(Policy policy, Duration interval) {
+        this.policy = policy;
+
+        if (policy == Policy.BATCHED) {
+            flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "fsync-batcher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long millis = Math.max(1, interval.toMillis());
+            flusher.scheduleWithFixedDelay(this::flushDirty, millis, millis, TimeUnit.MILLISECONDS);
+        } else {
+            flusher = null;
+        }
+    }
+
+    public void shutdown() {
+        if (flusher != null) {
+            flusher.shutdown();
+            flushDirty(); // don't leave anything behind on a clean shutdown
+        }
+    }
+
+    // function to call after a file was written through the given still open channel
+    public void written(Path path, FileChannel channel) throws IOException {
+        switch (policy) {
+            case PER_FILE -> channel.force(true);
+            case BATCHED -> dirty.add(path);
+            case NEVER -> {
+            }
+        }
+    }
+
+    // same as above for a file that was already closed, it is reopened only if it has to be synced right now
+    public void written(Path path) throws IOException {
+        switch (policy) {
+            case PER_FILE -> {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    channel.force(true);
+                }
+            }
+            case BATCHED -> dirty.add(path);
+            case NEVER -> {
+            }
+        }
+    }
+
+    // function to call after a file that went through written() was renamed to where it stays (eg. a temp file moved
+    // into the store), so it is synced under its new name, together with its directory so the new name survives a crash too
+    public void moved(Path from, Path to) throws IOException {
+        Path directory = to.toAbsolutePath().getParent();
+        switch (policy) {
+            case PER_FILE -> syncDirectory(directory); // the file itself was synced before it was moved
+            case BATCHED -> {
+                dirty.remove(from);
+                dirty.add(to);
+                dirtyDirectories.add(directory);
+            }
+            case NEVER -> {
+            }
+        }
+    }
+
+    // function to get a file to disk right now, whatever the policy, for the few places that are about to throw away
+    // the only other copy of what it holds (eg. content moved to cold storage)
+    public static void force(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    // runs on the background thread: reopen every file written since the last round and sync it
+    private void flushDirty() {
+        for (Path path : dirty) {
+            dirty.remove(path);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            } catch (NoSuchFileException ignored) {
+                // deleted again before we got to it
+            } catch (IOException e) {
+                System.out.println("Failed to sync " + path + ": " + e.getMessage());
+            }
+        }
+        // after the files, a name must never be on disk before what it points at
+        for (Path directory : dirtyDirectories) {
+            dirtyDirectories.remove(directory);
+            syncDirectory(directory);
+        }
+    }
+
+    // a directory can only be opened for reading, and not at all on windows, where ntfs keeps renames safe by itself
+    public static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ignored) {
+        }
+    }
+
+}
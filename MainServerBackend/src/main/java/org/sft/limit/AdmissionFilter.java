@@ -0,0 +1,387 @@
+package org.sft.limit;
+
+import jakarta.servlet.*;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import org.sft.metrics.Counter;
+import org.sft.metrics.Metrics;
+import org.sft.storage.FolderIndex;
+import org.sft.storage.StorageEngine;
+import org.sft.web.Clients;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// decides for every /files request if it may run now, so one house bulk uploading or downloading can't stall everyone else:
+// 1. every folder id and every client address gets a token bucket of requests (files.limits.requests-per-second),
+//    a request finding either empty is answered 429 right away, with Retry-After saying when there is a token again
+// 2. large transfers (uploads and downloads of at least files.limits.large-transfer, and every /files/downloadAll)
+//    need one of files.limits.max-large-transfers slots, waiting in a short queue for one; if the queue is full or
+//    the wait too long they get 429 too, small lists and downloads never wait for a slot
+// 3. with files.limits.bytes-per-second every folder id and every client also gets a token bucket of bytes, and the
+//    bodies read and written are slowed down to it; sendfile is turned off then, since its bytes never pass through java
+// the answers are quick so clients back off instead of holding a connection and a thread while they wait
+// requests made on this machine (not through the tunnel) are let through untouched with files.limits.exempt-local
+@Component
+public class AdmissionFilter extends OncePerRequestFilter {
+
+    private static final String SENDFILE_SUPPORTED_ATTR = "org.apache.tomcat.sendfile.support";
+
+    private final StorageEngine storage;
+    private final boolean enabled;
+    private final boolean exemptLocal;
+    private final TokenBuckets folderRequests;
+    private final TokenBuckets clientRequests;
+    private final TokenBuckets folderBytes;
+    private final TokenBuckets clientBytes;
+    private final long largeTransfer;
+    private final TransferSlots transferSlots;
+
+    private final Counter rejectedRequests;
+    private final Counter rejectedTransfers;
+
+    public AdmissionFilter(StorageEngine storage,
+                           @Value("${files.limits.enabled:true}") boolean enabled,
+                           @Value("${files.limits.exempt-local:true}") boolean exemptLocal,
+                           @Value("${files.limits.requests-per-second:50}") double requestsPerSecond,
+                           @Value("${files.limits.request-burst:200}") int requestBurst,
+                           @Value("${files.limits.bytes-per-second:0}") DataSize bytesPerSecond,
+                           @Value("${files.limits.byte-burst:16MB}") DataSize byteBurst,
+                           @Value("${files.limits.large-transfer:1MB}") DataSize largeTransfer,
+                           @Value("${files.limits.max-large-transfers:8}") int maxLargeTransfers,
+                           @Value("${files.limits.max-waiting:32}") int maxWaiting,
+                           @Value("${files.limits.max-wait:10s}") Duration maxWait) {
+        this.storage = storage;
+        this.enabled = enabled;
+        this.exemptLocal = exemptLocal;
+        this.folderRequests = new TokenBuckets(requestsPerSecond, requestBurst);
+        this.clientRequests = new TokenBuckets(requestsPerSecond, requestBurst);
+        this.folderBytes = new TokenBuckets(bytesPerSecond.toBytes(), byteBurst.toBytes());
+        this.clientBytes = new TokenBuckets(bytesPerSecond.toBytes(), byteBurst.toBytes());
+        this.largeTransfer = largeTransfer.toBytes();
+        this.transferSlots = new TransferSlots(maxLargeTransfers, maxWaiting, maxWait);
+
+        Metrics metrics = Metrics.shared();
+        this.rejectedRequests = metrics.counter("sft_limit_rejected_total", "Requests answered 429", "reason", "requests");
+        this.rejectedTransfers = metrics.counter("sft_limit_rejected_total", "Requests answered 429", "reason", "transfers");
+        metrics.collector(out -> {
+            out.gauge("sft_limit_large_transfers", "Large transfers running", transferSlots.running());
+            out.gauge("sft_limit_waiting_transfers", "Large transfers waiting for a slot", transferSlots.waiting());
+        });
+    }
+
+    // only the file endpoints are limited, /metrics and the serial endpoints are cheap and used from this machine
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !enabled || !path(request).startsWith("/files/") || (exemptLocal && Clients.isLocal(request));
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        // the folder id is taken from the query string only, asking the request for a parameter would read a whole
+        // multipart body before we decided if it may be read at all
+        String folderId = queryParameter(request, "id");
+        String client = Clients.address(request);
+
+        long wait = Math.max(folderRequests.tryTake(folderId, 1), clientRequests.tryTake(client, 1));
+        if (wait > 0) {
+            rejectedRequests.increment();
+            reject(response, Duration.ofNanos(wait), "Too many requests");
+            return;
+        }
+
+        if (!isLargeTransfer(request, folderId)) {
+            chain.doFilter(shaped(request, folderId, client), shaped(response, folderId, client));
+            return;
+        }
+
+        try {
+            if (!transferSlots.acquire()) {
+                rejectedTransfers.increment();
+                reject(response, transferSlots.retryAfter(), "Too many large transfers");
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a transfer slot");
+        }
+
+        // the slot is given back when the response is finished, which for a streamed body like /files/downloadAll
+        // is after the handler returned
+        AtomicBoolean released = new AtomicBoolean();
+        Runnable release = () -> {
+            if (released.compareAndSet(false, true)) {
+                transferSlots.release();
+            }
+        };
+        try {
+            // a multipart body is read by tomcat itself, not through a stream we can slow down, so its bytes are
+            // paid for before it is read
+            String contentType = request.getContentType();
+            if (contentType != null && contentType.startsWith(MediaType.MULTIPART_FORM_DATA_VALUE) && request.getContentLengthLong() > 0) {
+                pause(Math.max(folderBytes.take(folderId, request.getContentLengthLong()), clientBytes.take(client, request.getContentLengthLong())));
+            }
+            chain.doFilter(shaped(request, folderId, client), shaped(response, folderId, client));
+        } finally {
+            if (request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(new AsyncListener() {
+                    @Override
+                    public void onComplete(AsyncEvent event) {
+                        release.run();
+                    }
+
+                    @Override
+                    public void onTimeout(AsyncEvent event) {
+                        release.run();
+                    }
+
+                    @Override
+                    public void onError(AsyncEvent event) {
+                        release.run();
+                    }
+
+                    @Override
+                    public void onStartAsync(AsyncEvent event) {
+                    }
+                });
+            } else {
+                release.run();
+            }
+        }
+    }
+
+    // the path spring maps the request by: decoded, normalized and without ;parameters, which the raw uri still has,
+    // so /files;x/download or /files/%64ownload can't get past the checks below and still reach the handler
+    private static String path(HttpServletRequest request) {
+        return request.getServletPath();
+    }
+
+    // function to find out if a request is a large transfer, before any of it was read or written
+    // uploads are large if their body is (or has no length given), downloads if the stored file is
+    private boolean isLargeTransfer(HttpServletRequest request, String folderId) {
+        String path = path(request);
+        if (path.equals("/files/downloadAll")) {
+            return true;
+        }
+        if (path.equals("/files/download")) {
+            String filename = queryParameter(request, "filename");
+            if (folderId == null || filename == null) {
+                return false;
+            }
+            try {
+                FolderIndex.FileEntry entry = storage.stat(folderId, filename);
+                return entry != null && entry.size() >= largeTransfer;
+            } catch (RuntimeException e) {
+                return false; // a name the store doesn't take, the download will say so
+            }
+        }
+        String method = request.getMethod();
+        if (method.equals("POST") || method.equals("PUT")) {
+            long length = request.getContentLengthLong();
+            return length >= largeTransfer || (length < 0 && request.getHeader(HttpHeaders.TRANSFER_ENCODING) != null);
+        }
+        return false;
+    }
+
+    private boolean shapesBytes() {
+        return folderBytes.isLimited();
+    }
+
+    // function to wrap a request so reading its body is slowed down to the byte limits, and sendfile is not used
+    private HttpServletRequest shaped(HttpServletRequest request, String folderId, String client) {
+        if (!shapesBytes()) {
+            return request;
+        }
+        return new HttpServletRequestWrapper(request) {
+            private ServletInputStream in;
+
+            @Override
+            public ServletInputStream getInputStream() throws IOException {
+                if (in == null) {
+                    in = new ShapedInputStream(super.getInputStream(), folderId, client);
+                }
+                return in;
+            }
+
+            @Override
+            public Object getAttribute(String name) {
+                return SENDFILE_SUPPORTED_ATTR.equals(name) ? Boolean.FALSE : super.getAttribute(name);
+            }
+        };
+    }
+
+    // function to wrap a response so writing its body is slowed down to the byte limits
+    private HttpServletResponse shaped(HttpServletResponse response, String folderId, String client) {
+        if (!shapesBytes()) {
+            return response;
+        }
+        return new HttpServletResponseWrapper(response) {
+            private ServletOutputStream out;
+
+            @Override
+            public ServletOutputStream getOutputStream() throws IOException {
+                if (out == null) {
+                    out = new ShapedOutputStream(super.getOutputStream(), folderId, client);
+                }
+                return out;
+            }
+        };
+    }
+
+    // function to pay for bytes that went through, waiting until both buckets are out of debt
+    private void paid(String folderId, String client, long bytes) throws IOException {
+        if (bytes > 0) {
+            pause(Math.max(folderBytes.take(folderId, bytes), clientBytes.take(client, bytes)));
+        }
+    }
+
+    private static void pause(long nanos) throws IOException {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(Duration.ofNanos(nanos));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while slowed down to the byte limit");
+        }
+    }
+
+    private static void reject(HttpServletResponse response, Duration retryAfter, String message) throws IOException {
+        long seconds = Math.max(1, (retryAfter.toMillis() + 999) / 1000);
+        response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+        response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(seconds));
+        response.setContentType(MediaType.TEXT_PLAIN_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.getWriter().write(message + ", try again in " + seconds + "s");
+    }
+
+    // function to read a parameter from the query string without touching the body, null if it isn't there
+    static String queryParameter(HttpServletRequest request, String name) {
+        String query = request.getQueryString();
+        if (query == null) {
+            return null;
+        }
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            String key = equals < 0 ? pair : pair.substring(0, equals);
+            if (key.equals(name)) {
+                try {
+                    return URLDecoder.decode(equals < 0 ? "" : pair.substring(equals + 1), StandardCharsets.UTF_8);
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    private final class ShapedInputStream extends ServletInputStream {
+
+        private final ServletInputStream in;
+        private final String folderId;
+        private final String client;
+
+        ShapedInputStream(ServletInputStream in, String folderId, String client) {
+            this.in = in;
+            this.folderId = folderId;
+            this.client = client;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                paid(folderId, client, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            paid(folderId, client, read);
+            return read;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return in.isFinished();
+        }
+
+        @Override
+        public boolean isReady() {
+            return in.isReady();
+        }
+
+        @Override
+        public void setReadListener(ReadListener listener) {
+            in.setReadListener(listener);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private final class ShapedOutputStream extends ServletOutputStream {
+
+        private final ServletOutputStream out;
+        private final String folderId;
+        private final String client;
+
+        ShapedOutputStream(ServletOutputStream out, String folderId, String client) {
+            this.out = out;
+            this.folderId = folderId;
+            this.client = client;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            paid(folderId, client, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            paid(folderId, client, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+        @Override
+        public boolean isReady() {
+            return out.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener listener) {
+            out.setWriteListener(listener);
+        }
+    }
+
+}
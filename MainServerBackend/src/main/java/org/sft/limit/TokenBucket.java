@@ -0,0 +1,60 @@
+package org.sft.limit;
+
+// a token bucket: it fills up at a steady rate up to its capacity, and every request or byte takes tokens out of it
+// so whoever it belongs to can go at rate on average, and in bursts of up to capacity after being quiet for a while
+// the tokens are worked out from the time whenever the bucket is used, nothing runs in the background to fill it
+public final class TokenBucket {
+
+    private final double tokensPerNano;
+    private final double capacity;
+
+    private double tokens;
+    private long updated;
+
+    // param:
+    // perSecond -> how many tokens are added every second
+    // capacity -> most tokens the bucket holds, it starts out full
+    public TokenBucket(double perSecond, double capacity) {
+        this.tokensPerNano = perSecond / 1e9;
+        this.capacity = Math.max(1, capacity);
+        this.tokens = this.capacity;
+        this.updated = System.nanoTime();
+    }
+
+    // function to take amount tokens only if the bucket has them
+    // returns 0 if they were taken, otherwise the nanoseconds until the bucket will have them, nothing is taken then
+    public synchronized long tryTake(long amount) {
+        refill();
+        if (tokens >= amount) {
+            tokens -= amount;
+            return 0;
+        }
+        return nanosFor(amount - tokens);
+    }
+
+    // function to take amount tokens even if the bucket doesn't have them, it then owes the rest
+    // returns the nanoseconds the caller has to wait until the debt is paid back, 0 if there was no debt
+    // used for bytes, which have already been sent or received by the time they are counted
+    public synchronized long take(long amount) {
+        refill();
+        tokens -= amount;
+        return tokens >= 0 ? 0 : nanosFor(-tokens);
+    }
+
+    // true if the bucket is full, so forgetting it and making a new one later changes nothing
+    public synchronized boolean isFull() {
+        refill();
+        return tokens >= capacity;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - updated) * tokensPerNano);
+        updated = now;
+    }
+
+    private long nanosFor(double missing) {
+        return (long) Math.ceil(missing / tokensPerNano);
+    }
+
+}
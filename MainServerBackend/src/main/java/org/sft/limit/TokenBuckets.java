@@ -0,0 +1,52 @@
+package org.sft.limit;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// one token bucket per key (a folder id or a client address), all with the same rate and capacity
+// a bucket is made the first time its key shows up, and full buckets are forgotten once there are many keys,
+// since a full bucket is the same as a new one, so clients that come and go don't pile up in memory
+public final class TokenBuckets {
+
+    // past this many keys the full buckets are dropped
+    private static final int SWEEP_SIZE = 10_000;
+
+    private final double perSecond;
+    private final double capacity;
+    private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    // param:
+    // perSecond -> tokens every key gets per second, 0 or less for no limit
+    // capacity -> most tokens a key can save up for a burst
+    public TokenBuckets(double perSecond, double capacity) {
+        this.perSecond = perSecond;
+        this.capacity = capacity;
+    }
+
+    public boolean isLimited() {
+        return perSecond > 0;
+    }
+
+    // function to take tokens only if the key's bucket has them, see TokenBucket.tryTake
+    // returns 0 without looking at anything if there is no limit or no key
+    public long tryTake(String key, long amount) {
+        return isLimited() && key != null ? bucket(key).tryTake(amount) : 0;
+    }
+
+    // function to take tokens even if that puts the key's bucket in debt, see TokenBucket.take
+    public long take(String key, long amount) {
+        return isLimited() && key != null ? bucket(key).take(amount) : 0;
+    }
+
+    private TokenBucket bucket(String key) {
+        TokenBucket bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() >= SWEEP_SIZE) {
+                buckets.values().removeIf(TokenBucket::isFull);
+            }
+            bucket = buckets.computeIfAbsent(key, k -> new TokenBucket(perSecond, capacity));
+        }
+        return bucket;
+    }
+
+}
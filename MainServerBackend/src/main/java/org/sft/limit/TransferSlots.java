@@ -0,0 +1,67 @@
+package org.sft.limit;
+
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// the slots for large uploads and downloads, so only a few of them share the disk and the network at once
+// a transfer that finds every slot taken waits in a queue of limited length, in the order it came, for a limited time
+// if the queue is already full it is turned away right away instead, so a flood of big transfers can't pile up threads
+public final class TransferSlots {
+
+    private final Semaphore slots;
+    private final int maxWaiting;
+    private final Duration maxWait;
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final int capacity;
+
+    // param:
+    // capacity -> most large transfers running at once
+    // maxWaiting -> most large transfers waiting for a slot
+    // maxWait -> how long one of them waits before it gives up
+    public TransferSlots(int capacity, int maxWaiting, Duration maxWait) {
+        this.capacity = Math.max(1, capacity);
+        this.slots = new Semaphore(this.capacity, true);
+        this.maxWaiting = Math.max(0, maxWaiting);
+        this.maxWait = maxWait;
+    }
+
+    // function to get a slot, waiting for one if needed
+    // returns false if the queue is full or no slot came free in time, the transfer must not run then
+    // a true must be followed by exactly one release
+    public boolean acquire() throws InterruptedException {
+        if (slots.tryAcquire()) {
+            return true;
+        }
+        if (waiting.incrementAndGet() > maxWaiting) {
+            waiting.decrementAndGet();
+            return false;
+        }
+        try {
+            return slots.tryAcquire(maxWait.toNanos(), TimeUnit.NANOSECONDS);
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    public void release() {
+        slots.release();
+    }
+
+    // large transfers running right now
+    public int running() {
+        return capacity - slots.availablePermits();
+    }
+
+    // large transfers waiting for a slot right now
+    public int waiting() {
+        return waiting.get();
+    }
+
+    // how long a turned away transfer should wait before trying again, a guess since we don't know when a slot frees up
+    public Duration retryAfter() {
+        return maxWait;
+    }
+
+}
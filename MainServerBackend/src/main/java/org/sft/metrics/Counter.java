@@ -0,0 +1,23 @@
+package org.sft.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// a number that only goes up, like requests served or bytes received
+// many threads can add to it at once without waiting for each other, and adding never allocates
+public final class Counter {
+
+    private final LongAdder value = new LongAdder();
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void add(long amount) {
+        value.add(amount);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+
+}
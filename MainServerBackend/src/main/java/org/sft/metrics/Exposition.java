@@ -0,0 +1,85 @@
+package org.sft.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// builds one /metrics answer in the prometheus text format (version 0.0.4)
+// samples of the same metric may be added in any order, eg. port by port, they are written out together under
+// one HELP and TYPE line as the format requires
+// labels are given as name, value pairs, eg. counter("sft_x", "...", 3, "port", "COM3")
+public final class Exposition {
+
+    private record Family(String type, String help, StringBuilder samples) {
+    }
+
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    // a number that only goes up, the name should end in _total
+    public void counter(String name, String help, double value, String... labels) {
+        sample(family(name, "counter", help), name, labels, null, value);
+    }
+
+    // a number that goes up and down, like bytes in use
+    public void gauge(String name, String help, double value, String... labels) {
+        sample(family(name, "gauge", help), name, labels, null, value);
+    }
+
+    // the buckets, sum and count of a histogram, the buckets are cumulative like prometheus expects
+    public void histogram(String name, String help, Histogram histogram, String... labels) {
+        Family family = family(name, "histogram", help);
+        double[] bounds = histogram.bounds();
+        long cumulative = 0;
+        for (int i = 0; i <= bounds.length; i++) {
+            cumulative += histogram.bucketCount(i);
+            sample(family, name + "_bucket", labels, i < bounds.length ? format(bounds[i]) : "+Inf", cumulative);
+        }
+        sample(family, name + "_sum", labels, null, histogram.sumSeconds());
+        sample(family, name + "_count", labels, null, cumulative);
+    }
+
+    public String text() {
+        StringBuilder text = new StringBuilder();
+        families.forEach((name, family) -> {
+            text.append("# HELP ").append(name).append(' ').append(family.help().replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+            text.append("# TYPE ").append(name).append(' ').append(family.type()).append('\n');
+            text.append(family.samples());
+        });
+        return text.toString();
+    }
+
+    private Family family(String name, String type, String help) {
+        Family family = families.computeIfAbsent(name, key -> new Family(type, help, new StringBuilder()));
+        if (!family.type().equals(type)) {
+            throw new IllegalArgumentException(name + " is already a " + family.type());
+        }
+        return family;
+    }
+
+    private static void sample(Family family, String name, String[] labels, String le, double value) {
+        StringBuilder samples = family.samples();
+        samples.append(name);
+        if (labels.length > 0 || le != null) {
+            samples.append('{');
+            for (int i = 0; i + 1 < labels.length; i += 2) {
+                samples.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append("\",");
+            }
+            if (le != null) {
+                samples.append("le=\"").append(le).append("\",");
+            }
+            samples.setCharAt(samples.length() - 1, '}');
+        }
+        samples.append(' ').append(format(value)).append('\n');
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+}
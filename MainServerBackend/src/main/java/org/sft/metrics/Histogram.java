@@ -0,0 +1,59 @@
+package org.sft.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// how long something took, counted into fixed buckets the way prometheus expects a histogram
+// recording is a short scan over the bucket bounds and two atomic adds, it never allocates and never locks,
+// so it can stay on for every request
+public final class Histogram {
+
+    // upper bounds in seconds for request latencies, from 1 ms to a minute
+    public static final double[] REQUEST_SECONDS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+    // upper bounds in seconds for files coming in over a serial link, which take a lot longer than a request
+    public static final double[] TRANSFER_SECONDS = {0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300, 600, 1800};
+
+    private final double[] bounds;
+    private final long[] boundNanos;
+    private final AtomicLongArray counts; // one more than there are bounds, the last one is +Inf
+    private final LongAdder sumNanos = new LongAdder();
+
+    // param:
+    // bounds -> upper bounds of the buckets in seconds, in increasing order
+    public Histogram(double[] bounds) {
+        this.bounds = bounds.clone();
+        this.boundNanos = new long[bounds.length];
+        for (int i = 0; i < bounds.length; i++) {
+            if (i > 0 && bounds[i] <= bounds[i - 1]) {
+                throw new IllegalArgumentException("Bucket bounds must increase: " + bounds[i - 1] + ", " + bounds[i]);
+            }
+            boundNanos[i] = Math.round(bounds[i] * 1e9);
+        }
+        this.counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    // function to count one duration
+    public void recordNanos(long nanos) {
+        int bucket = 0;
+        while (bucket < boundNanos.length && nanos > boundNanos[bucket]) {
+            bucket++;
+        }
+        counts.incrementAndGet(bucket);
+        sumNanos.add(nanos);
+    }
+
+    double[] bounds() {
+        return bounds;
+    }
+
+    // how many durations fell into the bucket, not counting the ones below it
+    long bucketCount(int bucket) {
+        return counts.get(bucket);
+    }
+
+    double sumSeconds() {
+        return sumNanos.sum() / 1e9;
+    }
+
+}
@@ -0,0 +1,97 @@
+package org.sft.metrics;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+// the counters and histograms of the whole application, written out by /metrics
+// there are two ways to show up there:
+// - counters and histograms made here once (eg. per endpoint or per port) and then updated on the hot path,
+//   which only touches atomics
+// - collectors, called on every scrape to write numbers the code already keeps anyway (eg. the serial receivers'
+//   byte counts), so those cost nothing between scrapes
+public final class Metrics {
+
+    private record Instrument(String name, String help, String[] labels, Object value) {
+    }
+
+    private static volatile Metrics shared;
+
+    private final Map<String, Instrument> instruments = new ConcurrentHashMap<>();
+    private final List<Consumer<Exposition>> collectors = new CopyOnWriteArrayList<>();
+
+    // function to get the registry of the application, it already knows about the jvm's memory
+    public static Metrics shared() {
+        if (shared == null) {
+            synchronized (Metrics.class) {
+                if (shared == null) {
+                    Metrics metrics = new Metrics();
+                    metrics.collector(Metrics::collectMemory);
+                    shared = metrics;
+                }
+            }
+        }
+        return shared;
+    }
+
+    // function to get the counter with that name and labels, made the first time it is asked for
+    // keep the returned counter instead of asking again for every event
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) instruments.computeIfAbsent(key(name, labels), key -> new Instrument(name, help, labels, new Counter())).value();
+    }
+
+    // function to get the histogram with that name and labels, made with the given bucket bounds the first time
+    public Histogram histogram(String name, String help, double[] bounds, String... labels) {
+        return (Histogram) instruments.computeIfAbsent(key(name, labels), key -> new Instrument(name, help, labels, new Histogram(bounds))).value();
+    }
+
+    // function to add numbers to every scrape, the collector must be quick and must not block
+    public void collector(Consumer<Exposition> collector) {
+        collectors.add(collector);
+    }
+
+    // function to write everything in the prometheus text format
+    public String scrape() {
+        Exposition exposition = new Exposition();
+        for (Instrument instrument : new TreeMap<>(instruments).values()) { // the same order on every scrape
+            if (instrument.value() instanceof Counter counter) {
+                exposition.counter(instrument.name(), instrument.help(), counter.get(), instrument.labels());
+            } else {
+                exposition.histogram(instrument.name(), instrument.help(), (Histogram) instrument.value(), instrument.labels());
+            }
+        }
+        for (Consumer<Exposition> collector : collectors) {
+            collector.accept(exposition);
+        }
+        return exposition.text();
+    }
+
+    private static String key(String name, String[] labels) {
+        return name + Arrays.toString(labels);
+    }
+
+    // heap and the memory outside of it, direct buffers are where the download cache and the upload buffers live
+    private static void collectMemory(Exposition out) {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        MemoryUsage nonHeap = ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage();
+        out.gauge("sft_jvm_memory_used_bytes", "Memory in use", heap.getUsed(), "area", "heap");
+        out.gauge("sft_jvm_memory_used_bytes", "Memory in use", nonHeap.getUsed(), "area", "nonheap");
+        out.gauge("sft_jvm_memory_committed_bytes", "Memory the operating system has given the jvm", heap.getCommitted(), "area", "heap");
+        out.gauge("sft_jvm_memory_committed_bytes", "Memory the operating system has given the jvm", nonHeap.getCommitted(), "area", "nonheap");
+        out.gauge("sft_jvm_memory_max_bytes", "Most memory the jvm may use, -1 if there is no limit", heap.getMax(), "area", "heap");
+
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            out.gauge("sft_jvm_buffer_pool_used_bytes", "Memory used by direct and mapped buffers", pool.getMemoryUsed(), "pool", pool.getName());
+            out.gauge("sft_jvm_buffer_pool_capacity_bytes", "Capacity of direct and mapped buffers", pool.getTotalCapacity(), "pool", pool.getName());
+            out.gauge("sft_jvm_buffer_pool_buffers", "Number of direct and mapped buffers", pool.getCount(), "pool", pool.getName());
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+package org.sft.metrics;
+
+import jakarta.servlet.ServletException;
+import org.apache.catalina.AccessLog;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+import org.springframework.web.servlet.HandlerMapping;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// counts every request the server answers, per endpoint: requests by status, errors, bytes in and out and how long it took
+// tomcat calls it like an access log, once the response is completely written, so a /files/downloadAll that keeps
+// streaming after its handler returned is measured up to its last byte
+// the endpoint is the mapping spring picked, eg. /files/download or /serial/ports/{port}, so a url with a different
+// query or path variable doesn't make a new series; requests no handler matched count as "other", and so do methods
+// outside the standard http ones, a client can send any token as the method
+// the counters of an endpoint are made on its first request, after that recording only adds to atomics
+public class RequestMetricsValve extends ValveBase implements AccessLog {
+
+    // request attributes tomcat uses for its sendfile support (see org.apache.catalina.Globals), the bytes it sends
+    // that way never go through the response buffer, so they have to be counted from the requested range
+    private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+    private static final String OTHER = "other";
+    private static final Set<String> METHODS = Set.of("GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "PATCH", "TRACE");
+
+    private record Endpoint(Counter[] byStatus, Counter errors, Counter bytesIn, Counter bytesOut, Histogram duration) {
+    }
+
+    private final Metrics metrics;
+    private final Map<String, Map<String, Endpoint>> endpoints = new ConcurrentHashMap<>(); // mapping -> method -> counters
+
+    public RequestMetricsValve(Metrics metrics) {
+        super(true);
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        getNext().invoke(request, response);
+    }
+
+    // param:
+    // time -> nanoseconds from when tomcat started reading the request until the response was finished
+    @Override
+    public void log(Request request, Response response, long time) {
+        Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        Endpoint endpoint = endpoint(pattern instanceof String mapping ? mapping : OTHER, METHODS.contains(request.getMethod()) ? request.getMethod() : OTHER);
+
+        int status = response.getStatus();
+        endpoint.byStatus()[Math.min(Math.max(status / 100, 1), 5)].increment();
+        if (status >= 400 || response.isError()) {
+            endpoint.errors().increment();
+        }
+        endpoint.bytesIn().add(request.getCoyoteRequest().getBytesRead());
+        long written = response.getBytesWritten(false);
+        if (request.getAttribute(SENDFILE_END_ATTR) instanceof Long end && request.getAttribute(SENDFILE_START_ATTR) instanceof Long start) {
+            written += end - start;
+        }
+        endpoint.bytesOut().add(written);
+        endpoint.duration().recordNanos(time);
+    }
+
+    private Endpoint endpoint(String mapping, String method) {
+        Map<String, Endpoint> byMethod = endpoints.get(mapping);
+        Endpoint endpoint = byMethod != null ? byMethod.get(method) : null;
+        if (endpoint == null) {
+            endpoint = endpoints.computeIfAbsent(mapping, key -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(method, key -> newEndpoint(mapping, method));
+        }
+        return endpoint;
+    }
+
+    private Endpoint newEndpoint(String mapping, String method) {
+        Counter[] byStatus = new Counter[6];
+        for (int i = 1; i <= 5; i++) {
+            byStatus[i] = metrics.counter("sft_http_requests_total", "Requests answered",
+                    "endpoint", mapping, "method", method, "status", i + "xx");
+        }
+        return new Endpoint(byStatus,
+                metrics.counter("sft_http_request_errors_total", "Requests answered with a 4xx or 5xx status", "endpoint", mapping, "method", method),
+                metrics.counter("sft_http_received_bytes_total", "Request body bytes read", "endpoint", mapping, "method", method),
+                metrics.counter("sft_http_sent_bytes_total", "Response body bytes written", "endpoint", mapping, "method", method),
+                metrics.histogram("sft_http_request_duration_seconds", "Time from reading the request to writing the last byte of the response",
+                        Histogram.REQUEST_SECONDS, "endpoint", mapping, "method", method));
+    }
+
+    @Override
+    public void setRequestAttributesEnabled(boolean requestAttributesEnabled) {
+        // we don't log addresses, so there is nothing to take from request attributes
+    }
+
+    @Override
+    public boolean getRequestAttributesEnabled() {
+        return false;
+    }
+
+}
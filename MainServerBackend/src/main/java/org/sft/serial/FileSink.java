@@ -0,0 +1,87 @@
+package org.sft.serial;
+
+import org.sft.metrics.Histogram;
+import org.sft.storage.StorageEngine;
+import org.sft.storage.BlobWriter;
+
+import java.io.IOException;
+
+// where the serial receivers put the files they receive
+// the receivers only parse the protocol, so the same parsing can save into a folder of the storage engine on the server,
+// or count and throw the bytes away when its speed is measured without a disk in the way
+public interface FileSink {
+
+    // what happened to a saved file
+    // param:
+    // size -> bytes in the file
+    // duplicate -> the same content was already stored, so nothing new had to be written
+    record Saved(long size, boolean duplicate) {
+    }
+
+    // a file that is being received, close throws away whatever was written unless it was saved
+    interface ReceivedFile extends AutoCloseable {
+
+        void write(byte[] b, int off, int len) throws IOException;
+
+        // function to keep the file under the given name
+        // throws IllegalArgumentException if the name can't be used
+        Saved save(String name) throws IOException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    ReceivedFile newFile() throws IOException;
+
+    // function to get a sink that saves into this one and records how long every saved file took to come in,
+    // from its first byte until it was saved, files that are thrown away are not counted
+    default FileSink timed(Histogram receiveTime) {
+        return () -> {
+            long started = System.nanoTime();
+            ReceivedFile file = newFile();
+            return new ReceivedFile() {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    file.write(b, off, len);
+                }
+
+                @Override
+                public Saved save(String name) throws IOException {
+                    Saved saved = file.save(name);
+                    receiveTime.recordNanos(System.nanoTime() - started);
+                    return saved;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    file.close();
+                }
+            };
+        };
+    }
+
+    // function to get a sink that saves into a folder of the storage engine
+    static FileSink folder(StorageEngine storage, String folderId) {
+        return () -> {
+            BlobWriter writer = storage.newWriter();
+            return new ReceivedFile() {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    writer.write(b, off, len);
+                }
+
+                @Override
+                public Saved save(String name) throws IOException {
+                    StorageEngine.StoredFile stored = storage.commit(writer, folderId, name);
+                    return new Saved(stored.size(), stored.duplicate());
+                }
+
+                @Override
+                public void close() throws IOException {
+                    writer.close(); // does nothing once the writer was committed
+                }
+            };
+        };
+    }
+
+}
@@ -0,0 +1,373 @@
+package org.sft.serial;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+// receives files over serial with the framed binary protocol (version 1)
+// the text protocol (TRANSFER_START, FILE_START:, FILE_SIZE: lines) has no checksum, so one lost byte makes every file
+// after it come out wrong, here every frame carries a crc and a sequence number and only the frames that got damaged
+// are sent again while the device keeps sending the ones after them
+//
+// every frame, in both directions, looks like this (numbers are big endian):
+//   0xA5 0x5A | version (1 byte) | type (1 byte) | sequence (4 bytes) | payload length (2 bytes) | payload | crc32 (4 bytes)
+// the crc covers everything from the version up to the end of the payload
+//
+// device -> server, sequence numbers start at 0 and go up by one per frame:
+//   HELLO        payload: window (1 byte), max payload length (2 bytes)
+//   FILE_START   payload: file size (8 bytes), file name (utf-8)
+//   DATA         payload: the next bytes of the file
+//   FILE_END     no payload
+//   TRANSFER_END no payload
+// server -> device, no payload:
+//   ACK n -> every frame before n has arrived, the device can forget about them
+//   NAK n -> frame n was lost or damaged, send it again
+// the device may have up to "window" frames sent but not yet acknowledged, frames after a missing one are kept by the
+// server until the missing one arrives, so only that one has to be resent
+public class FramedReceiver {
+
+    public static final int MAGIC_0 = 0xA5;
+    public static final int MAGIC_1 = 0x5A;
+    public static final int VERSION = 1;
+
+    static final int HELLO = 0;
+    static final int FILE_START = 1;
+    static final int DATA = 2;
+    static final int FILE_END = 3;
+    static final int TRANSFER_END = 4;
+    static final int ACK = 0x10;
+    static final int NAK = 0x11;
+
+    static final int HEADER_LENGTH = 10;
+    static final int CRC_LENGTH = 4;
+    static final int MAX_WINDOW = 64;
+
+    // read timeouts in a row (5 seconds each on the port) before we give up on the device
+    private static final int MAX_TIMEOUTS = 6;
+
+    // the payload is offset..offset+length of data, which is the receive buffer until the frame is kept for later
+    private record Frame(int type, int sequence, byte[] data, int offset, int length) {
+
+        // the frame with its own copy of the payload, for keeping it while later frames are read
+        Frame detach() {
+            return new Frame(type, sequence, Arrays.copyOfRange(data, offset, offset + length), 0, length);
+        }
+    }
+
+    private final InputStream input;
+    private final OutputStream acks;
+    private final FileSink sink;
+    private final Consumer<String> log;
+
+    // bytes read from the port but not parsed yet, a damaged frame makes us look for the next frame start inside it
+    // it holds two frames of the largest size the device announced, so it only grows if the device asks for big frames
+    private byte[] buffer = new byte[bufferSize(1024)];
+    private int start;
+    private int end;
+    private final CRC32 crc = new CRC32();
+
+    private int window = 8;
+    private int maxPayload = 1024;
+    private int nextSequence;
+    private final Map<Integer, Frame> early = new HashMap<>(); // arrived while a frame before them is still missing
+    private final Set<Integer> nakSent = new HashSet<>();
+
+    private FileSink.ReceivedFile currentFile;
+    private String filename;
+    private long fileSize;
+    private long fileReceived;
+
+    // read by /metrics while the transfer goes on, written only by the receiving thread
+    private volatile long damagedFrames;
+    private volatile long resentRequests;
+    private long filesReceived;
+    private long bytesReceived;
+
+    // param:
+    // input -> bytes from the device, positioned at the start of the first frame
+    // acks -> where ACK and NAK frames for the device are written
+    // sink -> where received files are saved
+    // log -> progress messages for the user
+    public FramedReceiver(InputStream input, OutputStream acks, FileSink sink, Consumer<String> log) {
+        this.input = input;
+        this.acks = acks;
+        this.sink = sink;
+        this.log = log;
+    }
+
+    public long filesReceived() {
+        return filesReceived;
+    }
+
+    public long bytesReceived() {
+        return bytesReceived;
+    }
+
+    // frames that failed their crc check or had a broken header
+    public long damagedFrames() {
+        return damagedFrames;
+    }
+
+    // NAKs sent to ask for a frame again
+    public long resentRequests() {
+        return resentRequests;
+    }
+
+    // function to receive files until the device sends TRANSFER_END
+    public void run() throws IOException {
+        try {
+            int timeouts = 0;
+            int unacknowledged = 0;
+            while (true) {
+                Frame frame;
+                try {
+                    frame = readFrame();
+                    timeouts = 0;
+                } catch (InterruptedIOException e) {
+                    // nothing arrived for a while, maybe our last ACK or the device's next frame got lost
+                    if (++timeouts > MAX_TIMEOUTS) {
+                        throw new IOException("Device stopped sending");
+                    }
+                    sendNak(nextSequence);
+                    continue;
+                }
+                if (frame == null) {
+                    throw new EOFException("Unexpected end of stream while file was being transferred!");
+                }
+
+                int ahead = frame.sequence() - nextSequence; // overflow safe distance from the frame we are waiting for
+                if (ahead < 0) {
+                    // sent again because our ACK got lost, tell the device again how far we are
+                    sendAck(nextSequence);
+                    continue;
+                }
+                if (ahead >= window) {
+                    continue; // the device can't have sent this yet, must be garbage that happened to pass the crc
+                }
+                if (ahead > 0) {
+                    // frames before this one are missing, keep it and ask for the missing ones once each
+                    if (!early.containsKey(frame.sequence())) {
+                        early.put(frame.sequence(), frame.detach()); // the buffer is reused for the next frames
+                    }
+                    for (int missing = nextSequence; missing != frame.sequence(); missing++) {
+                        if (!early.containsKey(missing) && nakSent.add(missing)) {
+                            sendNak(missing);
+                        }
+                    }
+                    continue;
+                }
+
+                // the frame we were waiting for, deliver it and every frame that was waiting on it
+                // the maps are empty unless frames got lost, checking that first saves boxing a number for every frame
+                boolean finished = deliver(frame);
+                if (!nakSent.isEmpty()) {
+                    nakSent.remove(nextSequence);
+                }
+                nextSequence++;
+                unacknowledged++;
+                while (!finished && !early.isEmpty() && (frame = early.remove(nextSequence)) != null) {
+                    finished = deliver(frame);
+                    nakSent.remove(nextSequence);
+                    nextSequence++;
+                    unacknowledged++;
+                }
+
+                // acknowledge in batches while more is coming, and right away once the device has to wait for us
+                if (finished || unacknowledged >= Math.max(1, window / 2) || (end == start && input.available() == 0)) {
+                    sendAck(nextSequence);
+                    unacknowledged = 0;
+                }
+                if (finished) {
+                    log.accept("Transfer complete. (" + damagedFrames + " damaged frames, " + resentRequests + " resend requests)");
+                    return;
+                }
+            }
+        } finally {
+            if (currentFile != null) {
+                currentFile.close(); // throw away a file that didn't finish
+            }
+        }
+    }
+
+    // returns true once the transfer is over
+    private boolean deliver(Frame frame) throws IOException {
+        byte[] data = frame.data();
+        int offset = frame.offset();
+        int length = frame.length();
+        switch (frame.type()) {
+            case HELLO -> {
+                if (length >= 3) {
+                    window = Math.max(1, Math.min(data[offset] & 0xFF, MAX_WINDOW));
+                    maxPayload = Math.max(1, ((data[offset + 1] & 0xFF) << 8) | (data[offset + 2] & 0xFF));
+                    if (bufferSize(maxPayload) > buffer.length) {
+                        byte[] larger = new byte[bufferSize(maxPayload)];
+                        System.arraycopy(buffer, start, larger, 0, end - start);
+                        end -= start;
+                        start = 0;
+                        buffer = larger;
+                    }
+                }
+                log.accept("Starting framed file transfer... (window " + window + ", frames up to " + maxPayload + " bytes)");
+            }
+            case FILE_START -> {
+                if (currentFile != null) {
+                    log.accept("File " + filename + " ended early, discarded.");
+                    currentFile.close();
+                }
+                if (length < 8) {
+                    throw new IOException("File start frame without a file size");
+                }
+                fileSize = ByteBuffer.wrap(data, offset, 8).getLong();
+                fileReceived = 0;
+                filename = new String(data, offset + 8, length - 8, StandardCharsets.UTF_8);
+                currentFile = sink.newFile();
+                log.accept("Receiving " + filename + "...");
+            }
+            case DATA -> {
+                if (currentFile == null) {
+                    throw new IOException("Data frame outside of a file");
+                }
+                currentFile.write(data, offset, length);
+                fileReceived += length;
+            }
+            case FILE_END -> {
+                if (currentFile == null) {
+                    throw new IOException("File end frame outside of a file");
+                }
+                FileSink.ReceivedFile file = currentFile;
+                currentFile = null;
+                if (fileReceived != fileSize) {
+                    log.accept("File " + filename + " has " + fileReceived + " bytes, expected " + fileSize + ", discarded.");
+                    file.close();
+                } else {
+                    try {
+                        FileSink.Saved stored = file.save(filename);
+                        filesReceived++;
+                        bytesReceived += stored.size();
+                        log.accept(stored.duplicate() ? "File received successfully (same content already stored)." : "File received successfully.");
+                    } catch (IllegalArgumentException e) {
+                        log.accept("File " + filename + " not saved: " + e.getMessage());
+                        file.close();
+                    }
+                }
+            }
+            case TRANSFER_END -> {
+                return true;
+            }
+            default -> throw new IOException("Unknown frame type " + frame.type());
+        }
+        return false;
+    }
+
+    // function to read the next intact frame, skipping over anything damaged
+    // returns null at the end of the stream
+    private Frame readFrame() throws IOException {
+        while (true) {
+            if (!fill(2)) {
+                return null;
+            }
+            if ((buffer[start] & 0xFF) != MAGIC_0 || (buffer[start + 1] & 0xFF) != MAGIC_1) {
+                start++; // not the start of a frame, keep looking
+                continue;
+            }
+            if (!fill(HEADER_LENGTH)) {
+                return null;
+            }
+
+            int version = buffer[start + 2] & 0xFF;
+            int type = buffer[start + 3] & 0xFF;
+            int sequence = readInt(buffer, start + 4);
+            int length = ((buffer[start + 8] & 0xFF) << 8) | (buffer[start + 9] & 0xFF);
+            if (version != VERSION || length > Math.max(maxPayload, 16)) {
+                start++; // a damaged header, or magic bytes inside some other frame's data
+                continue;
+            }
+
+            int frameLength = HEADER_LENGTH + length + CRC_LENGTH;
+            if (!fill(frameLength)) {
+                return null;
+            }
+
+            crc.reset();
+            crc.update(buffer, start + 2, HEADER_LENGTH - 2 + length);
+            int expected = readInt(buffer, start + HEADER_LENGTH + length);
+            if ((int) crc.getValue() != expected) {
+                // damaged somewhere, the real next frame may start anywhere inside this one
+                // we can't trust its sequence number, the gap it leaves is noticed when the frame after it arrives
+                damagedFrames++;
+                start++;
+                continue;
+            }
+
+            Frame frame = new Frame(type, sequence, buffer, start + HEADER_LENGTH, length);
+            start += frameLength;
+            return frame;
+        }
+    }
+
+    // makes sure at least count unparsed bytes are in the buffer, false at the end of the stream
+    private boolean fill(int count) throws IOException {
+        if (end - start >= count) {
+            return true;
+        }
+        if (start + count > buffer.length) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        while (end - start < count) {
+            int read = input.read(buffer, end, buffer.length - end);
+            if (read == -1) {
+                return false;
+            }
+            end += read;
+        }
+        return true;
+    }
+
+    private static int readInt(byte[] b, int offset) {
+        return ((b[offset] & 0xFF) << 24) | ((b[offset + 1] & 0xFF) << 16) | ((b[offset + 2] & 0xFF) << 8) | (b[offset + 3] & 0xFF);
+    }
+
+    // room for two frames, so a frame that turns out damaged can be searched for the start of the next one
+    private static int bufferSize(int maxPayload) {
+        return 2 * (HEADER_LENGTH + Math.max(maxPayload, 16) + CRC_LENGTH);
+    }
+
+    private void sendAck(int sequence) throws IOException {
+        sendControl(ACK, sequence);
+    }
+
+    private void sendNak(int sequence) throws IOException {
+        resentRequests++;
+        sendControl(NAK, sequence);
+    }
+
+    private void sendControl(int type, int sequence) throws IOException {
+        acks.write(encode(type, sequence, new byte[0], 0, 0, crc));
+        acks.flush();
+    }
+
+    // function to build a frame, for our ACKs and NAKs and for anything that has to talk to us like a device does
+    static byte[] encode(int type, int sequence, byte[] payload, int offset, int length, CRC32 crc) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + length + CRC_LENGTH);
+        frame.put((byte) MAGIC_0).put((byte) MAGIC_1).put((byte) VERSION).put((byte) type).putInt(sequence).putShort((short) length);
+        frame.put(payload, offset, length);
+        crc.reset();
+        crc.update(frame.array(), 2, HEADER_LENGTH - 2 + length);
+        frame.putInt((int) crc.getValue());
+        return frame.array();
+    }
+
+}
@@ -0,0 +1,347 @@
+package org.sft.serial;
+
+import com.fazecast.jSerialComm.SerialPort;
+import org.sft.concurrent.Workers;
+import org.sft.config.Settings;
+import org.sft.metrics.Exposition;
+import org.sft.metrics.Histogram;
+import org.sft.metrics.Metrics;
+import org.sft.storage.StorageEngine;
+
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+// receives files from any number of serial ports at the same time, every port into its own folder
+// each assigned port gets its own background job, pipeline and protocol state, so one port failing or being unplugged
+// doesn't touch the others
+// the list of ports is scanned again every files.serial.rescan-interval, assigned ports that (re)appear are started
+// and ports that failed are retried, so devices can be plugged in and out while the server runs
+// ports can be assigned from the serial tab, or up front with files.serial.ports (port name -> folder id)
+public class SerialIngestManager {
+
+    public enum State {
+        WAITING, // assigned, but the port isn't there (or failed and waits to be retried)
+        LISTENING, // port open, waiting for the device to start a transfer
+        RECEIVING, // a transfer is going on
+        ERROR // the last attempt failed, see lastError
+    }
+
+    // what one port is doing, as returned by /serial/ports
+    public record PortStatus(String port, String folderId, State state, long filesReceived, long bytesReceived,
+                             long lastBytesPerSecond, long errors, String lastError, SerialPipeline.Stats pipeline) {
+    }
+
+    // make the port time out after 5 seconds of no received message via the COM port
+    private static final int READ_TIMEOUT_MILLIS = 5000;
+
+    private static volatile SerialIngestManager shared;
+
+    private final StorageEngine storage;
+    private final int baudRate;
+    private final Duration rescanInterval;
+
+    private final Map<String, PortIngest> ingests = new ConcurrentHashMap<>();
+    private final AtomicBoolean rescanning = new AtomicBoolean();
+    private volatile List<String> availablePorts = List.of();
+
+    private volatile Consumer<String> log = System.out::println;
+    private volatile Consumer<List<String>> portsChanged = ports -> {
+    };
+
+    // function to get the manager configured by files.serial.baud-rate, files.serial.rescan-interval and files.serial.ports
+    public static SerialIngestManager shared() {
+        if (shared == null) {
+            synchronized (SerialIngestManager.class) {
+                if (shared == null) {
+                    SerialIngestManager manager = new SerialIngestManager(StorageEngine.shared(),
+                            Settings.get("files.serial.baud-rate", Integer.class, 921600),
+                            Settings.get("files.serial.rescan-interval", Duration.class, Duration.ofSeconds(5)));
+                    Settings.getMap("files.serial.ports").forEach(manager::assign);
+                    Metrics.shared().collector(manager::collect);
+                    shared = manager;
+                }
+            }
+        }
+        return shared;
+    }
+
+    public SerialIngestManager(StorageEngine storage, int baudRate, Duration rescanInterval) {
+        this.storage = storage;
+        this.baudRate = baudRate;
+        this.rescanInterval = rescanInterval;
+    }
+
+    // function to set where progress messages go, every message starts with the port name
+    public void setLog(Consumer<String> log) {
+        this.log = log;
+    }
+
+    // function to be told whenever ports are plugged in or out, called with the names of all ports there are now
+    public void onPortsChanged(Consumer<List<String>> listener) {
+        this.portsChanged = listener;
+    }
+
+    // names of the ports found by the last scan
+    public List<String> availablePorts() {
+        if (availablePorts.isEmpty()) {
+            scanPorts();
+        }
+        return availablePorts;
+    }
+
+    // function to receive everything a port sends into a folder, from now on and whenever the port comes back
+    // a port that was already assigned is stopped and started again with the new folder
+    public void assign(String portName, String folderId) {
+        if (portName == null || portName.isBlank() || folderId == null || folderId.isBlank()) {
+            throw new IllegalArgumentException("A port name and folder id are required");
+        }
+        PortIngest previous = ingests.put(portName, new PortIngest(portName, folderId.trim()));
+        if (previous != null) {
+            previous.stop();
+        }
+        startRescanning();
+        rescan();
+    }
+
+    // function to stop receiving from a port
+    // returns false if the port wasn't assigned
+    public boolean unassign(String portName) {
+        PortIngest ingest = ingests.remove(portName);
+        if (ingest == null) {
+            return false;
+        }
+        ingest.stop();
+        return true;
+    }
+
+    public List<PortStatus> status() {
+        List<PortStatus> status = new ArrayList<>();
+        for (PortIngest ingest : ingests.values()) {
+            status.add(ingest.status());
+        }
+        status.sort(Comparator.comparing(PortStatus::port));
+        return status;
+    }
+
+    // function to write the counters of every assigned port for /metrics, they are kept by the receivers anyway,
+    // so nothing extra happens per byte
+    public void collect(Exposition out) {
+        for (PortIngest ingest : ingests.values()) {
+            String port = ingest.portName;
+            SerialPipeline current = ingest.pipeline;
+            SerialPipeline.Stats pipelineStats = current != null ? current.stats() : null;
+            long linkBytes = ingest.linkBytes + (pipelineStats != null ? pipelineStats.bytesRead() : 0);
+            long stalls = ingest.stalls + (pipelineStats != null ? pipelineStats.stalls() : 0);
+
+            out.counter("sft_serial_link_bytes_total", "Bytes read from the serial port, including protocol overhead", linkBytes, "port", port);
+            out.counter("sft_serial_file_bytes_total", "Bytes of the files received", ingest.receiver.bytesReceived(), "port", port);
+            out.counter("sft_serial_files_total", "Files received and saved", ingest.receiver.filesReceived(), "port", port);
+            out.counter("sft_serial_damaged_frames_total", "Frames of the framed protocol that arrived damaged", ingest.receiver.damagedFrames(), "port", port);
+            out.counter("sft_serial_resend_requests_total", "Frames the device was asked to send again", ingest.receiver.resentRequests(), "port", port);
+            out.counter("sft_serial_port_errors_total", "Times the port failed to open or receiving from it failed", ingest.errors, "port", port);
+            out.counter("sft_serial_reader_stalls_total", "Times the port reader had to wait for the disk", stalls, "port", port);
+            out.gauge("sft_serial_last_transfer_bytes_per_second", "File bytes per second of the last finished transfer", ingest.receiver.lastBytesPerSecond(), "port", port);
+            out.gauge("sft_serial_receiving", "1 while a transfer is going on", ingest.receiver.isReceiving() ? 1 : 0, "port", port);
+        }
+    }
+
+    private void startRescanning() {
+        if (rescanning.compareAndSet(false, true)) {
+            try {
+                Workers.shared().start("serial-rescan", () -> {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        try {
+                            Thread.sleep(rescanInterval.toMillis());
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        rescan();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                rescanning.set(false);
+                log.accept("Could not start watching for serial ports: " + e.getMessage());
+            }
+        }
+    }
+
+    // function to look for new and removed ports and start every assigned port that is there but not running
+    private synchronized void rescan() {
+        List<String> present = scanPorts();
+        for (PortIngest ingest : ingests.values()) {
+            if (present.contains(ingest.portName)) {
+                ingest.start();
+            }
+        }
+    }
+
+    private synchronized List<String> scanPorts() {
+        List<String> present = new ArrayList<>();
+        for (SerialPort port : SerialPort.getCommPorts()) {
+            present.add(port.getSystemPortName());
+        }
+        Collections.sort(present);
+
+        if (!present.equals(availablePorts)) {
+            for (String name : present) {
+                if (!availablePorts.contains(name)) {
+                    log.accept("[" + name + "] Port connected.");
+                }
+            }
+            for (String name : availablePorts) {
+                if (!present.contains(name)) {
+                    log.accept("[" + name + "] Port disconnected.");
+                }
+            }
+            availablePorts = List.copyOf(present);
+            portsChanged.accept(availablePorts);
+        }
+        return present;
+    }
+
+    // one assigned port: opens it, receives transfers until it fails or is stopped, and can be started again after that
+    private final class PortIngest {
+
+        private final String portName;
+        private final String folderId;
+        private final SerialReceiver receiver;
+        private final AtomicBoolean running = new AtomicBoolean();
+
+        // of pipelines that were closed, the open one is asked directly
+        private volatile long linkBytes;
+        private volatile long stalls;
+
+        private volatile boolean stopped;
+        private volatile State state = State.WAITING;
+        private volatile SerialPort port;
+        private volatile SerialPipeline pipeline;
+        private volatile SerialPipeline.Stats lastPipelineStats;
+        private volatile long errors;
+        private volatile String lastError;
+
+        PortIngest(String portName, String folderId) {
+            this.portName = portName;
+            this.folderId = folderId;
+            Histogram receiveTime = Metrics.shared().histogram("sft_serial_file_receive_seconds",
+                    "Time from the first byte of a file to it being saved", Histogram.TRANSFER_SECONDS, "port", portName);
+            this.receiver = new SerialReceiver(FileSink.folder(storage, folderId).timed(receiveTime), this::log);
+        }
+
+        void start() {
+            if (stopped || !running.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                Workers.shared().start("serial-" + portName, this::run);
+            } catch (RejectedExecutionException e) {
+                running.set(false);
+                failed("Could not start receiving: " + e.getMessage());
+            }
+        }
+
+        void stop() {
+            stopped = true;
+            SerialPort open = port;
+            if (open != null) {
+                open.closePort(); // wakes up the reader, which ends the receiving
+            }
+        }
+
+        PortStatus status() {
+            SerialPipeline current = pipeline;
+            State currentState = receiver.isReceiving() ? State.RECEIVING : state;
+            return new PortStatus(portName, folderId, currentState, receiver.filesReceived(), receiver.bytesReceived(),
+                    receiver.lastBytesPerSecond(), errors, lastError, current != null ? current.stats() : lastPipelineStats);
+        }
+
+        private void run() {
+            try {
+                // we get the serial port based on its name
+                SerialPort serialPort = SerialPort.getCommPort(portName);
+                serialPort.setBaudRate(baudRate); // set its baud rate
+                serialPort.setNumDataBits(8); // set the size of each character transmitted to be 8 bits (compatible with esp8266)
+                serialPort.setNumStopBits(SerialPort.ONE_STOP_BIT); // 1 stop bit (bits that represent that a character has been sent)
+                serialPort.setParity(SerialPort.NO_PARITY); // no even parity or odd parity error checking, for improving performance
+                serialPort.setComPortTimeouts(SerialPort.TIMEOUT_READ_BLOCKING, READ_TIMEOUT_MILLIS, 0);
+
+                // if cant open the port, it is tried again on the next rescan
+                if (!serialPort.openPort()) {
+                    failed("Unable to open port");
+                    return;
+                }
+                port = serialPort;
+                if (stopped) {
+                    // stopped while opening, stop() may have looked at port before it was set, so close it here or
+                    // it stays open and the port can't be opened again until the server restarts
+                    serialPort.closePort();
+                    return;
+                }
+
+                // on shutdown the port is closed, which wakes up the blocking reads
+                AutoCloseable closePort = Workers.shared().closeOnShutdown(serialPort::closePort);
+                SerialPipeline current = SerialPipeline.start(serialPort.getInputStream(), portName, READ_TIMEOUT_MILLIS);
+                pipeline = current;
+                state = State.LISTENING;
+                log("Listening, files will be saved to folder: " + folderId);
+
+                try (PushbackInputStream input = new PushbackInputStream(current.input(), 1)) {
+                    while (!stopped && receiver.receiveTransfer(input, serialPort.getOutputStream(), () -> stopped)) {
+                        // keep going, the device may start another transfer any time
+                    }
+                    if (!stopped) {
+                        failed("Port closed");
+                    }
+                } catch (IOException | RuntimeException e) {
+                    if (!stopped) {
+                        failed("Error: " + e.getMessage());
+                    }
+                } finally {
+                    current.close();
+                    serialPort.closePort();
+                    Workers.shared().closed(closePort);
+
+                    // if the reader ever had to wait for us, the disk was too slow and bytes may have been lost at the port
+                    SerialPipeline.Stats stats = current.stats();
+                    lastPipelineStats = stats;
+                    linkBytes += stats.bytesRead();
+                    this.stalls += stats.stalls();
+                    pipeline = null;
+                    log("Read " + stats.bytesRead() + " bytes, at most " + stats.maxQueueDepth() + " of " + stats.capacity()
+                            + " buffers waiting to be written, reader stalled " + stats.stalls() + " times (" + stats.stallMillis() + " ms)");
+                }
+            } catch (RuntimeException e) {
+                failed("Error: " + e.getMessage());
+            } finally {
+                port = null;
+                if (state != State.ERROR) {
+                    state = State.WAITING;
+                }
+                if (stopped) {
+                    log("Stopped.");
+                }
+                running.set(false);
+            }
+        }
+
+        private void failed(String message) {
+            errors++;
+            state = State.ERROR;
+            // a port that keeps failing is retried on every rescan, only log when something new happens
+            if (!message.equals(lastError)) {
+                log(message);
+            }
+            lastError = message;
+        }
+
+        private void log(String message) {
+            log.accept("[" + portName + "] " + message);
+        }
+    }
+
+}
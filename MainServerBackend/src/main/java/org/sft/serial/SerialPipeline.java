@@ -0,0 +1,245 @@
+package org.sft.serial;
+
+import org.sft.concurrent.SpscRing;
+import org.sft.concurrent.Workers;
+import org.sft.config.Settings;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.LockSupport;
+
+// splits receiving from a serial port into two stages so a slow disk never holds up the port:
+// - the reader stage does nothing but pull bytes off the port into buffers and queue them
+// - the protocol parsing and the writing of files happens on the caller's thread, reading from input()
+// the buffers go round in a circle (reader -> filled ring -> parser -> free ring -> reader) so nothing is allocated
+// per read, and the number of buffers bounds how far the writer can fall behind before the reader has to wait
+// if the reader ever has to wait, the operating system's serial buffer is all that is left between us and lost bytes,
+// so those stalls are counted and reported
+public class SerialPipeline implements AutoCloseable {
+
+    // what the pipeline went through, for the log and the stats
+    // param:
+    // bytesRead -> bytes taken off the port so far
+    // queueDepth, maxQueueDepth, capacity -> buffers waiting for the writer now, at most, and in total
+    // stalls, stallMillis -> times the reader had no free buffer and had to wait for the writer, and for how long
+    public record Stats(long bytesRead, int queueDepth, int maxQueueDepth, int capacity, long stalls, long stallMillis) {
+    }
+
+    private static final class Chunk {
+        final byte[] data;
+        int length;
+
+        Chunk(int size) {
+            this.data = new byte[size];
+        }
+    }
+
+    private final InputStream port;
+    private final long readTimeoutMillis;
+
+    private final SpscRing<Chunk> filled;
+    private final SpscRing<Chunk> free;
+    private final int bufferCount;
+
+    private volatile boolean closed;
+    private volatile boolean finished; // the reader stopped, whatever is still in the filled ring is the rest of the data
+    private volatile IOException failure;
+    private volatile Thread waitingConsumer;
+    private volatile Thread waitingReader;
+
+    private volatile long bytesRead;
+    private volatile int maxQueueDepth;
+    private volatile long stalls;
+    private volatile long stallNanos;
+
+    private final InputStream input = new PipelineInput();
+
+    // function to start reading a port with the buffer settings files.serial.buffer-size and files.serial.buffers
+    // param:
+    // port -> the port's input stream, read on a background job from now on
+    // name -> name of the port, for the job name
+    // readTimeoutMillis -> how long reads from input() wait for data before throwing InterruptedIOException, like the port would
+    public static SerialPipeline start(InputStream port, String name, long readTimeoutMillis) {
+        int bufferSize = (int) Settings.get("files.serial.buffer-size", DataSize.class, DataSize.ofKilobytes(16)).toBytes();
+        int bufferCount = Settings.get("files.serial.buffers", Integer.class, 64);
+        SerialPipeline pipeline = new SerialPipeline(port, bufferSize, bufferCount, readTimeoutMillis);
+        Workers.shared().startBlocking("serial-reader-" + name, pipeline::readLoop);
+        return pipeline;
+    }
+
+    SerialPipeline(InputStream port, int bufferSize, int bufferCount, long readTimeoutMillis) {
+        this.port = port;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.filled = new SpscRing<>(bufferCount);
+        this.free = new SpscRing<>(bufferCount);
+        this.bufferCount = Math.min(bufferCount, free.capacity());
+        for (int i = 0; i < this.bufferCount; i++) {
+            free.offer(new Chunk(bufferSize));
+        }
+    }
+
+    // the received bytes, in order, for the protocol parser
+    public InputStream input() {
+        return input;
+    }
+
+    public Stats stats() {
+        return new Stats(bytesRead, filled.size(), maxQueueDepth, bufferCount, stalls, stallNanos / 1_000_000);
+    }
+
+    // function to stop the reader stage, the port itself is closed by whoever opened it
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(waitingReader);
+    }
+
+    // the reader stage
+    void readLoop() {
+        Chunk spare = null;
+        try {
+            while (!closed && !Thread.currentThread().isInterrupted()) {
+                Chunk chunk = spare != null ? spare : free.poll();
+                spare = null;
+                if (chunk == null) {
+                    chunk = waitForFreeChunk();
+                    if (chunk == null) {
+                        break;
+                    }
+                }
+
+                int read;
+                try {
+                    read = port.read(chunk.data, 0, chunk.data.length);
+                } catch (InterruptedIOException e) {
+                    spare = chunk; // the port timed out with nothing to read, the parser keeps its own timeout
+                    continue;
+                }
+                if (read == -1) {
+                    break;
+                }
+                if (read == 0) {
+                    spare = chunk;
+                    continue;
+                }
+
+                chunk.length = read;
+                filled.offer(chunk); // never full, there are only as many chunks as the ring holds
+                bytesRead += read;
+                int depth = filled.size();
+                if (depth > maxQueueDepth) {
+                    maxQueueDepth = depth;
+                }
+                LockSupport.unpark(waitingConsumer);
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                failure = e;
+            }
+        } finally {
+            finished = true;
+            LockSupport.unpark(waitingConsumer);
+        }
+    }
+
+    // the writer is behind and every buffer is full, wait for it to hand one back
+    private Chunk waitForFreeChunk() {
+        stalls++;
+        long started = System.nanoTime();
+        waitingReader = Thread.currentThread();
+        try {
+            Chunk chunk;
+            while ((chunk = free.poll()) == null) {
+                if (closed || Thread.currentThread().isInterrupted()) {
+                    return null;
+                }
+                LockSupport.parkNanos(this, 1_000_000);
+            }
+            return chunk;
+        } finally {
+            waitingReader = null;
+            stallNanos += System.nanoTime() - started;
+        }
+    }
+
+    // the consumer side, reads come out of the queued buffers and finished buffers go back to the reader
+    private final class PipelineInput extends InputStream {
+
+        private Chunk current;
+        private int position;
+
+        @Override
+        public int read() throws IOException {
+            if (!ensureData()) {
+                return -1;
+            }
+            return current.data[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!ensureData()) {
+                return -1;
+            }
+            int count = Math.min(len, current.length - position);
+            System.arraycopy(current.data, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            int remaining = current == null ? 0 : current.length - position;
+            Chunk next = filled.peek();
+            return remaining + (next == null ? 0 : next.length);
+        }
+
+        // makes sure current has unread bytes, false at the end of the data
+        private boolean ensureData() throws IOException {
+            if (current != null && position < current.length) {
+                return true;
+            }
+            if (current != null) {
+                free.offer(current);
+                LockSupport.unpark(waitingReader);
+                current = null;
+            }
+
+            long deadline = System.nanoTime() + readTimeoutMillis * 1_000_000;
+            Chunk next;
+            while ((next = filled.poll()) == null) {
+                if (finished) {
+                    next = filled.poll(); // the reader may have queued a last buffer right before it stopped
+                    if (next != null) {
+                        break;
+                    }
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    return false;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new InterruptedIOException("No data from the port for " + readTimeoutMillis + " ms");
+                }
+                // the ring publishes with a release store, which doesn't order it with the reader's look at
+                // waitingConsumer, so a wakeup can be missed, the park is kept short like the reader's own wait so a
+                // missed one costs a millisecond rather than the whole read timeout
+                waitingConsumer = Thread.currentThread();
+                if (filled.peek() == null && !finished) {
+                    LockSupport.parkNanos(SerialPipeline.this, Math.min(remaining, 1_000_000));
+                }
+                waitingConsumer = null;
+            }
+            current = next;
+            position = 0;
+            return true;
+        }
+    }
+
+}
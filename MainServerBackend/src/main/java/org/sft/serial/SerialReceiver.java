@@ -0,0 +1,222 @@
+package org.sft.serial;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+// receives the transfers of one serial device into one folder, with either protocol:
+// - the text protocol: TRANSFER_START, then for every file FILE_START:name, FILE_SIZE:bytes, the bytes, FILE_END,
+//   and finally TRANSFER_END, every line ending with \n
+// - the framed binary protocol (see FramedReceiver), recognised by its first byte
+// between transfers the device may be quiet for as long as it likes, or print whatever debug lines it wants
+public class SerialReceiver {
+
+    private final FileSink sink;
+    private final Consumer<String> log;
+
+    private volatile boolean receiving;
+    private volatile long filesReceived;
+    private volatile long bytesReceived;
+    private volatile long lastBytesPerSecond;
+    private volatile long damagedFrames; // of finished framed transfers, the running one is asked directly
+    private volatile long resentRequests;
+    private volatile FramedReceiver framed; // the framed transfer going on, if any
+
+    // param:
+    // sink -> where received files are saved, usually FileSink.folder
+    // log -> progress messages for the user
+    public SerialReceiver(FileSink sink, Consumer<String> log) {
+        this.sink = sink;
+        this.log = log;
+    }
+
+    // true while a transfer is in progress
+    public boolean isReceiving() {
+        return receiving;
+    }
+
+    public long filesReceived() {
+        return filesReceived;
+    }
+
+    public long bytesReceived() {
+        return bytesReceived;
+    }
+
+    // speed of the last finished transfer, in file bytes per second
+    public long lastBytesPerSecond() {
+        return lastBytesPerSecond;
+    }
+
+    // frames of the framed protocol that arrived damaged, so far
+    public long damagedFrames() {
+        FramedReceiver current = framed;
+        return damagedFrames + (current != null ? current.damagedFrames() : 0);
+    }
+
+    // frames of the framed protocol we asked the device to send again, so far
+    public long resentRequests() {
+        FramedReceiver current = framed;
+        return resentRequests + (current != null ? current.resentRequests() : 0);
+    }
+
+    // function to wait for the next transfer and receive it
+    // param:
+    // input -> bytes from the device, its pushback buffer must have room for one byte
+    // acks -> where the framed protocol writes its acknowledgements to the device
+    // stopped -> checked while waiting for a transfer to start, waiting ends once it returns true
+    // returns false if the stream ended or we were stopped before a transfer finished
+    public boolean receiveTransfer(PushbackInputStream input, OutputStream acks, BooleanSupplier stopped) throws IOException {
+        byte[] buffer = new byte[4096]; // reused for every read of file data
+        FileSink.ReceivedFile currentFile = null; // the file being written to
+        String filename = null; // name of the file
+        int bytesRemaining = 0; // how many bytes remain to complete reading to finish writing the file
+        StringBuilder lineBuffer = new StringBuilder(); // stores characters until a line is received
+        long started = 0;
+        long transferBytes = 0;
+
+        try {
+            while (true) {
+                // if we are in the middle of file transfer
+                if (bytesRemaining > 0 && currentFile != null) {
+                    // we read the input and store it into the buffer, either all of it or however many bytes
+                    // remain if bytes remaining is less than the size of the buffer
+                    // the number of bytes read will go into read variable
+                    int read = input.read(buffer, 0, Math.min(buffer.length, bytesRemaining));
+
+                    // if while reading we get
+                    // if all bytes are read, while bytes remaining being more than 0, then something went wrong
+                    // so break of out of the loop after closing the file
+                    if (read == -1) {
+                        log.accept("Unexpected end of stream while file was being transferred!");
+                        return false;
+                    }
+
+                    // write the buffer into the file, the number of bytes is given by read
+                    currentFile.write(buffer, 0, read);
+
+                    // subtract number of files read from bytes remaining
+                    bytesRemaining -= read;
+                    transferBytes += read;
+
+                    // if bytes are read, we safely store the file, log file received, and wait for the next file
+                    if (bytesRemaining == 0) {
+                        FileSink.ReceivedFile file = currentFile;
+                        currentFile = null; // important
+                        save(file, filename);
+                    }
+                } else { // if we are not in the middle of file transfer, then file metadata like "TRANSFER_START", "FILE_SIZE" are being sent
+                    int ch;
+                    try {
+                        ch = input.read(); // read character
+                    } catch (InterruptedIOException e) {
+                        // nothing came for a while, which is fine as long as no transfer is going on
+                        if (receiving || lineBuffer.length() > 0) {
+                            throw e;
+                        }
+                        if (stopped.getAsBoolean()) {
+                            return false;
+                        }
+                        continue;
+                    }
+                    if (ch == -1) { // if character marks end of transfer something went wrong so break the loop
+                        if (receiving) {
+                            log.accept("Unexpected end of stream while file was being transferred!");
+                        }
+                        return false;
+                    }
+
+                    // a device speaking the framed binary protocol starts its frames with a byte no text line starts with
+                    // from here on everything is checked with a crc and damaged parts are sent again
+                    if (ch == FramedReceiver.MAGIC_0 && lineBuffer.length() == 0) {
+                        input.unread(ch);
+                        receiving = true;
+                        started = System.nanoTime();
+                        FramedReceiver transfer = new FramedReceiver(input, acks, sink, log);
+                        framed = transfer;
+                        try {
+                            transfer.run();
+                        } finally {
+                            framed = null;
+                            damagedFrames += transfer.damagedFrames();
+                            resentRequests += transfer.resentRequests();
+                            filesReceived += transfer.filesReceived();
+                            bytesReceived += transfer.bytesReceived();
+                        }
+                        transferBytes = transfer.bytesReceived();
+                        finished(started, transferBytes);
+                        return true;
+                    }
+
+                    // if character is a new line, we extract the line
+                    if (ch == '\n') {
+                        String line = lineBuffer.toString().trim();
+
+                        // a line is received, so set the buffer length to 0
+                        lineBuffer.setLength(0);
+
+                        // self-explanatory
+                        if (line.equals("TRANSFER_START")) {
+                            log.accept("Starting file transfer...");
+                            receiving = true;
+                            started = System.nanoTime();
+                        } else if (line.startsWith("FILE_START:")) { // finally we get the file name
+                            // get the substring from the read line which contains the file name
+                            filename = line.substring("FILE_START:".length()).trim();
+                            // log the file name
+                            log.accept("Receiving " + filename + "...");
+                        } else if (line.startsWith("FILE_SIZE:")) { // we now get the number of bytes of file
+                            // store it in bytes remaining after using to substring function to get only the number of bytes
+                            bytesRemaining = Integer.parseInt(line.substring("FILE_SIZE:".length()).trim());
+                            // make a new file in the sink to collect the data
+                            currentFile = sink.newFile();
+                            if (bytesRemaining == 0) {
+                                // an empty file, no data follows that would finish it
+                                FileSink.ReceivedFile file = currentFile;
+                                currentFile = null;
+                                save(file, filename);
+                            }
+                        } else if (line.equals("TRANSFER_END")) { // self-explanatory
+                            log.accept("Transfer complete.");
+                            finished(started, transferBytes);
+                            return true;
+                        }
+                        // FILE_END is ignored as it’s implicitly handled by size
+                    } else {
+                        // keep appending to the buffer
+                        lineBuffer.append((char) ch);
+                    }
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid file size: " + e.getMessage());
+        } finally {
+            receiving = false;
+            if (currentFile != null) {
+                currentFile.close(); // clean the file up
+            }
+        }
+    }
+
+    // stores a completely received file under its name and counts it
+    private void save(FileSink.ReceivedFile file, String filename) throws IOException {
+        try {
+            FileSink.Saved stored = file.save(filename);
+            filesReceived++;
+            bytesReceived += stored.size();
+            log.accept(stored.duplicate() ? "File received successfully (same content already stored)." : "File received successfully.");
+        } catch (IllegalArgumentException e) {
+            log.accept("File " + filename + " not saved: " + e.getMessage());
+            file.close();
+        }
+    }
+
+    private void finished(long started, long transferBytes) {
+        long nanos = Math.max(1, System.nanoTime() - started);
+        lastBytesPerSecond = transferBytes * 1_000_000_000L / nanos;
+    }
+
+}
@@ -0,0 +1,662 @@
+package org.sft.storage;
+
+import org.json.JSONObject;
+import org.sft.config.Settings;
+import org.sft.io.FileSyncer;
+import org.springframework.util.unit.DataSize;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+
+// content addressed storage for everything under uploads/
+// the bytes of every file are stored once in blobs/ under their sha-256, and each folder gets a hard link to the blob
+// under the file's name, so the same content uploaded to many folders (or many times to one folder) takes disk space once
+// folders still look like normal directories full of normal files, so everything that reads them keeps working
+// which folder file points at which blob is kept in a small journal (blobs/refs.log), a blob is deleted as soon as
+// the last name pointing at it goes away
+// files that were put in a folder some other way (before the store existed, or by hand) are left alone and just work
+// if the file system can't do hard links (eg. a FAT formatted usb stick), the blob is copied into the folder instead
+// a blob can have variants next to it (eg. <hash>.gz, a compressed copy), they belong to the content rather than to any
+// folder file and are deleted together with the blob
+// a blob moved to cold storage is truncated to nothing, which empties every folder file hard linked to it at once, and
+// only its <hash>.zst variant is kept, an empty folder file whose blob is cold is read from that copy instead
+// when a folder file was last opened is its access time, set by the store since many disks are mounted noatime
+// this is the DIRECTORY storage engine, see StorageEngine
+public class BlobStore implements StorageEngine {
+
+    private record FileKey(String folderId, String name) {
+    }
+
+    // the access time of a file is only written when it is at least this old, so a popular file doesn't cost a write
+    // for every download
+    private static final long ACCESS_TIME_RESOLUTION = Duration.ofHours(1).toMillis();
+
+    private static volatile BlobStore shared;
+
+    private final Path uploadsDir;
+    private final Path blobDir;
+    private final Path tempDir;
+    private final Path journalPath;
+    private final FileSyncer fileSyncer;
+    private final int memoryThreshold;
+
+    // (folder id, file name) -> blob hash, and how many names point at every blob
+    private final Map<FileKey, String> references = new HashMap<>();
+    private final Map<String, Integer> referenceCounts = new HashMap<>();
+    // blobs in cold storage -> the size of their content
+    private final Map<String, Long> cold = new HashMap<>();
+
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+    private Writer journal;
+    private int journalLines;
+
+    // function to get the store for the uploads/ directory of this server, shared by the spring side and the serial receiver
+    public static BlobStore shared() {
+        if (shared == null) {
+            synchronized (BlobStore.class) {
+                if (shared == null) {
+                    String root = System.getProperty("user.dir");
+                    DataSize threshold = Settings.get("files.blobs.memory-threshold", DataSize.class, DataSize.ofMegabytes(1));
+                    try {
+                        shared = new BlobStore(Paths.get(root, "uploads"), Paths.get(root, "blobs"), FileSyncer.shared(), (int) threshold.toBytes());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Could not open blob store", e);
+                    }
+                }
+            }
+        }
+        return shared;
+    }
+
+    public BlobStore(Path uploadsDir, Path blobDir, FileSyncer fileSyncer, int memoryThreshold) throws IOException {
+        this.uploadsDir = uploadsDir.toAbsolutePath().normalize();
+        this.blobDir = blobDir;
+        this.tempDir = blobDir.resolve("tmp");
+        this.journalPath = blobDir.resolve("refs.log");
+        this.fileSyncer = fileSyncer;
+        this.memoryThreshold = memoryThreshold;
+
+        Files.createDirectories(tempDir);
+        recover();
+    }
+
+    @Override
+    public void addListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public BlobWriter newWriter() {
+        return new BlobWriter(tempDir, memoryThreshold);
+    }
+
+    @Override
+    public StoredFile commit(BlobWriter writer, String folderId, String name) throws IOException {
+        checkPath(folderId, name);
+        String hash = writer.finish();
+        long size = writer.size();
+        try {
+            synchronized (this) {
+                Path blob = blobPath(hash);
+                boolean duplicate = Files.exists(blob);
+                if (!duplicate) {
+                    Files.createDirectories(blob.getParent());
+                    Path temp = writer.tempFile();
+                    if (temp == null) {
+                        // small file that never left memory, write it now that we know it is new
+                        temp = tempDir.resolve(UUID.randomUUID() + ".tmp");
+                        Files.write(temp, writer.memoryBytes(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                    }
+                    fileSyncer.written(temp);
+                    Files.move(temp, blob, StandardCopyOption.ATOMIC_MOVE);
+                    fileSyncer.moved(temp, blob);
+                }
+                return stored(link(hash, folderId, name), hash, size, duplicate);
+            }
+        } finally {
+            writer.discard();
+        }
+    }
+
+    @Override
+    public StoredFile adopt(Path file, String folderId, String name) throws IOException {
+        checkPath(folderId, name);
+        String hash = hash(file);
+        long size = Files.size(file);
+        synchronized (this) {
+            Path blob = blobPath(hash);
+            boolean duplicate = Files.exists(blob);
+            if (duplicate) {
+                Files.delete(file);
+            } else {
+                Files.createDirectories(blob.getParent());
+                moveInto(file, blob);
+                fileSyncer.moved(file, blob);
+            }
+            return stored(link(hash, folderId, name), hash, size, duplicate);
+        }
+    }
+
+    @Override
+    public StoredFile linkExisting(String hash, String folderId, String name) throws IOException {
+        checkPath(folderId, name);
+        String normalized = hash.toLowerCase(Locale.ROOT);
+        if (!normalized.matches("[0-9a-f]{64}")) {
+            return null;
+        }
+        synchronized (this) {
+            Path blob = blobPath(normalized);
+            if (!Files.exists(blob)) {
+                return null;
+            }
+            return stored(link(normalized, folderId, name), normalized, cold.getOrDefault(normalized, Files.size(blob)), true);
+        }
+    }
+
+    // the folder file is read as it is, so files put in a folder by hand can be downloaded too
+    @Override
+    public Extent open(String folderId, String name) {
+        Path path = filePath(folderId, name);
+        if (path == null) {
+            return null;
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) {
+                return null;
+            }
+            long now = System.currentTimeMillis();
+            if (now - attributes.lastAccessTime().toMillis() >= ACCESS_TIME_RESOLUTION) {
+                // the hard link shares the blob's inode, so this is when the content was last opened, whatever the folder
+                Files.getFileAttributeView(path, BasicFileAttributeView.class).setTimes(null, FileTime.fromMillis(now), null);
+            }
+            Extent content = new Extent(path, 0, attributes.size(), attributes.lastModifiedTime().toMillis(), attributes.fileKey());
+            return content.length() == 0 ? coldOr(hashOf(folderId, name), content) : content;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public FolderIndex.FileEntry stat(String folderId, String name) {
+        Path path = filePath(folderId, name);
+        return path == null ? null : withColdSize(folderId, stat(path));
+    }
+
+    @Override
+    public List<FolderIndex.FileEntry> list(String folderId) {
+        Path dir = folderPath(folderId);
+        if (dir == null || !Files.isDirectory(dir)) {
+            return List.of();
+        }
+        List<FolderIndex.FileEntry> entries = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.forEach(path -> {
+                FolderIndex.FileEntry entry = withColdSize(folderId, stat(path));
+                if (entry != null) {
+                    entries.add(entry);
+                }
+            });
+        } catch (IOException | UncheckedIOException e) {
+            System.out.println("Failed to read folder " + folderId + ": " + e.getMessage());
+        }
+        return entries;
+    }
+
+    @Override
+    public synchronized String hashOf(String folderId, String name) {
+        return references.get(new FileKey(folderId, name));
+    }
+
+    @Override
+    public Extent blob(String hash) {
+        Extent content = extent(blobPath(hash));
+        return content != null && content.length() == 0 ? coldOr(hash, content) : content;
+    }
+
+    // variants are kept next to their blob, eg. blobs/ab/<hash>.gz
+    @Override
+    public Extent variant(String hash, String suffix) {
+        return extent(blobPath(hash).resolveSibling(hash + suffix));
+    }
+
+    @Override
+    public boolean storeVariant(String hash, String suffix, VariantWriter writer) throws IOException {
+        Path temp = tempDir.resolve(UUID.randomUUID() + ".tmp");
+        try {
+            if (!writer.write(temp)) {
+                return false;
+            }
+            fileSyncer.written(temp); // a half written copy must never show up after a crash
+            synchronized (this) {
+                Path blob = blobPath(hash);
+                if (!referenceCounts.containsKey(hash) || !Files.exists(blob)) {
+                    return false;
+                }
+                moveInto(temp, blob.resolveSibling(hash + suffix));
+                fileSyncer.moved(temp, blob.resolveSibling(hash + suffix));
+                return true;
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    @Override
+    public boolean delete(String folderId, String name) throws IOException {
+        Path file = filePath(folderId, name);
+        if (file == null) {
+            return false;
+        }
+        synchronized (this) {
+            if (!Files.isRegularFile(file)) {
+                return false;
+            }
+            Files.delete(file);
+            release(new FileKey(folderId, name));
+            notifyListeners(folderId, name);
+            return true;
+        }
+    }
+
+    // the blob's access time tells when it was last opened, and it hasn't changed since it was stored either
+    @Override
+    public List<String> coldCandidates(long notOpenedSince) throws IOException {
+        List<String> hashes;
+        synchronized (this) {
+            hashes = new ArrayList<>(referenceCounts.keySet());
+            hashes.removeAll(cold.keySet());
+        }
+        List<String> candidates = new ArrayList<>();
+        for (String hash : hashes) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(blobPath(hash), BasicFileAttributes.class);
+                long used = Math.max(attributes.lastAccessTime().toMillis(), attributes.lastModifiedTime().toMillis());
+                if (attributes.size() > 0 && used < notOpenedSince) {
+                    candidates.add(hash);
+                }
+            } catch (NoSuchFileException e) {
+                // deleted meanwhile
+            }
+        }
+        return candidates;
+    }
+
+    // the cold copy is forced to disk first and the record goes into the journal (forced too) before the blob is
+    // truncated, whatever files.ingest.fsync says, the copy is all that is left afterwards, a crash in between leaves a
+    // blob that is still whole, which recover notices
+    // a download that opened the blob just before gets cut short, the client resumes it with a Range
+    @Override
+    public synchronized boolean moveToCold(String hash) throws IOException {
+        Path blob = blobPath(hash);
+        if (!referenceCounts.containsKey(hash) || cold.containsKey(hash) || !Files.isRegularFile(blob.resolveSibling(hash + COLD_SUFFIX))) {
+            return false;
+        }
+        BasicFileAttributes attributes = Files.readAttributes(blob, BasicFileAttributes.class);
+        if (attributes.size() == 0) {
+            return false;
+        }
+        FileSyncer.force(blob.resolveSibling(hash + COLD_SUFFIX));
+        FileSyncer.syncDirectory(blob.getParent());
+        cold.put(hash, attributes.size());
+        appendJournal(new JSONObject().put("op", "c").put("hash", hash).put("size", attributes.size()));
+        FileSyncer.force(journalPath);
+        FileSyncer.syncDirectory(journalPath.getParent()); // the journal may just have been rewritten under its name
+        try (FileChannel channel = FileChannel.open(blob, StandardOpenOption.WRITE)) {
+            channel.truncate(0);
+        }
+        // the folder files keep the time they had, it is the time they were uploaded
+        Files.getFileAttributeView(blob, BasicFileAttributeView.class).setTimes(attributes.lastModifiedTime(), attributes.lastAccessTime(), null);
+        return true;
+    }
+
+    @Override
+    public Path watchableDirectory(String folderId) {
+        return folderPath(folderId);
+    }
+
+    // directory a folder's files are in, null if the folder id isn't a valid one
+    // every way into a folder goes through here, and whatever the id is, the directory has to be right under uploads/
+    private Path folderPath(String folderId) {
+        if (!isValidFolder(folderId)) {
+            return null;
+        }
+        Path dir = uploadsDir.resolve(folderId).normalize();
+        return uploadsDir.equals(dir.getParent()) ? dir : null;
+    }
+
+    // a file of a folder, null if the folder id or name isn't a valid one, or would lead anywhere but into the folder
+    private Path filePath(String folderId, String name) {
+        Path dir = isValidName(folderId, name) ? folderPath(folderId) : null;
+        if (dir == null) {
+            return null;
+        }
+        Path file = dir.resolve(name).normalize();
+        return dir.equals(file.getParent()) ? file : null;
+    }
+
+    private void checkPath(String folderId, String name) {
+        if (filePath(folderId, name) == null) {
+            throw new IllegalArgumentException("Invalid folder id or file name");
+        }
+    }
+
+    private static StoredFile stored(File file, String hash, long size, boolean duplicate) {
+        return new StoredFile(file.getName(), file.getAbsolutePath(), hash, size, duplicate);
+    }
+
+    // one syscall per file: null if it is gone or isn't a regular file
+    private static FolderIndex.FileEntry stat(Path path) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) {
+                return null;
+            }
+            return new FolderIndex.FileEntry(path.getFileName().toString(), attributes.size(), attributes.lastModifiedTime().toMillis());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // an empty folder file or blob is either really empty or in cold storage, an entry for it gets the size of its content
+    private FolderIndex.FileEntry withColdSize(String folderId, FolderIndex.FileEntry entry) {
+        if (entry == null || entry.size() > 0) {
+            return entry;
+        }
+        Long size;
+        synchronized (this) {
+            size = cold.get(references.get(new FileKey(folderId, entry.name())));
+        }
+        return size == null ? entry : new FolderIndex.FileEntry(entry.name(), size, entry.modified());
+    }
+
+    // the cold copy of an empty folder file or blob, or the empty extent itself if its blob isn't cold
+    // it keeps the time and version of the folder file, the content is the same as before it went cold
+    private Extent coldOr(String hash, Extent content) {
+        Long size;
+        synchronized (this) {
+            size = hash == null ? null : cold.get(hash);
+        }
+        if (size == null) {
+            return content;
+        }
+        Path copy = blobPath(hash).resolveSibling(hash + COLD_SUFFIX);
+        try {
+            return new Extent(copy, 0, size, content.modified(), content.version(), Files.size(copy));
+        } catch (IOException e) {
+            return null; // deleted meanwhile
+        }
+    }
+
+    // a whole file, the inode and time tell a cached copy if the file was replaced or changed
+    private static Extent extent(Path path) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) {
+                return null;
+            }
+            return new Extent(path, 0, attributes.size(), attributes.lastModifiedTime().toMillis(), attributes.fileKey());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // must be called with the lock held: point folderId/name at the blob, replacing whatever had that name
+    // the new link is made next to the store and moved over the old name, so the name is never missing, and the new
+    // reference is taken before the old one is let go, so content that stays the same is never deleted in between
+    private File link(String hash, String folderId, String name) throws IOException {
+        Path target = filePath(folderId, name);
+        FileKey key = new FileKey(folderId, name);
+        if (hash.equals(references.get(key)) && Files.isRegularFile(target)) {
+            return target.toFile(); // the same content again, nothing changes
+        }
+
+        Path temp = tempDir.resolve(UUID.randomUUID() + ".tmp");
+        linkBlob(hash, temp);
+        try {
+            try {
+                moveInto(temp, target);
+            } catch (NoSuchFileException e) {
+                // the folder doesn't exist yet, it is only made when that turns out to be the case, so filling a folder
+                // with many files doesn't ask the file system about the directory for every one of them
+                Files.createDirectories(target.getParent());
+                moveInto(temp, target);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+
+        referenceCounts.merge(hash, 1, Integer::sum);
+        String previous = references.put(key, hash);
+        appendJournal(new JSONObject().put("op", "+").put("hash", hash).put("id", folderId).put("name", name));
+        if (previous != null) {
+            unreference(previous); // a "+" replaces the name's old record, no "-" needed
+        }
+        notifyListeners(folderId, name);
+        return target.toFile();
+    }
+
+    private void linkBlob(String hash, Path target) throws IOException {
+        try {
+            Files.createLink(target, blobPath(hash));
+        } catch (NoSuchFileException e) {
+            throw e;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            // no hard links here, fall back to a plain copy
+            Files.copy(blobPath(hash), target);
+        }
+    }
+
+    private void notifyListeners(String folderId, String name) {
+        for (ChangeListener listener : listeners) {
+            listener.fileChanged(folderId, name);
+        }
+    }
+
+    // must be called with the lock held: forget that folderId/name points at a blob and delete the blob if it was the last name
+    private void release(FileKey key) throws IOException {
+        String hash = references.remove(key);
+        if (hash == null) {
+            return; // not a file we manage
+        }
+        appendJournal(new JSONObject().put("op", "-").put("id", key.folderId()).put("name", key.name()));
+        unreference(hash);
+    }
+
+    // must be called with the lock held: one name less points at the blob, it is deleted once none does
+    private void unreference(String hash) throws IOException {
+        int remaining = referenceCounts.merge(hash, -1, Integer::sum);
+        if (remaining <= 0) {
+            referenceCounts.remove(hash);
+            cold.remove(hash);
+            Path blob = blobPath(hash);
+            Files.deleteIfExists(blob);
+            try (DirectoryStream<Path> variants = Files.newDirectoryStream(blob.getParent(), hash + ".*")) {
+                for (Path variant : variants) {
+                    Files.deleteIfExists(variant);
+                }
+            }
+        }
+    }
+
+    private Path blobPath(String hash) {
+        // two levels of fan out so no single directory gets huge
+        return blobDir.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private void appendJournal(JSONObject record) throws IOException {
+        journal.write(record.toString());
+        journal.write('\n');
+        journal.flush();
+        journalLines++;
+
+        // the journal only ever grows, rewrite it once it is mostly records that cancel each other out
+        if (journalLines > 1024 && journalLines > (references.size() + cold.size()) * 2) {
+            compactJournal();
+        }
+    }
+
+    // function to rebuild the reference table from the journal when the store opens
+    // names whose folder file was deleted behind our back are dropped, and blobs nothing points at any more are removed
+    private void recover() throws IOException {
+        if (Files.exists(journalPath)) {
+            try (BufferedReader reader = Files.newBufferedReader(journalPath, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isBlank()) {
+                        continue;
+                    }
+                    JSONObject record;
+                    try {
+                        record = new JSONObject(line);
+                    } catch (RuntimeException e) {
+                        continue; // half written last line after a crash
+                    }
+                    String op = record.getString("op");
+                    if ("c".equals(op)) {
+                        cold.put(record.getString("hash"), record.getLong("size"));
+                        continue;
+                    }
+                    FileKey key = new FileKey(record.getString("id"), record.getString("name"));
+                    if ("+".equals(op)) {
+                        references.put(key, record.getString("hash"));
+                    } else {
+                        references.remove(key);
+                    }
+                }
+            }
+        }
+
+        references.keySet().removeIf(key -> {
+            Path file = filePath(key.folderId(), key.name());
+            return file == null || !Files.isRegularFile(file);
+        });
+        for (String hash : references.values()) {
+            referenceCounts.merge(hash, 1, Integer::sum);
+        }
+
+        // cold blobs whose truncation was lost in a crash are still whole, and a cold copy that is gone can't be helped
+        cold.keySet().removeIf(hash -> {
+            Path blob = blobPath(hash);
+            try {
+                if (!referenceCounts.containsKey(hash) || Files.size(blob) > 0) {
+                    return true;
+                }
+            } catch (IOException e) {
+                return true;
+            }
+            if (!Files.isRegularFile(blob.resolveSibling(hash + COLD_SUFFIX))) {
+                System.out.println("Lost the cold copy of " + hash + ", the files with it are empty now");
+                return true;
+            }
+            return false;
+        });
+
+        // leftovers of writes that never got committed
+        try (Stream<Path> temps = Files.list(tempDir)) {
+            for (Path temp : (Iterable<Path>) temps::iterator) {
+                Files.deleteIfExists(temp);
+            }
+        }
+
+        // blobs whose last reference was lost in a crash, the folder files still have their hard links so no data goes
+        // and variants of them, or of blobs that went while the variant was being moved in
+        try (Stream<Path> blobs = Files.walk(blobDir, 2)) {
+            for (Path blob : (Iterable<Path>) blobs::iterator) {
+                String name = blob.getFileName().toString();
+                boolean blobOrVariant = name.length() == 64 || (name.length() > 65 && name.charAt(64) == '.');
+                if (blobOrVariant && Files.isRegularFile(blob) && !referenceCounts.containsKey(name.substring(0, 64))) {
+                    Files.deleteIfExists(blob);
+                }
+            }
+        }
+
+        compactJournal();
+    }
+
+    // function to replace the journal with just the current references
+    private void compactJournal() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+        Path temp = blobDir.resolve("refs.log.tmp");
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<FileKey, String> entry : references.entrySet()) {
+                writer.write(new JSONObject().put("op", "+").put("hash", entry.getValue())
+                        .put("id", entry.getKey().folderId()).put("name", entry.getKey().name()).toString());
+                writer.write('\n');
+            }
+            for (Map.Entry<String, Long> entry : cold.entrySet()) {
+                writer.write(new JSONObject().put("op", "c").put("hash", entry.getKey()).put("size", entry.getValue()).toString());
+                writer.write('\n');
+            }
+        }
+        fileSyncer.written(temp);
+        moveInto(temp, journalPath);
+        fileSyncer.moved(temp, journalPath);
+        journal = Files.newBufferedWriter(journalPath, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        journalLines = references.size() + cold.size();
+    }
+
+    private static void moveInto(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // function to work out the sha-256 of a file on disk
+    public static String hash(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    // function to turn away a folder id or file name the store would refuse, see isValidName
+    public static void checkName(String folderId, String name) {
+        if (!isValidName(folderId, name)) {
+            throw new IllegalArgumentException("Invalid folder id or file name");
+        }
+    }
+
+    // folder ids are a single directory under uploads/, names a single file in it, nothing that could climb out
+    // the segment store takes the same names, so a folder can move between the engines
+    static boolean isValidName(String folderId, String name) {
+        return isValidFolder(folderId) && name != null && !name.isEmpty() && !name.equals(".") && !name.equals("..")
+                && name.indexOf('/') < 0 && name.indexOf('\\') < 0 && name.indexOf('\0') < 0;
+    }
+
+    // no separators, drive letters (c:) or parent directories, so an id can't be an absolute path or lead out of uploads/
+    static boolean isValidFolder(String folderId) {
+        return folderId != null && !folderId.trim().isEmpty() && !folderId.equals(".") && !folderId.contains("..")
+                && folderId.indexOf('/') < 0 && folderId.indexOf('\\') < 0 && folderId.indexOf(':') < 0
+                && folderId.indexOf('\0') < 0;
+    }
+
+}
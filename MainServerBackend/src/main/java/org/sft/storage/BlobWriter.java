@@ -0,0 +1,159 @@
+package org.sft.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.UUID;
+
+// collects the bytes of a new file for the blob store while working out their sha-256 on the way
+// small files are kept in memory, so if the store already has the same content nothing is written to disk at all
+// once a file grows past the memory threshold it spills into a temp file that is later renamed into the store,
+// so its bytes are still written only once
+// a writer is finished either by BlobStore.commit or by close, which throws away whatever was written
+public class BlobWriter extends OutputStream {
+
+    private final Path tempDir;
+    private final int memoryThreshold;
+    private final MessageDigest digest;
+
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private Path tempFile;
+    private FileChannel channel;
+    private long size;
+    private boolean finished;
+
+    BlobWriter(Path tempDir, int memoryThreshold) {
+        this.tempDir = tempDir;
+        this.memoryThreshold = memoryThreshold;
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e); // every jvm has to ship it
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        digest.update(b, off, len);
+        size += len;
+        if (channel == null && memory.size() + len <= memoryThreshold) {
+            memory.write(b, off, len);
+            return;
+        }
+        spill();
+        ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // function to write everything left in the buffer, a direct buffer goes straight to the temp file without a heap copy
+    public void write(ByteBuffer buffer) throws IOException {
+        ensureOpen();
+        int len = buffer.remaining();
+        digest.update(buffer.duplicate());
+        size += len;
+        if (channel == null && memory.size() + len <= memoryThreshold) {
+            byte[] bytes = new byte[len];
+            buffer.get(bytes);
+            memory.write(bytes, 0, len);
+            return;
+        }
+        spill();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    // function to get the hex sha-256 of what was written so far, the writer can still be written to and committed
+    // eg. to check a download against the hash the server announced before it goes into the store
+    public String hash() {
+        try {
+            return HexFormat.of().formatHex(((MessageDigest) digest.clone()).digest());
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException("SHA-256 digest can't be copied", e); // the jdk's can
+        }
+    }
+
+    // throws the written data away, does nothing once the writer was committed
+    @Override
+    public void close() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        memory = null;
+        if (channel != null) {
+            channel.close();
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    // called by the store: stop accepting data and return the hex sha-256 of everything written
+    String finish() throws IOException {
+        ensureOpen();
+        finished = true;
+        if (channel != null) {
+            channel.close();
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    // after finish: null if the data is still in memory
+    Path tempFile() {
+        return tempFile;
+    }
+
+    // after finish: the data if it never spilled to disk
+    byte[] memoryBytes() {
+        return tempFile == null ? memory.toByteArray() : null;
+    }
+
+    // called by the store once it has used or discarded the data
+    void discard() throws IOException {
+        memory = null;
+        if (tempFile != null) {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private void spill() throws IOException {
+        if (channel != null) {
+            return;
+        }
+        Files.createDirectories(tempDir);
+        // not Files.createTempFile, that makes the file readable by its owner only and the folder files would inherit that
+        tempFile = tempDir.resolve(UUID.randomUUID() + ".tmp");
+        channel = FileChannel.open(tempFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        ByteBuffer buffered = ByteBuffer.wrap(memory.toByteArray());
+        while (buffered.hasRemaining()) {
+            channel.write(buffered);
+        }
+        memory = null;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (finished) {
+            throw new IOException("Blob writer already finished");
+        }
+    }
+
+}
@@ -0,0 +1,131 @@
+package org.sft.storage;
+
+import io.airlift.compress.zstd.ZstdInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+// where the bytes of a stored file are on disk: length bytes of a file, starting at offset
+// in the directory layout that is a whole file, in the segment store a piece of a segment file, either way it can be
+// read, hashed or handed to sendfile without knowing which storage engine it came from
+// param:
+// file -> the file the bytes are in
+// offset, length -> where in that file
+// modified -> when the content was stored (or last changed, for files changed behind the store's back)
+// version -> anything that changes when the bytes might have, so a copy of them (eg. in the download cache) can be
+//            checked to still be current, null if the bytes never change
+// compressedLength -> -1 if the bytes are on disk as they are, otherwise the content was moved to cold storage and
+//                     compressedLength bytes from offset are a zstd frame that gives the length bytes of the content,
+//                     such an extent can only be read through newInputStream (no sendfile, no positional reads)
+public record Extent(Path file, long offset, long length, long modified, Object version, long compressedLength) {
+
+    public Extent(Path file, long offset, long length, long modified, Object version) {
+        this(file, offset, length, modified, version, -1);
+    }
+
+    // true if the bytes on disk have to be decompressed to get the content
+    public boolean isCompressed() {
+        return compressedLength >= 0;
+    }
+
+    // function to read the bytes without reading past them, close the stream when done
+    // a compressed extent is decompressed while it is read, so callers always see the content itself
+    public InputStream newInputStream() throws IOException {
+        if (isCompressed()) {
+            InputStream compressed = new SliceInputStream(FileChannel.open(file, StandardOpenOption.READ), offset, compressedLength);
+            return new ZstdInputStream(new BufferedInputStream(compressed, 64 * 1024));
+        }
+        return new SliceInputStream(FileChannel.open(file, StandardOpenOption.READ), offset, length);
+    }
+
+    // function to work out the sha-256 of the bytes
+    public String sha256() throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+        if (isCompressed()) {
+            try (InputStream in = newInputStream()) {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.min(256 * 1024, Math.max(length, 1)));
+            long position = offset;
+            long end = offset + length;
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                int read = channel.read(buffer, position);
+                if (read == -1) {
+                    throw new IOException("File truncated while hashing");
+                }
+                position += read;
+                buffer.flip();
+                digest.update(buffer);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    // reads with positional reads, so it doesn't matter where the channel itself is
+    private static final class SliceInputStream extends InputStream {
+
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        SliceInputStream(FileChannel channel, long offset, long length) {
+            this.channel = channel;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= end) {
+                return -1;
+            }
+            int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+            if (read == -1) {
+                throw new IOException("File truncated while reading");
+            }
+            position += read;
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+}
@@ -0,0 +1,437 @@
+package org.sft.storage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// keeps the name, size and modification time of every file of a folder in memory, so listing a folder doesn't
+// have to ask the file system about every single file on every request
+// a folder is read from the storage engine the first time it is listed, after that it is kept up to date by
+// - the storage engine, which tells us about every upload, delete and serially received file as it happens
+// - a WatchService on the folder directory, which catches files added or removed by anything else (only for the
+//   directory layout, the segment store's folders can't be changed from outside)
+// every change gives the folder a new version, which is what the ETag of a listing is made from
+// only folders with files are kept, so listing ids that don't exist (or empty folders) doesn't fill up the memory
+// the sha-256 of every file is kept too once somebody asked for it, for /files/manifest, files that went through the
+// store already have theirs in its journal, anything else is read once and hashed again only after it changed
+public class FolderIndex implements StorageEngine.ChangeListener {
+
+    // one file of a folder listing
+    public record FileEntry(String name, long size, long modified) {
+    }
+
+    // one file of a folder manifest, like a listing but with the sha-256 of the content
+    public record ManifestEntry(String name, long size, long modified, String sha256) {
+    }
+
+    public enum SortKey {
+        NAME, SIZE, MODIFIED
+    }
+
+    // one page of a listing
+    // param:
+    // files -> the files on this page
+    // nextCursor -> pass this back to get the page after this one, null if this was the last page
+    public record Page(List<FileEntry> files, String nextCursor) {
+    }
+
+    private static final Comparator<FileEntry> BY_NAME = Comparator.comparing(FileEntry::name);
+    private static final Comparator<FileEntry> BY_SIZE = Comparator.comparingLong(FileEntry::size).thenComparing(FileEntry::name);
+    private static final Comparator<FileEntry> BY_MODIFIED = Comparator.comparingLong(FileEntry::modified).thenComparing(FileEntry::name);
+
+    private static volatile FolderIndex shared;
+
+    private final StorageEngine storage;
+    private final Map<String, Folder> folders = new ConcurrentHashMap<>();
+    private final Map<WatchKey, Folder> watchedFolders = new ConcurrentHashMap<>();
+    private final WatchService watchService;
+
+    // versions come from one counter, so a folder that is forgotten and read again never repeats an earlier version
+    private final AtomicLong versions = new AtomicLong();
+
+    // bumped for every change the engine reports, by folder id hash, so a folder read while a file was committed to it
+    // can tell it may have missed that, the change came before the folder was there to be told
+    private final AtomicLongArray changes = new AtomicLongArray(64);
+
+    // versions start from zero again after a restart, so the etag also carries the time the index was created
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+
+    // function to get the index of the shared storage engine, hooked up to be told about every change the engine makes
+    public static FolderIndex shared() {
+        if (shared == null) {
+            synchronized (FolderIndex.class) {
+                if (shared == null) {
+                    shared = start(StorageEngine.shared());
+                }
+            }
+        }
+        return shared;
+    }
+
+    // function to make an index over a store and start following its changes and those made on disk
+    // the index only hands itself to the store and the watcher once it is completely built
+    public static FolderIndex start(StorageEngine storage) {
+        FolderIndex index = new FolderIndex(storage);
+        if (index.watchService != null) {
+            Thread watcher = new Thread(index::watchLoop, "folder-index-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+        storage.addListener(index);
+        return index;
+    }
+
+    private FolderIndex(StorageEngine storage) {
+        this.storage = storage;
+
+        WatchService service;
+        try {
+            service = FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            // without it, changes made behind the server's back only show up once the folder is reloaded
+            System.out.println("Folder watching not available: " + e.getMessage());
+            service = null;
+        }
+        this.watchService = service;
+    }
+
+    // function to get the etag of a folder's current contents, it changes whenever a file is added, removed or changed
+    // it is a weak etag: the same listing may be sent gzipped or not, which tomcat only does for weak etags
+    // every empty (or missing) folder has version 0, its listing is always the same
+    public String etag(String folderId) {
+        long version = 0;
+        if (BlobStore.isValidFolder(folderId)) {
+            Folder folder = folder(folderId);
+            version = folder.isEmpty() ? 0 : folder.version();
+        }
+        return "W/\"" + epoch + "-" + version + "\"";
+    }
+
+    // function to list every file of a folder sorted by name
+    public List<FileEntry> list(String folderId) {
+        return list(folderId, SortKey.NAME, false, null, 0).files();
+    }
+
+    // function to list one page of a folder
+    // param:
+    // folderId -> id of the folder
+    // sortKey, descending -> order of the files, files with the same size or time are ordered by name
+    // cursor -> nextCursor of the previous page, null for the first page
+    // limit -> most files on the page, 0 for all of them
+    public Page list(String folderId, SortKey sortKey, boolean descending, String cursor, int limit) {
+        if (!BlobStore.isValidFolder(folderId)) {
+            return new Page(List.of(), null); // same as a folder that doesn't exist
+        }
+        FileEntry[] sorted = folder(folderId).sorted(sortKey);
+        Comparator<FileEntry> comparator = comparator(sortKey);
+
+        // the cursor is the last file of the previous page, so files added or removed in the meantime don't make
+        // the next page skip or repeat anything
+        int start;
+        FileEntry after = decodeCursor(cursor);
+        if (after == null) {
+            start = descending ? sorted.length - 1 : 0;
+        } else {
+            int position = Arrays.binarySearch(sorted, after, comparator);
+            if (position >= 0) {
+                start = descending ? position - 1 : position + 1;
+            } else {
+                int insertion = -position - 1;
+                start = descending ? insertion - 1 : insertion;
+            }
+        }
+
+        int available = descending ? start + 1 : sorted.length - start;
+        int count = limit > 0 ? Math.min(limit, Math.max(available, 0)) : Math.max(available, 0);
+
+        List<FileEntry> files = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            files.add(sorted[descending ? start - i : start + i]);
+        }
+
+        String nextCursor = count > 0 && count < available ? encodeCursor(files.get(count - 1), sortKey) : null;
+        return new Page(files, nextCursor);
+    }
+
+    // function to list every file of a folder sorted by name, with the sha-256 of its content
+    // hashes are remembered, so only files that are new or changed since the last manifest are read from the disk
+    public List<ManifestEntry> manifest(String folderId) throws IOException {
+        if (!BlobStore.isValidFolder(folderId)) {
+            return List.of();
+        }
+        Folder folder = folder(folderId);
+        FileEntry[] sorted = folder.sorted(SortKey.NAME);
+        List<ManifestEntry> manifest = new ArrayList<>(sorted.length);
+        for (FileEntry entry : sorted) {
+            String hash = hash(folder, entry);
+            if (hash != null) {
+                manifest.add(new ManifestEntry(entry.name(), entry.size(), entry.modified(), hash));
+            }
+        }
+        return manifest;
+    }
+
+    // function to get the sha-256 of one file of a folder, null if there is no such file
+    public String hash(String folderId, String name) throws IOException {
+        if (!BlobStore.isValidFolder(folderId)) {
+            return null;
+        }
+        Folder folder = folder(folderId);
+        FileEntry entry = folder.entry(name);
+        return entry == null ? null : hash(folder, entry);
+    }
+
+    // null if the file went away before it could be read
+    private String hash(Folder folder, FileEntry entry) throws IOException {
+        String hash = folder.cachedHash(entry);
+        if (hash != null) {
+            return hash;
+        }
+        hash = storage.hashOf(folder.id, entry.name());
+        if (hash == null) {
+            // not a store file, read it without holding the folder's lock so listings don't wait for the disk
+            try {
+                Extent content = storage.open(folder.id, entry.name());
+                if (content == null) {
+                    return null;
+                }
+                hash = content.sha256();
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+        }
+        folder.cacheHash(entry, hash);
+        return hash;
+    }
+
+    // called by the storage engine whenever it adds, replaces or deletes a file
+    @Override
+    public void fileChanged(String folderId, String name) {
+        changes.incrementAndGet(changeSlot(folderId)); // before looking, see folder()
+        Folder folder = folders.get(folderId);
+        if (folder != null) {
+            folder.refresh(name);
+            forgetIfEmpty(folder);
+        }
+        // folders nobody listed yet are read fresh from disk when they are first listed
+    }
+
+    // an empty folder (or one that doesn't exist) is read every time and not kept
+    // a folder is read before it is kept, so the engine can't tell it about a file committed meanwhile, if one may have
+    // been it is read again from scratch, not reloaded in place: reading holds the folder's lock while asking the engine,
+    // and the engine tells folders about changes while holding its own lock
+    private Folder folder(String folderId) {
+        Folder folder = folders.get(folderId);
+        if (folder != null) {
+            return folder;
+        }
+        int slot = changeSlot(folderId);
+        Folder loaded = null;
+        for (int attempt = 0; attempt < 3; attempt++) {
+            long seen = changes.get(slot);
+            loaded = new Folder(folderId, storage.watchableDirectory(folderId));
+            loaded.load();
+            if (loaded.isEmpty()) {
+                loaded.unwatch();
+                return loaded;
+            }
+            folder = folders.putIfAbsent(folderId, loaded);
+            if (folder != null) {
+                loaded.unwatch(); // read by another request at the same time
+                return folder;
+            }
+            if (changes.get(slot) == seen) {
+                return loaded;
+            }
+            // changed while we read it, changes from now on reach the kept folder, but one may have come before
+            if (folders.remove(folderId, loaded)) {
+                loaded.unwatch();
+            }
+        }
+        return loaded; // changing all the time, answer from what was read and try again on the next request
+    }
+
+    private static int changeSlot(String folderId) {
+        return folderId.hashCode() & 63;
+    }
+
+    private void forgetIfEmpty(Folder folder) {
+        if (folder.isEmpty() && folders.remove(folder.id, folder)) {
+            folder.unwatch();
+        }
+    }
+
+    private static Comparator<FileEntry> comparator(SortKey sortKey) {
+        return switch (sortKey) {
+            case NAME -> BY_NAME;
+            case SIZE -> BY_SIZE;
+            case MODIFIED -> BY_MODIFIED;
+        };
+    }
+
+    // cursors are opaque to clients, inside they are the sort value and the name of the last file that was sent
+    private static String encodeCursor(FileEntry last, SortKey sortKey) {
+        long value = switch (sortKey) {
+            case NAME -> 0;
+            case SIZE -> last.size();
+            case MODIFIED -> last.modified();
+        };
+        String raw = value + "\n" + last.name();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static FileEntry decodeCursor(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return null;
+        }
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int split = raw.indexOf('\n');
+            long value = Long.parseLong(raw.substring(0, split));
+            // the same value goes in both fields, only the one matching the sort key is compared
+            return new FileEntry(raw.substring(split + 1), value, value);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+    }
+
+    // runs on its own thread: apply changes the watch service reports for the folders we have loaded
+    private void watchLoop() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            Folder folder = watchedFolders.get(key);
+            if (folder != null) {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        folder.load(); // too many changes to report one by one, read the whole folder again
+                    } else if (event.context() instanceof Path name) {
+                        folder.refresh(name.toString());
+                    }
+                }
+                forgetIfEmpty(folder);
+            }
+
+            if (!key.reset()) {
+                // the directory itself went away, forget the folder so it is read fresh the next time
+                watchedFolders.remove(key);
+                if (folder != null) {
+                    folders.remove(folder.id, folder);
+                }
+            }
+        }
+    }
+
+    // a hash is only good for the exact size and time the file had when it was read
+    private record Hashed(FileEntry entry, String hash) {
+    }
+
+    // everything the index knows about one folder
+    private final class Folder {
+        private final String id;
+        private final Path dir; // null if the folder can't change behind the engine's back
+        private final Map<String, FileEntry> entries = new HashMap<>();
+        private final Map<String, Hashed> hashes = new HashMap<>();
+        private final FileEntry[][] sortedCache = new FileEntry[SortKey.values().length][];
+        private long version;
+        private WatchKey watchKey;
+
+        Folder(String id, Path dir) {
+            this.id = id;
+            this.dir = dir;
+        }
+
+        synchronized long version() {
+            return version;
+        }
+
+        // function to read the whole folder from the engine
+        synchronized void load() {
+            watch(); // before reading, so nothing that changes while we read is missed
+            entries.clear();
+            for (FileEntry entry : storage.list(id)) {
+                entries.put(entry.name(), entry);
+            }
+            hashes.values().removeIf(hashed -> !hashed.entry().equals(entries.get(hashed.entry().name())));
+            changed();
+        }
+
+        // function to look at one file again after something happened to it
+        synchronized void refresh(String name) {
+            watch();
+            FileEntry entry = storage.stat(id, name);
+            FileEntry previous = entry == null ? entries.remove(name) : entries.put(name, entry);
+            if (!Objects.equals(entry, previous)) {
+                hashes.remove(name);
+                changed();
+            }
+        }
+
+        synchronized boolean isEmpty() {
+            return entries.isEmpty();
+        }
+
+        synchronized FileEntry entry(String name) {
+            return entries.get(name);
+        }
+
+        synchronized String cachedHash(FileEntry entry) {
+            Hashed hashed = hashes.get(entry.name());
+            return hashed != null && hashed.entry().equals(entry) ? hashed.hash() : null;
+        }
+
+        // only kept if the file didn't change while it was being hashed
+        synchronized void cacheHash(FileEntry entry, String hash) {
+            if (entry.equals(entries.get(entry.name()))) {
+                hashes.put(entry.name(), new Hashed(entry, hash));
+            }
+        }
+
+        // function to get the files sorted by the given key, the sorted array is kept until the folder changes
+        synchronized FileEntry[] sorted(SortKey sortKey) {
+            FileEntry[] sorted = sortedCache[sortKey.ordinal()];
+            if (sorted == null) {
+                sorted = entries.values().toArray(new FileEntry[0]);
+                Arrays.sort(sorted, comparator(sortKey));
+                sortedCache[sortKey.ordinal()] = sorted;
+            }
+            return sorted;
+        }
+
+        private void changed() {
+            version = versions.incrementAndGet();
+            Arrays.fill(sortedCache, null);
+        }
+
+        private void watch() {
+            if (watchService == null || watchKey != null || dir == null || !Files.isDirectory(dir)) {
+                return;
+            }
+            try {
+                watchKey = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                watchedFolders.put(watchKey, this);
+            } catch (IOException e) {
+                System.out.println("Failed to watch folder " + id + ": " + e.getMessage());
+            }
+        }
+
+        synchronized void unwatch() {
+            if (watchKey != null) {
+                watchKey.cancel();
+                watchedFolders.remove(watchKey);
+                watchKey = null;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,996 @@
+package org.sft.storage;
+
+import org.sft.config.Settings;
+import org.sft.io.FileSyncer;
+import org.springframework.util.unit.DataSize;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+// log structured storage for folders with lots of small files, the SEGMENTS storage engine (see StorageEngine)
+// instead of one file (an inode and a directory entry) per stored file, new content is appended to the end of a big
+// segment file (segments/00000001.seg, ...), so storing a stream of tiny sensor files is sequential writes to one file
+// files bigger than max-packed-size get a segment of their own, they are moved in like the blob store moves its blobs
+// like the blob store, content is kept by its sha-256 and stored once no matter how many folder files have it
+// where everything is lives in memory:
+// - blobs: sha-256 -> where its bytes (and the bytes of its variants, eg. a gzip copy) are in which segment
+// - folders: folder id -> file name -> sha-256 and the time it was stored
+// every change to that is appended to a journal (segments/journal-<n>.log) before the call returns, and every so often
+// the whole index is written out as a checkpoint (segments/checkpoint), after which the older journals are deleted,
+// so starting up reads one checkpoint and a short journal rather than every file ever stored
+// deleted or replaced content stays in its segment as garbage, a background thread copies what is still used out of
+// segments that are mostly garbage onto the end of the current segment and deletes them
+// content moved to cold storage keeps only its zstd variant, the content itself becomes garbage like deleted content
+public class SegmentStore implements StorageEngine {
+
+    // where some bytes are: length bytes starting at offset in segment number segment
+    private record Location(int segment, long offset, long length) {
+    }
+
+    // a file of a folder
+    private record Name(String hash, long modified) {
+    }
+
+    // one stored content, with the copies made of it
+    private static final class Blob {
+        Location content; // null once it is in cold storage, it is read from its COLD_SUFFIX variant then
+        long size; // length of the content
+        long opened; // when a folder file with it was last opened or stored, only written out with checkpoints
+        Map<String, Location> variants = new HashMap<>(2);
+        int references;
+    }
+
+    private static final class Segment {
+        final int number;
+        final Path path;
+        long size; // bytes in the file
+        long live; // bytes of it some blob or variant still uses
+
+        Segment(int number, Path path) {
+            this.number = number;
+            this.path = path;
+        }
+    }
+
+    // a segment that was compacted away, deleted once downloads that looked it up just before have had time to open it
+    private record Retired(Path path, long since) {
+    }
+
+    // journal records
+    private static final int JOURNAL_MAGIC = 0x53474a31; // SGJ1
+    private static final int CHECKPOINT_MAGIC = 0x53474332; // SGC2
+    private static final byte LOCATE = 1; // hash, suffix ("" for the content itself), segment, offset, length
+    private static final byte FORGET = 2; // hash, with all its variants
+    private static final byte LINK = 3; // folder id, name, hash, modified
+    private static final byte UNLINK = 4; // folder id, name
+    private static final byte COLD = 5; // hash, only its COLD_SUFFIX variant is kept from now on
+
+    private static volatile SegmentStore shared;
+
+    private final Path dir;
+    private final Path tempDir;
+    private final Path checkpointPath;
+    private final FileSyncer fileSyncer;
+    private final int memoryThreshold;
+    private final long segmentSize;
+    private final long maxPackedSize;
+    private final double compactGarbage;
+    private final long compactIntervalMillis;
+    private final int checkpointRecords;
+
+    private final Map<String, Blob> blobs = new HashMap<>();
+    private final Map<String, Map<String, Name>> folders = new HashMap<>();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final List<Retired> retired = new ArrayList<>();
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+    // the segment new content is appended to, made when the first content comes
+    private Segment active;
+    private FileChannel activeChannel;
+    private int nextSegment = 1;
+
+    private long generation;
+    private Path journalPath;
+    private FileChannel journal;
+    private int journalRecords;
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+
+    // only one checkpoint is written at a time, without holding the store's lock while writing
+    private final Object checkpointLock = new Object();
+
+    private final ScheduledExecutorService compactor;
+
+    // function to get the store for the segments/ directory of this server, configured by files.storage.segments.*
+    public static SegmentStore shared() {
+        if (shared == null) {
+            synchronized (SegmentStore.class) {
+                if (shared == null) {
+                    String root = System.getProperty("user.dir");
+                    DataSize threshold = Settings.get("files.blobs.memory-threshold", DataSize.class, DataSize.ofMegabytes(1));
+                    try {
+                        shared = new SegmentStore(Paths.get(root, "segments"), FileSyncer.shared(), (int) threshold.toBytes(),
+                                Settings.get("files.storage.segments.segment-size", DataSize.class, DataSize.ofMegabytes(64)).toBytes(),
+                                Settings.get("files.storage.segments.max-packed-size", DataSize.class, DataSize.ofMegabytes(1)).toBytes(),
+                                Settings.get("files.storage.segments.compact-garbage", Double.class, 0.5),
+                                Settings.get("files.storage.segments.compact-interval", Duration.class, Duration.ofMinutes(1)),
+                                Settings.get("files.storage.segments.checkpoint-records", Integer.class, 100_000));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Could not open segment store", e);
+                    }
+                    Runtime.getRuntime().addShutdownHook(new Thread(shared::shutdown, "segment-store-shutdown"));
+                }
+            }
+        }
+        return shared;
+    }
+
+    // param:
+    // dir -> where the segments, journals and the checkpoint are
+    // memoryThreshold -> new files up to this size are collected in memory before they are stored
+    // segmentSize -> a segment is closed and a new one started once it is this big
+    // maxPackedSize -> bigger files get a segment of their own instead of being appended to the current one
+    // compactGarbage -> a segment is compacted once at least this part of it is no longer used, eg. 0.5
+    // compactInterval -> how often segments are looked at for compaction and how long a compacted one is kept around
+    // checkpointRecords -> journal records after which a new checkpoint is written
+    public SegmentStore(Path dir, FileSyncer fileSyncer, int memoryThreshold, long segmentSize, long maxPackedSize,
+                        double compactGarbage, Duration compactInterval, int checkpointRecords) throws IOException {
+        this.dir = dir;
+        this.tempDir = dir.resolve("tmp");
+        this.checkpointPath = dir.resolve("checkpoint");
+        this.fileSyncer = fileSyncer;
+        this.memoryThreshold = memoryThreshold;
+        this.segmentSize = Math.max(segmentSize, 1);
+        this.maxPackedSize = maxPackedSize;
+        this.compactGarbage = compactGarbage;
+        this.compactIntervalMillis = Math.max(1, compactInterval.toMillis());
+        this.checkpointRecords = Math.max(1, checkpointRecords);
+
+        Files.createDirectories(tempDir);
+        recover();
+
+        compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "segment-compactor");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY); // uploads and downloads come first
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::maintain, compactIntervalMillis, compactIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // function to stop compacting and write a checkpoint, so the next start doesn't have to read the journal
+    public void shutdown() {
+        compactor.shutdownNow();
+        try {
+            checkpoint();
+        } catch (IOException e) {
+            System.out.println("Failed to write segment checkpoint: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void addListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public BlobWriter newWriter() {
+        return new BlobWriter(tempDir, memoryThreshold);
+    }
+
+    @Override
+    public StoredFile commit(BlobWriter writer, String folderId, String name) throws IOException {
+        BlobStore.checkName(folderId, name);
+        String hash = writer.finish();
+        long size = writer.size();
+        try {
+            synchronized (this) {
+                boolean duplicate = blobs.containsKey(hash);
+                if (!duplicate) {
+                    Path temp = writer.tempFile();
+                    Location location = temp == null ? append(ByteBuffer.wrap(writer.memoryBytes())) : place(temp, size);
+                    locate(hash, "", location);
+                }
+                return link(hash, folderId, name, duplicate);
+            }
+        } finally {
+            writer.discard();
+        }
+    }
+
+    @Override
+    public StoredFile adopt(Path file, String folderId, String name) throws IOException {
+        BlobStore.checkName(folderId, name);
+        String hash = BlobStore.hash(file);
+        long size = Files.size(file);
+        synchronized (this) {
+            boolean duplicate = blobs.containsKey(hash);
+            if (duplicate) {
+                Files.delete(file);
+            } else {
+                locate(hash, "", place(file, size));
+            }
+            return link(hash, folderId, name, duplicate);
+        }
+    }
+
+    @Override
+    public StoredFile linkExisting(String hash, String folderId, String name) throws IOException {
+        BlobStore.checkName(folderId, name);
+        String normalized = hash.toLowerCase(Locale.ROOT);
+        if (!normalized.matches("[0-9a-f]{64}")) {
+            return null;
+        }
+        synchronized (this) {
+            return blobs.containsKey(normalized) ? link(normalized, folderId, name, true) : null;
+        }
+    }
+
+    // the hash is the version, a name only gets other bytes by being pointed at another hash
+    @Override
+    public synchronized Extent open(String folderId, String name) {
+        Name file = name(folderId, name);
+        if (file == null) {
+            return null;
+        }
+        Blob blob = blobs.get(file.hash());
+        blob.opened = System.currentTimeMillis();
+        return extent(blob, file.modified(), file.hash());
+    }
+
+    @Override
+    public synchronized FolderIndex.FileEntry stat(String folderId, String name) {
+        Name file = name(folderId, name);
+        return file == null ? null : new FolderIndex.FileEntry(name, blobs.get(file.hash()).size, file.modified());
+    }
+
+    @Override
+    public synchronized List<FolderIndex.FileEntry> list(String folderId) {
+        Map<String, Name> folder = folders.get(folderId);
+        if (folder == null) {
+            return List.of();
+        }
+        List<FolderIndex.FileEntry> entries = new ArrayList<>(folder.size());
+        for (Map.Entry<String, Name> file : folder.entrySet()) {
+            Name name = file.getValue();
+            entries.add(new FolderIndex.FileEntry(file.getKey(), blobs.get(name.hash()).size, name.modified()));
+        }
+        return entries;
+    }
+
+    @Override
+    public synchronized String hashOf(String folderId, String name) {
+        Name file = name(folderId, name);
+        return file == null ? null : file.hash();
+    }
+
+    @Override
+    public synchronized boolean delete(String folderId, String name) throws IOException {
+        Map<String, Name> folder = BlobStore.isValidName(folderId, name) ? folders.get(folderId) : null;
+        Name removed = folder == null ? null : folder.remove(name);
+        if (removed == null) {
+            return false;
+        }
+        if (folder.isEmpty()) {
+            folders.remove(folderId);
+        }
+        record.writeByte(UNLINK);
+        record.writeUTF(folderId);
+        record.writeUTF(name);
+        appendRecord();
+        release(removed.hash());
+        notifyListeners(folderId, name);
+        return true;
+    }
+
+    @Override
+    public synchronized Extent blob(String hash) {
+        Blob blob = blobs.get(hash);
+        return blob == null ? null : extent(blob, 0, null);
+    }
+
+    @Override
+    public synchronized Extent variant(String hash, String suffix) {
+        Blob blob = blobs.get(hash);
+        Location location = blob == null ? null : blob.variants.get(suffix);
+        return location == null ? null : extent(location, 0, null);
+    }
+
+    @Override
+    public boolean storeVariant(String hash, String suffix, VariantWriter writer) throws IOException {
+        Path temp = tempDir.resolve(UUID.randomUUID() + ".tmp");
+        try {
+            if (!writer.write(temp)) {
+                return false;
+            }
+            synchronized (this) {
+                if (!blobs.containsKey(hash)) {
+                    return false;
+                }
+                locate(hash, suffix, place(temp, Files.size(temp)));
+                return true;
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    @Override
+    public synchronized List<String> coldCandidates(long notOpenedSince) {
+        List<String> candidates = new ArrayList<>();
+        for (Map.Entry<String, Blob> entry : blobs.entrySet()) {
+            Blob blob = entry.getValue();
+            if (blob.content != null && blob.size > 0 && blob.opened < notOpenedSince) {
+                candidates.add(entry.getKey());
+            }
+        }
+        return candidates;
+    }
+
+    // the content's bytes are garbage from now on, and go with the next compaction of their segment
+    // so before that, the cold copy and the record saying it is all there is are forced to disk, whatever
+    // files.ingest.fsync says
+    @Override
+    public synchronized boolean moveToCold(String hash) throws IOException {
+        Blob blob = blobs.get(hash);
+        if (blob == null || blob.content == null || !blob.variants.containsKey(COLD_SUFFIX)) {
+            return false;
+        }
+        Segment copy = segments.get(blob.variants.get(COLD_SUFFIX).segment());
+        if (copy == active && activeChannel != null) {
+            activeChannel.force(true);
+        } else {
+            FileSyncer.force(copy.path);
+        }
+        FileSyncer.syncDirectory(dir);
+        dead(blob.content);
+        blob.content = null;
+        record.writeByte(COLD);
+        record.writeUTF(hash);
+        appendRecord();
+        journal.force(true);
+        return true;
+    }
+
+    // nothing outside the store can change a segment's files
+    @Override
+    public Path watchableDirectory(String folderId) {
+        return null;
+    }
+
+    // must be called with the lock held
+    private Name name(String folderId, String name) {
+        Map<String, Name> folder = folders.get(folderId);
+        return folder == null ? null : folder.get(name);
+    }
+
+    // must be called with the lock held: point folderId/name at the content, replacing whatever had that name
+    private StoredFile link(String hash, String folderId, String name, boolean duplicate) throws IOException {
+        Blob blob = blobs.get(hash);
+        blob.references++; // before the old name is released, it may have had the same content
+        long now = System.currentTimeMillis();
+        blob.opened = now;
+        Name previous = folders.computeIfAbsent(folderId, id -> new HashMap<>()).put(name, new Name(hash, now));
+
+        record.writeByte(LINK);
+        record.writeUTF(folderId);
+        record.writeUTF(name);
+        record.writeUTF(hash);
+        record.writeLong(now);
+        appendRecord();
+
+        if (previous != null) {
+            release(previous.hash());
+        }
+        notifyListeners(folderId, name);
+        Location content = blob.content != null ? blob.content : blob.variants.get(COLD_SUFFIX);
+        return new StoredFile(name, segments.get(content.segment()).path + "@" + content.offset(), hash, blob.size, duplicate);
+    }
+
+    // must be called with the lock held: one name less points at the content, which is forgotten after the last one
+    private void release(String hash) throws IOException {
+        Blob blob = blobs.get(hash);
+        if (--blob.references > 0) {
+            return;
+        }
+        blobs.remove(hash);
+        if (blob.content != null) {
+            dead(blob.content);
+        }
+        for (Location variant : blob.variants.values()) {
+            dead(variant);
+        }
+        record.writeByte(FORGET);
+        record.writeUTF(hash);
+        appendRecord();
+    }
+
+    // must be called with the lock held: remember where the content (suffix "") or a variant of a blob now is
+    private void locate(String hash, String suffix, Location location) throws IOException {
+        Blob blob = blobs.computeIfAbsent(hash, h -> new Blob());
+        Location previous = suffix.isEmpty() ? blob.content : blob.variants.get(suffix);
+        if (suffix.isEmpty()) {
+            blob.content = location;
+            blob.size = location.length();
+        } else {
+            blob.variants.put(suffix, location);
+        }
+        if (previous != null) {
+            dead(previous);
+        }
+
+        record.writeByte(LOCATE);
+        record.writeUTF(hash);
+        record.writeUTF(suffix);
+        record.writeInt(location.segment());
+        record.writeLong(location.offset());
+        record.writeLong(location.length());
+        appendRecord();
+    }
+
+    private void dead(Location location) {
+        Segment segment = segments.get(location.segment());
+        if (segment != null) {
+            segment.live -= location.length();
+        }
+    }
+
+    private void notifyListeners(String folderId, String name) {
+        for (ChangeListener listener : listeners) {
+            listener.fileChanged(folderId, name);
+        }
+    }
+
+    private Extent extent(Location location, long modified, Object version) {
+        return new Extent(segments.get(location.segment()).path, location.offset(), location.length(), modified, version);
+    }
+
+    // must be called with the lock held: the content of a blob, to be decompressed from its cold copy if it is cold
+    private Extent extent(Blob blob, long modified, Object version) {
+        if (blob.content != null) {
+            return extent(blob.content, modified, version);
+        }
+        Location copy = blob.variants.get(COLD_SUFFIX);
+        return new Extent(segments.get(copy.segment()).path, copy.offset(), blob.size, modified, version, copy.length());
+    }
+
+    // must be called with the lock held: store a complete file, small ones are appended to the current segment and the
+    // file deleted, big ones are moved in as a segment of their own
+    private Location place(Path file, long size) throws IOException {
+        if (size > maxPackedSize) {
+            fileSyncer.written(file); // a half written segment must never show up after a crash
+            Segment segment = newSegment();
+            moveInto(file, segment.path);
+            fileSyncer.moved(file, segment.path);
+            segment.size = size;
+            segment.live = size;
+            return new Location(segment.number, 0, size);
+        }
+        Location location;
+        try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+            Segment segment = activeFor(size);
+            long offset = segment.size;
+            long position = 0;
+            while (position < size) {
+                long copied = activeChannel.transferFrom(source, offset + position, size - position);
+                if (copied <= 0) {
+                    throw new IOException("File truncated while storing");
+                }
+                position += copied;
+            }
+            location = appended(segment, offset, size);
+        }
+        Files.delete(file);
+        return location;
+    }
+
+    // must be called with the lock held: append the bytes to the current segment
+    private Location append(ByteBuffer data) throws IOException {
+        long size = data.remaining();
+        Segment segment = activeFor(size);
+        long offset = segment.size;
+        long position = offset;
+        while (data.hasRemaining()) {
+            position += activeChannel.write(data, position);
+        }
+        return appended(segment, offset, size);
+    }
+
+    private Location appended(Segment segment, long offset, long size) throws IOException {
+        segment.size = offset + size;
+        segment.live += size;
+        fileSyncer.written(segment.path, activeChannel); // the journal record pointing at the bytes comes after them
+        return new Location(segment.number, offset, size);
+    }
+
+    // must be called with the lock held: the current segment, or a new one if size more bytes don't fit into it
+    private Segment activeFor(long size) throws IOException {
+        if (active == null || (active.size > 0 && active.size + size > segmentSize)) {
+            if (activeChannel != null) {
+                // journal records already point into it, its last bytes must be on disk before a batched sync could
+                // have got to them
+                if (fileSyncer.getPolicy() != FileSyncer.Policy.NEVER) {
+                    activeChannel.force(false);
+                }
+                activeChannel.close();
+            }
+            active = newSegment();
+            activeChannel = FileChannel.open(active.path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        }
+        return active;
+    }
+
+    private Segment newSegment() {
+        int number = nextSegment++;
+        Segment segment = new Segment(number, dir.resolve(String.format("%08d.seg", number)));
+        segments.put(number, segment);
+        return segment;
+    }
+
+    // must be called with the lock held: write the record in recordBytes to the journal
+    // a record is its length, the record and its crc, so a half written last record after a crash is recognised
+    private void appendRecord() throws IOException {
+        byte[] payload = recordBytes.toByteArray();
+        recordBytes.reset();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer buffer = ByteBuffer.allocate(payload.length + 8);
+        buffer.putInt(payload.length).put(payload).putInt((int) crc.getValue()).flip();
+        while (buffer.hasRemaining()) {
+            journal.write(buffer);
+        }
+        fileSyncer.written(journalPath, journal);
+        journalRecords++;
+    }
+
+    // runs on the compactor thread
+    private void maintain() {
+        try {
+            deleteRetired();
+            compact();
+            boolean due;
+            synchronized (this) {
+                due = journalRecords >= checkpointRecords;
+            }
+            if (due) {
+                checkpoint();
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Segment maintenance failed: " + e.getMessage());
+        }
+    }
+
+    private void deleteRetired() {
+        long now = System.currentTimeMillis();
+        List<Retired> expired = new ArrayList<>();
+        synchronized (this) {
+            retired.removeIf(segment -> {
+                boolean old = now - segment.since() >= compactIntervalMillis;
+                if (old) {
+                    expired.add(segment);
+                }
+                return old;
+            });
+        }
+        for (Retired segment : expired) {
+            try {
+                Files.deleteIfExists(segment.path());
+            } catch (IOException e) {
+                // eg. still open on windows, kept so the next pass tries again instead of leaving the file behind
+                synchronized (this) {
+                    retired.add(segment);
+                }
+            }
+        }
+    }
+
+    // function to copy what is still used out of segments that are mostly garbage, and let them go
+    private void compact() throws IOException {
+        List<Segment> victims = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                if (segment != active && segment.size > 0 && segment.size - segment.live >= segment.size * compactGarbage) {
+                    victims.add(segment);
+                }
+            }
+        }
+        for (Segment victim : victims) {
+            compact(victim);
+        }
+    }
+
+    private void compact(Segment victim) throws IOException {
+        // what is still used is copied one blob at a time, uploads can go on in between
+        List<String[]> used = new ArrayList<>(); // hash, suffix
+        synchronized (this) {
+            for (Map.Entry<String, Blob> entry : blobs.entrySet()) {
+                Blob blob = entry.getValue();
+                if (blob.content != null && blob.content.segment() == victim.number) {
+                    used.add(new String[]{entry.getKey(), ""});
+                }
+                for (Map.Entry<String, Location> variant : blob.variants.entrySet()) {
+                    if (variant.getValue().segment() == victim.number) {
+                        used.add(new String[]{entry.getKey(), variant.getKey()});
+                    }
+                }
+            }
+        }
+
+        if (!used.isEmpty()) {
+            try (FileChannel source = FileChannel.open(victim.path, StandardOpenOption.READ)) {
+                for (String[] key : used) {
+                    synchronized (this) {
+                        Blob blob = blobs.get(key[0]);
+                        Location location = blob == null ? null : key[1].isEmpty() ? blob.content : blob.variants.get(key[1]);
+                        if (location == null || location.segment() != victim.number) {
+                            continue; // deleted or replaced meanwhile
+                        }
+                        Segment segment = activeFor(location.length());
+                        long offset = segment.size;
+                        copy(source, location.offset(), location.length(), activeChannel, offset);
+                        locate(key[0], key[1], appended(segment, offset, location.length()));
+                    }
+                }
+            }
+        }
+
+        synchronized (this) {
+            if (victim.live > 0) {
+                return; // can't happen, only the current segment gets new content
+            }
+            // the copies and the journal records pointing at them have to be on disk before the old bytes go
+            if (activeChannel != null) {
+                activeChannel.force(false);
+            }
+            journal.force(false);
+            segments.remove(victim.number);
+            retired.add(new Retired(victim.path, System.currentTimeMillis()));
+        }
+    }
+
+    // function to write the whole index out, after which the journals it contains are deleted
+    // the index is copied under the lock and written without it, changes made meanwhile go to a new journal
+    private void checkpoint() throws IOException {
+        synchronized (checkpointLock) {
+            Map<String, Blob> blobsCopy = new HashMap<>();
+            Map<String, Map<String, Name>> foldersCopy = new HashMap<>();
+            long checkpointGeneration;
+            synchronized (this) {
+                for (Map.Entry<String, Blob> entry : blobs.entrySet()) {
+                    Blob copy = new Blob();
+                    copy.content = entry.getValue().content;
+                    copy.size = entry.getValue().size;
+                    copy.opened = entry.getValue().opened;
+                    copy.variants = new HashMap<>(entry.getValue().variants);
+                    blobsCopy.put(entry.getKey(), copy);
+                }
+                for (Map.Entry<String, Map<String, Name>> folder : folders.entrySet()) {
+                    foldersCopy.put(folder.getKey(), new HashMap<>(folder.getValue()));
+                }
+                checkpointGeneration = generation + 1;
+                startJournal(checkpointGeneration);
+            }
+
+            Path temp = dir.resolve("checkpoint.tmp");
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 256 * 1024), new CRC32());
+            try (DataOutputStream out = new DataOutputStream(checked)) {
+                out.writeInt(CHECKPOINT_MAGIC);
+                out.writeLong(checkpointGeneration);
+                out.writeInt(blobsCopy.size());
+                for (Map.Entry<String, Blob> entry : blobsCopy.entrySet()) {
+                    Blob blob = entry.getValue();
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(blob.size);
+                    out.writeLong(blob.opened);
+                    out.writeBoolean(blob.content != null);
+                    if (blob.content != null) {
+                        writeLocation(out, blob.content);
+                    }
+                    out.writeInt(blob.variants.size());
+                    for (Map.Entry<String, Location> variant : blob.variants.entrySet()) {
+                        out.writeUTF(variant.getKey());
+                        writeLocation(out, variant.getValue());
+                    }
+                }
+                out.writeInt(foldersCopy.size());
+                for (Map.Entry<String, Map<String, Name>> folder : foldersCopy.entrySet()) {
+                    out.writeUTF(folder.getKey());
+                    out.writeInt(folder.getValue().size());
+                    for (Map.Entry<String, Name> file : folder.getValue().entrySet()) {
+                        out.writeUTF(file.getKey());
+                        out.writeUTF(file.getValue().hash());
+                        out.writeLong(file.getValue().modified());
+                    }
+                }
+                out.flush();
+                out.writeLong(checked.getChecksum().getValue());
+            }
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                channel.force(true); // always, the journals are deleted next
+            }
+            moveInto(temp, checkpointPath);
+
+            for (Path old : journals()) {
+                if (journalGeneration(old) < checkpointGeneration) {
+                    Files.deleteIfExists(old);
+                }
+            }
+        }
+    }
+
+    // must be called with the lock held: send new records to a journal of the given generation
+    private void startJournal(long newGeneration) throws IOException {
+        if (journal != null) {
+            journal.force(false);
+            journal.close();
+        }
+        generation = newGeneration;
+        journalPath = dir.resolve("journal-" + newGeneration + ".log");
+        journal = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(12).putInt(JOURNAL_MAGIC).putLong(newGeneration).flip();
+        while (header.hasRemaining()) {
+            journal.write(header);
+        }
+        journalRecords = 0;
+    }
+
+    // function to rebuild the index when the store opens: the checkpoint, then every journal written since, in order
+    // content whose segment is gone is dropped along with the names pointing at it, segments nothing uses are deleted
+    private void recover() throws IOException {
+        long checkpointGeneration = Files.exists(checkpointPath) ? readCheckpoint() : 0;
+        long lastGeneration = checkpointGeneration;
+        List<Path> journals = journals();
+        journals.sort(Comparator.comparingLong(SegmentStore::journalGeneration));
+        for (Path path : journals) {
+            if (journalGeneration(path) >= checkpointGeneration) {
+                replay(path);
+                lastGeneration = journalGeneration(path);
+            }
+        }
+
+        // leftovers of writes that never got stored
+        try (Stream<Path> temps = Files.list(tempDir)) {
+            for (Path temp : (Iterable<Path>) temps::iterator) {
+                Files.deleteIfExists(temp);
+            }
+        }
+
+        // segments on disk, with how much of them is used
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.seg")) {
+            for (Path path : files) {
+                String file = path.getFileName().toString();
+                int number;
+                try {
+                    number = Integer.parseInt(file.substring(0, file.length() - ".seg".length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                Segment segment = new Segment(number, path);
+                segment.size = Files.size(path);
+                segments.put(number, segment);
+                nextSegment = Math.max(nextSegment, number + 1);
+            }
+        }
+
+        // content written after its journal record but lost in a crash (only with files.ingest.fsync NEVER)
+        for (Blob blob : blobs.values()) {
+            blob.variants.values().removeIf(location -> !fits(location));
+        }
+        blobs.values().removeIf(blob -> blob.content == null ? !blob.variants.containsKey(COLD_SUFFIX) : !fits(blob.content));
+        for (Map.Entry<String, Map<String, Name>> folder : folders.entrySet()) {
+            folder.getValue().entrySet().removeIf(file -> {
+                Blob blob = blobs.get(file.getValue().hash());
+                if (blob == null) {
+                    System.out.println("Lost " + folder.getKey() + "/" + file.getKey() + ", its content is not in any segment");
+                    return true;
+                }
+                blob.references++;
+                blob.opened = Math.max(blob.opened, file.getValue().modified());
+                return false;
+            });
+        }
+        folders.values().removeIf(Map::isEmpty);
+        blobs.values().removeIf(blob -> blob.references == 0);
+
+        for (Blob blob : blobs.values()) {
+            if (blob.content != null) {
+                segments.get(blob.content.segment()).live += blob.content.length();
+            }
+            for (Location variant : blob.variants.values()) {
+                segments.get(variant.segment()).live += variant.length();
+            }
+        }
+        Iterator<Segment> unused = segments.values().iterator();
+        while (unused.hasNext()) {
+            Segment segment = unused.next();
+            if (segment.live == 0) {
+                Files.deleteIfExists(segment.path);
+                unused.remove();
+            }
+        }
+
+        // everything above goes into a new checkpoint, with a journal newer than any that was read
+        generation = lastGeneration;
+        checkpoint();
+    }
+
+    private boolean fits(Location location) {
+        Segment segment = segments.get(location.segment());
+        return segment != null && location.offset() + location.length() <= segment.size;
+    }
+
+    // returns the generation of the checkpoint, journals from before it are already in it
+    private long readCheckpoint() throws IOException {
+        CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(Files.newInputStream(checkpointPath), 256 * 1024), new CRC32());
+        try (DataInputStream in = new DataInputStream(checked)) {
+            int magic = in.readInt();
+            if (magic != CHECKPOINT_MAGIC) {
+                throw new IOException("Not a segment checkpoint: " + checkpointPath);
+            }
+            long checkpointGeneration = in.readLong();
+            int blobCount = in.readInt();
+            for (int i = 0; i < blobCount; i++) {
+                String hash = in.readUTF();
+                Blob blob = new Blob();
+                blob.size = in.readLong();
+                blob.opened = in.readLong();
+                blob.content = in.readBoolean() ? readLocation(in) : null;
+                int variants = in.readInt();
+                for (int v = 0; v < variants; v++) {
+                    blob.variants.put(in.readUTF(), readLocation(in));
+                }
+                blobs.put(hash, blob);
+            }
+            int folderCount = in.readInt();
+            for (int i = 0; i < folderCount; i++) {
+                String folderId = in.readUTF();
+                int files = in.readInt();
+                Map<String, Name> folder = new HashMap<>(files * 4 / 3 + 1);
+                for (int f = 0; f < files; f++) {
+                    folder.put(in.readUTF(), new Name(in.readUTF(), in.readLong()));
+                }
+                folders.put(folderId, folder);
+            }
+            long expected = checked.getChecksum().getValue();
+            if (in.readLong() != expected) {
+                throw new IOException("Damaged segment checkpoint: " + checkpointPath);
+            }
+            return checkpointGeneration;
+        }
+    }
+
+    // applies every complete record of a journal, a half written last record after a crash is ignored
+    private void replay(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 256 * 1024))) {
+            if (in.readInt() != JOURNAL_MAGIC) {
+                throw new IOException("Not a segment journal: " + path);
+            }
+            in.readLong(); // generation, already known from the name
+            while (true) {
+                byte[] payload;
+                try {
+                    int length = in.readInt();
+                    if (length <= 0 || length > 1024 * 1024) {
+                        return;
+                    }
+                    payload = in.readNBytes(length);
+                    if (payload.length < length) {
+                        return;
+                    }
+                    CRC32 crc = new CRC32();
+                    crc.update(payload);
+                    if (in.readInt() != (int) crc.getValue()) {
+                        return;
+                    }
+                } catch (EOFException e) {
+                    return;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(payload)));
+            }
+        } catch (EOFException e) {
+            // not even a complete header, the journal was just being started
+        }
+    }
+
+    private void apply(DataInputStream in) throws IOException {
+        switch (in.readByte()) {
+            case LOCATE -> {
+                String hash = in.readUTF();
+                String suffix = in.readUTF();
+                Location location = readLocation(in);
+                Blob blob = blobs.computeIfAbsent(hash, h -> new Blob());
+                if (suffix.isEmpty()) {
+                    blob.content = location;
+                    blob.size = location.length();
+                } else {
+                    blob.variants.put(suffix, location);
+                }
+            }
+            case COLD -> {
+                Blob blob = blobs.get(in.readUTF());
+                if (blob != null) {
+                    blob.content = null;
+                }
+            }
+            case FORGET -> blobs.remove(in.readUTF());
+            case LINK -> {
+                String folderId = in.readUTF();
+                String name = in.readUTF();
+                folders.computeIfAbsent(folderId, id -> new HashMap<>()).put(name, new Name(in.readUTF(), in.readLong()));
+            }
+            case UNLINK -> {
+                Map<String, Name> folder = folders.get(in.readUTF());
+                if (folder != null) {
+                    folder.remove(in.readUTF());
+                }
+            }
+            default -> throw new IOException("Unknown segment journal record");
+        }
+    }
+
+    private List<Path> journals() throws IOException {
+        List<Path> journals = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "journal-*.log")) {
+            for (Path path : files) {
+                if (journalGeneration(path) >= 0) {
+                    journals.add(path);
+                }
+            }
+        }
+        return journals;
+    }
+
+    // journal-<generation>.log, -1 for anything else
+    private static long journalGeneration(Path path) {
+        String file = path.getFileName().toString();
+        try {
+            return Long.parseLong(file.substring("journal-".length(), file.length() - ".log".length()));
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    // copies length bytes at from in source to to in target
+    private static void copy(FileChannel source, long from, long length, FileChannel target, long to) throws IOException {
+        source.position(from);
+        long copied = 0;
+        while (copied < length) {
+            long count = target.transferFrom(source, to + copied, length - copied);
+            if (count <= 0) {
+                throw new IOException("Segment truncated while compacting");
+            }
+            copied += count;
+        }
+    }
+
+    private static void writeLocation(DataOutputStream out, Location location) throws IOException {
+        out.writeInt(location.segment());
+        out.writeLong(location.offset());
+        out.writeLong(location.length());
+    }
+
+    private static Location readLocation(DataInputStream in) throws IOException {
+        return new Location(in.readInt(), in.readLong(), in.readLong());
+    }
+
+    private static void moveInto(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+}
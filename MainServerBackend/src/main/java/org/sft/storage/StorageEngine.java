@@ -0,0 +1,118 @@
+package org.sft.storage;
+
+import org.sft.config.Settings;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+// how the files of the folders are kept on disk, everything that reads, writes or deletes folder files goes through this
+// files.storage.engine picks one:
+// DIRECTORY -> BlobStore, every folder is a directory under uploads/ full of normal files, hard linked to blobs/
+// SEGMENTS -> SegmentStore, files are appended to a few big segment files under segments/ and found through an index in
+//             memory, so millions of tiny files don't cost millions of inodes and directory entries
+// both keep content by its sha-256, so the same content in many folders is stored once, and both hand out where a file's
+// bytes are as an Extent, so downloads can still use sendfile and ranges
+// content nobody has downloaded for a long time can be moved to cold storage, where only its zstd copy is kept, see
+// moveToCold, folder files with it look the same as before and are decompressed when they are read
+public interface StorageEngine {
+
+    // the variant cold content is kept as, the same zstd copy compressed downloads send
+    String COLD_SUFFIX = ".zst";
+
+    enum Kind {
+        DIRECTORY, SEGMENTS
+    }
+
+    // a file as stored in a folder
+    // param:
+    // name -> its name in the folder
+    // location -> where it ended up, for messages
+    // hash -> sha-256 of its content
+    // size -> length in bytes
+    // duplicate -> true if the content was already in the store, so nothing new was written
+    record StoredFile(String name, String location, String hash, long size, boolean duplicate) {
+    }
+
+    // told about every file the store adds, replaces or deletes in a folder
+    interface ChangeListener {
+        void fileChanged(String folderId, String name);
+    }
+
+    // writes a variant of a blob into the given file, returns false to not keep it after all
+    interface VariantWriter {
+        boolean write(Path target) throws IOException;
+    }
+
+    // function to get the engine files.storage.engine asks for, shared by the spring side and the serial receiver
+    static StorageEngine shared() {
+        return switch (Settings.get("files.storage.engine", Kind.class, Kind.DIRECTORY)) {
+            case DIRECTORY -> BlobStore.shared();
+            case SEGMENTS -> SegmentStore.shared();
+        };
+    }
+
+    void addListener(ChangeListener listener);
+
+    // function to start writing a new file, finish it with commit
+    BlobWriter newWriter();
+
+    // function to store what was written to the writer as a file in a folder
+    // if the folder already has a file with that name it is replaced
+    StoredFile commit(BlobWriter writer, String folderId, String name) throws IOException;
+
+    // function to store a file that is already complete on disk (eg. a finished upload session) as a file in a folder
+    // the file is moved into the store, or deleted if the store already has the same content
+    StoredFile adopt(Path file, String folderId, String name) throws IOException;
+
+    // function to put content that the store already has into a folder without receiving it again
+    // returns null if there is no content with that hash, the caller then has to send the data
+    StoredFile linkExisting(String hash, String folderId, String name) throws IOException;
+
+    // function to find the bytes of a file of a folder, returns null if there is no such file
+    Extent open(String folderId, String name) throws IOException;
+
+    // function to get the size and time of a file of a folder, null if there is no such file
+    FolderIndex.FileEntry stat(String folderId, String name);
+
+    // function to list the files of a folder in no particular order, an empty list if the folder doesn't exist
+    List<FolderIndex.FileEntry> list(String folderId);
+
+    // sha-256 of a file if it went through the store, null otherwise
+    String hashOf(String folderId, String name);
+
+    // function to delete a file from a folder, its content goes too if nothing else points at it
+    // returns false if the file did not exist
+    boolean delete(String folderId, String name) throws IOException;
+
+    // function to find the content with that hash, null if the store doesn't have it
+    // unlike a folder file it never changes, the same hash always has the same bytes
+    Extent blob(String hash);
+
+    // function to get a variant of a blob (eg. a compressed copy), null if it wasn't made (yet)
+    // param:
+    // suffix -> what the variant was stored with, eg. ".gz"
+    Extent variant(String hash, String suffix);
+
+    // function to store a variant of a blob, replacing an older one
+    // the variant is written into a temporary file first, without holding the store's lock
+    // returns false if the writer gave up or the blob was deleted in the meantime, the variant is thrown away then
+    // variants belong to the content rather than to any folder file and are deleted together with it
+    boolean storeVariant(String hash, String suffix, VariantWriter writer) throws IOException;
+
+    // function to find content that is still kept as it is and wasn't opened as a folder file since the given time
+    // param:
+    // notOpenedSince -> milliseconds since the epoch, the store only knows roughly (to the hour) when content was opened
+    List<String> coldCandidates(long notOpenedSince) throws IOException;
+
+    // function to move content to cold storage: only its variant with COLD_SUFFIX (a zstd copy, see storeVariant) is
+    // kept, the content itself is deleted, and the folder files with it keep their size and time but are read by
+    // decompressing that copy (see Extent.isCompressed)
+    // returns false if the content is gone, has no such variant, or is in cold storage already
+    boolean moveToCold(String hash) throws IOException;
+
+    // directory whose changes show up as changes to the folder, for files put there by hand
+    // null if the folder's files can only change through the store
+    Path watchableDirectory(String folderId);
+
+}
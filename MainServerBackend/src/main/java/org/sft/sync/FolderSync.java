@@ -0,0 +1,420 @@
+package org.sft.sync;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.sft.config.Settings;
+import org.sft.storage.StorageEngine;
+import org.sft.storage.BlobWriter;
+import org.sft.storage.FolderIndex;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.locks.ReentrantLock;
+
+// downloads files from a folder on another server into a folder of ours, for the "Other Server's File Viewer" tab
+// everything goes through one async http client, so connections to a server are reused between files (and multiplexed
+// over one HTTP/2 connection when the server speaks it, like the tunnel does), and nobody waits on a blocking call:
+// every call returns right away and the transfers report their progress in fields the UI can look at whenever it likes
+// at most files.sync.concurrency files are downloaded at once, over all syncs together, the rest wait their turn
+// a sync works from the other server's /files/manifest, which has the sha-256 of every file, so only files whose content
+// we don't have are downloaded: files we have the same content of already are left alone (or linked from where we have
+// it, without receiving anything), and syncing a folder again costs only what changed since the last time
+public class FolderSync {
+
+    public enum State {
+        QUEUED, // waiting for one of the other downloads to finish
+        DOWNLOADING,
+        DONE,
+        UP_TO_DATE, // we already have a file with that name and content (or size, if the server sent no hash), so it wasn't downloaded again
+        LINKED, // we already had the content under another name or in another folder, so it was put there without downloading it
+        FAILED, // see error()
+        CANCELLED
+    }
+
+    // a file as the other server describes it
+    // param:
+    // sha256 -> hash of the content from /files/manifest, null if the server only has /files/list
+    public record RemoteFile(String name, long size, String sha256) {
+    }
+
+    // one file being downloaded, its fields are updated from background threads and can be read from any thread
+    public final class Transfer {
+
+        private final String serverUrl;
+        private final String sourceFolderId;
+        private final String destinationFolderId;
+        private final RemoteFile file;
+        private final CompletableFuture<Transfer> done = new CompletableFuture<>();
+        // held while received bytes are written, so a cancelled download isn't thrown away in the middle of a write
+        // (a lock rather than synchronized, so a virtual thread waiting for the disk doesn't hold on to its carrier)
+        private final ReentrantLock writing = new ReentrantLock();
+
+        private volatile State state = State.QUEUED;
+        private volatile long received;
+        private volatile String error;
+        private volatile boolean cancelled;
+        private volatile CompletableFuture<?> exchange;
+
+        private Transfer(String serverUrl, String sourceFolderId, String destinationFolderId, RemoteFile file) {
+            this.serverUrl = serverUrl;
+            this.sourceFolderId = sourceFolderId;
+            this.destinationFolderId = destinationFolderId;
+            this.file = file;
+        }
+
+        public RemoteFile file() {
+            return file;
+        }
+
+        public State state() {
+            return state;
+        }
+
+        // bytes received so far
+        public long received() {
+            return received;
+        }
+
+        public String error() {
+            return error;
+        }
+
+        public boolean isFinished() {
+            return done.isDone();
+        }
+
+        // completes with this transfer once it is finished, however it ended
+        public CompletableFuture<Transfer> done() {
+            return done;
+        }
+
+        // function to stop the download, a file that is cut off is thrown away, a finished one stays
+        public void cancel() {
+            cancelled = true;
+            CompletableFuture<?> running = exchange;
+            if (running != null) {
+                running.cancel(true); // aborts the http exchange
+            }
+            if (dequeue(this)) {
+                finish(State.CANCELLED, null);
+            }
+        }
+
+        private void finish(State finalState, String message) {
+            error = message;
+            state = finalState;
+            done.complete(this);
+        }
+    }
+
+    private static volatile FolderSync shared;
+
+    private final HttpClient client;
+    // received bytes are written to disk on these, and files are compared with ours on them
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final StorageEngine storage;
+    private final FolderIndex folderIndex;
+    private final int concurrency;
+
+    private final Queue<Transfer> queued = new ArrayDeque<>();
+    private int running;
+
+    // function to get the sync configured by files.sync.concurrency and files.sync.connect-timeout
+    public static FolderSync shared() {
+        if (shared == null) {
+            synchronized (FolderSync.class) {
+                if (shared == null) {
+                    shared = new FolderSync(StorageEngine.shared(), FolderIndex.shared(),
+                            Settings.get("files.sync.concurrency", Integer.class, 6),
+                            Settings.get("files.sync.connect-timeout", Duration.class, Duration.ofSeconds(10)));
+                }
+            }
+        }
+        return shared;
+    }
+
+    // param:
+    // concurrency -> most files downloaded at the same time
+    // connectTimeout -> how long to wait for a connection to the other server
+    public FolderSync(StorageEngine storage, FolderIndex folderIndex, int concurrency, Duration connectTimeout) {
+        this.storage = storage;
+        this.folderIndex = folderIndex;
+        this.concurrency = Math.max(1, concurrency);
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2) // falls back to HTTP/1.1 by itself if the server doesn't do HTTP/2
+                .connectTimeout(connectTimeout)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .executor(executor)
+                .build();
+    }
+
+    // function to ask another server which files a folder has, with the hash of every file
+    // servers from before /files/manifest existed answer it with 404, then their /files/list is used, without hashes
+    // param:
+    // serverUrl -> eg. https://something.trycloudflare.com
+    // returns the files, or completes with an IOException if the server couldn't be reached or said no
+    public CompletableFuture<List<RemoteFile>> list(String serverUrl, String folderId) {
+        return fetch(serverUrl, "/files/manifest?id=" + encode(folderId)).thenCompose(response -> response.statusCode() == 404
+                ? fetch(serverUrl, "/files/list?id=" + encode(folderId))
+                : CompletableFuture.completedFuture(response)).thenApply(response -> {
+            if (response.statusCode() != 200) {
+                throw new CompletionException(new IOException("Server returned: " + response.statusCode()));
+            }
+            JSONArray list = new JSONArray(response.body());
+            List<RemoteFile> files = new ArrayList<>(list.length());
+            for (int i = 0; i < list.length(); i++) {
+                JSONObject file = list.getJSONObject(i);
+                files.add(new RemoteFile(file.getString("name"), file.getLong("size"), file.optString("sha256", null)));
+            }
+            return files;
+        });
+    }
+
+    private CompletableFuture<HttpResponse<String>> fetch(String serverUrl, String pathAndQuery) {
+        HttpRequest request = HttpRequest.newBuilder(uri(serverUrl, pathAndQuery)).GET().build();
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    // function to download files from a folder of another server into one of our folders, replacing files with the same name
+    // param:
+    // skipUpToDate -> don't download files we already have with the same name and content, and put files whose content
+    //                 we already have somewhere else in place without downloading them
+    // returns a transfer for every file, in the same order, they start as soon as there is room
+    public List<Transfer> download(String serverUrl, String sourceFolderId, List<RemoteFile> files, String destinationFolderId,
+                                   boolean skipUpToDate) {
+        List<Transfer> transfers = new ArrayList<>(files.size());
+        for (RemoteFile file : files) {
+            transfers.add(new Transfer(serverUrl, sourceFolderId, destinationFolderId, file));
+        }
+        // comparing may have to hash files of ours nobody asked about yet, so it happens in the background too
+        executor.execute(() -> {
+            for (Transfer transfer : transfers) {
+                State local = skipUpToDate ? localCopy(transfer.file, destinationFolderId) : null;
+                if (transfer.cancelled) {
+                    transfer.finish(State.CANCELLED, null);
+                } else if (local != null) {
+                    transfer.finish(local, null);
+                } else {
+                    synchronized (this) {
+                        queued.add(transfer);
+                    }
+                }
+            }
+            startQueued();
+        });
+        return Collections.unmodifiableList(transfers);
+    }
+
+    // function to delete the files of one of our folders that the other server's folder doesn't have (any more)
+    // param:
+    // files -> everything the other server's folder has, as list() returned it
+    // returns the names of the deleted files, or completes with the IOException of the first file that couldn't be deleted
+    public CompletableFuture<List<String>> deleteMissing(List<RemoteFile> files, String destinationFolderId) {
+        Set<String> remote = new HashSet<>();
+        for (RemoteFile file : files) {
+            remote.add(file.name());
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            List<String> deleted = new ArrayList<>();
+            for (FolderIndex.FileEntry entry : folderIndex.list(destinationFolderId)) {
+                try {
+                    if (!remote.contains(entry.name()) && storage.delete(destinationFolderId, entry.name())) {
+                        deleted.add(entry.name());
+                    }
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }
+            return deleted;
+        }, executor);
+    }
+
+    // function to find out if a file doesn't have to be downloaded, null if it does
+    private State localCopy(RemoteFile file, String destinationFolderId) {
+        try {
+            if (file.sha256() == null) {
+                // no hash from the other server, the same size is the best we can do
+                FolderIndex.FileEntry existing = storage.stat(destinationFolderId, file.name());
+                return existing != null && existing.size() == file.size() ? State.UP_TO_DATE : null;
+            }
+            if (file.sha256().equalsIgnoreCase(String.valueOf(folderIndex.hash(destinationFolderId, file.name())))) {
+                return State.UP_TO_DATE;
+            }
+            return storage.linkExisting(file.sha256(), destinationFolderId, file.name()) != null ? State.LINKED : null;
+        } catch (IOException | IllegalArgumentException e) {
+            return null; // download it and let that report what is wrong
+        }
+    }
+
+    // function to start queued transfers while fewer than the limit are running
+    private void startQueued() {
+        while (true) {
+            Transfer next;
+            synchronized (this) {
+                if (running >= concurrency || queued.isEmpty()) {
+                    return;
+                }
+                next = queued.poll();
+                running++;
+            }
+            start(next);
+        }
+    }
+
+    private synchronized boolean dequeue(Transfer transfer) {
+        return queued.remove(transfer);
+    }
+
+    private void start(Transfer transfer) {
+        BlobWriter writer = storage.newWriter();
+        transfer.state = State.DOWNLOADING;
+        try {
+            HttpRequest request = HttpRequest.newBuilder(uri(transfer.serverUrl, "/files/download?id=" + encode(transfer.sourceFolderId)
+                    + "&filename=" + encode(transfer.file.name()))).GET().build();
+
+            // only a 200 answer is written into the store, anything else is thrown away
+            CompletableFuture<HttpResponse<Void>> exchange = client.sendAsync(request, info -> info.statusCode() == 200
+                    ? new StoreSubscriber(writer, transfer)
+                    : HttpResponse.BodySubscribers.discarding());
+            transfer.exchange = exchange;
+            if (transfer.cancelled) {
+                exchange.cancel(true); // cancelled while we were starting it
+            }
+
+            exchange.thenApply(response -> {
+                if (response.statusCode() != 200) {
+                    throw new CompletionException(new IOException("Server returned: " + response.statusCode()));
+                }
+                // a file that arrived different from what the manifest announced is never stored
+                String expected = transfer.file.sha256();
+                if (expected != null && !expected.equalsIgnoreCase(writer.hash())) {
+                    throw new CompletionException(new IOException("Content doesn't match its sha256 from the server"));
+                }
+                try {
+                    storage.commit(writer, transfer.destinationFolderId, transfer.file.name());
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+                return response;
+            }).whenComplete((response, failure) -> finished(transfer, writer, failure));
+        } catch (RuntimeException e) {
+            finished(transfer, writer, e); // eg. a url that can't be used
+        }
+    }
+
+    private void finished(Transfer transfer, BlobWriter writer, Throwable failure) {
+        transfer.writing.lock(); // a cancelled download may still be in the middle of writing a piece
+        try {
+            writer.close(); // throws away what was written unless it was committed
+        } catch (IOException e) {
+            // nothing was kept, so there is nothing to clean up
+        } finally {
+            transfer.writing.unlock();
+        }
+        Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+        if (cause == null) {
+            transfer.finish(State.DONE, null);
+        } else if (transfer.cancelled || cause instanceof CancellationException) {
+            transfer.finish(State.CANCELLED, null);
+        } else {
+            transfer.finish(State.FAILED, cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName());
+        }
+        synchronized (this) {
+            running--;
+        }
+        startQueued();
+    }
+
+    // writes the body of a download into the store as it arrives, and stops as soon as the transfer is cancelled
+    private static final class StoreSubscriber implements HttpResponse.BodySubscriber<Void> {
+
+        private final BlobWriter writer;
+        private final Transfer transfer;
+        private final CompletableFuture<Void> body = new CompletableFuture<>();
+        private Flow.Subscription subscription;
+
+        StoreSubscriber(BlobWriter writer, Transfer transfer) {
+            this.writer = writer;
+            this.transfer = transfer;
+        }
+
+        @Override
+        public CompletionStage<Void> getBody() {
+            return body;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> buffers) {
+            transfer.writing.lock();
+            try {
+                if (transfer.cancelled) {
+                    subscription.cancel();
+                    body.completeExceptionally(new CancellationException());
+                    return;
+                }
+                try {
+                    long received = transfer.received;
+                    for (ByteBuffer buffer : buffers) {
+                        received += buffer.remaining();
+                        writer.write(buffer);
+                    }
+                    transfer.received = received;
+                } catch (IOException e) {
+                    subscription.cancel();
+                    body.completeExceptionally(e);
+                    return;
+                }
+            } finally {
+                transfer.writing.unlock();
+            }
+            subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            body.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            body.complete(null);
+        }
+    }
+
+    private static URI uri(String serverUrl, String pathAndQuery) {
+        String base = serverUrl.endsWith("/") ? serverUrl.substring(0, serverUrl.length() - 1) : serverUrl;
+        return URI.create(base + pathAndQuery);
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+}
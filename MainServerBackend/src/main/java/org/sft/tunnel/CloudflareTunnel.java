@@ -0,0 +1,83 @@
+package org.sft.tunnel;
+
+import org.sft.concurrent.Workers;
+import org.sft.config.Settings;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// runs a cloudflare quick tunnel, which gives the local server a public https://....trycloudflare.com url so other
+// houses can reach it, used by the "Start Server" button and by the server when it runs without the window
+public final class CloudflareTunnel {
+
+    // the general structure of the url cloudflared prints once the tunnel is up
+    private static final Pattern URL_PATTERN = Pattern.compile("(https://[a-zA-Z0-9.-]+\\.trycloudflare\\.com)");
+
+    private CloudflareTunnel() {
+    }
+
+    // function to start cloudflared for a local url and read its output until it stops, so run it as a background job
+    // any cloudflared that is still running is killed first to start freshly
+    // param:
+    // localUrl -> eg. http://localhost:9090
+    // onUrl -> told the public url once cloudflared prints it, on the thread running this
+    public static void run(String localUrl, Consumer<String> onUrl) {
+        killRunning();
+        try {
+            // cloudflare is usually installed in the user directory, files.tunnel.cloudflared says where if it isn't
+            String cloudflaredPath = Settings.get("files.tunnel.cloudflared", System.getProperty("user.home") + "/cloudflared.exe");
+
+            // process builder is used to execute terminal commands from java
+            // so we use the command ".\cloudflare tunnel --url http://localhost:9090"
+            ProcessBuilder pb = new ProcessBuilder(cloudflaredPath, "tunnel", "--url", localUrl);
+
+            // redirects all errors to the output stream of the process
+            pb.redirectErrorStream(true);
+
+            // build and start the process, on shutdown it is stopped which also ends the reading below
+            Process process = pb.start();
+            AutoCloseable stopTunnel = Workers.shared().closeOnShutdown(process::destroy);
+
+            // we now attempt to read the output (input when you look from java's perspective) from the process and filter out the url
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    System.out.println(line); // print out the line just for seeing in the console log
+                    Matcher matcher = URL_PATTERN.matcher(line);
+                    if (matcher.find()) {
+                        onUrl.accept(matcher.group(1)); // only the url, eg. of "CloudFlare URL: {url}" just the {url}
+                    }
+                }
+            } finally {
+                Workers.shared().closed(stopTunnel);
+            }
+        } catch (IOException e) { // just print the error if something goes wrong
+            e.printStackTrace();
+        }
+    }
+
+    // function to kill any cloudflared instances that may be running
+    private static void killRunning() {
+        try {
+            // use the process builder to execute kill command in cmd
+            ProcessBuilder pb = new ProcessBuilder("taskkill", "/F", "/IM", "cloudflared.exe");
+            pb.redirectErrorStream(true);
+            Process process = pb.start(); // start the process
+            // read the lines and print out just for convenience
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    System.out.println(line);
+                }
+            }
+            // if error comes say failed to terminate cloud flared
+        } catch (IOException e) {
+            System.out.println("Failed to terminate Cloudflared. It may not be running.");
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+package org.sft.upload;
+
+import org.sft.storage.StorageEngine;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+// saves every file of a multipart request with many files in it (/files/uploadBatch) into a folder
+// the files are written at the same time on virtual threads, so hashing and writing one file doesn't wait for the one before
+// at most files.batch.upload-concurrency files are written at once, over all batches together, the rest wait their turn
+// one file failing doesn't stop the others, every file gets its own result
+@Component
+public class BatchUpload {
+
+    private final StreamingIngest streamingIngest;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Semaphore slots;
+
+    public BatchUpload(StreamingIngest streamingIngest, @Value("${files.batch.upload-concurrency:4}") int concurrency) {
+        this.streamingIngest = streamingIngest;
+        this.slots = new Semaphore(Math.max(1, concurrency));
+    }
+
+    // function to save files into a folder
+    // param:
+    // folderId -> id of the folder the files are saved in
+    // files -> the files of the request, each saved with the current time put in front of its name like a normal upload,
+    // see UploadNames, files of the same name sent together still get names of their own
+    // returns one result per file, in the order of the files:
+    // file -> the name the file was sent with
+    // status -> 200 if it was saved, 400 if it was empty or its name is not allowed, 409 if the name it would get is
+    // taken already, 500 if it couldn't be written
+    // name, path, size, sha256, duplicate -> where and how it was saved, like a streamed /files/upload answers
+    // error -> what went wrong, only when the status isn't 200
+    public List<Map<String, Object>> upload(String folderId, List<MultipartFile> files) throws InterruptedException {
+        List<Future<Map<String, Object>>> pending = new ArrayList<>(files.size());
+        for (MultipartFile file : files) {
+            pending.add(executor.submit(() -> {
+                slots.acquire();
+                try {
+                    return save(folderId, file);
+                } finally {
+                    slots.release();
+                }
+            }));
+        }
+
+        List<Map<String, Object>> results = new ArrayList<>(files.size());
+        for (int i = 0; i < files.size(); i++) {
+            try {
+                results.add(pending.get(i).get());
+            } catch (ExecutionException e) {
+                results.add(failed(files.get(i), HttpStatus.INTERNAL_SERVER_ERROR, String.valueOf(e.getCause())));
+            }
+        }
+        return results;
+    }
+
+    private Map<String, Object> save(String folderId, MultipartFile file) {
+        // we don't want to save an empty file, same as a single upload
+        if (file.isEmpty()) {
+            return failed(file, HttpStatus.BAD_REQUEST, "File is empty.");
+        }
+        try (InputStream in = file.getInputStream()) {
+            StorageEngine.StoredFile stored = streamingIngest.ingest(folderId, String.valueOf(file.getOriginalFilename()), null, in);
+
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("file", file.getOriginalFilename());
+            result.put("status", HttpStatus.OK.value());
+            result.put("name", stored.name());
+            result.put("path", stored.location());
+            result.put("size", stored.size());
+            result.put("sha256", stored.hash());
+            result.put("duplicate", stored.duplicate());
+            return result;
+        } catch (IllegalArgumentException e) {
+            return failed(file, HttpStatus.BAD_REQUEST, e.getMessage());
+        } catch (FileAlreadyExistsException e) {
+            return failed(file, HttpStatus.CONFLICT, "A file named " + e.getFile() + " already exists.");
+        } catch (IOException e) {
+            return failed(file, HttpStatus.INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+    }
+
+    private static Map<String, Object> failed(MultipartFile file, HttpStatus status, String error) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("file", file.getOriginalFilename());
+        result.put("status", status.value());
+        result.put("error", "Upload failed: " + error);
+        return result;
+    }
+
+}
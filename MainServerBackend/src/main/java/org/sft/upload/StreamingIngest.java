@@ -0,0 +1,103 @@
+package org.sft.upload;
+
+import org.apache.catalina.connector.CoyoteInputStream;
+import org.sft.io.DirectBufferPool;
+import org.sft.storage.StorageEngine;
+import org.sft.storage.BlobWriter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.FileAlreadyExistsException;
+
+// writes an upload sent as a raw request body straight into the storage engine
+// unlike a multipart upload nothing is buffered in a servlet temp file first, so every byte is written to disk at most once,
+// and not at all if the store already has the same content
+// the size and the sha-256 digest the store is keyed by are worked out from the same buffer while it is being written
+@Component
+public class StreamingIngest {
+
+    private final StorageEngine storage;
+    private final DirectBufferPool bufferPool;
+
+    public StreamingIngest(StorageEngine storage,
+                           @Value("${files.ingest.buffer-size:256KB}") DataSize bufferSize,
+                           @Value("${files.ingest.pooled-buffers:16}") int pooledBuffers) {
+        this.storage = storage;
+        this.bufferPool = new DirectBufferPool((int) bufferSize.toBytes(), pooledBuffers);
+    }
+
+    // function to save the body of a request as a new file in a folder
+    // param:
+    // folderId -> id of the folder the file is saved in
+    // filename -> original name of the file, the current time is put in front of it like for a normal upload
+    // expectedSha256 -> optional hash sent by the client, if the store already has that content the body is not read at all
+    // body -> the request body
+    // throws FileAlreadyExistsException if the folder already has a file with the name it would get
+    public StorageEngine.StoredFile ingest(String folderId, String filename, String expectedSha256, InputStream body) throws IOException {
+        String savedName = UploadNames.next(filename);
+        if (storage.stat(folderId, savedName) != null) {
+            // only when the clock went back since the file was saved, or it was put there by hand, never replaced
+            throw new FileAlreadyExistsException(savedName);
+        }
+
+        if (expectedSha256 != null) {
+            StorageEngine.StoredFile existing = storage.linkExisting(expectedSha256, folderId, savedName);
+            if (existing != null) {
+                return existing;
+            }
+        }
+
+        ByteBuffer buffer = bufferPool.acquire();
+        try (BlobWriter writer = storage.newWriter()) {
+            // tomcat can copy the body straight into our direct buffer, any other stream goes through a small array
+            CoyoteInputStream coyote = body instanceof CoyoteInputStream c ? c : null;
+            byte[] scratch = coyote == null ? new byte[8192] : null;
+
+            while (true) {
+                int read;
+                if (coyote != null) {
+                    // tomcat 10 leaves the buffer flipped over the bytes it just read, newer servlet versions advance
+                    // the position instead, so put the position back where it belongs either way
+                    int position = buffer.position();
+                    read = coyote.read(buffer);
+                    buffer.limit(buffer.capacity()).position(position + Math.max(read, 0));
+                } else {
+                    read = body.read(scratch, 0, Math.min(scratch.length, buffer.remaining()));
+                    if (read > 0) {
+                        buffer.put(scratch, 0, read);
+                    }
+                }
+                if (read == -1) {
+                    break;
+                }
+
+                // only hand the data on once the buffer is full, so writes are big and few
+                if (!buffer.hasRemaining()) {
+                    drain(buffer, writer);
+                }
+            }
+            drain(buffer, writer);
+
+            StorageEngine.StoredFile stored = storage.commit(writer, folderId, savedName);
+            if (expectedSha256 != null && !expectedSha256.equalsIgnoreCase(stored.hash())) {
+                // the client told us something else than what it sent, don't keep a file it will think is broken
+                storage.delete(folderId, savedName);
+                throw new IllegalArgumentException("Content does not match the given sha256, got " + stored.hash());
+            }
+            return stored;
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    private static void drain(ByteBuffer buffer, BlobWriter writer) throws IOException {
+        buffer.flip();
+        writer.write(buffer);
+        buffer.clear();
+    }
+
+}
@@ -0,0 +1,24 @@
+package org.sft.upload;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+// the names uploads are saved under: the current time in milliseconds, "_" and the name the file was sent with
+// the time is what keeps two uploads of the same name apart, so it is never handed out twice, uploads saved in the same
+// millisecond (eg. the files of one /files/uploadBatch, written at the same time) get the next free one
+public final class UploadNames {
+
+    private static final AtomicLong lastStamp = new AtomicLong();
+
+    private UploadNames() {
+    }
+
+    // function to get the name a new upload is saved under
+    // param:
+    // filename -> the name it was sent with, only the last part of a path is kept
+    public static String next(String filename) {
+        long stamp = lastStamp.updateAndGet(last -> Math.max(last + 1, System.currentTimeMillis()));
+        return stamp + "_" + new File(filename).getName();
+    }
+
+}
@@ -0,0 +1,229 @@
+package org.sft.upload;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// one resumable upload in progress
+// the target file is created at its full size up front and every chunk is written straight to its own offset,
+// so chunks can arrive in any order and over several connections at once
+// which chunks have arrived is kept in a small marker file next to the data (one byte per chunk),
+// so a session survives a server restart as well as a dropped connection
+public class UploadSession {
+
+    private final String sessionId;
+    private final String folderId;
+    private final String filename;
+    private final long size;
+    private final int chunkSize;
+    private final int chunkCount;
+
+    private final Path dataPath;
+    private final Path markerPath;
+    private final FileChannel data;
+    private final FileChannel markers;
+
+    // 1 once a chunk has been fully written, mirrors the marker file
+    private final AtomicIntegerArray received;
+
+    // chunk writes share the read side, commit and abort take the write side so they never close the files under a writer
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private boolean closed;
+
+    private volatile long lastActivity = System.currentTimeMillis();
+
+    private UploadSession(String sessionId, String folderId, String filename, long size, int chunkSize,
+                          Path dataPath, Path markerPath, FileChannel data, FileChannel markers) {
+        this.sessionId = sessionId;
+        this.folderId = folderId;
+        this.filename = filename;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.chunkCount = size == 0 ? 0 : (int) ((size + chunkSize - 1) / chunkSize);
+        this.dataPath = dataPath;
+        this.markerPath = markerPath;
+        this.data = data;
+        this.markers = markers;
+        this.received = new AtomicIntegerArray(chunkCount);
+    }
+
+    // function to create a brand new session in the given directory
+    static UploadSession create(Path dir, String sessionId, String folderId, String filename, long size, int chunkSize) throws IOException {
+        JSONObject meta = new JSONObject();
+        meta.put("folderId", folderId);
+        meta.put("filename", filename);
+        meta.put("size", size);
+        meta.put("chunkSize", chunkSize);
+        Files.writeString(dir.resolve(sessionId + ".json"), meta.toString());
+
+        Path dataPath = dir.resolve(sessionId + ".part");
+        Path markerPath = dir.resolve(sessionId + ".chunks");
+
+        FileChannel data = FileChannel.open(dataPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel markers = FileChannel.open(markerPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        UploadSession session = new UploadSession(sessionId, folderId, filename, size, chunkSize, dataPath, markerPath, data, markers);
+
+        // preallocate the target and the marker file so chunk writes never have to grow them
+        if (size > 0) {
+            data.write(ByteBuffer.wrap(new byte[]{0}), size - 1);
+        }
+        if (session.chunkCount > 0) {
+            markers.write(ByteBuffer.wrap(new byte[]{0}), session.chunkCount - 1);
+        }
+        return session;
+    }
+
+    // function to load a session that was left on disk by an earlier run of the server
+    static UploadSession load(Path dir, String sessionId) throws IOException {
+        JSONObject meta = new JSONObject(Files.readString(dir.resolve(sessionId + ".json")));
+
+        Path dataPath = dir.resolve(sessionId + ".part");
+        Path markerPath = dir.resolve(sessionId + ".chunks");
+
+        FileChannel data = FileChannel.open(dataPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel markers = FileChannel.open(markerPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        UploadSession session = new UploadSession(sessionId, meta.getString("folderId"), meta.getString("filename"),
+                meta.getLong("size"), meta.getInt("chunkSize"), dataPath, markerPath, data, markers);
+
+        ByteBuffer marks = ByteBuffer.allocate(session.chunkCount);
+        while (marks.hasRemaining() && markers.read(marks, marks.position()) > 0) {
+            // keep reading until the whole marker file is in
+        }
+        for (int i = 0; i < session.chunkCount; i++) {
+            if (marks.get(i) != 0) {
+                session.received.set(i, 1);
+            }
+        }
+        return session;
+    }
+
+    // expected number of bytes in the chunk with the given index, the last chunk may be shorter than the others
+    public long chunkLength(int index) {
+        long start = (long) index * chunkSize;
+        return Math.min(chunkSize, size - start);
+    }
+
+    // function to write the chunk with given index from the buffer, at its own offset in the target file
+    // positional writes don't touch the channel position, so several chunks can be written at the same time
+    // the chunk only counts as received once all of its bytes are written
+    void writeChunk(int index, ByteBuffer buffer, long offsetInChunk) throws IOException {
+        long position = (long) index * chunkSize + offsetInChunk;
+        while (buffer.hasRemaining()) {
+            position += data.write(buffer, position);
+        }
+        touch();
+    }
+
+    void markReceived(int index) throws IOException {
+        markers.write(ByteBuffer.wrap(new byte[]{1}), index);
+        received.set(index, 1);
+        touch();
+    }
+
+    public boolean isReceived(int index) {
+        return received.get(index) == 1;
+    }
+
+    // indexes of all chunks that still have to be sent
+    public List<Integer> missingChunks() {
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < chunkCount; i++) {
+            if (received.get(i) == 0) {
+                missing.add(i);
+            }
+        }
+        return missing;
+    }
+
+    public int receivedCount() {
+        int count = 0;
+        for (int i = 0; i < chunkCount; i++) {
+            count += received.get(i);
+        }
+        return count;
+    }
+
+    public boolean isComplete() {
+        return receivedCount() == chunkCount;
+    }
+
+    // function to flush the data to disk and close the files, leaving the finished data file at dataPath
+    void seal() throws IOException {
+        data.force(true);
+        close();
+    }
+
+    void close() throws IOException {
+        closed = true;
+        try {
+            data.close();
+        } finally {
+            markers.close();
+        }
+    }
+
+    // function to remove everything the session left on disk except a sealed data file that was already moved away
+    void deleteFiles(Path dir) throws IOException {
+        Files.deleteIfExists(dataPath);
+        Files.deleteIfExists(markerPath);
+        Files.deleteIfExists(dir.resolve(sessionId + ".json"));
+    }
+
+    ReadWriteLock lock() {
+        return lock;
+    }
+
+    // only read while holding the lock
+    boolean isClosed() {
+        return closed;
+    }
+
+    private void touch() {
+        lastActivity = System.currentTimeMillis();
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public String getFolderId() {
+        return folderId;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    public Path getDataPath() {
+        return dataPath;
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+}
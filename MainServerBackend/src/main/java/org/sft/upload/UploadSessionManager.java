@@ -0,0 +1,242 @@
+package org.sft.upload;
+
+import jakarta.annotation.PreDestroy;
+import org.sft.storage.BlobStore;
+import org.sft.storage.StorageEngine;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+// keeps track of all resumable upload sessions
+// a session is created with the final size of the file, its chunks are then sent with separate requests
+// (in any order, several at once, retrying only the ones that failed) and finally it is committed into the folder
+@Component
+public class UploadSessionManager {
+
+    // session ids are random uuids, anything else is rejected before it gets near the file system
+    private static final Pattern SESSION_ID = Pattern.compile("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    // partially uploaded files live outside uploads/ so they never show up in a folder listing
+    private final Path sessionDir = Paths.get(System.getProperty("user.dir"), "upload-sessions");
+
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+
+    private final StorageEngine storage;
+    private final int defaultChunkSize;
+    private final int maxChunkSize;
+    private final long expireAfterMillis;
+
+    public UploadSessionManager(StorageEngine storage,
+                                @Value("${files.upload-session.default-chunk-size:8MB}") DataSize defaultChunkSize,
+                                @Value("${files.upload-session.max-chunk-size:64MB}") DataSize maxChunkSize,
+                                @Value("${files.upload-session.expire-after:24h}") Duration expireAfter) {
+        this.storage = storage;
+        this.defaultChunkSize = (int) defaultChunkSize.toBytes();
+        this.maxChunkSize = (int) maxChunkSize.toBytes();
+        this.expireAfterMillis = expireAfter.toMillis();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // close the files but keep them on disk, the sessions are picked up again after a restart
+        for (UploadSession session : sessions.values()) {
+            try {
+                session.close();
+            } catch (IOException ignored) {
+            }
+        }
+        sessions.clear();
+    }
+
+    // function to start a new upload session
+    // param:
+    // folderId -> folder the file will be saved in once committed
+    // filename -> original name of the file, any directory part is dropped
+    // size -> total size of the file in bytes
+    // chunkSize -> size of every chunk but the last, 0 to use the default
+    public UploadSession create(String folderId, String filename, long size, int chunkSize) throws IOException {
+        String name = new File(filename).getName();
+        if (name.isEmpty() || folderId.trim().isEmpty()) {
+            throw new IllegalArgumentException("A folder id and file name are required");
+        }
+        // the same check the storage engine makes on commit, so a bad name is turned away before any chunk is sent
+        BlobStore.checkName(folderId, name);
+        if (size < 0) {
+            throw new IllegalArgumentException("Size can't be negative");
+        }
+        if (chunkSize <= 0) {
+            chunkSize = defaultChunkSize;
+        }
+        if (chunkSize > maxChunkSize) {
+            throw new IllegalArgumentException("Chunk size can't be more than " + maxChunkSize + " bytes");
+        }
+        if (size / chunkSize >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many chunks, use a bigger chunk size");
+        }
+
+        expireIdleSessions();
+        Files.createDirectories(sessionDir);
+
+        String sessionId = UUID.randomUUID().toString();
+        UploadSession session = UploadSession.create(sessionDir, sessionId, folderId, name, size, chunkSize);
+        sessions.put(sessionId, session);
+        return session;
+    }
+
+    // function to find a session by id, sessions left behind by an earlier run are loaded from disk
+    // returns null if there is no such session
+    public UploadSession get(String sessionId) throws IOException {
+        if (sessionId == null || !SESSION_ID.matcher(sessionId).matches()) {
+            return null;
+        }
+        UploadSession session = sessions.get(sessionId);
+        if (session != null) {
+            return session;
+        }
+        if (!Files.exists(sessionDir.resolve(sessionId + ".json"))) {
+            return null;
+        }
+        synchronized (this) {
+            session = sessions.get(sessionId);
+            if (session == null) {
+                if (!Files.exists(sessionDir.resolve(sessionId + ".json"))) {
+                    return null; // expired meanwhile
+                }
+                session = UploadSession.load(sessionDir, sessionId);
+                sessions.put(sessionId, session);
+            }
+            return session;
+        }
+    }
+
+    // function to write one chunk of a session from the request body
+    // the body must be exactly as long as the chunk, otherwise the chunk is not marked as received and must be sent again
+    public void receiveChunk(UploadSession session, int index, InputStream body) throws IOException {
+        if (index < 0 || index >= session.getChunkCount()) {
+            throw new IllegalArgumentException("Chunk index out of range: " + index);
+        }
+
+        long expected = session.chunkLength(index);
+        byte[] buffer = new byte[(int) Math.min(COPY_BUFFER_SIZE, Math.max(1, expected))];
+        ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+
+        session.lock().readLock().lock();
+        try {
+            if (session.isClosed()) {
+                throw new IllegalStateException("Upload session is already finished");
+            }
+
+            long written = 0;
+            int read;
+            while ((read = body.read(buffer)) != -1) {
+                if (written + read > expected) {
+                    throw new IllegalArgumentException("Chunk " + index + " is longer than " + expected + " bytes");
+                }
+                wrapped.clear().limit(read);
+                session.writeChunk(index, wrapped, written);
+                written += read;
+            }
+            if (written != expected) {
+                throw new IllegalArgumentException("Chunk " + index + " has " + written + " bytes, expected " + expected);
+            }
+            session.markReceived(index);
+        } finally {
+            session.lock().readLock().unlock();
+        }
+    }
+
+    // function to finish a session once every chunk is in, the file is handed to the storage engine
+    // and named like a normal upload, see UploadNames
+    // returns the saved file
+    public StorageEngine.StoredFile commit(UploadSession session) throws IOException {
+        session.lock().writeLock().lock();
+        try {
+            if (session.isClosed()) {
+                throw new IllegalStateException("Upload session is already finished");
+            }
+            if (!session.isComplete()) {
+                throw new IllegalStateException("Upload is missing " + session.missingChunks().size() + " chunk(s)");
+            }
+
+            session.seal();
+            StorageEngine.StoredFile savedFile = storage.adopt(session.getDataPath(), session.getFolderId(),
+                    UploadNames.next(session.getFilename()));
+            session.deleteFiles(sessionDir);
+            sessions.remove(session.getSessionId());
+            return savedFile;
+        } finally {
+            session.lock().writeLock().unlock();
+        }
+    }
+
+    // function to throw a session away along with whatever was uploaded for it
+    public void abort(UploadSession session) throws IOException {
+        session.lock().writeLock().lock();
+        try {
+            if (!session.isClosed()) {
+                session.close();
+            }
+            session.deleteFiles(sessionDir);
+            sessions.remove(session.getSessionId());
+        } finally {
+            session.lock().writeLock().unlock();
+        }
+    }
+
+    // sessions nobody touched for a long time are abandoned, remove them so their preallocated files don't eat the disk
+    private void expireIdleSessions() {
+        long cutoff = System.currentTimeMillis() - expireAfterMillis;
+        for (UploadSession session : sessions.values()) {
+            if (session.getLastActivity() < cutoff) {
+                try {
+                    abort(session);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        expireLeftSessions(cutoff);
+    }
+
+    // sessions an earlier run left on disk are only loaded once their client comes back, so they are looked for on disk,
+    // when their files were last written to tells how long they have been idle
+    private synchronized void expireLeftSessions(long cutoff) {
+        try (DirectoryStream<Path> left = Files.newDirectoryStream(sessionDir, "*.json")) {
+            for (Path meta : left) {
+                String sessionId = meta.getFileName().toString().replaceFirst("\\.json$", "");
+                if (!SESSION_ID.matcher(sessionId).matches() || sessions.containsKey(sessionId)) {
+                    continue;
+                }
+                long lastWritten = 0;
+                for (String suffix : new String[]{".json", ".part", ".chunks"}) {
+                    try {
+                        lastWritten = Math.max(lastWritten, Files.getLastModifiedTime(sessionDir.resolve(sessionId + suffix)).toMillis());
+                    } catch (NoSuchFileException ignored) {
+                    }
+                }
+                if (lastWritten < cutoff) {
+                    for (String suffix : new String[]{".part", ".chunks", ".json"}) {
+                        Files.deleteIfExists(sessionDir.resolve(sessionId + suffix));
+                    }
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // no session was ever made
+        } catch (IOException e) {
+            System.out.println("Failed to expire old upload sessions: " + e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+package org.sft.web;
+
+// a single byte range of a file as asked for by the client with a "Range: bytes=start-end" header
+// start and end are both inclusive, just like in the header itself
+public record ByteRange(long start, long end) {
+
+    // special value returned when the client asked for a range that lies completely outside the file
+    public static final ByteRange UNSATISFIABLE = new ByteRange(-1, -1);
+
+    // number of bytes covered by the range
+    public long length() {
+        return end - start + 1;
+    }
+
+    // function to parse the value of a Range header against a file of the given length
+    // returns:
+    // null -> the header is missing or can't be understood, so the whole file should be sent
+    // UNSATISFIABLE -> the range can never be served, the client should get a 416
+    // otherwise the range clamped to the end of the file
+    public static ByteRange parse(String header, long fileLength) {
+        if (header == null || !header.startsWith("bytes=")) {
+            return null;
+        }
+
+        String spec = header.substring("bytes=".length()).trim();
+
+        // multiple ranges would need a multipart/byteranges body, the RFC lets us ignore the header and send
+        // the whole file instead which is what every download client handles anyway
+        if (spec.isEmpty() || spec.indexOf(',') >= 0) {
+            return null;
+        }
+
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+
+            if (first.isEmpty()) {
+                // "bytes=-500" means the last 500 bytes of the file
+                if (last.isEmpty()) {
+                    return null;
+                }
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0 || fileLength == 0) {
+                    return UNSATISFIABLE;
+                }
+                return new ByteRange(Math.max(0, fileLength - suffix), fileLength - 1);
+            }
+
+            long start = Long.parseLong(first);
+            if (start >= fileLength) {
+                return UNSATISFIABLE;
+            }
+            long end = last.isEmpty() ? fileLength - 1 : Long.parseLong(last);
+
+            if (start < 0 || end < start) {
+                return null; // syntactically invalid, ignore it
+            }
+            return new ByteRange(start, Math.min(end, fileLength - 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+}
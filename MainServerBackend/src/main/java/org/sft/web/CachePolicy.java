@@ -0,0 +1,32 @@
+package org.sft.web;
+
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+
+// the Cache-Control header of file downloads
+// by default caches have to check back on every use (no-cache), the etag makes that a cheap 304 when nothing changed
+// a name can get new content in any folder: synced folders, the serial receiver and the remote viewer write under
+// names the other side picked and replace what was there, and a name with the time in front can be written that way too
+// a folder only ever filled through the upload endpoints can be given a long lived policy in files.cache-control.folders
+// (eg. public, max-age=31536000, immutable), browsers and the cloudflare edge then keep its files as long as they like
+@Component
+public class CachePolicy {
+
+    private final String defaultPolicy;
+    private final Map<String, String> folders;
+
+    public CachePolicy(Environment environment) {
+        this.defaultPolicy = environment.getProperty("files.cache-control.default", "no-cache");
+        this.folders = Binder.get(environment).bind("files.cache-control.folders", Bindable.mapOf(String.class, String.class)).orElse(Map.of());
+    }
+
+    // function to get the Cache-Control value for the files of a folder, empty to send none
+    public String forFolder(String folderId) {
+        return folders.getOrDefault(folderId, defaultPolicy);
+    }
+
+}
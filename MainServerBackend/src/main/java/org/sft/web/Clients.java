@@ -0,0 +1,49 @@
+package org.sft.web;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+// helper to tell who a request comes from
+// the cloudflare tunnel connects from this machine too, but says who it forwards for in its headers
+public final class Clients {
+
+    private static final String CF_CONNECTING_IP = "Cf-Connecting-Ip";
+    private static final String X_FORWARDED_FOR = "X-Forwarded-For";
+
+    private Clients() {
+    }
+
+    // function to check if a request was made on this machine, and not just passed on by the tunnel
+    public static boolean isLocal(HttpServletRequest request) {
+        if (request.getHeader(CF_CONNECTING_IP) != null || request.getHeader(X_FORWARDED_FOR) != null) {
+            return false;
+        }
+        try {
+            return InetAddress.getByName(request.getRemoteAddr()).isLoopbackAddress();
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+
+    // function to get the address of the client a request comes from
+    // the forwarding headers are only believed when the request comes from this machine, where the tunnel runs,
+    // anyone else could send them to pass for someone they are not
+    public static String address(HttpServletRequest request) {
+        String remote = request.getRemoteAddr();
+        try {
+            if (!InetAddress.getByName(remote).isLoopbackAddress()) {
+                return remote;
+            }
+        } catch (UnknownHostException e) {
+            return remote;
+        }
+        String forwarded = request.getHeader(CF_CONNECTING_IP);
+        if (forwarded == null && request.getHeader(X_FORWARDED_FOR) != null) {
+            forwarded = request.getHeader(X_FORWARDED_FOR).split(",")[0];
+        }
+        return forwarded != null && !forwarded.isBlank() ? forwarded.trim() : remote;
+    }
+
+}
@@ -0,0 +1,197 @@
+package org.sft.web;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.apache.catalina.connector.CoyoteOutputStream;
+import org.sft.storage.Extent;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+// helper that streams a file (or a byte range of it) from disk straight into the servlet response
+// the body is never loaded onto the heap, so memory use per download stays constant no matter the file size
+// a file can also be a piece of a bigger file (a segment of the segment store), only that piece is ever sent
+// files already held off-heap by the hot file cache are sent from their buffer instead
+// files moved to cold storage are decompressed while they are sent, the client gets the same bytes as before
+public final class FileSender {
+
+    // request attributes tomcat uses for its sendfile support (see org.apache.catalina.Globals)
+    // when they are set, tomcat hands the file to the kernel and it is copied to the socket without passing through java at all
+    private static final String SENDFILE_SUPPORTED_ATTR = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+    // tomcat only uses sendfile for bodies bigger than its sendfileSize (48KB by default), smaller ones are cheaper to just copy
+    private static final long SENDFILE_MIN_LENGTH = 48 * 1024;
+
+    private FileSender() {
+    }
+
+    // function to send a file as a download, honouring a Range header if the client sent one
+    // param:
+    // request -> the incoming request, used for the Range header and to check if sendfile is available
+    // response -> the response the file is written to
+    // content -> where the file's bytes are on disk
+    // downloadName -> name the browser should save the file as
+    public static void send(HttpServletRequest request, HttpServletResponse response, Extent content, String downloadName) throws IOException {
+        if (content.isCompressed()) {
+            ByteRange range = prepare(request, response, content.length(), downloadName);
+            if (range != null) {
+                copy(content, range.start(), range.length(), response.getOutputStream());
+            }
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(content.file(), StandardOpenOption.READ)) {
+            ByteRange range = prepare(request, response, content.length(), downloadName);
+            if (range == null) {
+                return;
+            }
+            long start = content.offset() + range.start();
+            long length = range.length();
+
+            if (sendfile(request, content, start, length)) {
+                return;
+            }
+
+            transfer(channel, start, length, Channels.newChannel(response.getOutputStream()));
+        }
+    }
+
+    // function to let tomcat do a zero-copy sendfile of length bytes of the file from start, if the connector supports it
+    // returns false if it doesn't, or the part is too small to be worth it, the caller has to write the bytes itself then
+    // a compressed extent never goes to sendfile, the kernel would send the compressed bytes
+    static boolean sendfile(HttpServletRequest request, Extent content, long start, long length) {
+        if (content.isCompressed() || length < SENDFILE_MIN_LENGTH || !Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED_ATTR))) {
+            return false;
+        }
+        request.setAttribute(SENDFILE_FILENAME_ATTR, content.file().toAbsolutePath().toString());
+        request.setAttribute(SENDFILE_START_ATTR, start);
+        request.setAttribute(SENDFILE_END_ATTR, start + length); // end is exclusive for tomcat
+        return true;
+    }
+
+    // function to send a file whose contents are already in memory, with the same headers and Range handling as above
+    // param:
+    // content -> the whole file, from its position to its limit, it is not modified
+    public static void send(HttpServletRequest request, HttpServletResponse response, ByteBuffer content, String downloadName) throws IOException {
+        ByteRange range = prepare(request, response, content.remaining(), downloadName);
+        if (range == null) {
+            return;
+        }
+
+        ByteBuffer body = content.duplicate();
+        body.position(content.position() + (int) range.start());
+        body.limit(body.position() + (int) range.length());
+
+        // tomcat copies a direct buffer straight into its socket buffer, anything else goes through a channel
+        OutputStream out = response.getOutputStream();
+        if (out instanceof CoyoteOutputStream coyote) {
+            coyote.write(body);
+        } else {
+            WritableByteChannel channel = Channels.newChannel(out);
+            while (body.hasRemaining()) {
+                channel.write(body);
+            }
+        }
+    }
+
+    // function to set the status and headers of a download of fileLength bytes
+    // the ETag and Last-Modified, if any, must already be set on the response, an If-Range is checked against them
+    // returns the range of the file to write into the body, or null if nothing has to be written
+    static ByteRange prepare(HttpServletRequest request, HttpServletResponse response, long fileLength, String downloadName) {
+        // tell clients they can resume or seek into the file with Range requests
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION,
+                ContentDisposition.formData().name("attachment").filename(downloadName).build().toString());
+
+        // a Range only counts if the If-Range sent with it (if any) still matches the file, otherwise the client's
+        // earlier part is of a different file and it gets the whole new one
+        String rangeHeader = ifRangeMatches(request, response) ? request.getHeader(HttpHeaders.RANGE) : null;
+        ByteRange range = ByteRange.parse(rangeHeader, fileLength);
+
+        if (range == ByteRange.UNSATISFIABLE) {
+            // the client asked for bytes past the end of the file
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + fileLength);
+            response.setContentLengthLong(0);
+            return null;
+        }
+
+        if (range != null) {
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + range.start() + "-" + range.end() + "/" + fileLength);
+        } else {
+            response.setStatus(HttpServletResponse.SC_OK);
+            range = new ByteRange(0, fileLength - 1);
+        }
+
+        response.setContentLengthLong(range.length());
+
+        // HEAD requests only want the headers
+        if ("HEAD".equals(request.getMethod()) || range.length() == 0) {
+            return null;
+        }
+        return range;
+    }
+
+    // function to compare an If-Range header with the ETag or Last-Modified the caller set on the response
+    // it must be the very same value, and a weak etag never matches since a range needs the exact same bytes
+    private static boolean ifRangeMatches(HttpServletRequest request, HttpServletResponse response) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("W/")) {
+            return false;
+        }
+        String validator = ifRange.startsWith("\"") ? response.getHeader(HttpHeaders.ETAG) : response.getHeader(HttpHeaders.LAST_MODIFIED);
+        return ifRange.equals(validator);
+    }
+
+    // function to copy length bytes starting at position from a file channel into any writable channel
+    // transferTo can return early, so we keep calling it until everything is sent
+    public static void transfer(FileChannel channel, long position, long length, WritableByteChannel target) throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            long sent = channel.transferTo(position, remaining, target);
+            if (sent <= 0) {
+                // the file got shorter while we were sending it
+                throw new IOException("File truncated during transfer");
+            }
+            position += sent;
+            remaining -= sent;
+        }
+    }
+
+    // function to copy length bytes of a file's content, starting at start, into a stream
+    // works for every extent, but is meant for compressed ones, which have to be decompressed from the beginning
+    public static void copy(Extent content, long start, long length, OutputStream target) throws IOException {
+        try (InputStream in = content.newInputStream()) {
+            in.skipNBytes(start);
+            byte[] buffer = new byte[64 * 1024];
+            long remaining = length;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    throw new EOFException("File truncated during transfer");
+                }
+                target.write(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+    }
+
+}
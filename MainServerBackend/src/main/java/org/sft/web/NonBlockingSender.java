@@ -0,0 +1,280 @@
+package org.sft.web;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.apache.catalina.connector.CoyoteOutputStream;
+import org.sft.storage.Extent;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.List;
+
+// the non-blocking way of sending /files/download, /files/downloadAll and /files/list, turned on by files.serving.non-blocking
+// instead of a thread writing the body and sitting in write() while a slow client catches up, the request goes async
+// (servlet non-blocking io): tomcat calls us whenever the socket can take more, we read the next chunk of the file with
+// an AsynchronousFileChannel and write it, and no thread is held by the response in between
+// so the disk is only read as fast as the client takes the bytes, never more than one chunk per response is in memory
+// files.serving.chunk-size is how much is read from the file at a time
+// files moved to cold storage can't be read at a position, they are decompressed a chunk at a time as the socket takes
+// more instead, the writes stay non-blocking
+// the blocking path (FileSender, StreamingResponseBody) stays the default so both can be measured on the same workload
+@Component
+public class NonBlockingSender {
+
+    // a part of a response body, the parts are sent one after the other
+    public sealed interface Piece {
+    }
+
+    // bytes already in memory, sent from position to limit
+    public record Bytes(ByteBuffer content) implements Piece {
+    }
+
+    // bytes of a file
+    public record FileRange(Extent content, long start, long length) implements Piece {
+    }
+
+    private final boolean enabled;
+    private final int chunkSize;
+    private final ObjectMapper objectMapper;
+
+    public NonBlockingSender(@Value("${files.serving.non-blocking:false}") boolean enabled,
+                             @Value("${files.serving.chunk-size:64KB}") DataSize chunkSize,
+                             ObjectMapper objectMapper) {
+        this.enabled = enabled;
+        this.chunkSize = (int) chunkSize.toBytes();
+        this.objectMapper = objectMapper;
+    }
+
+    // true if the routes should be answered this way
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // function to send a file as a download like FileSender.send does, with the same headers and Range handling
+    // tomcat's own sendfile is non-blocking already, so it is still used where it can be
+    public void send(HttpServletRequest request, HttpServletResponse response, Extent content, String downloadName) throws IOException {
+        ByteRange range = FileSender.prepare(request, response, content.length(), downloadName);
+        if (range == null) {
+            return;
+        }
+        long start = content.offset() + range.start();
+        if (FileSender.sendfile(request, content, start, range.length())) {
+            return;
+        }
+        start(request, response, List.of(new FileRange(content, range.start(), range.length())));
+    }
+
+    // function to send a file whose contents are already in memory, like FileSender.send does
+    public void send(HttpServletRequest request, HttpServletResponse response, ByteBuffer content, String downloadName) throws IOException {
+        ByteRange range = FileSender.prepare(request, response, content.remaining(), downloadName);
+        if (range == null) {
+            return;
+        }
+        ByteBuffer body = content.duplicate();
+        body.position(content.position() + (int) range.start());
+        body.limit(body.position() + (int) range.length());
+        start(request, response, List.of(new Bytes(body)));
+    }
+
+    // function to send an object as json, the status and the other headers must already be set
+    public void sendJson(HttpServletRequest request, HttpServletResponse response, Object body) throws IOException {
+        byte[] json = objectMapper.writeValueAsBytes(body);
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setContentLength(json.length);
+        if ("HEAD".equals(request.getMethod())) {
+            return;
+        }
+        start(request, response, List.of(new Bytes(ByteBuffer.wrap(json))));
+    }
+
+    // function to send pieces one after the other as the body, the status and headers must already be set
+    // returns right away, the body is written as the client takes it and the response is completed after the last piece
+    public void start(HttpServletRequest request, HttpServletResponse response, List<? extends Piece> pieces) throws IOException {
+        AsyncContext async = request.startAsync(request, response);
+        async.setTimeout(0); // a big file to a slow client takes as long as it takes, a client that stops reading times out in tomcat
+        ServletOutputStream out = response.getOutputStream();
+        out.setWriteListener(new Transfer(async, out, pieces.iterator(), chunkSize));
+    }
+
+    // one response being written
+    // everything happens under the transfer's lock, since tomcat calls onWritePossible on its threads and the reads
+    // complete on the channel's threads
+    private static final class Transfer implements WriteListener, CompletionHandler<Integer, Void> {
+
+        private final AsyncContext async;
+        private final ServletOutputStream out;
+        private final Iterator<? extends Piece> pieces;
+        private final ByteBuffer buffer;
+
+        private AsynchronousFileChannel channel;
+        private InputStream stream; // instead of the channel for a compressed file
+        private long position;
+        private long remaining;
+        private boolean reading;
+        private boolean done;
+
+        Transfer(AsyncContext async, ServletOutputStream out, Iterator<? extends Piece> pieces, int chunkSize) {
+            this.async = async;
+            this.out = out;
+            this.pieces = pieces;
+            this.buffer = ByteBuffer.allocate(chunkSize).limit(0);
+        }
+
+        // called by tomcat when the socket can take more, and by us when a read finished
+        @Override
+        public synchronized void onWritePossible() throws IOException {
+            while (!done && !reading && out.isReady()) {
+                if (buffer.hasRemaining()) {
+                    out.write(buffer.array(), buffer.position(), buffer.remaining());
+                    buffer.position(buffer.limit());
+                } else if (remaining > 0 && stream != null) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), remaining));
+                    try {
+                        if (stream.readNBytes(buffer.array(), 0, buffer.limit()) < buffer.limit()) {
+                            throw new EOFException("File truncated during transfer");
+                        }
+                    } catch (IOException e) {
+                        readFailed(e);
+                        return;
+                    }
+                    remaining -= buffer.limit();
+                } else if (remaining > 0) {
+                    // the next chunk, written once it is read, unless the socket is full by then and tomcat calls us again
+                    reading = true;
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), remaining));
+                    channel.read(buffer, position, null, this);
+                } else {
+                    closeSource();
+                    if (!pieces.hasNext()) {
+                        done = true;
+                        async.complete();
+                    } else {
+                        next(pieces.next());
+                    }
+                }
+            }
+        }
+
+        private void next(Piece piece) throws IOException {
+            switch (piece) {
+                case Bytes bytes -> write(bytes.content());
+                case FileRange range -> open(range);
+            }
+        }
+
+        private void open(FileRange range) {
+            try {
+                if (range.content().isCompressed()) {
+                    stream = range.content().newInputStream();
+                    stream.skipNBytes(range.start());
+                } else {
+                    channel = AsynchronousFileChannel.open(range.content().file(), StandardOpenOption.READ);
+                    position = range.content().offset() + range.start();
+                }
+                remaining = range.length();
+            } catch (IOException e) {
+                readFailed(e); // eg. deleted since the request looked it up
+            }
+        }
+
+        // in non-blocking mode tomcat takes all of it at once and holds on to what the socket can't take yet
+        private void write(ByteBuffer content) throws IOException {
+            if (out instanceof CoyoteOutputStream coyote) {
+                coyote.write(content.duplicate());
+            } else if (content.hasArray()) {
+                out.write(content.array(), content.arrayOffset() + content.position(), content.remaining());
+            } else {
+                byte[] copy = new byte[content.remaining()];
+                content.duplicate().get(copy);
+                out.write(copy);
+            }
+        }
+
+        // a chunk of the file was read
+        @Override
+        public void completed(Integer read, Void attachment) {
+            synchronized (this) {
+                reading = false;
+                if (read < 0) {
+                    readFailed(new EOFException("File truncated during transfer"));
+                    return;
+                }
+                buffer.flip();
+                position += read;
+                remaining -= read;
+            }
+            try {
+                onWritePossible();
+            } catch (IOException e) {
+                onError(e);
+            }
+        }
+
+        @Override
+        public void failed(Throwable error, Void attachment) {
+            synchronized (this) {
+                reading = false;
+            }
+            readFailed(error);
+        }
+
+        // writing to the client failed, it went away (ClientAbortException) or the connection broke, which happens all
+        // the time and isn't worth a line in the log, failures reading the file are reported by readFailed instead
+        @Override
+        public void onError(Throwable error) {
+            fail(error, false);
+        }
+
+        // the file couldn't be read, which is a problem on our side
+        private void readFailed(Throwable error) {
+            fail(error, true);
+        }
+
+        // part of the body may already be sent so all we can do is stop, the client sees a response shorter than its
+        // Content-Length
+        private synchronized void fail(Throwable error, boolean report) {
+            if (done) {
+                return;
+            }
+            done = true;
+            closeSource();
+            if (report) {
+                System.out.println("Non-blocking transfer failed: " + error);
+            }
+            try {
+                async.complete();
+            } catch (IllegalStateException ignored) {
+                // the container already completed it
+            }
+        }
+
+        private void closeSource() {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+                if (stream != null) {
+                    stream.close();
+                }
+            } catch (IOException ignored) {
+            }
+            channel = null;
+            stream = null;
+        }
+    }
+
+}